@@ -13,7 +13,11 @@
  */
 package com.addthis.hydra.task.source;
 
+import java.util.List;
+import java.util.NoSuchElementException;
+
 import com.addthis.bundle.channel.DataChannelSource;
+import com.addthis.bundle.core.Bundle;
 import com.addthis.bundle.util.AutoField;
 import com.addthis.codec.annotations.FieldConfig;
 import com.addthis.codec.annotations.Pluggable;
@@ -44,8 +48,44 @@ public abstract class TaskDataSource implements Codable, DataChannelSource, Clon
     @FieldConfig(codable = true)
     private boolean enabled = true;
 
+    /** Set when the stream ended with an exception after bundles were returned by {@link #nextBatch}. */
+    private boolean batchEnded;
+
     public abstract void init();
 
+    /**
+     * Append up to {@code max} bundles to {@code batch}. Returns the number
+     * of bundles appended which is zero once the source is exhausted.
+     * The default implementation calls {@link #next()} for each bundle.
+     * Sources that can produce several bundles at once more cheaply
+     * may override this.
+     *
+     * @throws NoSuchElementException on premature stream termination
+     *                                before any bundle was appended
+     */
+    public int nextBatch(List<Bundle> batch, int max) {
+        if (batchEnded) {
+            throw new NoSuchElementException();
+        }
+        int count = 0;
+        try {
+            while (count < max) {
+                Bundle next = next();
+                if (next == null) {
+                    break;
+                }
+                batch.add(next);
+                count++;
+            }
+        } catch (NoSuchElementException ex) {
+            if (count == 0) {
+                throw ex;
+            }
+            batchEnded = true;
+        }
+        return count;
+    }
+
     public final AutoField getShardField() {
         return shardField;
     }
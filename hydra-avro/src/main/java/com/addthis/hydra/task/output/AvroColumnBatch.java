@@ -0,0 +1,142 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.output;
+
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.core.BundleFormat;
+import com.addthis.bundle.value.ValueObject;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+
+/**
+ * Rows of bundles held as one value vector per field of an Avro record schema.
+ * <p/>
+ * The schema fields are resolved to bundle fields once per bundle format and
+ * the non-null branch of each optional field is chosen once per batch, so adding
+ * a row only reads the schema columns out of the bundle and converts them.
+ * Rows are written out through a single reused record.
+ * Instances are not thread safe.
+ */
+final class AvroColumnBatch {
+
+    interface RecordWriter {
+
+        void write(GenericRecord record) throws IOException;
+    }
+
+    private final int capacity;
+    private final String[] names;
+    private final Schema[] types;
+    private final Object[][] columns;
+    private final GenericData.Record record;
+
+    private BundleFormat format;
+    private int formatFields;
+    private BundleField[] fields;
+    private int size;
+
+    AvroColumnBatch(Schema schema, int capacity) {
+        this.capacity = Math.max(1, capacity);
+        List<Schema.Field> schemaFields = schema.getFields();
+        this.names = new String[schemaFields.size()];
+        this.types = new Schema[schemaFields.size()];
+        this.columns = new Object[schemaFields.size()][this.capacity];
+        for (Schema.Field field : schemaFields) {
+            names[field.pos()] = field.name();
+            types[field.pos()] = nonNullType(field.schema());
+        }
+        this.record = new GenericData.Record(schema);
+    }
+
+    private static Schema nonNullType(Schema schema) {
+        if (schema.getType() == Schema.Type.UNION) {
+            for (Schema schemaOption : schema.getTypes()) {
+                if (schemaOption.getType() != Schema.Type.NULL) {
+                    return schemaOption;
+                }
+            }
+        }
+        return schema;
+    }
+
+    /**
+     * Look up the bundle field of each column. Fields that the format does not
+     * have are left null rather than created in the format.
+     */
+    private void resolve(BundleFormat rowFormat) {
+        if ((fields != null) && (rowFormat == format) && (rowFormat.getFieldCount() == formatFields)) {
+            return;
+        }
+        BundleField[] newFields = new BundleField[names.length];
+        for (int i = 0; i < names.length; i++) {
+            if (rowFormat.hasField(names[i])) {
+                newFields[i] = rowFormat.getField(names[i]);
+            }
+        }
+        fields = newFields;
+        format = rowFormat;
+        formatFields = rowFormat.getFieldCount();
+    }
+
+    /**
+     * Append a row to the batch.
+     *
+     * @return true if the batch is full and must be written before another row is added
+     */
+    boolean add(Bundle row) {
+        resolve(row.getFormat());
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] == null) {
+                continue;
+            }
+            ValueObject value = row.getValue(fields[i]);
+            if (value != null) {
+                columns[i][size] = OutputStreamAvro.getAvroNativeFromValue(value, types[i]);
+            }
+        }
+        return ++size >= capacity;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Pass each row in order to {@code writer}, which must be done with the
+     * record when it returns, and empty the batch.
+     */
+    void writeTo(RecordWriter writer) throws IOException {
+        try {
+            for (int row = 0; row < size; row++) {
+                for (int i = 0; i < columns.length; i++) {
+                    record.put(i, columns[i][row]);
+                }
+                writer.write(record);
+            }
+        } finally {
+            for (Object[] column : columns) {
+                Arrays.fill(column, 0, size, null);
+            }
+            size = 0;
+        }
+    }
+}
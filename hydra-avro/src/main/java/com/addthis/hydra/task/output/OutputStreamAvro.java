@@ -38,7 +38,6 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import org.apache.avro.Schema;
-import org.apache.avro.generic.GenericData;
 import org.apache.avro.generic.GenericDatumWriter;
 import org.apache.avro.generic.GenericRecord;
 import org.apache.avro.io.BinaryEncoder;
@@ -84,14 +83,15 @@ public class OutputStreamAvro extends OutputStreamFormatter {
     @Override
     public OutputStreamEmitter createEmitter() {
         return new OutputStreamEmitter() {
+            // rows go to a different buffer on each call so they are written one at a time
+            private final AvroColumnBatch batch = new AvroColumnBatch(outputSchema, 1);
             private BinaryEncoder encoder;
 
             @Override
             public void write(OutputStream out, Bundle row) throws IOException {
-                GenericRecord outputRecord = new GenericData.Record(outputSchema);
-                populateAvroRecord(outputRecord, row);
+                batch.add(row);
                 encoder = EncoderFactory.get().blockingBinaryEncoder(out, encoder);
-                datumWriter.write(outputRecord, encoder);
+                batch.writeTo(record -> datumWriter.write(record, encoder));
                 encoder.flush();
             }
 
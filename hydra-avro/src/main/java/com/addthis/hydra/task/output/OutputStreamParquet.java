@@ -22,6 +22,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import com.addthis.basis.util.Parameter;
+
 import com.addthis.bundle.core.Bundle;
 import com.addthis.bundle.core.BundleField;
 import com.addthis.bundle.value.ValueArray;
@@ -39,7 +41,6 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import org.apache.avro.Schema;
-import org.apache.avro.generic.GenericData;
 import org.apache.avro.generic.GenericRecord;
 import org.apache.hadoop.fs.Path;
 
@@ -54,16 +55,21 @@ import parquet.hadoop.metadata.CompressionCodecName;
 public class OutputStreamParquet implements Closeable {
     private static final Logger log = LoggerFactory.getLogger(OutputStreamParquet.class);
 
+    // rows converted into column vectors before they are handed to the parquet writer
+    private static final int batchSize = Parameter.intValue("hydra.parquet.batch", 1024);
+
     CompressionCodecName compressionCodecName = CompressionCodecName.GZIP;
 
     private final Schema outputSchema;
     private final AvroParquetWriter<GenericRecord> parquetWriter;
+    private final AvroColumnBatch batch;
 
     public OutputStreamParquet(String schema, String path) throws IOException {
         outputSchema = new Schema.Parser().parse(schema);
         parquetWriter = new AvroParquetWriter<>(
                 new Path(path), outputSchema, compressionCodecName,
-                ParquetWriter.DEFAULT_BLOCK_SIZE, ParquetWriter.DEFAULT_PAGE_SIZE);
+                ParquetWriter.DEFAULT_BLOCK_SIZE, ParquetWriter.DEFAULT_PAGE_SIZE, true);
+        batch = new AvroColumnBatch(outputSchema, batchSize);
     }
 
     @JsonCreator
@@ -88,17 +94,22 @@ public class OutputStreamParquet implements Closeable {
         outputSchema = new Schema.Parser().parse(schema);
         parquetWriter = new AvroParquetWriter<>(
                 new Path(path), outputSchema, compressionCodecName,
-                ParquetWriter.DEFAULT_BLOCK_SIZE, ParquetWriter.DEFAULT_PAGE_SIZE);
+                ParquetWriter.DEFAULT_BLOCK_SIZE, ParquetWriter.DEFAULT_PAGE_SIZE, true);
+        batch = new AvroColumnBatch(outputSchema, batchSize);
     }
 
     public void write(Bundle row) throws IOException {
-        GenericRecord outputRecord = new GenericData.Record(outputSchema);
-        populateAvroRecord(outputRecord, row);
-        parquetWriter.write(outputRecord);
+        if (batch.add(row)) {
+            batch.writeTo(parquetWriter::write);
+        }
     }
 
     @Override public void close() throws IOException {
-        parquetWriter.close();
+        try {
+            batch.writeTo(parquetWriter::write);
+        } finally {
+            parquetWriter.close();
+        }
     }
 
     public static void populateAvroRecord(GenericRecord genericRecord, Bundle bundle) {
@@ -0,0 +1,130 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.output;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.bundle.value.ValueFactory;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Rows written through a column batch must match the records built one bundle
+ * at a time by {@link OutputStreamAvro#populateAvroRecord(GenericRecord, Bundle)}.
+ */
+public class AvroColumnBatchTest {
+
+    private static final Schema schema = SchemaBuilder.record("row").fields()
+                                                      .optionalString("a")
+                                                      .optionalString("b")
+                                                      .optionalLong("n")
+                                                      .endRecord();
+
+    private static Bundle bundle(ListBundleFormat format, Object... fieldsAndValues) {
+        Bundle bundle = new ListBundle(format);
+        for (int i = 0; i < fieldsAndValues.length; i += 2) {
+            Object value = fieldsAndValues[i + 1];
+            bundle.setValue(format.getField((String) fieldsAndValues[i]),
+                            (value instanceof Long) ? ValueFactory.create((Long) value)
+                                                    : ValueFactory.create((String) value));
+        }
+        return bundle;
+    }
+
+    private static GenericRecord expected(Bundle bundle) {
+        GenericRecord record = new GenericData.Record(schema);
+        OutputStreamAvro.populateAvroRecord(record, bundle);
+        return record;
+    }
+
+    /** Copies of the records written by {@code batch}, since the batch reuses its record. */
+    private static List<GenericRecord> write(AvroColumnBatch batch) throws IOException {
+        List<GenericRecord> records = new ArrayList<>();
+        batch.writeTo(record -> records.add(new GenericData.Record((GenericData.Record) record, true)));
+        return records;
+    }
+
+    @Test
+    public void matchesPopulateAvroRecord() throws IOException {
+        ListBundleFormat full = new ListBundleFormat();
+        // no "b" column and an extra field that is not in the schema
+        ListBundleFormat partial = new ListBundleFormat();
+        List<Bundle> input = new ArrayList<>();
+        input.add(bundle(full, "a", "a0", "b", "b0", "n", 0L));
+        input.add(bundle(full, "a", "", "b", "b1", "n", 1L));
+        input.add(bundle(partial, "n", 2L, "a", "a2", "x", "x2"));
+        input.add(bundle(full, "a", "a3", "b", ""));
+        input.add(bundle(partial, "a", "a4", "x", "x4"));
+        // the format gains the missing column in the middle of the batch
+        input.add(bundle(partial, "a", "a5", "b", "b5", "n", 5L));
+        input.add(bundle(full, "n", 6L));
+
+        AvroColumnBatch batch = new AvroColumnBatch(schema, 4);
+        List<GenericRecord> actual = new ArrayList<>();
+        for (Bundle bundle : input) {
+            if (batch.add(bundle)) {
+                assertEquals(4, batch.size());
+                actual.addAll(write(batch));
+                assertEquals(0, batch.size());
+            }
+        }
+        assertEquals(3, batch.size());
+        actual.addAll(write(batch));
+
+        List<GenericRecord> expected = new ArrayList<>();
+        for (Bundle bundle : input) {
+            expected.add(expected(bundle));
+        }
+        assertEquals(expected, actual);
+
+        // empty strings are written as null
+        assertNull(actual.get(1).get("a"));
+        assertNull(actual.get(3).get("b"));
+        // columns missing from a bundle or its format are null, not left over from an earlier row
+        assertNull(actual.get(2).get("b"));
+        assertNull(actual.get(3).get("n"));
+        assertNull(actual.get(4).get("b"));
+        assertNull(actual.get(4).get("n"));
+        assertEquals("b5", actual.get(5).get("b"));
+        assertNull(actual.get(6).get("a"));
+    }
+
+    @Test
+    public void fullAtCapacity() throws IOException {
+        ListBundleFormat format = new ListBundleFormat();
+        AvroColumnBatch batch = new AvroColumnBatch(schema, 2);
+        assertFalse(batch.add(bundle(format, "a", "a0")));
+        assertTrue(batch.add(bundle(format, "a", "a1")));
+        assertEquals(2, write(batch).size());
+        assertFalse(batch.add(bundle(format, "a", "a2")));
+        List<GenericRecord> records = write(batch);
+        assertEquals(1, records.size());
+        assertEquals("a2", records.get(0).get("a"));
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.benchmarks;
+
+import com.addthis.hydra.store.db.DBKey;
+
+/**
+ * Page cache keys shaped like the keys of tree nodes: the id of the
+ * parent node and the name of the child. Consecutive numbers share a
+ * parent so that they are stored in the same pages.
+ */
+public final class BenchmarkKeys {
+
+    /** Number of children of each parent id. */
+    public static final int FANOUT = 1000;
+
+    private BenchmarkKeys() {
+    }
+
+    public static DBKey key(long i) {
+        return new DBKey(i / FANOUT, "child" + (i % FANOUT));
+    }
+
+    public static DBKey[] keys(int count) {
+        DBKey[] keys = new DBKey[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = key(i);
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Compares two JMH result files written with {@code -rf json} and reports
+ * every benchmark whose score moved by more than a threshold. Throughput
+ * scores regress when they decrease and all other modes regress when they
+ * increase. Exits with status 1 if any regression is found.
+ * <p/>
+ * Usage: {@code CompareResults baseline.json current.json [thresholdPercent]}
+ */
+public final class CompareResults {
+
+    private CompareResults() {}
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("usage: CompareResults baseline.json current.json [thresholdPercent]");
+            System.exit(2);
+        }
+        double threshold = (args.length == 3) ? Double.parseDouble(args[2]) : 5.0;
+        Map<String, JsonNode> baseline = readResults(new File(args[0]));
+        Map<String, JsonNode> current = readResults(new File(args[1]));
+        int regressions = 0;
+        for (Map.Entry<String, JsonNode> entry : current.entrySet()) {
+            JsonNode before = baseline.get(entry.getKey());
+            if (before == null) {
+                System.out.printf("NEW        %s%n", entry.getKey());
+                continue;
+            }
+            JsonNode after = entry.getValue();
+            double oldScore = before.path("primaryMetric").path("score").asDouble();
+            double newScore = after.path("primaryMetric").path("score").asDouble();
+            String unit = after.path("primaryMetric").path("scoreUnit").asText();
+            double change = (oldScore == 0) ? 0 : ((newScore - oldScore) / oldScore) * 100.0;
+            boolean higherIsBetter = "thrpt".equals(after.path("mode").asText());
+            double slowdown = higherIsBetter ? -change : change;
+            String status;
+            if (slowdown > threshold) {
+                status = "REGRESSION";
+                regressions++;
+            } else if (slowdown < -threshold) {
+                status = "IMPROVED";
+            } else {
+                status = "OK";
+            }
+            System.out.printf("%-10s %s %.3f -> %.3f %s (%+.1f%%)%n",
+                              status, entry.getKey(), oldScore, newScore, unit, change);
+        }
+        for (String key : baseline.keySet()) {
+            if (!current.containsKey(key)) {
+                System.out.printf("MISSING    %s%n", key);
+            }
+        }
+        if (regressions > 0) {
+            System.out.printf("%d benchmark(s) regressed by more than %.1f%%%n", regressions, threshold);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Results keyed by benchmark name and sorted parameter values.
+     */
+    private static Map<String, JsonNode> readResults(File file) throws IOException {
+        JsonNode root = new ObjectMapper().readTree(file);
+        Map<String, JsonNode> results = new LinkedHashMap<>();
+        for (JsonNode result : root) {
+            StringBuilder key = new StringBuilder(result.path("benchmark").asText());
+            JsonNode params = result.path("params");
+            if (params.size() > 0) {
+                Map<String, String> sorted = new TreeMap<>();
+                Iterator<Map.Entry<String, JsonNode>> fields = params.fields();
+                while (fields.hasNext()) {
+                    Map.Entry<String, JsonNode> field = fields.next();
+                    sorted.put(field.getKey(), field.getValue().asText());
+                }
+                key.append(sorted);
+            }
+            results.put(key.toString(), result);
+        }
+        return results;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.benchmarks;
+
+import com.addthis.codec.annotations.FieldConfig;
+import com.addthis.codec.codables.BytesCodable;
+
+import com.google.common.primitives.Longs;
+
+/**
+ * Fixed width value used by the page cache benchmarks. The field is also
+ * codable so that {@code LEGACY} pages can encode the value.
+ */
+public final class LongValue implements BytesCodable {
+
+    @FieldConfig(codable = true)
+    private long val;
+
+    public LongValue(long val) {
+        this.val = val;
+    }
+
+    public LongValue() {
+    }
+
+    public long getVal() {
+        return val;
+    }
+
+    @Override
+    public byte[] bytesEncode(long version) {
+        return Longs.toByteArray(val);
+    }
+
+    @Override
+    public void bytesDecode(byte[] b, long version) {
+        val = Longs.fromByteArray(b);
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import com.addthis.basis.util.LessBytes;
+import com.addthis.basis.util.LessFiles;
+import com.addthis.basis.util.Varint;
+
+import com.addthis.hydra.store.common.AbstractPage;
+import com.addthis.hydra.store.common.Page;
+import com.addthis.hydra.store.common.PageCodec;
+import com.addthis.hydra.store.common.PageCompression;
+import com.addthis.hydra.store.common.PageFactory;
+import com.addthis.hydra.store.db.DBKey;
+import com.addthis.hydra.store.db.DBKeyCoder;
+import com.addthis.hydra.store.kv.ByteStore;
+import com.addthis.hydra.store.kv.ConcurrentByteStoreBDB;
+import com.addthis.hydra.store.kv.PageEncodeType;
+import com.addthis.hydra.store.skiplist.ConcurrentPage;
+import com.addthis.hydra.store.skiplist.SkipListCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.PooledByteBufAllocator;
+
+/**
+ * Page serialization for each supported compression type and page type.
+ * Dictionary compression is trained on a set of similar pages before
+ * measurement.
+ * <p/>
+ * {@code LEGACY} and {@code SPARSE} pages are no longer written, so for
+ * those types the decoded page is built in the layout older releases wrote
+ * and the encoded page is the upgrade of such a page to {@code LONGIDS}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PageCodecBenchmark {
+
+    @Param({"NONE", "DEFLATE", "GZIP", "LZF", "SNAPPY", "LZ4", "DICTIONARY"})
+    public PageCompression compression;
+
+    @Param({"LEGACY", "SPARSE", "LONGIDS", "PREFIX"})
+    public PageEncodeType pageType;
+
+    @Param({"100", "1000"})
+    public int pageSize;
+
+    private File directory;
+
+    private DBKeyCoder<LongValue> keyCoder;
+
+    private PageCodec codec;
+
+    private SkipListCache<DBKey, LongValue> cache;
+
+    private PageFactory<DBKey, LongValue> pageFactory;
+
+    private Page<DBKey, LongValue> page;
+
+    private ByteBufOutputStream output;
+
+    private byte[] encoded;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = LessFiles.createTempDir();
+        ByteStore externalStore = new ConcurrentByteStoreBDB(directory, "db");
+        PageEncodeType writeType = (pageType == PageEncodeType.PREFIX) ? PageEncodeType.PREFIX : PageEncodeType.LONGIDS;
+        codec = new PageCodec(compression, AbstractPage.gzlevel, 0, writeType, directory, "db");
+        keyCoder = new DBKeyCoder<>(LongValue.class);
+        pageFactory = ConcurrentPage.ConcurrentPageFactory.singleton;
+        cache = new SkipListCache.Builder<>(keyCoder, externalStore, pageSize)
+                .pageFactory(pageFactory).pageCodec(codec).build();
+        output = new ByteBufOutputStream(PooledByteBufAllocator.DEFAULT.buffer());
+        for (long parent = 1; codec.isSampling(); parent++) {
+            generatePage(parent).encode(output, false);
+        }
+        page = generatePage(0);
+        if (pageType == writeType) {
+            encoded = page.encode(output, false);
+        } else {
+            encoded = encodeOldPage(page);
+        }
+    }
+
+    /**
+     * Returns a page of children of one parent whose raw values are in the layout of {@link #pageType}.
+     */
+    private Page<DBKey, LongValue> generatePage(long parent) {
+        PageEncodeType valueType = pageType.valueType();
+        TreeMap<DBKey, LongValue> entries = new TreeMap<>();
+        for (long i = 0; i < pageSize; i++) {
+            entries.put(new DBKey(parent, "child" + i), new LongValue(i * i));
+        }
+        ArrayList<DBKey> keys = new ArrayList<>(entries.keySet());
+        ArrayList<LongValue> values = new ArrayList<>(entries.values());
+        ArrayList<byte[]> rawValues = new ArrayList<>(pageSize);
+        for (LongValue value : values) {
+            rawValues.add(keyCoder.valueEncode(value, valueType));
+        }
+        return pageFactory.generateSiblingPage(cache, keys.get(0), new DBKey(parent + 1), pageSize,
+                                               keys, values, rawValues, valueType);
+    }
+
+    /**
+     * Encode a page in the {@code LEGACY} or {@code SPARSE} layout.
+     */
+    private byte[] encodeOldPage(Page<DBKey, LongValue> source) throws IOException {
+        PageCompression current = codec.current();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(current.code | (pageType.ordinal() << AbstractPage.TYPE_BIT_OFFSET));
+        DBKey firstKey = source.getFirstKey();
+        try (OutputStream os = codec.compress(bytes, current)) {
+            DataOutputStream dos = new DataOutputStream(os);
+            writeInt(source.size(), dos);
+            writeBytes(keyCoder.keyEncode(firstKey), dos);
+            writeBytes(keyCoder.keyEncode(source.getNextFirstKey()), dos);
+            for (int i = 0; i < source.size(); i++) {
+                writeBytes(keyCoder.keyEncode(source.keys().get(i), firstKey, pageType), dos);
+                writeBytes(keyCoder.valueEncode(source.values().get(i), pageType), dos);
+            }
+            dos.flush();
+        }
+        return bytes.toByteArray();
+    }
+
+    private void writeInt(int value, DataOutputStream out) throws IOException {
+        if (pageType == PageEncodeType.LEGACY) {
+            LessBytes.writeLength(value, out);
+        } else {
+            Varint.writeUnsignedVarInt(value, out);
+        }
+    }
+
+    private void writeBytes(byte[] value, DataOutputStream out) throws IOException {
+        writeInt(value.length, out);
+        out.write(value);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        output.buffer().release();
+        cache.close();
+        LessFiles.deleteDir(directory);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return page.encode(output, false);
+    }
+
+    @Benchmark
+    public Page<DBKey, LongValue> decode() {
+        Page<DBKey, LongValue> target = pageFactory.generateEmptyPage(cache, page.getFirstKey(), pageType.valueType());
+        target.decode(encoded);
+        return target;
+    }
+}
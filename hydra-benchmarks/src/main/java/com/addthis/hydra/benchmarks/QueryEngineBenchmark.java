@@ -0,0 +1,166 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.addthis.basis.util.LessFiles;
+
+import com.addthis.bundle.channel.DataChannelOutput;
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.hydra.data.query.Query;
+import com.addthis.hydra.data.query.QueryException;
+import com.addthis.hydra.data.query.engine.QueryEngine;
+import com.addthis.hydra.data.tree.ReadTree;
+import com.addthis.hydra.data.tree.concurrent.ConcurrentTree;
+import com.addthis.hydra.data.tree.concurrent.ConcurrentTreeNode;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import io.netty.channel.DefaultChannelProgressivePromise;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+
+/**
+ * {@link QueryEngine#search} over a two level tree that is written with a
+ * {@link ConcurrentTree} and then reopened as a {@link ReadTree}, which is how
+ * query workers open job data. Rows are consumed without any query ops.
+ * <p/>
+ * {@code parallel} selects the search mode of the query. The parallel modes search
+ * on queryEngine.searchThreads pool threads, which defaults to the number of cores,
+ * so their scaling can be measured by passing for example
+ * {@code -jvmArgsAppend -DqueryEngine.searchThreads=4} to the benchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryEngineBenchmark {
+
+    @Param({"100"})
+    public int outerFanout;
+
+    @Param({"1000"})
+    public int innerFanout;
+
+    @Param({"+:+hits/+:+hits", "+/+:+hits", "k5/+:+hits"})
+    public String path;
+
+    @Param({"false", "ordered", "unordered"})
+    public String parallel;
+
+    private File directory;
+
+    private ReadTree tree;
+
+    private QueryEngine engine;
+
+    private Query query;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        directory = LessFiles.createTempDir();
+        ConcurrentTree writeTree = new ConcurrentTree(directory);
+        ConcurrentTreeNode root = writeTree.getRootNode();
+        for (int i = 0; i < outerFanout; i++) {
+            ConcurrentTreeNode outer = root.getOrCreateEditableNode("k" + i);
+            outer.incrementCounter(innerFanout);
+            outer.markChanged();
+            for (int j = 0; j < innerFanout; j++) {
+                ConcurrentTreeNode inner = outer.getOrCreateEditableNode("v" + j);
+                inner.incrementCounter(j + 1);
+                inner.markChanged();
+                inner.release();
+            }
+            outer.release();
+        }
+        writeTree.close();
+        tree = new ReadTree(directory);
+        engine = new QueryEngine(tree);
+        query = new Query("benchmark", new String[]{path}, null);
+        query.setParameter("parallel", parallel);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        engine.close();
+        LessFiles.deleteDir(directory);
+    }
+
+    @Benchmark
+    public long search(Blackhole blackhole) throws QueryException {
+        BlackholeOutput output = new BlackholeOutput(blackhole);
+        engine.search(query, output, new DefaultChannelProgressivePromise(null, ImmediateEventExecutor.INSTANCE));
+        output.sendComplete();
+        return output.rows;
+    }
+
+    private static final class BlackholeOutput implements DataChannelOutput {
+
+        private final ListBundleFormat format = new ListBundleFormat();
+        private final Blackhole blackhole;
+        private long rows;
+
+        BlackholeOutput(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void send(Bundle row) {
+            rows++;
+            blackhole.consume(row);
+        }
+
+        @Override
+        public void send(List<Bundle> bundles) {
+            for (Bundle bundle : bundles) {
+                send(bundle);
+            }
+        }
+
+        @Override
+        public void sendComplete() {
+        }
+
+        @Override
+        public void sourceError(Throwable cause) {
+            throw new IllegalStateException(cause);
+        }
+
+        @Override
+        public Bundle createBundle() {
+            return new ListBundle(format);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.addthis.basis.util.LessFiles;
+
+import com.addthis.hydra.data.tree.ReadTreeNode;
+import com.addthis.hydra.data.tree.TreeConfig;
+import com.addthis.hydra.data.tree.concurrent.ConcurrentTree;
+import com.addthis.hydra.data.tree.concurrent.ConcurrentTreeNode;
+import com.addthis.hydra.store.db.DBKey;
+import com.addthis.hydra.store.db.ReadPageDB;
+import com.addthis.hydra.store.kv.PageEncodeType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Point reads of tree nodes through {@link ReadPageDB} with a page cache of
+ * a single page, so that nearly every read fetches and decodes a page. This
+ * is the cost paid by the query system for each node that is not cached.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadPageDBBenchmark {
+
+    @Param({"LONGIDS", "PREFIX"})
+    public PageEncodeType pageType;
+
+    @Param({"10000"})
+    public int fanout;
+
+    private File directory;
+
+    private ReadPageDB<ReadTreeNode> db;
+
+    private DBKey[] keys;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        directory = LessFiles.createTempDir();
+        TreeConfig.writeConfigToDataDirectory(directory.toPath(),
+                                               new TreeConfig(1.0, false, null, null, pageType));
+        ConcurrentTree tree = new ConcurrentTree(directory);
+        ConcurrentTreeNode root = tree.getRootNode();
+        for (int i = 0; i < fanout; i++) {
+            root.getOrCreateEditableNode("child" + i).release();
+        }
+        tree.close();
+        try (ReadPageDB<ReadTreeNode> source = new ReadPageDB<>(directory, ReadTreeNode.class, 1000, 0)) {
+            keys = source.toTreeMap().keySet().toArray(new DBKey[0]);
+        }
+        db = new ReadPageDB<>(directory, ReadTreeNode.class, 1, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        db.close();
+        LessFiles.deleteDir(directory);
+    }
+
+    @Benchmark
+    public ReadTreeNode get() {
+        return db.get(keys[ThreadLocalRandom.current().nextInt(keys.length)]);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.addthis.basis.util.LessFiles;
+
+import com.addthis.hydra.store.db.DBKey;
+import com.addthis.hydra.store.db.DBKeyCoder;
+import com.addthis.hydra.store.kv.ByteStore;
+import com.addthis.hydra.store.kv.ConcurrentByteStoreBDB;
+import com.addthis.hydra.store.kv.MappedLogByteStore;
+import com.addthis.hydra.store.skiplist.SkipListCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Point reads, writes and short range scans against a {@link SkipListCache}
+ * backed by each of the writable external stores. {@code maxPages} controls how much
+ * of the key space fits in memory and therefore how often page eviction and
+ * page loading are exercised.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SkipListCacheBenchmark {
+
+    @Param({"bdb", "log"})
+    public String store;
+
+    @Param({"100000"})
+    public int numKeys;
+
+    @Param({"100", "1000"})
+    public int maxPageSize;
+
+    @Param({"50", "1000"})
+    public int maxPages;
+
+    @Param({"100"})
+    public int scanLength;
+
+    /** Byte budget of the off-heap page tier in megabytes. Zero disables the tier. */
+    @Param({"0", "256"})
+    public int offHeapMB;
+
+    private File directory;
+
+    private SkipListCache<DBKey, LongValue> cache;
+
+    private DBKey[] keys;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = LessFiles.createTempDir();
+        ByteStore externalStore;
+        switch (store) {
+            case "log":
+                externalStore = new MappedLogByteStore(directory, "db");
+                break;
+            case "bdb":
+            default:
+                externalStore = new ConcurrentByteStoreBDB(directory, "db");
+                break;
+        }
+        cache = new SkipListCache.Builder<>(new DBKeyCoder<>(LongValue.class), externalStore, maxPageSize)
+                .maxPages(maxPages).offHeapBytes(offHeapMB * 1024L * 1024L).build();
+        keys = BenchmarkKeys.keys(numKeys);
+        for (int i = 0; i < numKeys; i++) {
+            cache.put(keys[i], new LongValue(i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        cache.close();
+        LessFiles.deleteDir(directory);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public LongValue get() {
+        return cache.get(keys[ThreadLocalRandom.current().nextInt(numKeys)]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public LongValue getContended() {
+        return cache.get(keys[ThreadLocalRandom.current().nextInt(numKeys)]);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public LongValue put() {
+        int key = ThreadLocalRandom.current().nextInt(numKeys);
+        return cache.put(keys[key], new LongValue(key));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void range(Blackhole blackhole) {
+        Iterator<Map.Entry<DBKey, LongValue>> iterator =
+                cache.range(keys[ThreadLocalRandom.current().nextInt(numKeys)]);
+        for (int i = 0; i < scanLength && iterator.hasNext(); i++) {
+            blackhole.consume(iterator.next());
+        }
+    }
+}
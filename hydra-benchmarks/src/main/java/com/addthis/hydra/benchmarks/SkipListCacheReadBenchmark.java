@@ -0,0 +1,119 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.addthis.basis.util.LessFiles;
+
+import com.addthis.hydra.store.db.DBKey;
+import com.addthis.hydra.store.db.DBKeyCoder;
+import com.addthis.hydra.store.kv.ConcurrentByteStoreBDB;
+import com.addthis.hydra.store.skiplist.SkipListCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Multi-threaded point reads of resident pages of a {@link SkipListCache}
+ * with and without the optimistic read path. A small number of hot keys
+ * concentrates the readers on a few pages, which is where the shared read
+ * lock is contended.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SkipListCacheReadBenchmark {
+
+    @Param({"true", "false"})
+    public boolean optimistic;
+
+    @Param({"1000", "100000"})
+    public int numKeys;
+
+    /** One out of every {@code writeInterval} operations is a put. */
+    @Param({"64"})
+    public int writeInterval;
+
+    private File directory;
+
+    private SkipListCache<DBKey, LongValue> cache;
+
+    private DBKey[] keys;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = LessFiles.createTempDir();
+        cache = new SkipListCache.Builder<>(new DBKeyCoder<>(LongValue.class), new ConcurrentByteStoreBDB(directory, "db"), 100)
+                .maxPages(numKeys).build();
+        cache.setOptimisticReads(optimistic);
+        keys = BenchmarkKeys.keys(numKeys);
+        for (int i = 0; i < numKeys; i++) {
+            cache.put(keys[i], new LongValue(i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        cache.close();
+        LessFiles.deleteDir(directory);
+    }
+
+    private LongValue mixed() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int key = random.nextInt(numKeys);
+        if (random.nextInt(writeInterval) == 0) {
+            return cache.put(keys[key], new LongValue(key));
+        } else {
+            return cache.get(keys[key]);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public LongValue get() {
+        return cache.get(keys[ThreadLocalRandom.current().nextInt(numKeys)]);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public LongValue getContended() {
+        return cache.get(keys[ThreadLocalRandom.current().nextInt(numKeys)]);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public LongValue mixedContended() {
+        return mixed();
+    }
+}
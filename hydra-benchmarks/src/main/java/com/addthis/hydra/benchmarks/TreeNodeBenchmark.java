@@ -0,0 +1,139 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.addthis.basis.util.LessFiles;
+
+import com.addthis.hydra.data.tree.TreeCommonParameters;
+import com.addthis.hydra.data.tree.concurrent.ConcurrentTree;
+import com.addthis.hydra.data.tree.concurrent.ConcurrentTreeNode;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Child lookup and creation under a single parent node of a {@link ConcurrentTree}.
+ * This is the operation performed by tree builders for every path element of every
+ * bundle. {@code fanout} children are created during setup so that the measured
+ * calls are mostly lookups; a fraction of the generated names miss and create new
+ * children.
+ * <p/>
+ * Run with {@code -prof gc} to compare the allocation rate of lookups
+ * with and without the child index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TreeNodeBenchmark {
+
+    @Param({"100", "100000"})
+    public int fanout;
+
+    /**
+     * Names are drawn from {@code fanout * (1 + missRatio)} so this
+     * is roughly the fraction of calls that are not cache hits.
+     */
+    @Param({"0.1"})
+    public double missRatio;
+
+    /** Zero disables the child index. See {@link TreeCommonParameters#childIndexThreshold}. */
+    @Param({"0", "64"})
+    public int childIndexThreshold;
+
+    private File directory;
+
+    private ConcurrentTree tree;
+
+    private ConcurrentTreeNode root;
+
+    private String[] names;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        TreeCommonParameters.setDefaultChildIndexThreshold(childIndexThreshold);
+        directory = LessFiles.createTempDir();
+        tree = new ConcurrentTree(directory);
+        root = tree.getRootNode();
+        names = new String[(int) (fanout * (1 + missRatio))];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "child" + i;
+        }
+        for (int i = 0; i < fanout; i++) {
+            root.getOrCreateEditableNode(names[i]).release();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        tree.close();
+        LessFiles.deleteDir(directory);
+    }
+
+    private ConcurrentTreeNode getOrCreate() {
+        ConcurrentTreeNode node = root.getOrCreateEditableNode(
+                names[ThreadLocalRandom.current().nextInt(names.length)]);
+        node.release();
+        return node;
+    }
+
+    private ConcurrentTreeNode get() {
+        // getNode does not lease the returned node
+        return root.getNode(names[ThreadLocalRandom.current().nextInt(fanout)]);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public ConcurrentTreeNode getOrCreateEditableNode() {
+        return getOrCreate();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public ConcurrentTreeNode getOrCreateEditableNodeContended() {
+        return getOrCreate();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public ConcurrentTreeNode getNode() {
+        return get();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public ConcurrentTreeNode getNodeContended() {
+        return get();
+    }
+}
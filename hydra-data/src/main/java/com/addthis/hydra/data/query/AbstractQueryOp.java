@@ -83,6 +83,24 @@ public abstract class AbstractQueryOp implements QueryOp {
         sendComplete();
     }
 
+    /**
+     * Sends each row of the batch as a bundle. Ops that accept batches override this.
+     */
+    @Override
+    public void sendBatch(RowBatch batch) {
+        for (int row = 0; row < batch.size(); row++) {
+            if (opPromise.isDone()) {
+                break;
+            }
+            send(batch.toBundle(row));
+        }
+    }
+
+    @Override
+    public boolean acceptsBatches() {
+        return false;
+    }
+
     @Override
     public void send(List<Bundle> bundles) {
         if (bundles != null && !bundles.isEmpty()) {
@@ -64,6 +64,17 @@ public class FieldValueList implements BundleFormatted {
         }
     }
 
+    /**
+     * Returns a new list with the same field values, for a search that continues
+     * from this point on another thread.
+     */
+    public FieldValueList copy() {
+        FieldValueList copy = new FieldValueList(bundleFormat);
+        copy.list.addAll(list);
+        copy.lastCommit = copy.list.size();
+        return copy;
+    }
+
     public void commit() {
         lastCommit = list.size();
     }
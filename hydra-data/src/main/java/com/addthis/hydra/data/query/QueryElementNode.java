@@ -85,7 +85,7 @@ public class QueryElementNode implements Codable {
     public Boolean up;
 
     private BundleField field;
-    private Pattern[] regexPatterns;
+    private volatile Pattern[] regexPatterns;
 
     public QueryElementNode parse(String tok, MutableInt nextColumn) {
         if (tok.equals("+..")) {
@@ -371,15 +371,18 @@ public class QueryElementNode implements Codable {
             ret = new LinkedList<>();
             if (match != null) {
                 if (regex()) {
-                    if (regexPatterns == null) {
-                        regexPatterns = new Pattern[match.length];
+                    Pattern[] patterns = regexPatterns;
+                    if (patterns == null) {
+                        // compiled completely before it is published since parallel searches share this element
+                        patterns = new Pattern[match.length];
                         for (int i = 0; i < match.length; i++) {
-                            regexPatterns[i] = Pattern.compile(match[i]);
+                            patterns[i] = Pattern.compile(match[i]);
                         }
+                        regexPatterns = patterns;
                     }
                     for (Iterator<DataTreeNode> iter = parent.getIterator(); iter.hasNext();) {
                         tmp = iter.next();
-                        for (Pattern name : regexPatterns) {
+                        for (Pattern name : patterns) {
                             if (name.matcher(tmp.getName()).matches() ^ not()) {
                                 ret.add(tmp);
                             }
@@ -66,6 +66,16 @@ public interface QueryOp extends BundleOutput, Closeable {
      */
     public void sendTable(DataTable table);
 
+    /**
+     * Send the rows of a batch. The batch may be reused once this returns.
+     */
+    public void sendBatch(RowBatch batch);
+
+    /**
+     * @return true if this op reads batches directly rather than as bundles
+     */
+    public boolean acceptsBatches();
+
     /**
      * @return simple debugging name
      */
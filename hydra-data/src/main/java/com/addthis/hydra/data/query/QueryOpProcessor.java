@@ -81,6 +81,8 @@ public class QueryOpProcessor implements DataChannelOutput, QueryMemTracker, Clo
     private QueryOp lastOp;
     private long    rowsin;
     private long    cellsin;
+    // rows waiting to be sent to a first op that accepts batches
+    private RowBatch batch;
 
     private QueryOpProcessor(Builder builder) {
         this(builder.output, builder.queryPromise, builder.tempDir,
@@ -220,7 +222,19 @@ public class QueryOpProcessor implements DataChannelOutput, QueryMemTracker, Clo
         rowsin++;
         cellsin += row.getCount();
         if ((opPromise != null) && !opPromise.isDone()) {
-            firstOp.send(row);
+            if ((batch == null) && (RowBatch.DEFAULT_ROWS > 0) && firstOp.acceptsBatches()) {
+                batch = new RowBatch(RowBatch.DEFAULT_ROWS);
+            }
+            if (batch == null) {
+                firstOp.send(row);
+            } else {
+                if (!batch.accepts(row)) {
+                    sendBatch();
+                }
+                if (batch.add(row)) {
+                    sendBatch();
+                }
+            }
         }
         if ((OP_MAXROWS > 0) && (rowsin > OP_MAXROWS)) {
             throw new QueryException("query exceeded max input rows: " + OP_MAXROWS);
@@ -251,6 +265,15 @@ public class QueryOpProcessor implements DataChannelOutput, QueryMemTracker, Clo
         }
     }
 
+    private void sendBatch() {
+        if ((batch != null) && (batch.size() > 0)) {
+            if (!opPromise.isDone()) {
+                firstOp.sendBatch(batch);
+            }
+            batch.clear();
+        }
+    }
+
     public long getInputRows() {
         return rowsin;
     }
@@ -278,6 +301,7 @@ public class QueryOpProcessor implements DataChannelOutput, QueryMemTracker, Clo
         try {
             // anyone who sets the opPromise to success is responsible for ensuring query completion
             if (!opPromise.isDone()) {
+                sendBatch();
                 firstOp.sendComplete();
                 opPromise.trySuccess();
             } else if (opPromise.isSuccess()) {
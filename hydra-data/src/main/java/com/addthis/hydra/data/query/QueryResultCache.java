@@ -0,0 +1,443 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query;
+
+import javax.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.BooleanSupplier;
+
+import java.nio.file.Files;
+
+import com.addthis.basis.util.LessFiles;
+
+import com.addthis.bundle.channel.DataChannelOutput;
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.io.DataChannelReader;
+import com.addthis.bundle.io.DataChannelWriter;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.CountingInputStream;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Final results of queries keyed by the normalized query and checked against the
+ * version of the data they were computed from.
+ * <p/>
+ * The version identifies the data a result was read from: the file references of the queried
+ * tasks on the query master and the tree directory on a query worker. A result is dropped
+ * as soon as a lookup finds a different version. Results are held encoded
+ * in memory in least recently used order. Once they take up more than {@code memoryBytes}
+ * the oldest are written to files in {@code dir}, and once those take up more than
+ * {@code diskBytes} the oldest files are deleted. Results larger than {@code maxEntryBytes}
+ * are not cached.
+ * <p/>
+ * An entry returned by {@link #get(String, String)} is pinned until it is passed to
+ * {@link #replay(Entry, DataChannelOutput)}. A pinned entry that is dropped keeps its data,
+ * and its file is deleted once the last replay of it has finished.
+ */
+public class QueryResultCache {
+
+    private static final Logger log = LoggerFactory.getLogger(QueryResultCache.class);
+
+    static final Counter hits = Metrics.newCounter(QueryResultCache.class, "hits");
+    static final Counter misses = Metrics.newCounter(QueryResultCache.class, "misses");
+    static final Counter spills = Metrics.newCounter(QueryResultCache.class, "spills");
+    static final Counter memoryUsed = Metrics.newCounter(QueryResultCache.class, "memoryBytes");
+    static final Counter diskUsed = Metrics.newCounter(QueryResultCache.class, "diskBytes");
+
+    // parameters that change the results of a query with the same job, paths and ops
+    private static final List<String> KEY_PARAMETERS = Arrays.asList("allowPartial", "tasks", "injectSource");
+
+    private final File dir;
+    private final long memoryBytes;
+    private final long diskBytes;
+    private final int maxEntryBytes;
+
+    // guarded by this, in access order
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long memory;
+    private long disk;
+
+    public static final class Entry {
+
+        final String version;
+        final int bytes;
+        // one of these is set, guarded by the cache
+        @Nullable byte[] data;
+        @Nullable File file;
+        // replays in progress and whether the entry was dropped meanwhile, guarded by the cache
+        int pins;
+        boolean released;
+
+        Entry(String version, byte[] data) {
+            this.version = version;
+            this.bytes = data.length;
+            this.data = data;
+        }
+    }
+
+    public QueryResultCache(File dir, long memoryBytes, long diskBytes, int maxEntryBytes) {
+        this.dir = dir;
+        this.memoryBytes = memoryBytes;
+        this.diskBytes = diskBytes;
+        this.maxEntryBytes = maxEntryBytes;
+    }
+
+    /**
+     * Returns the cache key of a query: its job, paths, ops and the parameters that change its results.
+     * On the query master this is called before the query is split into local and remote ops.
+     */
+    public static String key(Query query) {
+        Map<String, String> parameters = new TreeMap<>();
+        for (String name : KEY_PARAMETERS) {
+            String value = query.getParameter(name);
+            if (value != null) {
+                parameters.put(name, value);
+            }
+        }
+        return query.getJob() + '\n' + normalize(query.getPaths()) + '\n' + normalize(query.getOps()) + '\n' +
+               parameters;
+    }
+
+    /**
+     * Returns the cache key of a query against the tree of a single task on a query worker. The tasks
+     * of a job share the query key but each task has its own tree and so its own result and version.
+     *
+     * @param task the directory the task is queried from, which does not change with its data
+     */
+    public static String key(Query query, String task) {
+        return key(query) + '\n' + task;
+    }
+
+    private static String normalize(String[] values) {
+        StringBuilder builder = new StringBuilder();
+        if (values != null) {
+            for (String value : values) {
+                builder.append(value == null ? "" : value.trim()).append('\t');
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Returns the result for {@code key} if it was computed from data of the
+     * same {@code version}. A result for another version is dropped. The returned
+     * entry is pinned and must be passed to {@link #replay(Entry, DataChannelOutput)}.
+     */
+    @Nullable public synchronized Entry get(String key, String version) {
+        Entry entry = entries.get(key);
+        if ((entry != null) && !entry.version.equals(version)) {
+            remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses.inc();
+        } else {
+            entry.pins++;
+            hits.inc();
+        }
+        return entry;
+    }
+
+    /**
+     * Send the bundles of a cached result followed by the completion or error to {@code output},
+     * and unpin the entry.
+     *
+     * @return false if the result could not be read, in which case nothing was sent and the
+     *         query should run as if it had not been cached
+     */
+    public boolean replay(Entry entry, DataChannelOutput output) {
+        byte[] data;
+        File file;
+        synchronized (this) {
+            data = entry.data;
+            file = entry.file;
+        }
+        try {
+            InputStream in;
+            try {
+                in = (data != null) ? new ByteArrayInputStream(data)
+                                    : new BufferedInputStream(new FileInputStream(file));
+            } catch (IOException ex) {
+                log.warn("unable to open cached query result {}", file, ex);
+                synchronized (this) {
+                    remove(entry);
+                }
+                return false;
+            }
+            try (CountingInputStream stream = new CountingInputStream(in)) {
+                DataChannelReader reader = new DataChannelReader(output, stream);
+                while (true) {
+                    Bundle bundle;
+                    try {
+                        bundle = reader.read();
+                    } catch (EOFException ex) {
+                        break;
+                    }
+                    output.send(bundle);
+                }
+                if (stream.getCount() != entry.bytes) {
+                    throw new EOFException("cached query result ended after " + stream.getCount() +
+                                           " of " + entry.bytes + " bytes");
+                }
+            } catch (IOException ex) {
+                // drop the entry so that later lookups run the query instead of failing the same way
+                log.warn("unable to read cached query result {}", file, ex);
+                synchronized (this) {
+                    remove(entry);
+                }
+                output.sourceError(ex);
+                return true;
+            }
+            output.sendComplete();
+            return true;
+        } finally {
+            unpin(entry);
+        }
+    }
+
+    private synchronized void unpin(Entry entry) {
+        if ((--entry.pins == 0) && entry.released) {
+            discard(entry);
+        }
+    }
+
+    /**
+     * Returns an output that passes everything on to {@code output} and caches
+     * the result under {@code key} if it completes without error.
+     */
+    public DataChannelOutput record(String key, String version, DataChannelOutput output) {
+        return record(key, version, output, () -> true);
+    }
+
+    /**
+     * Like {@link #record(String, String, DataChannelOutput)} but the result is only cached if
+     * {@code complete} is true when the output completes, for example if the query was not
+     * cancelled part way through.
+     */
+    public DataChannelOutput record(String key, String version, DataChannelOutput output,
+                                    BooleanSupplier complete) {
+        return new Recorder(key, version, output, complete);
+    }
+
+    synchronized void put(String key, Entry entry) {
+        remove(key);
+        entries.put(key, entry);
+        memory += entry.bytes;
+        memoryUsed.inc(entry.bytes);
+        Iterator<Entry> oldest = entries.values().iterator();
+        while ((memory > memoryBytes) && oldest.hasNext()) {
+            Entry next = oldest.next();
+            if ((next.data != null) && !spill(next)) {
+                oldest.remove();
+                release(next);
+            }
+        }
+        oldest = entries.values().iterator();
+        while ((disk > diskBytes) && oldest.hasNext()) {
+            Entry next = oldest.next();
+            if (next.file != null) {
+                oldest.remove();
+                release(next);
+            }
+        }
+    }
+
+    /**
+     * Move an entry from memory to a file.
+     *
+     * @return false if the file could not be written and the entry is still in memory
+     */
+    private boolean spill(Entry entry) {
+        try {
+            LessFiles.initDirectory(dir);
+            File file = File.createTempFile("result", ".bundles", dir);
+            Files.write(file.toPath(), entry.data);
+            entry.file = file;
+        } catch (IOException ex) {
+            log.warn("unable to spill cached query result to {}", dir, ex);
+            return false;
+        }
+        entry.data = null;
+        memory -= entry.bytes;
+        memoryUsed.dec(entry.bytes);
+        disk += entry.bytes;
+        diskUsed.inc(entry.bytes);
+        spills.inc();
+        return true;
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            release(entry);
+        }
+    }
+
+    /** Drop an entry unless it has already been replaced or dropped. */
+    private void remove(Entry entry) {
+        for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext(); ) {
+            if (iterator.next() == entry) {
+                iterator.remove();
+                release(entry);
+                return;
+            }
+        }
+    }
+
+    /** Stop counting an entry that was removed. Its data is kept until it is no longer pinned. */
+    private void release(Entry entry) {
+        if (entry.released) {
+            return;
+        }
+        entry.released = true;
+        if (entry.data != null) {
+            memory -= entry.bytes;
+            memoryUsed.dec(entry.bytes);
+        } else if (entry.file != null) {
+            disk -= entry.bytes;
+            diskUsed.dec(entry.bytes);
+        }
+        if (entry.pins == 0) {
+            discard(entry);
+        }
+    }
+
+    private void discard(Entry entry) {
+        entry.data = null;
+        if (entry.file != null) {
+            if (!entry.file.delete()) {
+                log.warn("unable to delete cached query result {}", entry.file);
+            }
+            entry.file = null;
+        }
+    }
+
+    @VisibleForTesting
+    synchronized long memoryBytes() {
+        return memory;
+    }
+
+    @VisibleForTesting
+    synchronized long diskBytes() {
+        return disk;
+    }
+
+    @VisibleForTesting
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private final class Recorder implements DataChannelOutput {
+
+        private final String key;
+        private final String version;
+        private final DataChannelOutput output;
+        private final BooleanSupplier complete;
+
+        // null once the result is known not to be cached
+        @Nullable private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        @Nullable private DataChannelWriter writer = new DataChannelWriter(buffer);
+
+        Recorder(String key, String version, DataChannelOutput output, BooleanSupplier complete) {
+            this.key = key;
+            this.version = version;
+            this.output = output;
+            this.complete = complete;
+        }
+
+        @Override
+        public void send(Bundle bundle) {
+            synchronized (this) {
+                if (writer != null) {
+                    try {
+                        writer.write(bundle);
+                        if (buffer.size() > maxEntryBytes) {
+                            abandon();
+                        }
+                    } catch (IOException ex) {
+                        log.warn("unable to cache bundle of query result", ex);
+                        abandon();
+                    }
+                }
+            }
+            output.send(bundle);
+        }
+
+        @Override
+        public void send(List<Bundle> bundles) {
+            if (bundles != null) {
+                for (Bundle bundle : bundles) {
+                    send(bundle);
+                }
+            }
+        }
+
+        @Override
+        public void sendComplete() {
+            synchronized (this) {
+                if (writer != null) {
+                    if (complete.getAsBoolean()) {
+                        try {
+                            writer.close();
+                            put(key, new Entry(version, buffer.toByteArray()));
+                        } catch (IOException ex) {
+                            log.warn("unable to cache query result", ex);
+                        }
+                    }
+                    abandon();
+                }
+            }
+            output.sendComplete();
+        }
+
+        @Override
+        public void sourceError(Throwable cause) {
+            synchronized (this) {
+                abandon();
+            }
+            output.sourceError(cause);
+        }
+
+        @Override
+        public Bundle createBundle() {
+            return output.createBundle();
+        }
+
+        private void abandon() {
+            writer = null;
+            buffer = null;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query;
+
+import java.util.Arrays;
+
+import com.addthis.basis.util.Parameter;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleFormat;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.bundle.value.ValueObject;
+
+/**
+ * Rows of one bundle format held as column vectors. Each cell is stored by kind: longs and doubles
+ * in primitive arrays, strings as java strings and any other value as the value object itself.
+ * <p/>
+ * Ops that {@link QueryOp#acceptsBatches() accept batches} read the cells directly and avoid
+ * creating a value object for every cell they look at. {@link #toBundle(int)} turns rows back
+ * into bundles for ops that do not.
+ * <p/>
+ * The columns are the fields of the format in order. Fields added to the format while the batch
+ * is filling become new columns, empty in the earlier rows. Instances are not thread safe.
+ */
+public final class RowBatch {
+
+    /** rows in the batches that ops are sent. zero disables batching in the op processor. */
+    public static final int DEFAULT_ROWS = Parameter.intValue("query.batch.rows", 1024);
+
+    public static final byte NULL = 0;
+    public static final byte LONG = 1;
+    public static final byte DOUBLE = 2;
+    public static final byte STRING = 3;
+    public static final byte OBJECT = 4;
+
+    private final int capacity;
+
+    private BundleFormat format;
+    private int columns;
+    private int size;
+
+    private byte[][] kinds = new byte[0][];
+    private long[][] longs = new long[0][];
+    private double[][] doubles = new double[0][];
+    private Object[][] objects = new Object[0][];
+
+    public RowBatch(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * @return true if {@code row} can be added, which requires the batch to be empty
+     *         or the row to have the format of the rows already in it
+     */
+    public boolean accepts(Bundle row) {
+        return (size == 0) || (row.getFormat() == format);
+    }
+
+    /**
+     * Copy the values of {@code row} into the batch. The row must be {@link #accepts(Bundle) accepted}.
+     *
+     * @return true if the batch is full
+     */
+    public boolean add(Bundle row) {
+        BundleFormat rowFormat = row.getFormat();
+        if (size == 0) {
+            format = rowFormat;
+        }
+        int fieldCount = rowFormat.getFieldCount();
+        if (fieldCount > columns) {
+            addColumns(fieldCount);
+        }
+        for (int col = 0; col < fieldCount; col++) {
+            set(col, size, row.getValue(rowFormat.getField(col)));
+        }
+        for (int col = fieldCount; col < columns; col++) {
+            kinds[col][size] = NULL;
+        }
+        size++;
+        return size >= capacity;
+    }
+
+    /**
+     * Use {@code count} columns, allocating vectors past those used by earlier batches.
+     * The new columns are empty in the rows already added.
+     */
+    private void addColumns(int count) {
+        int allocated = kinds.length;
+        if (count > allocated) {
+            kinds = Arrays.copyOf(kinds, count);
+            longs = Arrays.copyOf(longs, count);
+            doubles = Arrays.copyOf(doubles, count);
+            objects = Arrays.copyOf(objects, count);
+            for (int col = allocated; col < count; col++) {
+                kinds[col] = new byte[capacity];
+                longs[col] = new long[capacity];
+                doubles[col] = new double[capacity];
+                objects[col] = new Object[capacity];
+            }
+        }
+        for (int col = columns; col < count; col++) {
+            Arrays.fill(kinds[col], 0, size, NULL);
+        }
+        columns = count;
+    }
+
+    private void set(int col, int row, ValueObject value) {
+        if (value == null) {
+            kinds[col][row] = NULL;
+            return;
+        }
+        switch (value.getObjectType()) {
+            case INT:
+                kinds[col][row] = LONG;
+                longs[col][row] = value.asLong().getLong();
+                break;
+            case FLOAT:
+                kinds[col][row] = DOUBLE;
+                doubles[col][row] = value.asDouble().getDouble();
+                break;
+            case STRING:
+                kinds[col][row] = STRING;
+                objects[col][row] = value.asString().asNative();
+                break;
+            default:
+                kinds[col][row] = OBJECT;
+                objects[col][row] = value;
+                break;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /** @return the format of the rows, or null if the batch is empty */
+    public BundleFormat getFormat() {
+        return (size > 0) ? format : null;
+    }
+
+    /** @return the number of columns, which may be more than the fields of some rows */
+    public int columns() {
+        return columns;
+    }
+
+    public byte kind(int col, int row) {
+        return (col < columns) ? kinds[col][row] : NULL;
+    }
+
+    /** Valid if the kind of the cell is LONG. */
+    public long getLong(int col, int row) {
+        return longs[col][row];
+    }
+
+    /** Valid if the kind of the cell is DOUBLE. */
+    public double getDouble(int col, int row) {
+        return doubles[col][row];
+    }
+
+    /** The string of a STRING cell or the value object of an OBJECT cell. */
+    public Object getObject(int col, int row) {
+        return objects[col][row];
+    }
+
+    /**
+     * @return the string form of the cell as the value object would give it, or null for an empty cell
+     */
+    public String getString(int col, int row) {
+        switch (kind(col, row)) {
+            case LONG:
+                return Long.toString(longs[col][row]);
+            case DOUBLE:
+                return Double.toString(doubles[col][row]);
+            case STRING:
+                return (String) objects[col][row];
+            case OBJECT:
+                return objects[col][row].toString();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return a value object for the cell, or null for an empty cell
+     */
+    public ValueObject getValue(int col, int row) {
+        switch (kind(col, row)) {
+            case LONG:
+                return ValueFactory.create(longs[col][row]);
+            case DOUBLE:
+                return ValueFactory.create(doubles[col][row]);
+            case STRING:
+                return ValueFactory.create((String) objects[col][row]);
+            case OBJECT:
+                return (ValueObject) objects[col][row];
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return a new bundle of the batch format holding the values of {@code row}
+     */
+    public Bundle toBundle(int row) {
+        Bundle bundle = format.createBundle();
+        for (int col = 0; col < columns; col++) {
+            ValueObject value = getValue(col, row);
+            if (value != null) {
+                bundle.setValue(format.getField(col), value);
+            }
+        }
+        return bundle;
+    }
+
+    /**
+     * Empty the batch, dropping references to the values of its rows. The column vectors are kept
+     * for the next rows.
+     */
+    public void clear() {
+        for (int col = 0; col < columns; col++) {
+            Arrays.fill(objects[col], 0, size, null);
+        }
+        size = 0;
+        columns = 0;
+        format = null;
+    }
+}
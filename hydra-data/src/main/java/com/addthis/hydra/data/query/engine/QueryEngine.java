@@ -15,19 +15,34 @@ package com.addthis.hydra.data.query.engine;
 
 import java.io.IOException;
 
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.addthis.basis.util.ClosableIterator;
+import com.addthis.basis.util.Parameter;
 
 import com.addthis.bundle.channel.DataChannelOutput;
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundle;
 import com.addthis.bundle.core.list.ListBundleFormat;
 import com.addthis.hydra.data.query.FieldValueList;
 import com.addthis.hydra.data.query.Query;
@@ -36,6 +51,8 @@ import com.addthis.hydra.data.query.QueryException;
 import com.addthis.hydra.data.tree.DataTree;
 import com.addthis.hydra.data.tree.DataTreeNode;
 
+import com.google.common.annotations.VisibleForTesting;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,12 +66,74 @@ public class QueryEngine {
 
     private static final Logger log = LoggerFactory.getLogger(QueryEngine.class);
 
+    /**
+     * threads shared by the parallel searches of all engines
+     */
+    private static final int searchThreads =
+            Parameter.intValue("queryEngine.searchThreads", Runtime.getRuntime().availableProcessors());
+
+    /**
+     * subtree searches of one parallel search that may be queued or running at once, as a multiple of
+     * searchThreads.
+     */
+    private static final int searchWindow = Parameter.intValue("queryEngine.searchWindow", 4);
+
+    @VisibleForTesting
+    static final int defaultTaskWindow = Math.max(1, searchThreads * searchWindow);
+
+    /**
+     * rows an ordered subtree search may hold while the subtrees before it are sent. A search with a full
+     * buffer waits for it to be drained.
+     */
+    private static final int searchBuffer = Parameter.intValue("queryEngine.searchBuffer", 1024);
+
+    /**
+     * most sibling nodes whose subtrees are searched by one task of a parallel search
+     */
+    private static final int searchGroup = Parameter.intValue("queryEngine.searchGroup", 16);
+
+    /**
+     * milliseconds in between checks for a finished or cancelled search while waiting on a subtree buffer
+     */
+    private static final long bufferPoll = 100;
+
+    /** added to the buffer of an ordered subtree search after its last row */
+    private static final Bundle endOfRows = new ListBundle();
+
+    /**
+     * default search mode for queries without a "parallel" parameter: false, ordered or unordered
+     */
+    private static final String defaultParallel = Parameter.value("queryEngine.parallel", "false");
+
+    private enum Parallel {
+        /** search on the calling thread only */
+        NONE,
+        /** search subtrees in parallel and send their rows in tree order */
+        ORDERED,
+        /** search subtrees in parallel and send their rows as they are found */
+        UNORDERED
+    }
+
+    private static final Runnable noYield = () -> { };
+
+    /** created on first use so that engines that never search in parallel start no threads */
+    private static final class SearchPool {
+
+        static final ForkJoinPool pool = new ForkJoinPool(searchThreads, forkJoinPool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            thread.setName("querySearchParallel-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+    }
+
     protected final DataTree tree;
     private final AtomicInteger used;
     private final AtomicBoolean isOpen;
     private final AtomicBoolean isClosed;
     private final HashSet<Thread> active;
     private boolean closeWhenIdle;
+    private int subtreeBuffer = searchBuffer;
+    private int taskWindow = defaultTaskWindow;
 
     public QueryEngine(DataTree tree) {
         this.tree = tree;
@@ -188,13 +267,36 @@ public class QueryEngine {
      */
     public void search(Query query, DataChannelOutput result,
             ChannelProgressivePromise queryPromise) throws QueryException {
+        search(query, result, queryPromise, noYield);
+    }
+
+    /**
+     * Performs a query search like {@link #search(Query, DataChannelOutput, ChannelProgressivePromise)} and
+     * runs {@code yieldPoint} on the searching thread before each node it visits, which lets a scheduler
+     * pause the search there. Subtrees searched in parallel do not yield.
+     */
+    public void search(Query query, DataChannelOutput result,
+            ChannelProgressivePromise queryPromise, Runnable yieldPoint) throws QueryException {
+        Parallel parallel = parallelMode(query.getParameter("parallel", defaultParallel));
         for (QueryElement[] path : query.getQueryPaths()) {
             if (!(queryPromise.isDone())) {
-                search(path, result, queryPromise);
+                search(path, result, queryPromise, parallel, yieldPoint);
             }
         }
     }
 
+    private static Parallel parallelMode(String value) {
+        switch (value) {
+            case "true":
+            case "ordered":
+                return Parallel.ORDERED;
+            case "unordered":
+                return Parallel.UNORDERED;
+            default:
+                return Parallel.NONE;
+        }
+    }
+
     /**
      * Performs a query search, writes the results to a data channel, and stops processing if the source sets
      * queryPromise.queryCancelled to true.
@@ -228,6 +330,11 @@ public class QueryEngine {
      */
     public void search(QueryElement[] path, DataChannelOutput result,
             ChannelProgressivePromise queryPromise) throws QueryException {
+        search(path, result, queryPromise, Parallel.NONE, noYield);
+    }
+
+    private void search(QueryElement[] path, DataChannelOutput result,
+            ChannelProgressivePromise queryPromise, Parallel parallel, Runnable yieldPoint) throws QueryException {
         init();
         Thread thread = Thread.currentThread();
         synchronized (active) {
@@ -238,7 +345,8 @@ public class QueryEngine {
         try {
             LinkedList<DataTreeNode> stack = new LinkedList<>();
             stack.push(tree);
-            tableSearch(stack, new FieldValueList(new ListBundleFormat()), path, 0, result, 0, queryPromise);
+            tableSearch(stack, new FieldValueList(new ListBundleFormat()), path, 0, result, 0, queryPromise, parallel,
+                        yieldPoint);
         } catch (QueryException | CancellationException ex) {
             log.debug("", ex);
         } catch (RuntimeException ex)  {
@@ -271,13 +379,16 @@ public class QueryEngine {
      *                            cancel at the MQMaster side. At this point, there is no need for us to continue
      *                            doing the query as the channel has been closed. Recursively, the functions will break
      *                            out by throwing QueryExceptions.
+     * @param parallel            whether the subtrees below the first level that matches more than one node are
+     *                            searched in parallel
+     * @param yieldPoint          run before each node is visited
      * @throws QueryException
      */
     private void tableSearch(LinkedList<DataTreeNode> stack, DataTreeNode root, FieldValueList prefix, QueryElement[] path,
             int pathIndex, DataChannelOutput result, int collect,
-            ChannelProgressivePromise queryPromise) throws QueryException {
+            ChannelProgressivePromise queryPromise, Parallel parallel, Runnable yieldPoint) throws QueryException {
         stack.push(root);
-        tableSearch(stack, prefix, path, pathIndex, result, collect, queryPromise);
+        tableSearch(stack, prefix, path, pathIndex, result, collect, queryPromise, parallel, yieldPoint);
         stack.pop();
     }
 
@@ -304,7 +415,7 @@ public class QueryEngine {
      */
     private void tableSearch(LinkedList<DataTreeNode> stack, FieldValueList prefix, QueryElement[] path,
             int pathIndex, DataChannelOutput sink, int collect,
-            ChannelProgressivePromise queryPromise) throws QueryException {
+            ChannelProgressivePromise queryPromise, Parallel parallel, Runnable yieldPoint) throws QueryException {
         if (queryPromise.isDone()) {
             log.debug("Query promise completed during processing");
             if (queryPromise.isCancelled()) {
@@ -376,12 +487,20 @@ public class QueryEngine {
                     limit--;
                 }
                 if (!queryPromise.isDone()) {
-                    tableSearch(null, prefix, path, pathIndex + 1, sink, collect + count, queryPromise);
+                    tableSearch(null, prefix, path, pathIndex + 1, sink, collect + count, queryPromise, parallel,
+                                yieldPoint);
                 }
                 prefix.pop(count);
                 return;
             }
+            if ((parallel != Parallel.NONE) && (pathIndex + 1 < path.length)) {
+                parallelSearch(stack, prefix, path, pathIndex, sink, collect, queryPromise, iter, parallel,
+                               yieldPoint);
+                return;
+            }
             while (iter.hasNext() && (next.limit() == 0 || limit > 0)) {
+                // may wait here while other queries run
+                yieldPoint.run();
                 // Check for interruptions or cancellations
                 if (Thread.currentThread().isInterrupted()) {
                     QueryException exception = new QueryException("query interrupted");
@@ -414,7 +533,8 @@ public class QueryEngine {
                 int count = next.update(prefix, tn);
                 if (count >= 0) {
                     if (!queryPromise.isDone()) {
-                        tableSearch(stack, tn, prefix, path, pathIndex + 1, sink, collect + count, queryPromise);
+                        tableSearch(stack, tn, prefix, path, pathIndex + 1, sink, collect + count, queryPromise,
+                                    parallel, yieldPoint);
                     }
                     prefix.pop(count);
                     limit--;
@@ -432,4 +552,341 @@ public class QueryEngine {
         }
     }
 
+    /**
+     * Iterates over the nodes matched at {@code pathIndex} like tableSearch but searches the subtrees below
+     * runs of consecutive nodes as separate tasks on the shared search pool. The first searchThreads *
+     * searchWindow tasks hold one node each so that levels with few nodes are still spread over the pool.
+     * Later tasks hold one more node for each window of tasks before them, up to {@code searchGroup} nodes,
+     * so that wide levels with small subtrees are not dominated by the cost of the tasks. Skip and limit are
+     * applied here on the calling thread. If only one node matches, its subtree is searched by the calling
+     * thread, which looks for a wider level further down.
+     * <p/>
+     * In ordered mode the rows are sent in the order of the nodes. The oldest pending task is streamed to the
+     * sink: it is searched by the calling thread if no pool thread has started it, otherwise its rows are
+     * passed on as they arrive. Tasks started by a pool thread ahead of the oldest hold their rows in buffers
+     * of {@code searchBuffer} rows and wait while these are full. At most searchThreads * searchWindow tasks
+     * are pending at once, so at most that many buffers exist. In unordered mode tasks send their rows to the
+     * sink as they find them.
+     * <p/>
+     * Tasks check the query promise like any other search and are interrupted if the search fails or is
+     * interrupted itself. This method does not return before every task it started is done, so no rows are
+     * sent to the sink after it returns.
+     */
+    private void parallelSearch(LinkedList<DataTreeNode> stack, FieldValueList prefix, QueryElement[] path,
+            int pathIndex, DataChannelOutput sink, int collect, ChannelProgressivePromise queryPromise,
+            Iterator<DataTreeNode> iter, Parallel parallel, Runnable yieldPoint) throws QueryException {
+        QueryElement next = path[pathIndex];
+        int skip = next.skip();
+        int limit = next.limit();
+        int window = taskWindow;
+        Deque<SubtreeSearch> pending = new ArrayDeque<>();
+        SubtreeSearch task = null;
+        int submitted = 0;
+        boolean first = true;
+        try {
+            while (iter.hasNext() && (next.limit() == 0 || limit > 0)) {
+                if (Thread.currentThread().isInterrupted()) {
+                    QueryException exception = new QueryException("query interrupted");
+                    log.warn("Query closed due to thread interruption", exception);
+                    throw exception;
+                }
+                if (queryPromise.isDone()) {
+                    break;
+                }
+                DataTreeNode tn = iter.next();
+                if (tn == null && !next.emptyok()) {
+                    break;
+                }
+                if (skip > 0) {
+                    skip--;
+                    continue;
+                }
+                int count = next.update(prefix, tn);
+                if (count < 0) {
+                    continue;
+                }
+                if (first && !iter.hasNext()) {
+                    if (!queryPromise.isDone()) {
+                        tableSearch(stack, tn, prefix, path, pathIndex + 1, sink, collect + count, queryPromise,
+                                    parallel, yieldPoint);
+                    }
+                    prefix.pop(count);
+                    break;
+                }
+                first = false;
+                if (task == null) {
+                    task = new SubtreeSearch(new LinkedList<>(stack), path, pathIndex + 1, sink, queryPromise,
+                                             parallel == Parallel.ORDERED);
+                }
+                task.add(tn, prefix.copy(), collect + count);
+                prefix.pop(count);
+                limit--;
+                if (task.size() >= Math.min(searchGroup, 1 + (submitted / window))) {
+                    submit(task, pending);
+                    task = null;
+                    submitted++;
+                    while (pending.size() >= window) {
+                        sendRows(pending.peek(), queryPromise);
+                        pending.poll();
+                    }
+                }
+            }
+            if (task != null) {
+                submit(task, pending);
+                task = null;
+            }
+            while (!pending.isEmpty()) {
+                sendRows(pending.peek(), queryPromise);
+                pending.poll();
+            }
+        } finally {
+            for (SubtreeSearch search : pending) {
+                search.abort();
+            }
+            for (SubtreeSearch search : pending) {
+                search.await();
+            }
+        }
+    }
+
+    private static void submit(SubtreeSearch task, Deque<SubtreeSearch> pending) {
+        task.future = SearchPool.pool.submit(task);
+        pending.add(task);
+    }
+
+    /**
+     * Search a task on the calling thread if no pool thread has started it. Otherwise send its rows as they
+     * arrive in ordered mode, and wait for it to finish.
+     */
+    private void sendRows(SubtreeSearch task, ChannelProgressivePromise queryPromise) throws QueryException {
+        if (task.claim()) {
+            task.searchInline();
+            return;
+        }
+        try {
+            if (task.ordered) {
+                BlockingQueue<Bundle> rows = task.rows;
+                while (!queryPromise.isDone()) {
+                    Bundle row = rows.poll(bufferPoll, TimeUnit.MILLISECONDS);
+                    if (row == endOfRows) {
+                        break;
+                    } else if (row != null) {
+                        task.sink.send(row);
+                    } else if (task.future.isDone()) {
+                        // rows are added before the task completes
+                        while (((row = rows.poll()) != null) && (row != endOfRows) && !queryPromise.isDone()) {
+                            task.sink.send(row);
+                        }
+                        break;
+                    }
+                }
+                if (queryPromise.isDone()) {
+                    task.abort();
+                    task.await();
+                    return;
+                }
+            }
+            task.future.get();
+        } catch (InterruptedException ex) {
+            task.abort();
+            task.await();
+            Thread.currentThread().interrupt();
+            throw new QueryException("query interrupted");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof QueryException) {
+                throw (QueryException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new QueryException(cause);
+        }
+    }
+
+    @VisibleForTesting
+    void setSubtreeBuffer(int rows) {
+        subtreeBuffer = rows;
+    }
+
+    @VisibleForTesting
+    void setTaskWindow(int tasks) {
+        taskWindow = tasks;
+    }
+
+    /**
+     * Searches the rest of the path below a run of sibling nodes on a search pool thread. The thread is
+     * registered as active for the duration so that {@link #cancelActiveThreads()} reaches it. A search that
+     * has not been started may be claimed by the thread that sends its rows and run there instead.
+     */
+    private final class SubtreeSearch implements Callable<Void>, DataChannelOutput {
+
+        private final LinkedList<DataTreeNode> stack;
+        private final List<DataTreeNode> nodes = new ArrayList<>();
+        private final List<FieldValueList> prefixes = new ArrayList<>();
+        private final List<Integer> collects = new ArrayList<>();
+        private final QueryElement[] path;
+        private final int pathIndex;
+        private final DataChannelOutput sink;
+        private final ChannelProgressivePromise queryPromise;
+        private final boolean ordered;
+        // the thread that runs the search
+        private final AtomicReference<Thread> owner = new AtomicReference<>();
+
+        ForkJoinTask<Void> future;
+        // rows not yet sent in ordered mode. Created by the pool thread before it claims the search, so it
+        // is only allocated for searches that run ahead of the sender.
+        private volatile BlockingQueue<Bundle> rows;
+        private volatile boolean aborted;
+        // set while a pool thread runs the search, guarded by this
+        private Thread runner;
+
+        SubtreeSearch(LinkedList<DataTreeNode> stack, QueryElement[] path, int pathIndex,
+                DataChannelOutput sink, ChannelProgressivePromise queryPromise, boolean ordered) {
+            this.stack = stack;
+            this.path = path;
+            this.pathIndex = pathIndex;
+            this.sink = sink;
+            this.queryPromise = queryPromise;
+            this.ordered = ordered;
+        }
+
+        void add(DataTreeNode node, FieldValueList prefix, int collect) {
+            nodes.add(node);
+            prefixes.add(prefix);
+            collects.add(collect);
+        }
+
+        int size() {
+            return nodes.size();
+        }
+
+        /**
+         * @return true if the search had not been started and now belongs to the caller
+         */
+        boolean claim() {
+            return owner.compareAndSet(null, Thread.currentThread());
+        }
+
+        /**
+         * Run a claimed search on the calling thread, which sends the rows itself.
+         */
+        void searchInline() throws QueryException {
+            search(ordered ? sink : this);
+        }
+
+        private void search(DataChannelOutput output) throws QueryException {
+            for (int i = 0; (i < nodes.size()) && !aborted && !queryPromise.isDone(); i++) {
+                tableSearch(stack, nodes.get(i), prefixes.get(i), path, pathIndex, output, collects.get(i),
+                            queryPromise, Parallel.NONE, noYield);
+            }
+        }
+
+        @Override
+        public Void call() throws QueryException {
+            if (aborted) {
+                return null;
+            }
+            if (ordered) {
+                rows = new ArrayBlockingQueue<>(Math.max(1, subtreeBuffer));
+            }
+            if (!claim()) {
+                return null;
+            }
+            Thread thread = Thread.currentThread();
+            // clear an interrupt meant for an earlier task of this pool thread
+            Thread.interrupted();
+            boolean added;
+            synchronized (active) {
+                added = active.add(thread);
+            }
+            synchronized (this) {
+                runner = thread;
+            }
+            try {
+                if (!aborted) {
+                    search(this);
+                }
+            } finally {
+                if (ordered) {
+                    send(endOfRows);
+                }
+                // an abort can no longer interrupt this thread once it has moved on to other tasks
+                synchronized (this) {
+                    runner = null;
+                }
+                if (added) {
+                    synchronized (active) {
+                        active.remove(thread);
+                    }
+                }
+                Thread.interrupted();
+            }
+            return null;
+        }
+
+        void abort() {
+            aborted = true;
+            synchronized (this) {
+                if (runner != null) {
+                    runner.interrupt();
+                }
+            }
+        }
+
+        /**
+         * Waits for a pool thread that started this search to finish it. A search that no thread has started
+         * is claimed instead so that none will, and one run by the calling thread is already done.
+         */
+        void await() {
+            if (!claim() && (owner.get() != Thread.currentThread())) {
+                try {
+                    future.join();
+                } catch (RuntimeException ignored) {
+                    // the search failed after it was aborted, which is already reported by the caller
+                }
+            }
+        }
+
+        @Override
+        public void send(Bundle row) {
+            if (ordered) {
+                try {
+                    while (!rows.offer(row, bufferPoll, TimeUnit.MILLISECONDS)) {
+                        if (aborted || queryPromise.isDone()) {
+                            return;
+                        }
+                    }
+                } catch (InterruptedException ex) {
+                    // the search checks the interrupt and stops
+                    Thread.currentThread().interrupt();
+                }
+            } else {
+                synchronized (sink) {
+                    sink.send(row);
+                }
+            }
+        }
+
+        @Override
+        public void send(List<Bundle> bundles) {
+            for (Bundle bundle : bundles) {
+                send(bundle);
+            }
+        }
+
+        @Override
+        public void sendComplete() {
+        }
+
+        @Override
+        public void sourceError(Throwable cause) {
+        }
+
+        @Override
+        public Bundle createBundle() {
+            synchronized (sink) {
+                return sink.createBundle();
+            }
+        }
+    }
 }
@@ -0,0 +1,223 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query.op;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.bundle.value.Numeric;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.bundle.value.ValueObject;
+import com.addthis.hydra.data.query.RowBatch;
+import com.addthis.hydra.data.query.op.merge.KeyValue;
+import com.addthis.hydra.data.query.op.merge.LastValue;
+import com.addthis.hydra.data.query.op.merge.MaxValue;
+import com.addthis.hydra.data.query.op.merge.MergedValue;
+import com.addthis.hydra.data.query.op.merge.MinValue;
+import com.addthis.hydra.data.query.op.merge.NumMergesValue;
+import com.addthis.hydra.data.query.op.merge.SumValue;
+
+/**
+ * The merged values of one key of {@link OpGather} held as primitives, for gathers whose columns
+ * are all keys, last values, sums, minimums, maximums or dropped.
+ * <p/>
+ * Each cell follows the rules of the merged value it stands for: the first value sets whether a
+ * numeric column is a long or a double, later values are converted to that type, and strings are
+ * parsed as longs. Unlike {@link MergedRow} no value object is created per merge.
+ */
+final class GatherGroup {
+
+    static final byte SKIP = 0;
+    static final byte LAST = 1;
+    static final byte SUM = 2;
+    static final byte MIN = 3;
+    static final byte MAX = 4;
+    static final byte COUNT = 5;
+
+    /**
+     * @return the merge of each column, or null if a column has a merge that needs {@link MergedRow}
+     */
+    static byte[] merges(MergedValue[] conf) {
+        byte[] merges = new byte[conf.length];
+        for (int i = 0; i < conf.length; i++) {
+            if (conf[i] == null) {
+                merges[i] = SKIP;
+                continue;
+            }
+            Class<?> type = conf[i].getClass();
+            if ((type == KeyValue.class) || (type == LastValue.class)) {
+                merges[i] = LAST;
+            } else if (type == SumValue.class) {
+                merges[i] = SUM;
+            } else if (type == MinValue.class) {
+                merges[i] = MIN;
+            } else if (type == MaxValue.class) {
+                merges[i] = MAX;
+            } else if (type == NumMergesValue.class) {
+                merges[i] = COUNT;
+            } else {
+                return null;
+            }
+        }
+        return merges;
+    }
+
+    private final byte[] kinds;
+    private final long[] longs;
+    private final double[] doubles;
+    private final Object[] objects;
+    private int mergedRows;
+
+    GatherGroup(int columns) {
+        kinds = new byte[columns];
+        longs = new long[columns];
+        doubles = new double[columns];
+        objects = new Object[columns];
+    }
+
+    /** approximate bytes held by a group and its key */
+    static long estimateSize(int columns, String key) {
+        return 96 + (2L * key.length()) + (columns * 33L);
+    }
+
+    void merge(byte[] merges, RowBatch batch, int row) {
+        mergedRows++;
+        for (int col = 0; col < merges.length; col++) {
+            byte merge = merges[col];
+            if ((merge == SKIP) || (merge == COUNT)) {
+                continue;
+            }
+            byte kind = batch.kind(col, row);
+            if (kind == RowBatch.NULL) {
+                continue;
+            }
+            if (merge == LAST) {
+                kinds[col] = kind;
+                switch (kind) {
+                    case RowBatch.LONG:
+                        longs[col] = batch.getLong(col, row);
+                        break;
+                    case RowBatch.DOUBLE:
+                        doubles[col] = batch.getDouble(col, row);
+                        break;
+                    default:
+                        objects[col] = batch.getObject(col, row);
+                        break;
+                }
+            } else {
+                mergeNumber(merge, col, batch, kind, row);
+            }
+        }
+    }
+
+    private void mergeNumber(byte merge, int col, RowBatch batch, byte kind, int row) {
+        boolean isDouble = false;
+        long longValue = 0;
+        double doubleValue = 0;
+        switch (kind) {
+            case RowBatch.LONG:
+                longValue = batch.getLong(col, row);
+                break;
+            case RowBatch.DOUBLE:
+                isDouble = true;
+                doubleValue = batch.getDouble(col, row);
+                break;
+            case RowBatch.STRING:
+                longValue = Long.parseLong((String) batch.getObject(col, row), 10);
+                break;
+            default:
+                Numeric num = OpGather.num((ValueObject) batch.getObject(col, row));
+                if (num.getObjectType() == ValueObject.TYPE.FLOAT) {
+                    isDouble = true;
+                    doubleValue = num.asDouble().getDouble();
+                } else {
+                    longValue = num.asLong().getLong();
+                }
+                break;
+        }
+        switch (kinds[col]) {
+            case RowBatch.NULL:
+                if (isDouble) {
+                    kinds[col] = RowBatch.DOUBLE;
+                    doubles[col] = doubleValue;
+                } else {
+                    kinds[col] = RowBatch.LONG;
+                    longs[col] = longValue;
+                }
+                break;
+            case RowBatch.LONG:
+                longs[col] = merge(merge, longs[col], isDouble ? (long) doubleValue : longValue);
+                break;
+            default:
+                doubles[col] = merge(merge, doubles[col], isDouble ? doubleValue : (double) longValue);
+                break;
+        }
+    }
+
+    private static long merge(byte merge, long value, long next) {
+        switch (merge) {
+            case SUM:
+                return value + next;
+            case MIN:
+                return Math.min(value, next);
+            default:
+                return Math.max(value, next);
+        }
+    }
+
+    private static double merge(byte merge, double value, double next) {
+        switch (merge) {
+            case SUM:
+                return value + next;
+            case MIN:
+                return Math.min(value, next);
+            default:
+                return Math.max(value, next);
+        }
+    }
+
+    /**
+     * @return a bundle of {@code format} holding the merged values of this group
+     */
+    Bundle emit(byte[] merges, MergedValue[] conf, ListBundleFormat format) {
+        Bundle bundle = new ListBundle(format);
+        for (int col = 0; col < merges.length; col++) {
+            ValueObject value;
+            if (merges[col] == SKIP) {
+                continue;
+            } else if (merges[col] == COUNT) {
+                value = ValueFactory.create(mergedRows);
+            } else {
+                switch (kinds[col]) {
+                    case RowBatch.NULL:
+                        continue;
+                    case RowBatch.LONG:
+                        value = ValueFactory.create(longs[col]);
+                        break;
+                    case RowBatch.DOUBLE:
+                        value = ValueFactory.create(doubles[col]);
+                        break;
+                    case RowBatch.STRING:
+                        value = ValueFactory.create((String) objects[col]);
+                        break;
+                    default:
+                        value = (ValueObject) objects[col];
+                        break;
+                }
+            }
+            bundle.setValue(conf[col].getTo(), value);
+        }
+        return bundle;
+    }
+}
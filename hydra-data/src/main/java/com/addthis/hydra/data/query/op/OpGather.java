@@ -35,6 +35,7 @@ import com.addthis.bundle.value.ValueObject;
 import com.addthis.hydra.data.query.AbstractQueryOp;
 import com.addthis.hydra.data.query.DiskBackedMap;
 import com.addthis.hydra.data.query.QueryOp;
+import com.addthis.hydra.data.query.RowBatch;
 import com.addthis.hydra.data.query.op.merge.MergeConfig;
 import com.addthis.hydra.data.query.op.merge.MergedValue;
 import com.addthis.hydra.data.util.KeyTopper;
@@ -115,6 +116,12 @@ public class OpGather extends AbstractQueryOp {
     private boolean tippedToDisk = false;
     private boolean tipToDisk = Parameter.boolValue("opgather.tiptodisk", false);
 
+    // merge of each column if rows are gathered as columns, otherwise null
+    private final byte[] columnMerges;
+    private final Map<String, GatherGroup> groups = new HashMap<>();
+    // rows sent one at a time waiting to be gathered as columns
+    private RowBatch pending;
+
 
     private static final Meter diskTips = Metrics.newMeter(OpGather.class, "diskTips", "diskTips", TimeUnit.SECONDS);
 
@@ -130,6 +137,62 @@ public class OpGather extends AbstractQueryOp {
         topper = mergeConfig.topper;
         topSize = mergeConfig.numericArg;
         conf = mergeConfig.conf;
+        columnMerges = ((topColumn < 0) && !tipToDisk) ? GatherGroup.merges(conf) : null;
+    }
+
+    @Override
+    public boolean acceptsBatches() {
+        return columnMerges != null;
+    }
+
+    @Override
+    public void sendBatch(RowBatch batch) {
+        if (columnMerges == null) {
+            super.sendBatch(batch);
+            return;
+        }
+        gatherPending();
+        gather(batch);
+    }
+
+    private void gatherPending() {
+        if ((pending != null) && (pending.size() > 0)) {
+            gather(pending);
+            pending.clear();
+        }
+    }
+
+    /**
+     * Merge the rows of a batch into their groups without creating a value object per cell.
+     */
+    private void gather(RowBatch batch) {
+        mergeConfig.bind(batch.getFormat(), format);
+        int keyColumns = Math.min(conf.length, batch.columns());
+        for (int row = 0; row < batch.size(); row++) {
+            if (opPromise.isDone()) {
+                return;
+            }
+            String key = "";
+            for (int col = 0; col < keyColumns; col++) {
+                if ((conf[col] != null) && conf[col].isKey()) {
+                    String value = batch.getString(col, row);
+                    key = key.concat(value == null ? "" : value);
+                }
+            }
+            GatherGroup group = groups.get(key);
+            if (group == null) {
+                group = new GatherGroup(conf.length);
+                groups.put(key, group);
+                totalMem += GatherGroup.estimateSize(conf.length, key);
+            }
+            group.merge(columnMerges, batch, row);
+            if ((tipMem > 0) && (totalMem > tipMem)) {
+                throw new DataChannelError("Memory usage of gathered objects exceeds allowed " + tipMem);
+            }
+            if ((tipRow > 0) && (groups.size() > tipRow)) {
+                throw new DataChannelError("Number of gathered rows exceeds allowed " + tipRow);
+            }
+        }
     }
 
     @Override
@@ -137,6 +200,18 @@ public class OpGather extends AbstractQueryOp {
         if (opPromise.isDone()) {
             return;
         }
+        if (columnMerges != null) {
+            if (pending == null) {
+                pending = new RowBatch(RowBatch.DEFAULT_ROWS);
+            }
+            if (!pending.accepts(row)) {
+                gatherPending();
+            }
+            if (pending.add(row)) {
+                gatherPending();
+            }
+            return;
+        }
         String key = mergeConfig.handleBindAndGetKey(row, format);
         MergedRow merge = resultTable.get(key);
         if (merge == null) {
@@ -210,6 +285,18 @@ public class OpGather extends AbstractQueryOp {
     @Override
     public void sendComplete() {
         QueryOp next = getNext();
+        if (columnMerges != null) {
+            gatherPending();
+            for (GatherGroup group : groups.values()) {
+                if (!opPromise.isDone()) {
+                    next.send(group.emit(columnMerges, conf, format));
+                } else {
+                    break;
+                }
+            }
+            next.sendComplete();
+            return;
+        }
         for (MergedRow mergedRow : resultTable.values()) {
             if (!opPromise.isDone()) {
                 next.send(mergedRow.emit());
@@ -18,6 +18,7 @@ import java.util.ArrayList;
 
 import com.addthis.bundle.core.Bundle;
 import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.core.BundleFormat;
 import com.addthis.bundle.core.list.ListBundleFormat;
 import com.addthis.bundle.value.ValueObject;
 import com.addthis.hydra.data.util.KeyTopper;
@@ -120,22 +121,48 @@ public class MergeConfig {
             if (mc == null) {
                 continue;
             }
-            if (mc.getFrom() == null) {
-                mc.setFrom(field);
-                // TODO only clone field name for non-int names, otherwise create 'next' column # as name
-                mc.setTo(format.getField(field.getName()));
-            }
+            bind(mc, field, format);
             if (mc.isKey()) {
                 ValueObject lval = row.getValue(field);
                 key = key.concat(lval == null ? "" : lval.toString());
             }
         }
+        bindMergeCount(format);
+        return key;
+    }
+
+    /**
+     * Bind the columns to the fields of {@code rowFormat} like {@link #handleBindAndGetKey} does,
+     * for callers that compute keys themselves.
+     */
+    public void bind(BundleFormat rowFormat, ListBundleFormat format) {
+        int i = 0;
+        for (BundleField field : rowFormat) {
+            if (i >= conf.length) {
+                break;
+            }
+            MergedValue mc = conf[i++];
+            if (mc != null) {
+                bind(mc, field, format);
+            }
+        }
+        bindMergeCount(format);
+    }
+
+    private static void bind(MergedValue mc, BundleField field, ListBundleFormat format) {
+        if (mc.getFrom() == null) {
+            mc.setFrom(field);
+            // TODO only clone field name for non-int names, otherwise create 'next' column # as name
+            mc.setTo(format.getField(field.getName()));
+        }
+    }
+
+    private void bindMergeCount(ListBundleFormat format) {
         if (mergeCountValue != null) {
             if (mergeCountValue.getTo() == null) {
                 mergeCountValue.setTo(format.createNewField("merge_"));
             }
         }
-        return key;
     }
 
 }
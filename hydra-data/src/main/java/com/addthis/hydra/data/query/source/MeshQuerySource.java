@@ -24,6 +24,7 @@ import java.nio.file.PathMatcher;
 import com.addthis.basis.util.LessFiles;
 import com.addthis.basis.util.Parameter;
 
+import com.addthis.hydra.data.query.QueryResultCache;
 import com.addthis.hydra.data.query.engine.QueryEngineCache;
 import com.addthis.hydra.store.db.PageDB;
 import com.addthis.meshy.LocalFileHandler;
@@ -90,6 +91,19 @@ public class MeshQuerySource implements LocalFileHandler {
     //Temp directory to use for sorting and caching
     private static final String tmpDirPath = Parameter.value("query.tmpdir", "query.tmpdir");
 
+    //Bytes of query results cached in memory. Zero disables the result cache.
+    private static final long resultCacheMemory = Parameter.longValue("meshQuerySource.resultCache.memory", 0);
+    //Bytes of query results cached on disk once the memory is used up
+    private static final long resultCacheDisk =
+            Parameter.longValue("meshQuerySource.resultCache.disk", 1024L * 1024 * 1024);
+    //Largest result in bytes that is cached
+    private static final int resultCacheEntry = Parameter.intValue("meshQuerySource.resultCache.entry", 16 * 1024 * 1024);
+
+    //Results of the remote op of recent queries, keyed by query and tree directory. Null if disabled.
+    static final QueryResultCache resultCache = (resultCacheMemory > 0)
+            ? new QueryResultCache(new File(tmpDirPath, "results"), resultCacheMemory, resultCacheDisk, resultCacheEntry)
+            : null;
+
     public MeshQuerySource() {
         log.info("[MeshQuerySource] started.  base directory={}", QueryReference.queryRoot);
         log.info("Max concurrent queries (thread count):{}", SearchRunner.SEARCH_THREADS);
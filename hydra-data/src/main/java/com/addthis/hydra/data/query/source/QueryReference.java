@@ -123,7 +123,7 @@ class QueryReference implements VirtualFileReference {
                     Runtime.getRuntime().halt(1);
                 }
             }
-            SearchRunner.querySearchPool.execute(new SearchRunner(options, dirString, bridge));
+            new SearchRunner(options, dirString, bridge).submit();
             return bridge;
         } catch (Exception ex) {
             throw new RuntimeException(ex);
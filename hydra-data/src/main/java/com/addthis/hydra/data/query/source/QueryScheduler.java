@@ -0,0 +1,455 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query.source;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.addthis.basis.util.Parameter;
+
+import com.addthis.hydra.data.query.Query;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Timer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.channel.ChannelProgressivePromise;
+
+/**
+ * Runs queries on a bounded pool of threads, choosing the next query to run by weighted fair queuing
+ * instead of arrival order.
+ * <p/>
+ * Each query belongs to a tenant, the sender of the query or else its job, within a priority class taken
+ * from the "priority" query parameter (high or interactive, normal, low or batch). A tenant is charged
+ * for the time its queries run divided by the weight of its class, and the query of the tenant that has
+ * been charged the least runs next. A slice is charged when a query starts and settled when it stops.
+ * A tenant that has been idle starts again at the charge of the last query to run, so it cannot build
+ * up credit.
+ * <p/>
+ * A running query may call {@link #yieldPoint()} between steps of its search. Once it has run for a
+ * time slice and a query of a higher class or of a tenant charged less than its own is waiting, it
+ * gives up its slot and waits on its thread until it is chosen to run again. The pool has
+ * {@code maxParked} threads more than slots for these queries, and no more than that many wait this
+ * way at once. A waiting query whose thread is interrupted or whose query promise is done resumes at
+ * once, without a slot, so that it can stop.
+ * <p/>
+ * Queue time (waiting to start or resume) and run time of each query are reported per class.
+ * <p/>
+ * Queries of the low class are searched on their own thread only. The threads of a parallel search are
+ * neither counted against the slots nor preempted, so they would let batch queries crowd out others.
+ */
+public class QueryScheduler {
+
+    private static final Logger log = LoggerFactory.getLogger(QueryScheduler.class);
+
+    // run time in milliseconds before a query may be preempted
+    private static final long defaultSlice = Parameter.longValue("query.scheduler.slice", 1000);
+    // yield points passed between checks of the clock
+    private static final int yieldCheckInterval = Parameter.intValue("query.scheduler.yieldCheck", 64);
+    // milliseconds in between checks of the query promise of a preempted query
+    private static final long cancelCheck = 100;
+
+    public enum Priority {
+        HIGH(Parameter.intValue("query.scheduler.weight.high", 16)),
+        NORMAL(Parameter.intValue("query.scheduler.weight.normal", 4)),
+        LOW(Parameter.intValue("query.scheduler.weight.low", 1));
+
+        final double weight;
+
+        Priority(int weight) {
+            this.weight = Math.max(1, weight);
+        }
+
+        public static Priority of(Query query) {
+            String priority = query.getParameter("priority");
+            if (priority == null) {
+                return NORMAL;
+            }
+            switch (priority.toLowerCase()) {
+                case "high":
+                case "interactive":
+                    return HIGH;
+                case "low":
+                case "batch":
+                    return LOW;
+                default:
+                    return NORMAL;
+            }
+        }
+    }
+
+    private final int slots;
+    private final int maxParked;
+    // in nanoseconds
+    private final long slice;
+    private final ExecutorService executor;
+    private final ThreadLocal<Ticket> current = new ThreadLocal<>();
+
+    // guarded by this
+    private final Map<String, Tenant> tenants = new HashMap<>();
+    private final int[] queued = new int[Priority.values().length];
+    private int running;
+    // written under the monitor, read without it by yieldPoint
+    private volatile int parked;
+    private double clock;
+    private long sequence;
+
+    // ordinal of the highest class with a query waiting to start, or the number of classes if none
+    private volatile int highestQueued = Priority.values().length;
+
+    private final Map<Priority, Timer> queueTimes = new EnumMap<>(Priority.class);
+    private final Map<Priority, Timer> runTimes = new EnumMap<>(Priority.class);
+    private final Counter preemptions;
+
+    /**
+     * @param name      thread name prefix and metric scope
+     * @param slots     queries that run at once
+     * @param maxParked queries that may wait after being preempted
+     */
+    public QueryScheduler(String name, int slots, int maxParked) {
+        this(name, slots, maxParked, defaultSlice);
+    }
+
+    @VisibleForTesting
+    QueryScheduler(String name, int slots, int maxParked, long slice) {
+        this.slots = Math.max(1, slots);
+        this.maxParked = Math.max(0, maxParked);
+        this.slice = TimeUnit.MILLISECONDS.toNanos(slice);
+        int threads = this.slots + this.maxParked;
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                                                         new LinkedBlockingQueue<>(),
+                                                         new ThreadFactoryBuilder().setNameFormat(name + "-%d")
+                                                                                   .setDaemon(true).build());
+        // idle schedulers hold no threads
+        pool.allowCoreThreadTimeOut(true);
+        this.executor = pool;
+        for (Priority priority : Priority.values()) {
+            String scope = name + "-" + priority.name().toLowerCase();
+            queueTimes.put(priority, Metrics.newTimer(QueryScheduler.class, "queueTimes", scope,
+                                                      TimeUnit.MILLISECONDS, TimeUnit.SECONDS));
+            runTimes.put(priority, Metrics.newTimer(QueryScheduler.class, "runTimes", scope,
+                                                    TimeUnit.MILLISECONDS, TimeUnit.SECONDS));
+        }
+        preemptions = Metrics.newCounter(QueryScheduler.class, "preemptions", name);
+        Metrics.newGauge(QueryScheduler.class, "queued", name, new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return getQueued();
+            }
+        });
+        Metrics.newGauge(QueryScheduler.class, "running", name, new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return getRunning();
+            }
+        });
+    }
+
+    /**
+     * Queue {@code task} to run as {@code query}.
+     *
+     * @throws RejectedExecutionException if the scheduler has been shut down
+     */
+    public void execute(Query query, Runnable task) {
+        Priority priority = Priority.of(query);
+        if (priority == Priority.LOW) {
+            query.setParameter("parallel", "false");
+        }
+        String owner = query.getParameter("sender", query.getJob());
+        Ticket ticket;
+        synchronized (this) {
+            Tenant tenant = tenants.computeIfAbsent(priority + "/" + owner, key -> new Tenant(priority));
+            if (tenant.tickets == 0) {
+                tenant.charge = Math.max(tenant.charge, clock);
+            }
+            tenant.tickets++;
+            ticket = new Ticket(query, task, tenant, sequence++);
+            tenant.queued.add(ticket);
+            queued[priority.ordinal()]++;
+            updateHighestQueued();
+        }
+        try {
+            executor.execute(this::runNext);
+        } catch (RejectedExecutionException ex) {
+            synchronized (this) {
+                ticket.tenant.queued.remove(ticket);
+                queued[priority.ordinal()]--;
+                updateHighestQueued();
+                finish(ticket);
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Called by a running query between steps of its search. May block while queries of a higher class or
+     * of tenants charged less run. Does nothing on threads that are not running a query of this scheduler.
+     */
+    public void yieldPoint() {
+        Ticket ticket = current.get();
+        if ((ticket == null) || (++ticket.checks < yieldCheckInterval)) {
+            return;
+        }
+        ticket.checks = 0;
+        if ((highestQueued == Priority.values().length) && (parked == 0)) {
+            return;
+        }
+        long now = System.nanoTime();
+        if ((now - ticket.started) < slice) {
+            return;
+        }
+        synchronized (this) {
+            if ((parked >= maxParked) || !shouldYield(ticket, now)) {
+                return;
+            }
+            stop(ticket, now);
+            parked++;
+            ticket.parked = true;
+            ticket.tenant.parked.add(ticket);
+            preemptions.inc();
+            notifyAll();
+            awaitTurn(ticket);
+            ticket.tenant.parked.remove(ticket);
+            ticket.parked = false;
+            parked--;
+            start(ticket);
+        }
+    }
+
+    /**
+     * True if a query of a higher class is waiting to start, or if the next query to run belongs to another
+     * tenant that has been charged less than the tenant of {@code ticket} including the time it has run
+     * past its slice. Caller holds the monitor.
+     */
+    private boolean shouldYield(Ticket ticket, long now) {
+        Tenant tenant = ticket.tenant;
+        if (highestQueued < tenant.priority.ordinal()) {
+            return true;
+        }
+        Ticket next = next();
+        if ((next == null) || (next.tenant == tenant)) {
+            return false;
+        }
+        double charge = tenant.charge + ((now - ticket.started - slice) / tenant.priority.weight);
+        return next.tenant.charge < charge;
+    }
+
+    public boolean shutdownAndAwaitTermination(long timeout, TimeUnit unit) {
+        return MoreExecutors.shutdownAndAwaitTermination(executor, timeout, unit);
+    }
+
+    @VisibleForTesting
+    synchronized int getQueued() {
+        int total = 0;
+        for (int count : queued) {
+            total += count;
+        }
+        return total;
+    }
+
+    @VisibleForTesting
+    synchronized int getRunning() {
+        return running;
+    }
+
+    @VisibleForTesting
+    synchronized int getParked() {
+        return parked;
+    }
+
+    /**
+     * Run by a pool thread once for each query queued. Starts whichever queued query is chosen next,
+     * which is not necessarily the one this call was made for.
+     */
+    private void runNext() {
+        Ticket ticket;
+        synchronized (this) {
+            ticket = awaitTurn(null);
+            ticket.tenant.queued.remove(ticket);
+            queued[ticket.tenant.priority.ordinal()]--;
+            updateHighestQueued();
+            start(ticket);
+        }
+        current.set(ticket);
+        try {
+            ticket.task.run();
+        } catch (Throwable t) {
+            log.warn("Uncaught error running query", t);
+        } finally {
+            current.remove();
+            synchronized (this) {
+                stop(ticket, System.nanoTime());
+                finish(ticket);
+                notifyAll();
+            }
+            queueTimes.get(ticket.tenant.priority).update(ticket.waited, TimeUnit.NANOSECONDS);
+            runTimes.get(ticket.tenant.priority).update(ticket.ran, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Wait until a slot is free and {@code ticket}, or any queued ticket if it is null, is the next to run.
+     * A preempted {@code ticket} also stops waiting once its thread is interrupted or its query is done.
+     * Otherwise interrupts are deferred until the wait is over. Caller holds the monitor.
+     */
+    private Ticket awaitTurn(Ticket ticket) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                if (running < slots) {
+                    Ticket next = next();
+                    if ((ticket == null) ? ((next != null) && !next.parked) : (next == ticket)) {
+                        return next;
+                    }
+                }
+                if ((ticket != null) && (interrupted || ticket.isDone())) {
+                    return ticket;
+                }
+                try {
+                    if (ticket == null) {
+                        wait();
+                    } else {
+                        wait(cancelCheck);
+                    }
+                } catch (InterruptedException ignored) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * The first waiting ticket of the tenant charged the least, preferring higher classes and then
+     * earlier tickets on ties. A tenant resumes its preempted tickets before starting new ones.
+     * Caller holds the monitor.
+     */
+    private Ticket next() {
+        Ticket best = null;
+        for (Tenant tenant : tenants.values()) {
+            Ticket head = !tenant.parked.isEmpty() ? tenant.parked.peek() : tenant.queued.peek();
+            if ((head != null) && ((best == null) || head.before(best))) {
+                best = head;
+            }
+        }
+        return best;
+    }
+
+    /** Caller holds the monitor. */
+    private void start(Ticket ticket) {
+        long now = System.nanoTime();
+        running++;
+        ticket.waited += now - ticket.stopped;
+        ticket.started = now;
+        clock = Math.max(clock, ticket.tenant.charge);
+        // charge a slice up front so that a tenant's queued queries do not all start ahead of others
+        ticket.tenant.charge += slice / ticket.tenant.priority.weight;
+    }
+
+    /** Caller holds the monitor. */
+    private void stop(Ticket ticket, long now) {
+        running--;
+        long ran = now - ticket.started;
+        ticket.ran += ran;
+        ticket.stopped = now;
+        ticket.tenant.charge += (ran - slice) / ticket.tenant.priority.weight;
+    }
+
+    /** Caller holds the monitor. */
+    private void finish(Ticket ticket) {
+        Tenant tenant = ticket.tenant;
+        if (--tenant.tickets == 0) {
+            tenants.values().remove(tenant);
+        }
+    }
+
+    /** Caller holds the monitor. */
+    private void updateHighestQueued() {
+        int highest = 0;
+        while ((highest < queued.length) && (queued[highest] == 0)) {
+            highest++;
+        }
+        highestQueued = highest;
+    }
+
+    private static final class Tenant {
+
+        final Priority priority;
+        final ArrayDeque<Ticket> queued = new ArrayDeque<>();
+        final ArrayDeque<Ticket> parked = new ArrayDeque<>();
+        // nanoseconds of run time divided by class weight
+        double charge;
+        // queued, running and parked
+        int tickets;
+
+        Tenant(Priority priority) {
+            this.priority = priority;
+        }
+    }
+
+    private static final class Ticket {
+
+        final Query query;
+        final Runnable task;
+        final Tenant tenant;
+        final long sequence;
+        // times in nanoseconds
+        long started;
+        long stopped = System.nanoTime();
+        long waited;
+        long ran;
+        boolean parked;
+        int checks;
+
+        Ticket(Query query, Runnable task, Tenant tenant, long sequence) {
+            this.query = query;
+            this.task = task;
+            this.tenant = tenant;
+            this.sequence = sequence;
+        }
+
+        boolean isDone() {
+            ChannelProgressivePromise promise = query.queryPromise;
+            return (promise != null) && promise.isDone();
+        }
+
+        boolean before(Ticket other) {
+            if (tenant.charge != other.tenant.charge) {
+                return tenant.charge < other.tenant.charge;
+            }
+            if (tenant.priority != other.tenant.priority) {
+                return tenant.priority.ordinal() < other.tenant.priority.ordinal();
+            }
+            return sequence < other.sequence;
+        }
+    }
+}
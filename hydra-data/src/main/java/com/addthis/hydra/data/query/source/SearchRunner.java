@@ -16,22 +16,20 @@ package com.addthis.hydra.data.query.source;
 
 import java.util.Map;
 import java.util.concurrent.CancellationException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import com.addthis.basis.util.Parameter;
 
 import com.addthis.bundle.channel.DataChannelError;
+import com.addthis.bundle.channel.DataChannelOutput;
 import com.addthis.codec.json.CodecJSON;
 import com.addthis.hydra.data.query.Query;
 import com.addthis.hydra.data.query.QueryOpProcessor;
+import com.addthis.hydra.data.query.QueryResultCache;
 import com.addthis.hydra.data.query.engine.QueryEngine;
+import com.addthis.hydra.data.query.engine.QueryEngineDirectory;
 import com.addthis.hydra.data.util.BundleUtils;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,8 +37,6 @@ import io.netty.channel.ChannelProgressivePromise;
 import io.netty.channel.DefaultChannelProgressivePromise;
 import io.netty.util.concurrent.ImmediateEventExecutor;
 
-import static com.google.common.util.concurrent.MoreExecutors.shutdownAndAwaitTermination;
-
 /**
  * The class that performs the querying and feeds bundles into the bridge. The second class in the three step query process.
  * <p/>
@@ -51,15 +47,15 @@ public class SearchRunner implements Runnable {
     private static final Logger log = LoggerFactory.getLogger(SearchRunner.class);
 
     static final int SEARCH_THREADS = Parameter.intValue("meshQuerySource.searchThreads", 3);
+    // queries that may wait on their own thread after being preempted by a query of a higher priority
+    static final int PARKED_THREADS = Parameter.intValue("meshQuerySource.searchParkedThreads", SEARCH_THREADS);
     static final int SHUTDOWN_WAIT = Parameter.intValue("meshQuerySource.searchShutdownWait", 30);
-    static final ExecutorService querySearchPool =
-            new ThreadPoolExecutor(SEARCH_THREADS, SEARCH_THREADS, 0L, TimeUnit.MILLISECONDS,
-                                   new LinkedBlockingQueue<>(),
-                                   new ThreadFactoryBuilder().setNameFormat("querySearch-%d").setDaemon(true).build());
+    static final QueryScheduler querySearchPool = new QueryScheduler("querySearch", SEARCH_THREADS, PARKED_THREADS);
 
     public static void shutdownSearchPool() {
         log.info("Going to wait up to {} minutes for any queries still running.", SHUTDOWN_WAIT);
-        boolean shutdownFinished = shutdownAndAwaitTermination(querySearchPool, (long) SHUTDOWN_WAIT, TimeUnit.MINUTES);
+        boolean shutdownFinished =
+                querySearchPool.shutdownAndAwaitTermination((long) SHUTDOWN_WAIT, TimeUnit.MINUTES);
         log.info("Shutdown was successful: {}", shutdownFinished);
     }
 
@@ -72,9 +68,12 @@ public class SearchRunner implements Runnable {
      */
     private final DataChannelToInputStream bridge;
     private final long creationTime;
-    private Query query;
+    private final Query query;
     private QueryOpProcessor queryOpProcessor = null;
     private QueryEngine finalEng = null;
+    // set if the result of this query may be cached
+    private String cacheKey = null;
+    private String cacheVersion = null;
 
     public SearchRunner(final Map<String, String> options,
                         final String dirString,
@@ -85,6 +84,25 @@ public class SearchRunner implements Runnable {
         this.bridge = bridge;
         this.options = options;
         this.creationTime = System.currentTimeMillis();
+        // decoded here so that the query can be scheduled by its priority and sender
+        Query decoded = null;
+        try {
+            decoded = CodecJSON.decodeString(Query.class, options.get("query"));
+        } catch (Exception ex) {
+            log.warn("Unable to decode query, options: {}", options, ex);
+            bridge.sourceError(BundleUtils.promoteHackForThrowables(ex));
+        }
+        this.query = decoded;
+    }
+
+    /**
+     * Queue this search on the query search pool, unless its query could not be decoded and has already
+     * been failed.
+     */
+    void submit() {
+        if (query != null) {
+            querySearchPool.execute(query, this);
+        }
     }
 
     @Override
@@ -93,7 +111,10 @@ public class SearchRunner implements Runnable {
         try {
             setup();
             finalEng = getEngine();
-            search();
+            if (!sendCachedResult()) {
+                createProcessor();
+                search();
+            }
             //success
         } catch (CancellationException ignored) {
             log.info("query was cancelled remotely; stopping processing early");
@@ -142,18 +163,13 @@ public class SearchRunner implements Runnable {
 
     /**
      * Part 1 - SETUP
-     * Initialize query run -- parse options, create Query object
+     * Initialize query run
      */
     protected void setup() throws Exception {
         long startTime = System.currentTimeMillis();
-        MeshQuerySource.queueTimes.update(creationTime - startTime, TimeUnit.MILLISECONDS);
-        query = CodecJSON.decodeString(Query.class, options.get("query"));
+        MeshQuerySource.queueTimes.update(startTime - creationTime, TimeUnit.MILLISECONDS);
         // set as soon as possible (and especially before creating op processor)
         query.queryPromise = bridge.queryPromise;
-        // Parse the query and return a reference to the last QueryOpProcessor.
-        ChannelProgressivePromise opPromise =
-                new DefaultChannelProgressivePromise(null, ImmediateEventExecutor.INSTANCE);
-        queryOpProcessor = query.newProcessor(bridge, opPromise);
     }
 
     /**
@@ -187,6 +203,45 @@ public class SearchRunner implements Runnable {
         return engine;
     }
 
+    /**
+     * Part 2.5 - RESULT CACHE
+     * Send the result of an identical query against the same task if one is cached. The results are keyed by
+     * the gold directory of the task and versioned by the directory it resolves to, which changes whenever
+     * the job produces new data.
+     *
+     * @return true if the query was answered from the cache
+     */
+    protected boolean sendCachedResult() {
+        QueryResultCache resultCache = MeshQuerySource.resultCache;
+        if ((resultCache == null) || query.isTraced() || "false".equals(query.getParameter("cache")) ||
+            !(finalEng instanceof QueryEngineDirectory)) {
+            return false;
+        }
+        cacheKey = QueryResultCache.key(query, goldDirString);
+        cacheVersion = ((QueryEngineDirectory) finalEng).getDirectory();
+        QueryResultCache.Entry cached = resultCache.get(cacheKey, cacheVersion);
+        if (cached == null) {
+            return false;
+        }
+        return resultCache.replay(cached, bridge);
+    }
+
+    /**
+     * Parse the query ops into a chain of QueryOpProcessors that ends at the bridge, recording the
+     * output for the result cache on the way if the query is cacheable.
+     */
+    protected void createProcessor() {
+        DataChannelOutput output = bridge;
+        if (cacheKey != null) {
+            // a query cancelled part way through sends complete with a partial result
+            output = MeshQuerySource.resultCache.record(cacheKey, cacheVersion, bridge,
+                                                        () -> !bridge.queryPromise.isDone());
+        }
+        ChannelProgressivePromise opPromise =
+                new DefaultChannelProgressivePromise(null, ImmediateEventExecutor.INSTANCE);
+        queryOpProcessor = query.newProcessor(output, opPromise);
+    }
+
     /**
      * Part 3 - SEARCH
      * Run the search -- most of this logic is in QueryEngine.search(). We only take care of logging times and
@@ -194,7 +249,7 @@ public class SearchRunner implements Runnable {
      */
     protected void search() {
         final long searchStartTime = System.currentTimeMillis();
-        finalEng.search(query, queryOpProcessor, bridge.getQueryPromise());
+        finalEng.search(query, queryOpProcessor, bridge.getQueryPromise(), querySearchPool::yieldPoint);
         queryOpProcessor.sendComplete();
         final long searchDuration = System.currentTimeMillis() - searchStartTime;
         if (log.isDebugEnabled() || query.isTraced()) {
@@ -29,4 +29,14 @@ public interface DataTreeNodeUpdater {
     public int getCountValue();
 
     public long getAssignmentValue();
+
+    /**
+     * Returns the accumulated child updates for the data attachment {@code key}
+     * when this update combines several bundles, or null when the attachment
+     * should be updated from {@link #getBundle()}. A non-null delta is only
+     * returned for {@link MergeableTreeNodeData} attachments.
+     */
+    public default TreeNodeData<?> getDataDelta(String key) {
+        return null;
+    }
 }
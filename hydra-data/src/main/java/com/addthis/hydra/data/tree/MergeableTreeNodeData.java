@@ -0,0 +1,29 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.tree;
+
+/**
+ * A {@link TreeNodeData} whose child updates can be accumulated in a detached
+ * instance and applied to the attached instance in one step. Tree builders that
+ * combine the bundles updating the same node use this to replace one
+ * {@link TreeNodeData#updateChildData} call per bundle with a single merge.
+ * <p/>
+ * The delta is created with {@link TreeDataParameters#newInstance()} from the same
+ * configuration and receives the child updates through {@link TreeNodeData#updateChildData}
+ * with no node bound to it.
+ */
+public interface MergeableTreeNodeData<T extends TreeNodeData<?>> {
+
+    public void mergeChildData(T delta);
+}
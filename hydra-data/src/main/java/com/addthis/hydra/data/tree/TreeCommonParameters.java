@@ -32,6 +32,10 @@ public class TreeCommonParameters {
     public static int cacheShards = Parameter.intValue("hydra.tree.shards", Runtime.getRuntime().availableProcessors() * 8);
     public static long trashInterval = Parameter.longValue("hydra.tree.trash.interval", 0);
     public static long trashMaxTime = Parameter.intValue("hydra.tree.trash.maxtime", 0);
+    // min number of children before a node indexes its cached children. zero disables the index
+    public static int childIndexThreshold = Parameter.intValue("hydra.tree.childindex.threshold", 0);
+    // memory shared by the node cache and the page cache of a tree. zero disables adaptive balancing
+    public static long cacheBudget = Parameter.longValue("hydra.tree.cache.budget", 0);
 
     public static void setDefaultMaxCacheSize(int size) {
         maxCacheSize = size;
@@ -73,4 +77,12 @@ public class TreeCommonParameters {
         trashMaxTime = trashTimeLimit;
     }
 
+    public static void setDefaultChildIndexThreshold(int threshold) {
+        childIndexThreshold = threshold;
+    }
+
+    public static void setDefaultCacheBudget(long budget) {
+        cacheBudget = budget;
+    }
+
 }
@@ -14,6 +14,7 @@
 package com.addthis.hydra.data.tree;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
@@ -26,6 +27,8 @@ import java.nio.file.Paths;
 
 import com.addthis.codec.config.Configs;
 import com.addthis.codec.jackson.Jackson;
+import com.addthis.hydra.store.common.PageCompression;
+import com.addthis.hydra.store.kv.PageEncodeType;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
@@ -51,11 +54,30 @@ public final class TreeConfig {
     public final double cacheWeight;
     /** (dangerous!) Forces a (query) cache weight of zero regardless of actual memory usage or cache ratio. */
     public final boolean unevictable;
+    /** Compression of newly written tree pages. If null then the eps.gz.type system property is used. */
+    @Nullable public final PageCompression pageCompression;
+    /**
+     * False positive probability of the bloom filter written into each tree page. Readers use the filters
+     * to skip pages that cannot contain a node. Zero disables the filters. If null then the
+     * eps.page.filter.fpp system property is used.
+     */
+    @Nullable public final Double pageFilterFpp;
+    /**
+     * Layout of newly written tree pages. PREFIX pages can be searched by the query system without decoding
+     * the whole page. If null then the eps.page.encode.type system property is used.
+     */
+    @Nullable public final PageEncodeType pageEncodeType;
 
     public TreeConfig(@JsonProperty("cacheWeight") double cacheWeight,
-                      @JsonProperty("unevictable") boolean unevictable) {
+                      @JsonProperty("unevictable") boolean unevictable,
+                      @JsonProperty("pageCompression") PageCompression pageCompression,
+                      @JsonProperty("pageFilterFpp") Double pageFilterFpp,
+                      @JsonProperty("pageEncodeType") PageEncodeType pageEncodeType) {
         this.cacheWeight = cacheWeight;
         this.unevictable = unevictable;
+        this.pageCompression = pageCompression;
+        this.pageFilterFpp = pageFilterFpp;
+        this.pageEncodeType = pageEncodeType;
     }
 
     @JsonIgnore public double cacheWeight() {
@@ -97,17 +119,24 @@ public final class TreeConfig {
         }
         TreeConfig config = (TreeConfig) o;
         return Objects.equals(this.cacheWeight, config.cacheWeight) &&
-               Objects.equals(this.unevictable, config.unevictable);
+               Objects.equals(this.unevictable, config.unevictable) &&
+               Objects.equals(this.pageCompression, config.pageCompression) &&
+               Objects.equals(this.pageFilterFpp, config.pageFilterFpp) &&
+               Objects.equals(this.pageEncodeType, config.pageEncodeType);
     }
 
     @Override public int hashCode() {
-        return Objects.hash(this.cacheWeight, this.unevictable);
+        return Objects.hash(this.cacheWeight, this.unevictable, this.pageCompression, this.pageFilterFpp,
+                            this.pageEncodeType);
     }
 
     @Override public String toString() {
         return toStringHelper(this)
                 .add("cacheWeight", cacheWeight)
                 .add("unevictable", unevictable)
+                .add("pageCompression", pageCompression)
+                .add("pageFilterFpp", pageFilterFpp)
+                .add("pageEncodeType", pageEncodeType)
                 .toString();
     }
 }
@@ -0,0 +1,335 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.tree.concurrent;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+import com.addthis.basis.concurrentlinkedhashmap.MediatedEvictionConcurrentHashMap;
+import com.addthis.basis.util.MemoryCounter;
+import com.addthis.basis.util.Parameter;
+
+import com.addthis.hydra.common.Configuration;
+import com.addthis.hydra.data.tree.CacheKey;
+import com.addthis.hydra.store.db.IPageDB;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Divides a fixed memory budget between the node cache of a {@link ConcurrentTree}
+ * and the page cache underneath it. Runs periodically and on each run:
+ * <ul>
+ * <li>shrinks the budget in use while the heap is above {@link #heapHigh} or more than
+ * {@link #gcHigh} of the elapsed time was spent in garbage collection, and grows it back
+ * toward the full budget once the heap is below {@link #heapLow}.</li>
+ * <li>moves {@link #step} of the budget toward the node cache when the node cache miss
+ * rate is higher than the fraction of node misses that had to load a page, and toward
+ * the page cache when it is the other way around. A node miss that finds its page in
+ * memory only decodes the node while a page miss reads from disk, so this moves memory to
+ * whichever cache is the one falling short.</li>
+ * </ul>
+ * The node cache is sized in nodes so its share of the budget is converted
+ * using a sampled estimate of the memory of a cached node.
+ * <p/>
+ * Rates are computed from cumulative counters of node hits, node misses and
+ * page cache misses so that the balancer does not reset the interval metrics
+ * of the tree. The metrics of the balancer are removed by {@link #close()}.
+ */
+final class CacheBalancer implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(CacheBalancer.class);
+
+    // milliseconds in between rebalancing
+    @Configuration.Parameter
+    static final int interval = Parameter.intValue("hydra.tree.cache.balance.interval", 5000);
+
+    // fraction of the budget moved per rebalancing
+    @Configuration.Parameter
+    static final double step = Double.parseDouble(Parameter.value("hydra.tree.cache.balance.step", "0.05"));
+
+    // lower and upper bounds on the fraction of the budget given to the node cache
+    @Configuration.Parameter
+    static final double minNodeShare = Double.parseDouble(Parameter.value("hydra.tree.cache.balance.minShare", "0.1"));
+
+    @Configuration.Parameter
+    static final double maxNodeShare = Double.parseDouble(Parameter.value("hydra.tree.cache.balance.maxShare", "0.9"));
+
+    // heap occupancy above which the budget in use shrinks
+    @Configuration.Parameter
+    static final double heapHigh = Double.parseDouble(Parameter.value("hydra.tree.cache.balance.heapHigh", "0.85"));
+
+    // heap occupancy below which the budget in use grows back
+    @Configuration.Parameter
+    static final double heapLow = Double.parseDouble(Parameter.value("hydra.tree.cache.balance.heapLow", "0.7"));
+
+    // fraction of time spent in garbage collection above which the budget in use shrinks
+    @Configuration.Parameter
+    static final double gcHigh = Double.parseDouble(Parameter.value("hydra.tree.cache.balance.gcHigh", "0.1"));
+
+    // the budget in use never shrinks below this fraction of the budget
+    @Configuration.Parameter
+    static final double minBudget = Double.parseDouble(Parameter.value("hydra.tree.cache.balance.minBudget", "0.25"));
+
+    // nodes sampled per run for the node memory estimate
+    @Configuration.Parameter
+    static final int nodeSamples = Parameter.intValue("hydra.tree.cache.balance.samples", 32);
+
+    // miss rates closer than this are treated as equal
+    private static final double HYSTERESIS = 0.02;
+
+    // node memory estimate until nodes have been sampled
+    private static final long DEFAULT_NODE_MEM = 512;
+
+    private static final int MIN_NODES = 16;
+
+    enum Decision {
+        NONE, SHRINK, GROW, NODES, PAGES
+    }
+
+    private final MediatedEvictionConcurrentHashMap<CacheKey, ConcurrentTreeNode> cache;
+    private final IPageDB<?, ?> source;
+    private final LongSupplier nodeHits;
+    private final LongSupplier nodeMisses;
+    private final LongSupplier pageMisses;
+    private final long budget;
+
+    private long budgetInUse;
+    private double nodeShare = 0.5;
+    private long nodeMem = DEFAULT_NODE_MEM;
+    private long nodeCapacity;
+    private long pageMem;
+
+    private long lastTime;
+    private long lastGcTime;
+    private long lastNodeHits;
+    private long lastNodeMisses;
+    private long lastPageMisses;
+
+    private final List<MetricName> metricNames = new ArrayList<>();
+    private final Counter budgetShrinks;
+    private final Counter budgetGrows;
+    private final Counter shiftsToNodes;
+    private final Counter shiftsToPages;
+
+    /**
+     * @param nodeHits   cumulative count of node cache hits
+     * @param nodeMisses cumulative count of node cache misses
+     * @param pageMisses cumulative count of pages read into the page cache
+     */
+    CacheBalancer(String scope, long budget,
+                  MediatedEvictionConcurrentHashMap<CacheKey, ConcurrentTreeNode> cache,
+                  IPageDB<?, ?> source, LongSupplier nodeHits,
+                  LongSupplier nodeMisses, LongSupplier pageMisses) {
+        this.budget = budget;
+        this.budgetInUse = budget;
+        this.cache = cache;
+        this.source = source;
+        this.nodeHits = nodeHits;
+        this.nodeMisses = nodeMisses;
+        this.pageMisses = pageMisses;
+        this.lastTime = System.currentTimeMillis();
+        this.lastGcTime = gcTime();
+        this.lastNodeHits = nodeHits.getAsLong();
+        this.lastNodeMisses = nodeMisses.getAsLong();
+        this.lastPageMisses = pageMisses.getAsLong();
+        budgetShrinks = Metrics.newCounter(metricName("budgetShrinks", scope));
+        budgetGrows = Metrics.newCounter(metricName("budgetGrows", scope));
+        shiftsToNodes = Metrics.newCounter(metricName("shiftsToNodes", scope));
+        shiftsToPages = Metrics.newCounter(metricName("shiftsToPages", scope));
+        Metrics.newGauge(metricName("budgetInUse", scope), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return budgetInUse;
+            }
+        });
+        Metrics.newGauge(metricName("nodeShare", scope), new Gauge<Double>() {
+            @Override
+            public Double value() {
+                return nodeShare;
+            }
+        });
+        Metrics.newGauge(metricName("nodeMemEstimate", scope), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return nodeMem;
+            }
+        });
+        Metrics.newGauge(metricName("nodeCacheCapacity", scope), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return nodeCapacity;
+            }
+        });
+        Metrics.newGauge(metricName("pageCacheMem", scope), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return pageMem;
+            }
+        });
+        apply();
+    }
+
+    private MetricName metricName(String name, String scope) {
+        MetricName metricName = new MetricName(CacheBalancer.class, name, scope);
+        metricNames.add(metricName);
+        return metricName;
+    }
+
+    /**
+     * Remove the metrics of this balancer from the registry.
+     */
+    void close() {
+        for (MetricName metricName : metricNames) {
+            Metrics.defaultRegistry().removeMetric(metricName);
+        }
+        metricNames.clear();
+    }
+
+    @Override
+    public void run() {
+        try {
+            long time = System.currentTimeMillis();
+            long gcTime = gcTime();
+            long hits = nodeHits.getAsLong();
+            long misses = nodeMisses.getAsLong();
+            long loads = pageMisses.getAsLong();
+            double gcFraction = (time > lastTime) ? ((double) (gcTime - lastGcTime) / (time - lastTime)) : 0.0;
+            long hitDelta = hits - lastNodeHits;
+            long missDelta = misses - lastNodeMisses;
+            double nodeMissRate = (missDelta > 0) ? ((double) missDelta / (hitDelta + missDelta)) : 0.0;
+            double pageMissRate = (missDelta > 0) ? Math.min(1.0, (double) (loads - lastPageMisses) / missDelta) : 0.0;
+            lastTime = time;
+            lastGcTime = gcTime;
+            lastNodeHits = hits;
+            lastNodeMisses = misses;
+            lastPageMisses = loads;
+            sampleNodeMem();
+            Decision decision = rebalance(heapFraction(), gcFraction, nodeMissRate, pageMissRate);
+            apply();
+            if (decision != Decision.NONE) {
+                log.debug("[balance] {} budget={} nodeShare={} nodeMem={} nodeCapacity={} pageMem={}",
+                          decision, budgetInUse, nodeShare, nodeMem, nodeCapacity, pageMem);
+            }
+        } catch (Exception ex) {
+            log.warn("Uncaught exception in cache balancer", ex);
+        }
+    }
+
+    /**
+     * Adjust the budget in use and the node share. Adjusting the budget
+     * takes precedence over moving memory between the caches.
+     */
+    @VisibleForTesting
+    Decision rebalance(double heapFraction, double gcFraction, double nodeMissRate, double pageMissRate) {
+        if ((heapFraction > heapHigh) || (gcFraction > gcHigh)) {
+            long lower = Math.max((long) (budget * minBudget), (long) (budgetInUse * (1.0 - step)));
+            if (lower < budgetInUse) {
+                budgetInUse = lower;
+                budgetShrinks.inc();
+                return Decision.SHRINK;
+            }
+        } else if ((heapFraction < heapLow) && (budgetInUse < budget)) {
+            budgetInUse = Math.min(budget, (long) (budgetInUse * (1.0 + step)) + 1);
+            budgetGrows.inc();
+            return Decision.GROW;
+        }
+        if ((nodeMissRate > (pageMissRate + HYSTERESIS)) && (nodeShare < maxNodeShare)) {
+            nodeShare = Math.min(maxNodeShare, nodeShare + step);
+            shiftsToNodes.inc();
+            return Decision.NODES;
+        } else if ((pageMissRate > (nodeMissRate + HYSTERESIS)) && (nodeShare > minNodeShare)) {
+            nodeShare = Math.max(minNodeShare, nodeShare - step);
+            shiftsToPages.inc();
+            return Decision.PAGES;
+        }
+        return Decision.NONE;
+    }
+
+    private void apply() {
+        long nodeBudget = (long) (budgetInUse * nodeShare);
+        nodeCapacity = Math.max(MIN_NODES, nodeBudget / nodeMem);
+        pageMem = Math.max(0, budgetInUse - nodeBudget);
+        cache.setCapacity(nodeCapacity);
+        source.setCacheMem(pageMem);
+    }
+
+    /**
+     * Exponential moving average of the estimated memory of a few cached nodes.
+     */
+    private void sampleNodeMem() {
+        long total = 0;
+        int count = 0;
+        Iterator<ConcurrentTreeNode> iterator = cache.values().iterator();
+        while (iterator.hasNext() && (count < nodeSamples)) {
+            total += MemoryCounter.estimateSize(iterator.next());
+            count++;
+        }
+        if (count > 0) {
+            nodeMem = Math.max(1, (nodeMem + (total / count)) / 2);
+        }
+    }
+
+    private static double heapFraction() {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        long max = (heap.getMax() > 0) ? heap.getMax() : heap.getCommitted();
+        return (max > 0) ? ((double) heap.getUsed() / max) : 0.0;
+    }
+
+    private static long gcTime() {
+        long total = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, bean.getCollectionTime());
+        }
+        return total;
+    }
+
+    @VisibleForTesting
+    long getBudgetInUse() {
+        return budgetInUse;
+    }
+
+    @VisibleForTesting
+    double getNodeShare() {
+        return nodeShare;
+    }
+
+    @VisibleForTesting
+    long getNodeCapacity() {
+        return nodeCapacity;
+    }
+
+    @VisibleForTesting
+    long getNodeMem() {
+        return nodeMem;
+    }
+
+    @VisibleForTesting
+    long getPageMem() {
+        return pageMem;
+    }
+}
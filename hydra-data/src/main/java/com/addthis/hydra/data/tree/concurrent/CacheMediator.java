@@ -37,6 +37,7 @@ class CacheMediator implements EvictionMediator<CacheKey, ConcurrentTreeNode> {
                 }
             } finally {
                 value.evictionComplete();
+                value.removeFromIndex();
             }
         }
         return evict;
@@ -0,0 +1,204 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.tree.concurrent;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Index from child name to child node for the cached children of a single
+ * high fanout node. Lets {@link ConcurrentTree} find an existing child without
+ * allocating a {@link com.addthis.hydra.data.tree.CacheKey} or a
+ * {@link com.addthis.hydra.store.db.DBKey}.
+ * <p/>
+ * An open addressing table with linear probing. The name hashes are kept in
+ * a primitive array so that a probe only dereferences the names with a
+ * matching hash. Lookups are optimistic reads that are validated against
+ * a {@link StampedLock} and modifications take the write lock.
+ * <p/>
+ * The index only holds nodes that are in the tree cache. A node is added
+ * once it has been found or inserted into the cache and it is removed when
+ * it is evicted or deleted. A node returned by the index must still be leased
+ * by the caller, which fails if the node has left the cache in the meantime.
+ */
+final class ChildIndex {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final StampedLock lock = new StampedLock();
+
+    /**
+     * Zero marks an empty slot. See {@link #hash(String)}.
+     */
+    private int[] hashes = new int[INITIAL_CAPACITY];
+
+    private String[] names = new String[INITIAL_CAPACITY];
+
+    private ConcurrentTreeNode[] nodes = new ConcurrentTreeNode[INITIAL_CAPACITY];
+
+    private int size;
+
+    private static int hash(String name) {
+        int h = name.hashCode();
+        h ^= (h >>> 16);
+        return (h == 0) ? 1 : h;
+    }
+
+    ConcurrentTreeNode get(String name) {
+        int hash = hash(name);
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                ConcurrentTreeNode result = find(hash, name);
+                if (lock.validate(stamp)) {
+                    return result;
+                }
+            } catch (RuntimeException ignored) {
+                // the table was modified during the read
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return find(hash, name);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private ConcurrentTreeNode find(int hash, String name) {
+        int[] hashes = this.hashes;
+        String[] names = this.names;
+        ConcurrentTreeNode[] nodes = this.nodes;
+        int mask = hashes.length - 1;
+        for (int i = hash & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+            int current = hashes[i];
+            if (current == 0) {
+                return null;
+            } else if (current == hash && name.equals(names[i])) {
+                return nodes[i];
+            }
+        }
+        return null;
+    }
+
+    void put(String name, ConcurrentTreeNode node) {
+        int hash = hash(name);
+        long stamp = lock.writeLock();
+        try {
+            int mask = hashes.length - 1;
+            int i = hash & mask;
+            while (hashes[i] != 0) {
+                if (hashes[i] == hash && name.equals(names[i])) {
+                    nodes[i] = node;
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            hashes[i] = hash;
+            names[i] = name;
+            nodes[i] = node;
+            if (++size > (hashes.length >>> 1)) {
+                resize(hashes.length << 1);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Remove the entry for {@code name} if it is mapped to {@code node}.
+     */
+    void remove(String name, ConcurrentTreeNode node) {
+        int hash = hash(name);
+        long stamp = lock.writeLock();
+        try {
+            int mask = hashes.length - 1;
+            int i = hash & mask;
+            while (hashes[i] != 0) {
+                if (hashes[i] == hash && name.equals(names[i])) {
+                    if (nodes[i] == node) {
+                        delete(i);
+                    }
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Backward shift deletion so that probe sequences never contain holes.
+     */
+    private void delete(int i) {
+        int mask = hashes.length - 1;
+        size--;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (hashes[j] == 0) {
+                break;
+            }
+            int home = hashes[j] & mask;
+            // move the entry at j into the hole at i unless its home lies cyclically in (i, j]
+            if ((i <= j) ? ((home <= i) || (home > j)) : ((home <= i) && (home > j))) {
+                hashes[i] = hashes[j];
+                names[i] = names[j];
+                nodes[i] = nodes[j];
+                i = j;
+            }
+        }
+        hashes[i] = 0;
+        names[i] = null;
+        nodes[i] = null;
+    }
+
+    private void resize(int capacity) {
+        int[] oldHashes = hashes;
+        String[] oldNames = names;
+        ConcurrentTreeNode[] oldNodes = nodes;
+        int[] newHashes = new int[capacity];
+        String[] newNames = new String[capacity];
+        ConcurrentTreeNode[] newNodes = new ConcurrentTreeNode[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldHashes.length; j++) {
+            if (oldHashes[j] != 0) {
+                int i = oldHashes[j] & mask;
+                while (newHashes[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                newHashes[i] = oldHashes[j];
+                newNames[i] = oldNames[j];
+                newNodes[i] = oldNodes[j];
+            }
+        }
+        hashes = newHashes;
+        names = newNames;
+        nodes = newNodes;
+    }
+
+    int size() {
+        long stamp = lock.tryOptimisticRead();
+        int result = size;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                result = size;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return result;
+    }
+}
@@ -13,6 +13,7 @@
  */
 package com.addthis.hydra.data.tree.concurrent;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
 import java.io.File;
@@ -48,8 +49,10 @@ import com.addthis.hydra.data.tree.DataTreeNodeActor;
 import com.addthis.hydra.data.tree.DataTreeNodeInitializer;
 import com.addthis.hydra.data.tree.DataTreeNodeUpdater;
 import com.addthis.hydra.data.tree.TreeCommonParameters;
+import com.addthis.hydra.data.tree.TreeConfig;
 import com.addthis.hydra.data.tree.TreeDataParent;
 import com.addthis.hydra.data.tree.TreeNodeData;
+import com.addthis.hydra.store.common.AbstractPageCache;
 import com.addthis.hydra.store.common.PageFactory;
 import com.addthis.hydra.store.db.CloseOperation;
 import com.addthis.hydra.store.db.DBKey;
@@ -114,8 +117,13 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
     private final Meter<METERTREE> meter;
     private final MeterFileLogger logger;
     private final AtomicDouble cacheHitRate = new AtomicDouble(0.0);
+    // cumulative node cache counters, unlike the interval counters of the meter
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
     private final MediatedEvictionConcurrentHashMap<CacheKey, ConcurrentTreeNode> cache;
     private final ScheduledExecutorService deletionThreadPool;
+    @Nullable private final CacheBalancer cacheBalancer;
+    @Nullable private final ScheduledExecutorService balancerThread;
 
     @GuardedBy("treeTrashNode")
     private IPageDB.Range<DBKey, ConcurrentTreeNode> trashIterator;
@@ -159,9 +167,15 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
         } else {
             logger = null;
         }
-        source = new PageDB.Builder<>(root, ConcurrentTreeNode.class, maxPageSize, maxCacheSize)
+        TreeConfig treeConfig = TreeConfig.readFromDataDirectory(root.toPath());
+        PageDB.Builder<ConcurrentTreeNode> sourceBuilder = new PageDB.Builder<>(root, ConcurrentTreeNode.class, maxPageSize, maxCacheSize)
                 .pageFactory(factory)
-                .build();
+                .compression(treeConfig.pageCompression)
+                .pageType(treeConfig.pageEncodeType);
+        if (treeConfig.pageFilterFpp != null) {
+            sourceBuilder.filterFpp(treeConfig.pageFilterFpp);
+        }
+        source = sourceBuilder.build();
         source.setCacheMem(TreeCommonParameters.maxCacheMem);
         source.setPageMem(TreeCommonParameters.maxPageMem);
         source.setMemSampleInterval(TreeCommonParameters.memSample);
@@ -170,6 +184,20 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
                 .mediator(new CacheMediator(source))
                 .maximumWeightedCapacity(cleanQSize)
                 .build();
+        if (TreeCommonParameters.cacheBudget > 0) {
+            PagedKeyValueStore<DBKey, ConcurrentTreeNode> eps = source.getEps();
+            cacheBalancer = new CacheBalancer(scope, TreeCommonParameters.cacheBudget, cache, source,
+                                              cacheHits::get, cacheMisses::get,
+                                              (eps instanceof AbstractPageCache) ?
+                                              ((AbstractPageCache<?, ?>) eps).numPageMisses::get : () -> 0L);
+            balancerThread = Executors.newSingleThreadScheduledExecutor(
+                    new NamedThreadFactory(scope + "-balancer-", true));
+            balancerThread.scheduleWithFixedDelay(cacheBalancer, CacheBalancer.interval,
+                                                  CacheBalancer.interval, TimeUnit.MILLISECONDS);
+        } else {
+            cacheBalancer = null;
+            balancerThread = null;
+        }
 
         // get stored next db id
         idFile = new File(root, "nextID");
@@ -235,12 +263,43 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
         return (!lease || node.tryLease());
     }
 
+    /**
+     * Returns the node from the child index of the parent or null if
+     * the parent has no index or the node is not a usable cache hit.
+     */
+    @Nullable private ConcurrentTreeNode getIndexedNode(@Nullable ChildIndex index, String child, boolean lease) {
+        if (index == null) {
+            return null;
+        }
+        ConcurrentTreeNode node = index.get(child);
+        if (node == null) {
+            return null;
+        }
+        if (lease ? node.tryLease() : (node.getLeaseCount() >= 0)) {
+            reportCacheHit();
+            return node;
+        }
+        return null;
+    }
+
+    private static ConcurrentTreeNode indexed(@Nullable ChildIndex index, ConcurrentTreeNode node) {
+        if (index != null) {
+            node.addToIndex(index);
+        }
+        return node;
+    }
+
     public ConcurrentTreeNode getNode(final ConcurrentTreeNode parent, final String child, final boolean lease) {
         long nodedb = parent.nodeDB();
         if (nodedb <= 0) {
             log.trace("[node.get] {} --> {} NOMAP --> null", parent, child);
             return null;
         }
+        ChildIndex index = parent.childIndex();
+        ConcurrentTreeNode indexed = getIndexedNode(index, child, lease);
+        if (indexed != null) {
+            return indexed;
+        }
         CacheKey key = new CacheKey(nodedb, child);
 
         /**
@@ -260,7 +319,7 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
                     cache.remove(key, node);
                 } else if (setLease(node, lease)) {
                     reportCacheHit();
-                    return node; // (1)
+                    return indexed(index, node); // (1)
                 }
             } else {// (2)
                 DBKey dbkey = key.dbkey();
@@ -281,7 +340,7 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
                     if (prev == null) {
                         node.reactivate();
                         if (setLease(node, lease)) {
-                            return node; // (4)
+                            return indexed(index, node); // (4)
                         }
                     }
                 }
@@ -292,6 +351,11 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
     public ConcurrentTreeNode getOrCreateNode(final ConcurrentTreeNode parent, final String child,
                                               final DataTreeNodeInitializer creator) {
         parent.requireNodeDB();
+        ChildIndex index = parent.childIndex();
+        ConcurrentTreeNode indexed = getIndexedNode(index, child, true);
+        if (indexed != null) {
+            return indexed;
+        }
         CacheKey key = new CacheKey(parent.nodeDB(), child);
         ConcurrentTreeNode newNode = null;
 
@@ -302,7 +366,7 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
                     cache.remove(key, node);
                 } else if (setLease(node, true)) {
                     reportCacheHit();
-                    return node;
+                    return indexed(index, node);
                 }
             } else {
                 DBKey dbkey = key.dbkey();
@@ -318,7 +382,7 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
                         if (prev == null) {
                             node.reactivate();
                             if (setLease(node, true)) {
-                                return node;
+                                return indexed(index, node);
                             }
                         }
                     }
@@ -341,7 +405,7 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
                          */
                         source.put(dbkey, node);
                         parent.updateNodeCount(1);
-                        return node;
+                        return indexed(index, node);
                     }
                 }
             }
@@ -366,6 +430,7 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
             // coordinate concurrent deletion attempts with the lease count (-2 is used as a special flag) even
             // though most other code stops bothering with things like "thread safety" around this stage.
             if (node.markDeleted()) {
+                node.removeFromIndex();
                 // node could have already been dropped from the cache, and then re-created (sharing the same cache
                 // key equality). That is a fresh node that needs its own deletion, so only try to remove our instance.
                 cache.remove(key, node);
@@ -433,6 +498,14 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
         return cache;
     }
 
+    /**
+     * Package-level visibility is for testing purposes only.
+     */
+    @VisibleForTesting
+    @Nullable CacheBalancer getCacheBalancer() {
+        return cacheBalancer;
+    }
+
     private void shutdownDeletionThreadPool() {
         if (deletionThreadPool == null)
             return;
@@ -508,6 +581,10 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
             return;
         }
         log.debug("closing {}", this);
+        if (balancerThread != null) {
+            balancerThread.shutdownNow();
+            cacheBalancer.close();
+        }
         waitOnDeletions();
         if (treeRootNode != null) {
             treeRootNode.markChanged();
@@ -555,10 +632,12 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
 
     private void reportCacheHit() {
         meter.inc(METERTREE.CACHE_HIT);
+        cacheHits.incrementAndGet();
     }
 
     private void reportCacheMiss() {
         meter.inc(METERTREE.CACHE_MISS);
+        cacheMisses.incrementAndGet();
     }
 
     @Override
@@ -723,6 +802,7 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
                  */
                 if (cacheNode != null) {
                     cacheNode.markDeleted();
+                    cacheNode.removeFromIndex();
                 }
             }
             if (range.hasNext()) {
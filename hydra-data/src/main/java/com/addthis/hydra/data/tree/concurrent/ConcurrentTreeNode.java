@@ -34,6 +34,8 @@ import com.addthis.hydra.data.tree.DataTreeNode;
 import com.addthis.hydra.data.tree.DataTreeNodeActor;
 import com.addthis.hydra.data.tree.DataTreeNodeInitializer;
 import com.addthis.hydra.data.tree.DataTreeNodeUpdater;
+import com.addthis.hydra.data.tree.MergeableTreeNodeData;
+import com.addthis.hydra.data.tree.TreeCommonParameters;
 import com.addthis.hydra.data.tree.TreeDataParameters;
 import com.addthis.hydra.data.tree.TreeDataParent;
 import com.addthis.hydra.data.tree.TreeNodeData;
@@ -106,6 +108,18 @@ public class ConcurrentTreeNode extends AbstractTreeNode {
     @Mem(estimate = false, size = 64)
     private ReadWriteLock lock = new ReentrantReadWriteLock();
 
+    /**
+     * Index of the cached children of this node. Created once the node
+     * has {@link TreeCommonParameters#childIndexThreshold} children.
+     */
+    @Mem(estimate = false, size = 64)
+    private volatile ChildIndex childIndex;
+    /**
+     * Index of the parent node that this node is registered in.
+     */
+    @Mem(estimate = false, size = 64)
+    private volatile ChildIndex parentIndex;
+
     private AtomicBoolean decoded = new AtomicBoolean(false);
     private AtomicBoolean initOnce = new AtomicBoolean(false);
     private final Object initLock = new Object();
@@ -296,6 +310,50 @@ public class ConcurrentTreeNode extends AbstractTreeNode {
         return nodedb;
     }
 
+    /**
+     * Returns the index of the cached children of this node or null if
+     * this node does not have enough children to warrant an index.
+     */
+    ChildIndex childIndex() {
+        ChildIndex index = childIndex;
+        if (index == null) {
+            int threshold = TreeCommonParameters.childIndexThreshold;
+            if ((threshold > 0) && (nodes >= threshold)) {
+                synchronized (this) {
+                    index = childIndex;
+                    if (index == null) {
+                        index = new ChildIndex();
+                        childIndex = index;
+                    }
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Register this node in the child index of its parent.
+     * The node must be in the tree cache.
+     */
+    void addToIndex(ChildIndex index) {
+        parentIndex = index;
+        index.put(name, this);
+        // an eviction or deletion that raced with the insertion may have missed the new entry
+        if (leases.get() < 0) {
+            index.remove(name, this);
+        }
+    }
+
+    /**
+     * Called once this node has been evicted from the tree cache or deleted.
+     */
+    void removeFromIndex() {
+        ChildIndex index = parentIndex;
+        if (index != null) {
+            index.remove(name, this);
+        }
+    }
+
     /**
      * returns an iterator of read-only nodes
      */
@@ -411,7 +469,11 @@ public class ConcurrentTreeNode extends AbstractTreeNode {
                         data.put(el.getKey(), tnd);
                         updated = true;
                     }
-                    if (tnd.updateChildData(state, this, el.getValue())) {
+                    TreeNodeData delta = state.getDataDelta(el.getKey());
+                    if (delta != null) {
+                        ((MergeableTreeNodeData) tnd).mergeChildData(delta);
+                        updated = true;
+                    } else if (tnd.updateChildData(state, this, el.getValue())) {
                         updated = true;
                     }
                 }
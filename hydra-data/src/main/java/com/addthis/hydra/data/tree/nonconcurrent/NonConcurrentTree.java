@@ -27,6 +27,7 @@ import com.addthis.hydra.data.tree.DataTreeNodeActor;
 import com.addthis.hydra.data.tree.DataTreeNodeInitializer;
 import com.addthis.hydra.data.tree.DataTreeNodeUpdater;
 import com.addthis.hydra.data.tree.TreeCommonParameters;
+import com.addthis.hydra.data.tree.TreeConfig;
 import com.addthis.hydra.data.tree.TreeDataParent;
 import com.addthis.hydra.data.tree.TreeNodeData;
 import com.addthis.hydra.data.tree.concurrent.ConcurrentTreeNode;
@@ -113,8 +114,15 @@ public final class NonConcurrentTree implements DataTree, MeterDataSource {
         } else {
             logger = null;
         }
-        source = new PageDB.Builder<>(root, NonConcurrentTreeNode.class, maxPageSize, maxCacheSize)
-                .pageFactory(factory).build();
+        TreeConfig treeConfig = TreeConfig.readFromDataDirectory(root.toPath());
+        PageDB.Builder<NonConcurrentTreeNode> sourceBuilder = new PageDB.Builder<>(root, NonConcurrentTreeNode.class, maxPageSize, maxCacheSize)
+                .pageFactory(factory)
+                .compression(treeConfig.pageCompression)
+                .pageType(treeConfig.pageEncodeType);
+        if (treeConfig.pageFilterFpp != null) {
+            sourceBuilder.filterFpp(treeConfig.pageFilterFpp);
+        }
+        source = sourceBuilder.build();
         source.setCacheMem(TreeCommonParameters.maxCacheMem);
         source.setPageMem(TreeCommonParameters.maxPageMem);
         source.setMemSampleInterval(TreeCommonParameters.memSample);
@@ -20,6 +20,7 @@ import com.addthis.hydra.data.tree.DataTreeNode;
 import com.addthis.hydra.data.tree.DataTreeNodeActor;
 import com.addthis.hydra.data.tree.DataTreeNodeInitializer;
 import com.addthis.hydra.data.tree.DataTreeNodeUpdater;
+import com.addthis.hydra.data.tree.MergeableTreeNodeData;
 import com.addthis.hydra.data.tree.TreeDataParameters;
 import com.addthis.hydra.data.tree.TreeDataParent;
 import com.addthis.hydra.data.tree.TreeNodeData;
@@ -221,7 +222,10 @@ public class NonConcurrentTreeNode extends AbstractTreeNode {
                     tnd = el.getValue().newInstance(this);
                     data.put(el.getKey(), tnd);
                 }
-                if (tnd.updateChildData(state, this, el.getValue())) {
+                TreeNodeData delta = state.getDataDelta(el.getKey());
+                if (delta != null) {
+                    ((MergeableTreeNodeData) tnd).mergeChildData(delta);
+                } else if (tnd.updateChildData(state, this, el.getValue())) {
                 }
             }
         }
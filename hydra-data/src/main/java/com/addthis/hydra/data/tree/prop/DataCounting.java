@@ -37,6 +37,7 @@ import com.addthis.codec.annotations.FieldConfig;
 import com.addthis.codec.codables.SuperCodable;
 import com.addthis.hydra.data.tree.DataTreeNode;
 import com.addthis.hydra.data.tree.DataTreeNodeUpdater;
+import com.addthis.hydra.data.tree.MergeableTreeNodeData;
 import com.addthis.hydra.data.tree.TreeDataParameters;
 import com.addthis.hydra.data.tree.TreeNodeData;
 
@@ -53,7 +54,8 @@ import io.netty.buffer.ByteBuf;
 import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.buffer.Unpooled;
 
-public class DataCounting extends TreeNodeData<DataCounting.Config> implements SuperCodable {
+public class DataCounting extends TreeNodeData<DataCounting.Config>
+        implements SuperCodable, MergeableTreeNodeData<DataCounting> {
 
     private static final int VER_LOG = 0;
     private static final int VER_LINEAR = 1;
@@ -296,6 +298,11 @@ public class DataCounting extends TreeNodeData<DataCounting.Config> implements S
         return true;
     }
 
+    @Override
+    public void mergeChildData(DataCounting delta) {
+        merge(delta);
+    }
+
     private void updateCounter(ValueObject value) {
         if (value == null) {
             return;
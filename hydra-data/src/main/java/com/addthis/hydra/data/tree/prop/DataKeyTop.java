@@ -30,6 +30,7 @@ import com.addthis.codec.codables.Codable;
 import com.addthis.hydra.data.filter.value.ValueFilter;
 import com.addthis.hydra.data.tree.DataTreeNode;
 import com.addthis.hydra.data.tree.DataTreeNodeUpdater;
+import com.addthis.hydra.data.tree.MergeableTreeNodeData;
 import com.addthis.hydra.data.tree.ReadTreeNode;
 import com.addthis.hydra.data.tree.TreeDataParameters;
 import com.addthis.hydra.data.tree.TreeNodeData;
@@ -39,7 +40,8 @@ import io.netty.buffer.ByteBuf;
 import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.buffer.Unpooled;
 
-public class DataKeyTop extends TreeNodeData<DataKeyTop.Config> implements Codable {
+public class DataKeyTop extends TreeNodeData<DataKeyTop.Config>
+        implements Codable, MergeableTreeNodeData<DataKeyTop> {
 
     /**
      * This data attachment <span class="hydra-summary">keeps a record of the top N values
@@ -222,6 +224,17 @@ public class DataKeyTop extends TreeNodeData<DataKeyTop.Config> implements Codab
         }
     }
 
+    /**
+     * Adds the counts of the delta. Error bounds of the delta are not carried
+     * over, so the result is as approximate as the lossy topper of the delta.
+     */
+    @Override
+    public void mergeChildData(DataKeyTop delta) {
+        for (Map.Entry<String, Long> entry : delta.top.getSortedEntries()) {
+            top.increment(entry.getKey(), (int) Math.min(Integer.MAX_VALUE, entry.getValue()), size);
+        }
+    }
+
     @Override
     public ValueObject getValue(String key) {
         if (key != null && key.length() > 0) {
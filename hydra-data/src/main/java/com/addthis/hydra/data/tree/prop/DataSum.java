@@ -20,12 +20,13 @@ import com.addthis.bundle.value.ValueObject;
 import com.addthis.codec.annotations.FieldConfig;
 import com.addthis.hydra.data.tree.DataTreeNode;
 import com.addthis.hydra.data.tree.DataTreeNodeUpdater;
+import com.addthis.hydra.data.tree.MergeableTreeNodeData;
 import com.addthis.hydra.data.tree.TreeDataParameters;
 import com.addthis.hydra.data.tree.TreeNodeData;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-public class DataSum extends TreeNodeData<DataSum.Config> {
+public class DataSum extends TreeNodeData<DataSum.Config> implements MergeableTreeNodeData<DataSum> {
 
     private static final Logger log = LoggerFactory.getLogger(DataSum.class);
 
@@ -141,6 +142,12 @@ public class DataSum extends TreeNodeData<DataSum.Config> {
         return true;
     }
 
+    @Override
+    public void mergeChildData(DataSum delta) {
+        sum += delta.sum;
+        num += delta.num;
+    }
+
     @Override
     public ValueObject getValue(String key) {
         if (key == null) {
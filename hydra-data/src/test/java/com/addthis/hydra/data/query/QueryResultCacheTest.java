@@ -0,0 +1,263 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import java.nio.file.Files;
+
+import com.addthis.basis.util.LessFiles;
+
+import com.addthis.bundle.channel.DataChannelOutput;
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.bundle.value.ValueFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class QueryResultCacheTest {
+
+    private File dir;
+
+    @Before
+    public void setup() throws IOException {
+        dir = LessFiles.createTempDir();
+    }
+
+    @After
+    public void cleanup() {
+        LessFiles.deleteDir(dir);
+    }
+
+    @Test
+    public void key() {
+        Query query = new Query("job", new String[]{"+:+hits"}, new String[]{"gather=ks", null});
+        Query same = new Query("job", new String[]{" +:+hits "}, new String[]{"gather=ks", null});
+        same.setParameter("sender", "someone");
+        Query other = new Query("job", new String[]{"+:+hits"}, new String[]{"gather=ks", null});
+        other.setParameter("tasks", "1");
+        assertEquals(QueryResultCache.key(query), QueryResultCache.key(same));
+        assertNotEquals(QueryResultCache.key(query), QueryResultCache.key(other));
+    }
+
+    @Test
+    public void tasksOfOneJob() {
+        QueryResultCache cache = new QueryResultCache(dir, 1024 * 1024, 1024 * 1024, 1024 * 1024);
+        Query query = new Query("job", new String[]{"+:+hits"}, new String[]{"gather=ks", null});
+        String task0 = QueryResultCache.key(query, "job/0/gold");
+        String task1 = QueryResultCache.key(query, "job/1/gold");
+        assertNotEquals(task0, task1);
+        send(cache.record(task0, "job/0/live-1", new Collector()), 10);
+        send(cache.record(task1, "job/1/live-1", new Collector()), 20);
+        // each task keeps its own result
+        for (int i = 0; i < 2; i++) {
+            Collector replayed0 = new Collector();
+            cache.replay(cache.get(task0, "job/0/live-1"), replayed0);
+            assertRows(replayed0, 10);
+            Collector replayed1 = new Collector();
+            cache.replay(cache.get(task1, "job/1/live-1"), replayed1);
+            assertRows(replayed1, 20);
+        }
+        assertEquals(2, cache.size());
+        // new data of one task leaves the other cached
+        assertNull(cache.get(task0, "job/0/live-2"));
+        assertNotNull(cache.get(task1, "job/1/live-1"));
+    }
+
+    @Test
+    public void recordAndReplay() {
+        QueryResultCache cache = new QueryResultCache(dir, 1024 * 1024, 1024 * 1024, 1024 * 1024);
+        assertNull(cache.get("q", "v1"));
+        send(cache.record("q", "v1", new Collector()), 100);
+        QueryResultCache.Entry entry = cache.get("q", "v1");
+        assertNotNull(entry);
+        Collector replayed = new Collector();
+        cache.replay(entry, replayed);
+        assertRows(replayed, 100);
+        // new data drops the result
+        assertNull(cache.get("q", "v2"));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.memoryBytes());
+    }
+
+    @Test
+    public void errorsAndLargeResultsNotCached() {
+        QueryResultCache cache = new QueryResultCache(dir, 1024 * 1024, 1024 * 1024, 1024);
+        Collector failed = new Collector();
+        DataChannelOutput recorder = cache.record("failed", "v", failed);
+        recorder.send(row(recorder, 0));
+        recorder.sourceError(new RuntimeException("failed"));
+        assertNotNull(failed.error);
+        assertNull(cache.get("failed", "v"));
+        Collector large = new Collector();
+        send(cache.record("large", "v", large), 1000);
+        assertRows(large, 1000);
+        assertNull(cache.get("large", "v"));
+        Collector cancelled = new Collector();
+        send(cache.record("cancelled", "v", cancelled, () -> false), 10);
+        assertRows(cancelled, 10);
+        assertNull(cache.get("cancelled", "v"));
+    }
+
+    @Test
+    public void spillAndEvict() {
+        QueryResultCache cache = new QueryResultCache(dir, 2000, 4000, 1024 * 1024);
+        for (int i = 0; i < 10; i++) {
+            send(cache.record("q" + i, "v", new Collector()), 100);
+        }
+        assertTrue(cache.memoryBytes() <= 2000);
+        assertTrue(cache.diskBytes() <= 4000);
+        assertTrue(cache.diskBytes() > 0);
+        assertNull(cache.get("q0", "v"));
+        // the newest results are still available, from memory or disk
+        for (int i = 8; i < 10; i++) {
+            QueryResultCache.Entry entry = cache.get("q" + i, "v");
+            assertNotNull(entry);
+            Collector replayed = new Collector();
+            cache.replay(entry, replayed);
+            assertRows(replayed, 100);
+        }
+    }
+
+    @Test
+    public void replayPinsEntry() {
+        QueryResultCache sizer = new QueryResultCache(dir, 1024 * 1024, 1024 * 1024, 1024 * 1024);
+        send(sizer.record("q", "v", new Collector()), 100);
+        long bytes = sizer.memoryBytes();
+        // every result is spilled and only one fits on disk
+        QueryResultCache cache = new QueryResultCache(dir, 0, bytes, 1024 * 1024);
+        send(cache.record("q0", "v", new Collector()), 100);
+        QueryResultCache.Entry entry = cache.get("q0", "v");
+        assertNotNull(entry);
+        send(cache.record("q1", "v", new Collector()), 100);
+        assertNull(cache.get("q0", "v"));
+        assertEquals(bytes, cache.diskBytes());
+        // the evicted file is kept until the replay is done
+        assertEquals(2, dir.list().length);
+        Collector replayed = new Collector();
+        assertTrue(cache.replay(entry, replayed));
+        assertRows(replayed, 100);
+        assertEquals(1, dir.list().length);
+    }
+
+    @Test
+    public void unreadableResultIsMiss() {
+        QueryResultCache cache = new QueryResultCache(dir, 0, 1024 * 1024, 1024 * 1024);
+        send(cache.record("q", "v", new Collector()), 100);
+        QueryResultCache.Entry entry = cache.get("q", "v");
+        assertNotNull(entry);
+        for (File file : dir.listFiles()) {
+            assertTrue(file.delete());
+        }
+        Collector replayed = new Collector();
+        assertFalse(cache.replay(entry, replayed));
+        assertFalse(replayed.complete);
+        assertNull(replayed.error);
+        assertTrue(replayed.bundles.isEmpty());
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.diskBytes());
+    }
+
+    @Test
+    public void truncatedResultIsDropped() throws IOException {
+        QueryResultCache cache = new QueryResultCache(dir, 0, 1024 * 1024, 1024 * 1024);
+        send(cache.record("q", "v", new Collector()), 100);
+        QueryResultCache.Entry entry = cache.get("q", "v");
+        assertNotNull(entry);
+        File[] files = dir.listFiles();
+        assertEquals(1, files.length);
+        byte[] data = Files.readAllBytes(files[0].toPath());
+        Files.write(files[0].toPath(), Arrays.copyOf(data, data.length / 2));
+        Collector replayed = new Collector();
+        assertTrue(cache.replay(entry, replayed));
+        assertNotNull(replayed.error);
+        assertFalse(replayed.complete);
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.diskBytes());
+        assertNull(cache.get("q", "v"));
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    private static Bundle row(DataChannelOutput output, int i) {
+        Bundle bundle = output.createBundle();
+        bundle.setValue(bundle.getFormat().getField("key"), ValueFactory.create("key" + i));
+        bundle.setValue(bundle.getFormat().getField("count"), ValueFactory.create(i));
+        return bundle;
+    }
+
+    private static void send(DataChannelOutput output, int rows) {
+        for (int i = 0; i < rows; i++) {
+            output.send(row(output, i));
+        }
+        output.sendComplete();
+    }
+
+    private static void assertRows(Collector collector, int rows) {
+        assertTrue(collector.complete);
+        assertEquals(rows, collector.bundles.size());
+        for (int i = 0; i < rows; i++) {
+            Bundle bundle = collector.bundles.get(i);
+            assertEquals("key" + i, bundle.getValue(bundle.getFormat().getField("key")).asString().asNative());
+            assertEquals(i, bundle.getValue(bundle.getFormat().getField("count")).asLong().getLong());
+        }
+    }
+
+    private static final class Collector implements DataChannelOutput {
+
+        final ListBundleFormat format = new ListBundleFormat();
+        final List<Bundle> bundles = new ArrayList<>();
+        boolean complete;
+        Throwable error;
+
+        @Override
+        public void send(Bundle bundle) {
+            bundles.add(bundle);
+        }
+
+        @Override
+        public void send(List<Bundle> list) {
+            bundles.addAll(list);
+        }
+
+        @Override
+        public void sendComplete() {
+            complete = true;
+        }
+
+        @Override
+        public void sourceError(Throwable cause) {
+            error = cause;
+        }
+
+        @Override
+        public Bundle createBundle() {
+            return new ListBundle(format);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.bundle.value.ValueFactory;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RowBatchTest {
+
+    private static Bundle row(ListBundleFormat format, Object... values) {
+        Bundle bundle = new ListBundle(format);
+        for (int i = 0; i < values.length; i++) {
+            Object value = values[i];
+            if (value instanceof Long) {
+                bundle.setValue(format.getField("c" + i), ValueFactory.create((Long) value));
+            } else if (value instanceof Double) {
+                bundle.setValue(format.getField("c" + i), ValueFactory.create((Double) value));
+            } else if (value != null) {
+                bundle.setValue(format.getField("c" + i), ValueFactory.create((String) value));
+            }
+        }
+        return bundle;
+    }
+
+    @Test
+    public void addAndRead() {
+        ListBundleFormat format = new ListBundleFormat();
+        RowBatch batch = new RowBatch(3);
+        assertFalse(batch.add(row(format, "a", 1L, 2.5)));
+        assertFalse(batch.add(row(format, "b", null, 0.5)));
+        assertEquals(2, batch.size());
+        assertEquals(3, batch.columns());
+        assertSame(format, batch.getFormat());
+
+        assertEquals(RowBatch.STRING, batch.kind(0, 0));
+        assertEquals(RowBatch.LONG, batch.kind(1, 0));
+        assertEquals(RowBatch.DOUBLE, batch.kind(2, 0));
+        assertEquals(RowBatch.NULL, batch.kind(1, 1));
+        assertEquals(RowBatch.NULL, batch.kind(5, 1));
+        assertEquals(1L, batch.getLong(1, 0));
+        assertEquals(0.5, batch.getDouble(2, 1), 0);
+        assertEquals("b", batch.getString(0, 1));
+        assertEquals("2.5", batch.getString(2, 0));
+        assertNull(batch.getValue(1, 1));
+
+        Bundle bundle = batch.toBundle(0);
+        assertEquals(ValueFactory.create("a"), bundle.getValue(format.getField("c0")));
+        assertEquals(ValueFactory.create(1L), bundle.getValue(format.getField("c1")));
+        assertEquals(ValueFactory.create(2.5), bundle.getValue(format.getField("c2")));
+        assertNull(batch.toBundle(1).getValue(format.getField("c1")));
+
+        assertTrue(batch.add(row(format, "c")));
+        assertEquals(RowBatch.NULL, batch.kind(1, 2));
+    }
+
+    @Test
+    public void formatGrows() {
+        ListBundleFormat format = new ListBundleFormat();
+        RowBatch batch = new RowBatch(10);
+        batch.add(row(format, "a"));
+        batch.add(row(format, "b", 2L));
+        assertEquals(2, batch.columns());
+        assertEquals(RowBatch.NULL, batch.kind(1, 0));
+        assertEquals(RowBatch.LONG, batch.kind(1, 1));
+        assertTrue(batch.accepts(row(format, "c")));
+        assertFalse(batch.accepts(row(new ListBundleFormat(), "c")));
+    }
+
+    @Test
+    public void clearAndReuse() {
+        ListBundleFormat format = new ListBundleFormat();
+        RowBatch batch = new RowBatch(10);
+        batch.add(row(format, "a", 1L));
+        batch.clear();
+        assertEquals(0, batch.size());
+        assertEquals(0, batch.columns());
+        assertNull(batch.getFormat());
+        assertNull(batch.getObject(0, 0));
+
+        ListBundleFormat other = new ListBundleFormat();
+        assertTrue(batch.accepts(row(other, 3.0)));
+        batch.add(row(other, 3.0));
+        assertSame(other, batch.getFormat());
+        assertEquals(1, batch.columns());
+        assertEquals(RowBatch.DOUBLE, batch.kind(0, 0));
+    }
+}
@@ -92,6 +92,23 @@ public class TestOpGather extends TestOp {
         );
     }
 
+    @Test
+    public void testGatherNumbers() throws Exception {
+        DataTableHelper in = new DataTableHelper().
+                tr().td("a").td(3L).td(2.5).td(1L).td(1L).
+                tr().td("b").td(4L).td(0.5).td(2L).td(2L).
+                tr().td("a").td(7L).td(1.5).td(2L).td(-4L).
+                tr().td("b").td(1L).td(9.0).td(2L).td(5L).
+                tr().td("a").td(5L).td(3.0).td("3").td(2L);
+        DataTableHelper out = new DataTableHelper().
+                tr().td("a").td(3L).td(3.0).td(6L).td(-4L).td(3L).
+                tr().td("b").td(1L).td(9.0).td(4L).td(2L).td(2L);
+        // rows sent straight to the gather in batches
+        doOpTest(in, "gather=kmMsmu;sort", out);
+        // rows sent one at a time by an earlier op
+        doOpTest(in, "limit=10;gather=kmMsmu;sort", out);
+    }
+
     @Test
     public void testGatherWhenFallToDisk() throws Exception {
         System.setProperty("opgather.tiptodisk", "true");
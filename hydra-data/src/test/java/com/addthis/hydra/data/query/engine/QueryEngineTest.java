@@ -0,0 +1,249 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query.engine;
+
+import java.io.File;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.addthis.basis.util.LessFiles;
+
+import com.addthis.bundle.channel.DataChannelOutput;
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.hydra.data.query.Query;
+import com.addthis.hydra.data.tree.ReadTree;
+import com.addthis.hydra.data.tree.concurrent.ConcurrentTree;
+import com.addthis.hydra.data.tree.concurrent.ConcurrentTreeNode;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import io.netty.channel.ChannelProgressivePromise;
+import io.netty.channel.DefaultChannelProgressivePromise;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QueryEngineTest {
+
+    private static File directory;
+    private static QueryEngine engine;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        directory = LessFiles.createTempDir();
+        ConcurrentTree writeTree = new ConcurrentTree(directory);
+        ConcurrentTreeNode root = writeTree.getRootNode();
+        ConcurrentTreeNode top = root.getOrCreateEditableNode("top");
+        for (int i = 0; i < 40; i++) {
+            ConcurrentTreeNode outer = top.getOrCreateEditableNode("k" + i);
+            for (int j = 0; j < 50; j++) {
+                ConcurrentTreeNode inner = outer.getOrCreateEditableNode("v" + j);
+                inner.incrementCounter(i * j + 1);
+                inner.markChanged();
+                inner.release();
+            }
+            outer.markChanged();
+            outer.release();
+        }
+        top.markChanged();
+        top.release();
+        writeTree.close();
+        engine = new QueryEngine(new ReadTree(directory));
+    }
+
+    @AfterClass
+    public static void cleanup() throws Exception {
+        engine.close();
+        LessFiles.deleteDir(directory);
+    }
+
+    @Test
+    public void ordered() throws Exception {
+        for (String path : new String[]{"top/+:+hits/+:+hits", "+/+/+:+hits", "top/+k1,k2,k3/+:+hits"}) {
+            List<String> sequential = search(path, "false");
+            assertTrue(path, sequential.size() > 0);
+            assertEquals(path, sequential, search(path, "ordered"));
+        }
+        assertEquals(2000, search("top/+:+hits/+:+hits", "ordered").size());
+    }
+
+    @Test
+    public void unordered() throws Exception {
+        String path = "top/+:+hits/+:+hits";
+        List<String> sequential = search(path, "false");
+        List<String> unordered = search(path, "unordered");
+        Collections.sort(sequential);
+        Collections.sort(unordered);
+        assertEquals(sequential, unordered);
+    }
+
+    @Test
+    public void skipAndLimit() throws Exception {
+        String path = "top/(5-10)+:+hits/+:+hits";
+        List<String> sequential = search(path, "false");
+        assertEquals(500, sequential.size());
+        assertEquals(sequential, search(path, "ordered"));
+    }
+
+    @Test
+    public void orderedWithSmallBuffers() throws Exception {
+        String path = "top/+:+hits/+:+hits";
+        List<String> sequential = search(path, "false");
+        engine.setSubtreeBuffer(3);
+        try {
+            assertEquals(sequential, search(path, "ordered"));
+            // a slow sink keeps later subtree searches waiting on their buffers
+            List<String> rows = new ArrayList<>();
+            Query query = new Query("test", new String[]{path}, null);
+            query.setParameter("parallel", "ordered");
+            engine.search(query, new Collector(rows) {
+                @Override
+                public void send(Bundle row) {
+                    super.send(row);
+                    if ((rows.size() % 100) == 0) {
+                        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+                    }
+                }
+            }, new DefaultChannelProgressivePromise(null, ImmediateEventExecutor.INSTANCE));
+            assertEquals(sequential, rows);
+        } finally {
+            engine.setSubtreeBuffer(1024);
+        }
+    }
+
+    @Test
+    public void groupedSiblings() throws Exception {
+        engine.setTaskWindow(2);
+        try {
+            for (String path : new String[]{"top/+:+hits/+:+hits", "top/(3-30)+:+hits/+:+hits"}) {
+                List<String> sequential = search(path, "false");
+                assertEquals(path, sequential, search(path, "ordered"));
+                List<String> unordered = search(path, "unordered");
+                Collections.sort(sequential);
+                Collections.sort(unordered);
+                assertEquals(path, sequential, unordered);
+            }
+        } finally {
+            engine.setTaskWindow(QueryEngine.defaultTaskWindow);
+        }
+    }
+
+    @Test
+    public void cancelUnordered() throws Exception {
+        ChannelProgressivePromise promise = new DefaultChannelProgressivePromise(null, ImmediateEventExecutor.INSTANCE);
+        List<String> rows = new ArrayList<>();
+        Query query = new Query("test", new String[]{"top/+:+hits/+:+hits"}, null);
+        query.setParameter("parallel", "unordered");
+        engine.search(query, new Collector(rows) {
+            @Override
+            public void send(Bundle row) {
+                super.send(row);
+                if (rows.size() == 100) {
+                    promise.cancel(false);
+                }
+            }
+        }, promise);
+        // every subtree search is done once the search returns, so no rows arrive later
+        int sent = rows.size();
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(sent, rows.size());
+        assertTrue(sent >= 100);
+    }
+
+    @Test
+    public void cancelWithSmallBuffers() throws Exception {
+        engine.setSubtreeBuffer(3);
+        try {
+            cancel();
+        } finally {
+            engine.setSubtreeBuffer(1024);
+        }
+    }
+
+    @Test
+    public void cancel() throws Exception {
+        ChannelProgressivePromise promise = new DefaultChannelProgressivePromise(null, ImmediateEventExecutor.INSTANCE);
+        List<String> rows = new ArrayList<>();
+        Query query = new Query("test", new String[]{"top/+:+hits/+:+hits"}, null);
+        query.setParameter("parallel", "ordered");
+        engine.search(query, new Collector(rows) {
+            @Override
+            public void send(Bundle row) {
+                super.send(row);
+                if (rows.size() == 100) {
+                    promise.cancel(false);
+                }
+            }
+        }, promise);
+        assertEquals(100, rows.size());
+    }
+
+    private static List<String> search(String path, String parallel) throws Exception {
+        List<String> rows = new ArrayList<>();
+        Query query = new Query("test", new String[]{path}, null);
+        query.setParameter("parallel", parallel);
+        engine.search(query, new Collector(rows),
+                      new DefaultChannelProgressivePromise(null, ImmediateEventExecutor.INSTANCE));
+        return rows;
+    }
+
+    private static class Collector implements DataChannelOutput {
+
+        private final ListBundleFormat format = new ListBundleFormat();
+        private final List<String> rows;
+
+        Collector(List<String> rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        public void send(Bundle row) {
+            StringBuilder builder = new StringBuilder();
+            for (BundleField field : row) {
+                builder.append(row.getValue(field)).append(',');
+            }
+            rows.add(builder.toString());
+        }
+
+        @Override
+        public void send(List<Bundle> bundles) {
+            for (Bundle bundle : bundles) {
+                send(bundle);
+            }
+        }
+
+        @Override
+        public void sendComplete() {
+        }
+
+        @Override
+        public void sourceError(Throwable cause) {
+        }
+
+        @Override
+        public Bundle createBundle() {
+            return new ListBundle(format);
+        }
+    }
+}
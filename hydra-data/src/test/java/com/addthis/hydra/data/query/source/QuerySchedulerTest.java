@@ -0,0 +1,245 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query.source;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.addthis.hydra.data.query.Query;
+
+import org.junit.Test;
+
+import io.netty.channel.DefaultChannelProgressivePromise;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QuerySchedulerTest {
+
+    private final List<String> order = Collections.synchronizedList(new ArrayList<>());
+
+    private static Query query(String sender, String priority) {
+        Query query = new Query("job", new String[]{"+:+hits"}, null);
+        query.setParameter("sender", sender);
+        query.setParameter("priority", priority);
+        return query;
+    }
+
+    private Runnable record(String name, CountDownLatch done) {
+        return () -> {
+            order.add(name);
+            done.countDown();
+        };
+    }
+
+    /** Occupy the only slot until the returned latch is counted down. */
+    private CountDownLatch block(QueryScheduler scheduler) throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        scheduler.execute(query("blocker", null), () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        return release;
+    }
+
+    @Test(timeout = 10000)
+    public void fairShare() throws Exception {
+        QueryScheduler scheduler = new QueryScheduler("fairShareTest", 1, 0, 1000);
+        CountDownLatch release = block(scheduler);
+        CountDownLatch done = new CountDownLatch(4);
+        for (int i = 0; i < 3; i++) {
+            scheduler.execute(query("a", null), record("a" + i, done));
+        }
+        scheduler.execute(query("b", null), record("b", done));
+        assertEquals(4, scheduler.getQueued());
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("a0", "b", "a1", "a2"), order);
+        scheduler.shutdownAndAwaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Test(timeout = 10000)
+    public void priority() throws Exception {
+        QueryScheduler scheduler = new QueryScheduler("priorityTest", 1, 0, 1000);
+        CountDownLatch release = block(scheduler);
+        CountDownLatch done = new CountDownLatch(3);
+        scheduler.execute(query("a", "batch"), record("low", done));
+        scheduler.execute(query("b", null), record("normal", done));
+        scheduler.execute(query("c", "interactive"), record("high", done));
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("high", "normal", "low"), order);
+        scheduler.shutdownAndAwaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Test(timeout = 10000)
+    public void preempt() throws Exception {
+        QueryScheduler scheduler = new QueryScheduler("preemptTest", 1, 1, 0);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(2);
+        CountDownLatch highDone = new CountDownLatch(1);
+        scheduler.execute(query("a", "low"), () -> {
+            started.countDown();
+            // a search that only finishes once the high priority query has run
+            while (highDone.getCount() > 0) {
+                scheduler.yieldPoint();
+            }
+            order.add("low");
+            done.countDown();
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        scheduler.execute(query("b", "high"), () -> {
+            order.add("high");
+            highDone.countDown();
+            done.countDown();
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("high", "low"), order);
+        assertTrue(scheduler.shutdownAndAwaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(0, scheduler.getRunning());
+        assertEquals(0, scheduler.getParked());
+    }
+
+    @Test(timeout = 10000)
+    public void preemptForLessChargedTenant() throws Exception {
+        QueryScheduler scheduler = new QueryScheduler("fairPreemptTest", 1, 1, 0);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(2);
+        CountDownLatch otherDone = new CountDownLatch(1);
+        scheduler.execute(query("a", null), () -> {
+            started.countDown();
+            while (otherDone.getCount() > 0) {
+                scheduler.yieldPoint();
+            }
+            order.add("a");
+            done.countDown();
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        // same class, so only the charge of tenant b lets it run first
+        scheduler.execute(query("b", null), () -> {
+            order.add("b");
+            otherDone.countDown();
+            done.countDown();
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("b", "a"), order);
+        assertTrue(scheduler.shutdownAndAwaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 10000)
+    public void interruptParked() throws Exception {
+        QueryScheduler scheduler = new QueryScheduler("interruptTest", 1, 1, 0);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch stopped = new CountDownLatch(1);
+        AtomicReference<Thread> lowThread = new AtomicReference<>();
+        scheduler.execute(query("a", "low"), () -> {
+            lowThread.set(Thread.currentThread());
+            started.countDown();
+            while (!Thread.currentThread().isInterrupted()) {
+                scheduler.yieldPoint();
+            }
+            stopped.countDown();
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        CountDownLatch release = new CountDownLatch(1);
+        scheduler.execute(query("b", "high"), () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        while (scheduler.getParked() == 0) {
+            Thread.sleep(1);
+        }
+        // the low priority query stops while the high priority one still holds the slot
+        lowThread.get().interrupt();
+        assertTrue(stopped.await(10, TimeUnit.SECONDS));
+        release.countDown();
+        assertTrue(scheduler.shutdownAndAwaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(0, scheduler.getRunning());
+        assertEquals(0, scheduler.getParked());
+    }
+
+    @Test(timeout = 10000)
+    public void cancelParked() throws Exception {
+        QueryScheduler scheduler = new QueryScheduler("cancelTest", 1, 1, 0);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch stopped = new CountDownLatch(1);
+        Query low = query("a", "low");
+        low.queryPromise = new DefaultChannelProgressivePromise(null, ImmediateEventExecutor.INSTANCE);
+        scheduler.execute(low, () -> {
+            started.countDown();
+            while (!low.queryPromise.isDone()) {
+                scheduler.yieldPoint();
+            }
+            stopped.countDown();
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        CountDownLatch release = new CountDownLatch(1);
+        scheduler.execute(query("b", "high"), () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        while (scheduler.getParked() == 0) {
+            Thread.sleep(1);
+        }
+        low.queryPromise.cancel(false);
+        assertTrue(stopped.await(10, TimeUnit.SECONDS));
+        release.countDown();
+        assertTrue(scheduler.shutdownAndAwaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(0, scheduler.getRunning());
+    }
+
+    @Test(timeout = 10000)
+    public void lowPriorityNotParallel() throws Exception {
+        QueryScheduler scheduler = new QueryScheduler("parallelTest", 1, 0, 1000);
+        CountDownLatch done = new CountDownLatch(2);
+        Query low = query("a", "batch");
+        low.setParameter("parallel", "unordered");
+        Query normal = query("b", null);
+        normal.setParameter("parallel", "unordered");
+        scheduler.execute(low, done::countDown);
+        scheduler.execute(normal, done::countDown);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals("false", low.getParameter("parallel"));
+        assertEquals("unordered", normal.getParameter("parallel"));
+        scheduler.shutdownAndAwaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void yieldOutsideScheduler() {
+        // not a query thread, so returns at once
+        QueryScheduler scheduler = new QueryScheduler("yieldTest", 1, 1, 0);
+        for (int i = 0; i < 1000; i++) {
+            scheduler.yieldPoint();
+        }
+        scheduler.shutdownAndAwaitTermination(10, TimeUnit.SECONDS);
+    }
+}
@@ -15,6 +15,7 @@ package com.addthis.hydra.data.tree;
 
 import com.addthis.codec.config.Configs;
 import com.addthis.codec.jackson.Jackson;
+import com.addthis.hydra.store.common.PageCompression;
 
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -37,4 +38,22 @@ public class TreeConfigTest {
         config = Configs.decodeObject(TreeConfig.class, "unevictable = false, cacheWeight = 5");
         assertNotEquals(0.0d, config.cacheWeight(), 0.001);
     }
-}
\ No newline at end of file
+
+    @Test public void pageCompression() throws Exception {
+        TreeConfig config = Configs.newDefault(TreeConfig.class);
+        assertNull(config.pageCompression);
+        config = Configs.decodeObject(TreeConfig.class, "pageCompression = LZ4");
+        assertEquals(PageCompression.LZ4, config.pageCompression);
+        String val = Jackson.defaultMapper().writeValueAsString(config);
+        assertEquals(config, Jackson.defaultMapper().readValue(val, TreeConfig.class));
+    }
+
+    @Test public void pageFilterFpp() throws Exception {
+        TreeConfig config = Configs.newDefault(TreeConfig.class);
+        assertNull(config.pageFilterFpp);
+        config = Configs.decodeObject(TreeConfig.class, "pageFilterFpp = 0.01");
+        assertEquals(0.01d, config.pageFilterFpp, 0.0001);
+        String val = Jackson.defaultMapper().writeValueAsString(config);
+        assertEquals(config, Jackson.defaultMapper().readValue(val, TreeConfig.class));
+    }
+}
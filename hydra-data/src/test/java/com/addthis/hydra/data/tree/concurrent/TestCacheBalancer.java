@@ -0,0 +1,151 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.tree.concurrent;
+
+import java.io.File;
+
+import com.addthis.basis.concurrentlinkedhashmap.MediatedEvictionConcurrentHashMap;
+
+import com.addthis.hydra.data.tree.TreeCommonParameters;
+import com.addthis.hydra.data.tree.concurrent.CacheBalancer.Decision;
+import com.addthis.hydra.store.db.CloseOperation;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.MetricName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestCacheBalancer {
+
+    private static final long budget = 1 << 24;
+
+    @Rule
+    public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Before
+    public void setBudget() {
+        TreeCommonParameters.setDefaultCacheBudget(budget);
+    }
+
+    @After
+    public void resetBudget() {
+        TreeCommonParameters.setDefaultCacheBudget(0);
+    }
+
+    @Test
+    public void disabledByDefault() throws Exception {
+        TreeCommonParameters.setDefaultCacheBudget(0);
+        ConcurrentTree tree = new TreeBuilder(tempFolder.newFolder()).multiThreadedTree();
+        assertNull(tree.getCacheBalancer());
+        tree.close(false, CloseOperation.TEST);
+    }
+
+    @Test
+    public void shiftBetweenCaches() throws Exception {
+        ConcurrentTree tree = new TreeBuilder(tempFolder.newFolder()).multiThreadedTree();
+        CacheBalancer balancer = tree.getCacheBalancer();
+        assertNotNull(balancer);
+        double share = balancer.getNodeShare();
+        assertEquals(Decision.NODES, balancer.rebalance(0.5, 0.0, 0.5, 0.1));
+        assertTrue(balancer.getNodeShare() > share);
+        assertEquals(Decision.PAGES, balancer.rebalance(0.5, 0.0, 0.1, 0.5));
+        assertEquals(share, balancer.getNodeShare(), 0.0001);
+        assertEquals(Decision.NONE, balancer.rebalance(0.5, 0.0, 0.3, 0.3));
+        for (int i = 0; i < 100; i++) {
+            balancer.rebalance(0.5, 0.0, 0.5, 0.1);
+        }
+        assertEquals(CacheBalancer.maxNodeShare, balancer.getNodeShare(), 0.0001);
+        assertEquals(Decision.NONE, balancer.rebalance(0.5, 0.0, 0.5, 0.1));
+        tree.close(false, CloseOperation.TEST);
+    }
+
+    @Test
+    public void shrinkUnderMemoryPressure() throws Exception {
+        ConcurrentTree tree = new TreeBuilder(tempFolder.newFolder()).multiThreadedTree();
+        CacheBalancer balancer = tree.getCacheBalancer();
+        assertEquals(budget, balancer.getBudgetInUse());
+        assertEquals(Decision.SHRINK, balancer.rebalance(0.95, 0.0, 0.5, 0.1));
+        assertTrue(balancer.getBudgetInUse() < budget);
+        assertEquals(Decision.SHRINK, balancer.rebalance(0.5, 0.5, 0.5, 0.1));
+        for (int i = 0; i < 100; i++) {
+            balancer.rebalance(0.95, 0.0, 0.0, 0.0);
+        }
+        assertEquals((long) (budget * CacheBalancer.minBudget), balancer.getBudgetInUse());
+        // between the low and high water marks the budget is left alone
+        assertEquals(Decision.NONE, balancer.rebalance(0.8, 0.0, 0.0, 0.0));
+        while (balancer.getBudgetInUse() < budget) {
+            assertEquals(Decision.GROW, balancer.rebalance(0.5, 0.0, 0.0, 0.0));
+        }
+        assertEquals(budget, balancer.getBudgetInUse());
+        tree.close(false, CloseOperation.TEST);
+    }
+
+    @Test
+    public void resizeCaches() throws Exception {
+        File dir = tempFolder.newFolder();
+        ConcurrentTree tree = new TreeBuilder(dir).multiThreadedTree();
+        ConcurrentTreeNode root = tree.getRootNode();
+        for (int i = 0; i < 1000; i++) {
+            tree.getOrCreateNode(root, Integer.toString(i), null).release();
+        }
+        CacheBalancer balancer = tree.getCacheBalancer();
+        balancer.run();
+        MediatedEvictionConcurrentHashMap<?, ?> cache = (MediatedEvictionConcurrentHashMap<?, ?>) tree.getCache();
+        assertEquals(balancer.getNodeCapacity(), cache.capacity());
+        assertTrue(balancer.getNodeMem() > 0);
+        assertTrue(balancer.getNodeCapacity() * balancer.getNodeMem() + balancer.getPageMem()
+                   <= balancer.getBudgetInUse());
+        tree.close(false, CloseOperation.TEST);
+    }
+
+    @Test
+    public void intervalHitRatePreserved() throws Exception {
+        ConcurrentTree tree = new TreeBuilder(tempFolder.newFolder()).multiThreadedTree();
+        ConcurrentTreeNode root = tree.getRootNode();
+        for (int i = 0; i < 100; i++) {
+            tree.getOrCreateNode(root, Integer.toString(i), null).release();
+            tree.getNode(root, Integer.toString(i), true).release();
+        }
+        tree.getCacheBalancer().run();
+        assertTrue(tree.getCacheHitRate() > 0.0);
+        tree.close(false, CloseOperation.TEST);
+    }
+
+    @Test
+    public void metricsRemovedOnClose() throws Exception {
+        ConcurrentTree tree = new TreeBuilder(tempFolder.newFolder()).multiThreadedTree();
+        assertTrue(hasBalancerMetrics());
+        tree.close(false, CloseOperation.TEST);
+        assertFalse(hasBalancerMetrics());
+    }
+
+    private static boolean hasBalancerMetrics() {
+        for (MetricName name : Metrics.defaultRegistry().allMetrics().keySet()) {
+            if (name.getType().equals(CacheBalancer.class.getSimpleName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.tree.concurrent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class TestChildIndex {
+
+    @Test
+    public void putGetRemove() {
+        ChildIndex index = new ChildIndex();
+        ConcurrentTreeNode[] nodes = new ConcurrentTreeNode[1000];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new ConcurrentTreeNode();
+            index.put(Integer.toString(i), nodes[i]);
+        }
+        assertEquals(nodes.length, index.size());
+        for (int i = 0; i < nodes.length; i++) {
+            assertSame(nodes[i], index.get(Integer.toString(i)));
+        }
+        // a stale node must not remove the current mapping
+        index.remove("0", new ConcurrentTreeNode());
+        assertSame(nodes[0], index.get("0"));
+        for (int i = 0; i < nodes.length; i += 2) {
+            index.remove(Integer.toString(i), nodes[i]);
+        }
+        assertEquals(nodes.length / 2, index.size());
+        for (int i = 0; i < nodes.length; i++) {
+            if ((i % 2) == 0) {
+                assertNull(index.get(Integer.toString(i)));
+            } else {
+                assertSame(nodes[i], index.get(Integer.toString(i)));
+            }
+        }
+    }
+
+    @Test
+    public void randomOperations() {
+        ChildIndex index = new ChildIndex();
+        Map<String, ConcurrentTreeNode> expected = new HashMap<>();
+        Random random = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            String name = Integer.toString(random.nextInt(500));
+            if (random.nextBoolean()) {
+                ConcurrentTreeNode node = new ConcurrentTreeNode();
+                index.put(name, node);
+                expected.put(name, node);
+            } else {
+                ConcurrentTreeNode node = expected.remove(name);
+                if (node != null) {
+                    index.remove(name, node);
+                }
+            }
+        }
+        assertEquals(expected.size(), index.size());
+        for (int i = 0; i < 500; i++) {
+            String name = Integer.toString(i);
+            assertSame(expected.get(name), index.get(name));
+        }
+    }
+}
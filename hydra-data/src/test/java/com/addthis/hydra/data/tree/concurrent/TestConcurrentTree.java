@@ -25,8 +25,14 @@ import com.addthis.basis.test.SlowTest;
 import com.addthis.basis.util.ClosableIterator;
 
 import com.addthis.hydra.data.tree.DataTreeNode;
+import com.addthis.hydra.data.tree.ReadTree;
+import com.addthis.hydra.data.tree.ReadTreeNode;
 import com.addthis.hydra.data.tree.TreeCommonParameters;
+import com.addthis.hydra.data.tree.TreeConfig;
 import com.addthis.hydra.store.db.CloseOperation;
+import com.addthis.hydra.store.db.DBKey;
+import com.addthis.hydra.store.kv.PageEncodeType;
+import com.addthis.hydra.store.kv.ReadExternalPagedStore;
 
 import org.junit.Rule;
 import org.junit.Test;
@@ -171,6 +177,118 @@ public class TestConcurrentTree {
         tree.close(false, close);
     }
 
+    @Test
+    public void readTreePageFilter() throws Exception {
+        log.info("readTreePageFilter");
+        File dir = tempFolder.newFolder();
+        TreeConfig.writeConfigToDataDirectory(dir.toPath(), new TreeConfig(1.0, false, null, 0.01, null));
+        ConcurrentTree tree = new TreeBuilder(dir).multiThreadedTree();
+        ConcurrentTreeNode root = tree.getRootNode();
+        for (int i = 0; i < 1000; i += 2) {
+            ConcurrentTreeNode node = tree.getOrCreateNode(root, Integer.toString(i), null);
+            node.release();
+        }
+        tree.close(false, close);
+        ReadTree readTree = new ReadTree(dir);
+        try {
+            ReadExternalPagedStore<DBKey, ReadTreeNode> eps = readTree.getReadEps();
+            ReadTreeNode readRoot = readTree.getRootNode();
+            long pageReads = eps.pageReads.get();
+            // absent keys are rejected by the stored filters before any page is fetched
+            for (int i = 1; i < 1000; i += 2) {
+                assertNull(readRoot.getNode(Integer.toString(i)));
+            }
+            assertTrue(eps.filterNegatives.get() > 400);
+            assertTrue(eps.pageReads.get() - pageReads <= eps.filterFalsePositives.get());
+            assertTrue(eps.filterFalsePositives.get() < 100);
+            for (int i = 0; i < 1000; i += 2) {
+                DataTreeNode node = readTree.getRootNode().getNode(Integer.toString(i));
+                assertNotNull(node);
+                assertEquals(Integer.toString(i), node.getName());
+            }
+        } finally {
+            readTree.close();
+        }
+    }
+
+    @Test
+    public void readTreePrefixPages() throws Exception {
+        log.info("readTreePrefixPages");
+        File dir = tempFolder.newFolder();
+        TreeConfig.writeConfigToDataDirectory(dir.toPath(), new TreeConfig(1.0, false, null, null,
+                                                                           PageEncodeType.PREFIX));
+        ConcurrentTree tree = new TreeBuilder(dir).multiThreadedTree();
+        ConcurrentTreeNode root = tree.getRootNode();
+        for (int i = 0; i < 1000; i += 2) {
+            ConcurrentTreeNode node = tree.getOrCreateNode(root, Integer.toString(i), null);
+            node.release();
+        }
+        tree.close(false, close);
+        ReadTree readTree = new ReadTree(dir);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                DataTreeNode node = readTree.getRootNode().getNode(Integer.toString(i));
+                if ((i % 2) == 0) {
+                    assertNotNull(node);
+                    assertEquals(Integer.toString(i), node.getName());
+                } else {
+                    assertNull(node);
+                }
+            }
+            List<String> names = new ArrayList<>();
+            ClosableIterator<DataTreeNode> iterator = readTree.getRootNode().getIterator();
+            try {
+                while (iterator.hasNext()) {
+                    names.add(iterator.next().getName());
+                }
+            } finally {
+                iterator.close();
+            }
+            assertEquals(500, names.size());
+        } finally {
+            readTree.close();
+        }
+    }
+
+    @Test
+    public void childIndex() throws Exception {
+        log.info("childIndex");
+        TreeCommonParameters.setDefaultChildIndexThreshold(10);
+        try {
+            getOrCreateMultiThread(fastNumElements, fastNumThreads);
+            deleteMultiThread(fastNumElements, fastNumThreads, fastNumThreads);
+            File dir = tempFolder.newFolder();
+            ConcurrentTree tree = new TreeBuilder(dir).multiThreadedTree();
+            ConcurrentTreeNode root = tree.getRootNode();
+            for (int i = 0; i < 100; i++) {
+                tree.getOrCreateNode(root, Integer.toString(i), null).release();
+            }
+            for (int i = 0; i < 100; i++) {
+                ConcurrentTreeNode node = tree.getNode(root, Integer.toString(i), true);
+                assertNotNull(node);
+                assertEquals(Integer.toString(i), node.getName());
+                node.release();
+            }
+            assertNotNull(root.childIndex());
+            assertTrue(root.childIndex().size() > 0);
+            for (int i = 0; i < 100; i += 2) {
+                assertTrue(tree.deleteNode(root, Integer.toString(i)));
+            }
+            for (int i = 0; i < 100; i++) {
+                ConcurrentTreeNode node = tree.getNode(root, Integer.toString(i), true);
+                if ((i % 2) == 0) {
+                    assertNull(node);
+                } else {
+                    assertNotNull(node);
+                    node.release();
+                }
+            }
+            tree.close(false, close);
+        } finally {
+            TreeCommonParameters.setDefaultChildIndexThreshold(0);
+        }
+    }
+
     @Test
     public void recursiveDeleteOneThread() throws Exception {
         log.info("recursiveDeleteOneThread");
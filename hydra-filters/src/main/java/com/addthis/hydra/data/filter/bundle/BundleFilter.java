@@ -13,6 +13,7 @@
  */
 package com.addthis.hydra.data.filter.bundle;
 
+import java.util.List;
 import java.util.function.Predicate;
 
 import com.addthis.bundle.core.Bundle;
@@ -58,4 +59,15 @@ public interface BundleFilter extends Predicate<Bundle> {
 
     /* returns true if chain should continue, false to break */
     abstract boolean filter(Bundle row);
+
+    /**
+     * Apply the filter to each bundle in order and remove the bundles
+     * for which it returns false. Filters that can process several
+     * bundles at once more cheaply than one at a time may override this.
+     *
+     * @param bundles modifiable list of bundles
+     */
+    default void filterBatch(List<Bundle> bundles) {
+        bundles.removeIf(bundle -> !filter(bundle));
+    }
 }
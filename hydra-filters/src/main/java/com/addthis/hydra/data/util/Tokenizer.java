@@ -65,6 +65,22 @@ public class Tokenizer implements Codable {
     private boolean isInitialized;
     private char esc = '\\';
 
+    /**
+     * Receives the tokens of a line of bytes.
+     */
+    @FunctionalInterface
+    public interface ByteTokenConsumer {
+
+        /**
+         * @param index  position of the token in the line
+         * @param bytes  buffer holding the token
+         * @param offset start of the token
+         * @param length number of bytes in the token
+         * @return false to stop tokenizing the line
+         */
+        boolean accept(int index, byte[] bytes, int offset, int length);
+    }
+
     public Tokenizer() {
     }
 
@@ -236,4 +252,114 @@ public class Tokenizer implements Codable {
 
         return ret;
     }
+
+    /**
+     * @return true if {@link #tokenize(byte[], int, int, ByteTokenConsumer)} may be used.
+     *         The separator, group and escape characters must be ASCII so that they
+     *         never match part of a multi-byte UTF-8 sequence.
+     */
+    public boolean supportsBytes() {
+        if (!isInitialized) {
+            initialize();
+        }
+        return (getClass() == Tokenizer.class) && isAscii(separator) && (esc < 0x80) &&
+               ((group == null) || (isAscii(quoteOpen) && isAscii(quoteClose)));
+    }
+
+    private static boolean isAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Splits a line of UTF-8 bytes into the same tokens as {@link #tokenize(String)}
+     * without creating any Strings. Escape and group characters are removed by moving
+     * the bytes of a token down within {@code line}, so the contents of the line are
+     * modified. Each token is passed to {@code consumer} as a range of {@code line}.
+     * Only valid if {@link #supportsBytes()} is true.
+     *
+     * @return number of tokens or -1 if the line is blank
+     */
+    public int tokenize(byte[] line, int offset, int length, ByteTokenConsumer consumer) {
+        if (!isInitialized) {
+            initialize();
+        }
+        int end = offset + length;
+        boolean blank = true;
+        for (int i = offset; i < end; i++) {
+            if ((line[i] & 0xff) > ' ') {
+                blank = false;
+                break;
+            }
+        }
+        if (blank) {
+            return -1;
+        }
+
+        int count = 0;
+        int inGroup = -1;
+        boolean isEscaped = false;
+        boolean isSep = false;
+        int pos = offset;
+        int write = offset;
+        int tokenStart = offset;
+
+        while (true) {
+            boolean eol = pos == end;
+            if ((isSep && inGroup < 0) || eol) {
+                if ((write > tokenStart) || !pack) {
+                    if (!consumer.accept(count++, line, tokenStart, write - tokenStart)) {
+                        return count;
+                    }
+                    tokenStart = write;
+                    if (isSep && eol && !pack) {
+                        if (!consumer.accept(count++, line, write, 0)) {
+                            return count;
+                        }
+                    }
+                }
+            }
+            if (eol) {
+                break;
+            }
+            byte b = line[pos++];
+            if (isEscaped) {
+                line[write++] = b;
+                isEscaped = false;
+                continue;
+            }
+            if (b == esc) {
+                isEscaped = true;
+                isSep = false;
+                continue;
+            }
+            // check for group close
+            if (inGroup >= 0) {
+                if (b == quoteClose.charAt(inGroup)) {
+                    inGroup = -1;
+                } else {
+                    line[write++] = b;
+                }
+                continue;
+            } else if ((group != null) && (b >= 0)) {
+                // check for group open
+                int qspos = quoteOpen.indexOf(b);
+                if (qspos >= 0) {
+                    isSep = false;
+                    inGroup = qspos;
+                    continue;
+                }
+            }
+            // check for separator
+            if (isSep = ((b >= 0) && (separator.indexOf(b) >= 0))) {
+                continue;
+            }
+            line[write++] = b;
+        }
+        return count;
+    }
 }
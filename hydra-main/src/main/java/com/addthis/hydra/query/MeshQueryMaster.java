@@ -30,13 +30,17 @@ import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
 import com.addthis.basis.util.LessStreams;
 import com.addthis.basis.util.LessFiles;
 import com.addthis.basis.util.Parameter;
 
+import com.addthis.bundle.channel.DataChannelOutput;
 import com.addthis.hydra.data.query.Query;
+import com.addthis.hydra.data.query.QueryResultCache;
 import com.addthis.hydra.data.query.QueryException;
 import com.addthis.hydra.query.aggregate.BalancedAllocator;
 import com.addthis.hydra.query.aggregate.DefaultTaskAllocators;
@@ -48,6 +52,7 @@ import com.addthis.hydra.query.loadbalance.WorkerTracker;
 import com.addthis.hydra.query.spawndatastore.SpawnDataStoreHandler;
 import com.addthis.hydra.query.tracker.QueryTracker;
 import com.addthis.hydra.query.tracker.TrackerHandler;
+import com.addthis.hydra.query.web.DataChannelOutputToNettyBridge;
 import com.addthis.hydra.util.PrometheusServletCreator;
 import com.addthis.meshy.MeshyServer;
 import com.addthis.meshy.service.file.FileReference;
@@ -60,7 +65,10 @@ import com.google.common.collect.DiscreteDomain;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Range;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import com.typesafe.config.ConfigFactory;
 
@@ -86,6 +94,11 @@ public class MeshQueryMaster extends ChannelOutboundHandlerAdapter implements Au
     private static final int     meshPeerPort    = Parameter.intValue("qmaster.mesh.peer.port", 5101);
     private static final boolean enableZooKeeper = Parameter.boolValue("qmaster.enableZooKeeper", true);
 
+    /** Bytes of query results cached in memory. Zero disables the result cache. */
+    private static final long cacheMemory = Parameter.longValue("qmaster.cache.memory", 0);
+    private static final long cacheDisk = Parameter.longValue("qmaster.cache.disk", 1024L * 1024 * 1024);
+    private static final int  cacheEntry = Parameter.intValue("qmaster.cache.entry", 16 * 1024 * 1024);
+
     private static final QueryTaskSource EMPTY_TASK_SOURCE = new QueryTaskSource(new QueryTaskSourceOption[0]);
 
     /**
@@ -108,6 +121,12 @@ public class MeshQueryMaster extends ChannelOutboundHandlerAdapter implements Au
     private final WorkerTracker worky;
     private final DefaultTaskAllocators allocators;
 
+    /** Final results of repeated queries. Null if disabled. */
+    @Nullable private final QueryResultCache resultCache;
+
+    /** Replays cached results so that waiting on slow clients does not block the event loop. */
+    @Nullable private final ExecutorService replayExecutor;
+
     public MeshQueryMaster(QueryTracker tracker) throws Exception {
         this.tracker = tracker;
 
@@ -128,6 +147,14 @@ public class MeshQueryMaster extends ChannelOutboundHandlerAdapter implements Au
         } catch (Exception e) {
             log.warn("Error while cleaning / locating the temp directory (for disk sorts).", e);
         }
+        if (cacheMemory > 0) {
+            resultCache = new QueryResultCache(new File(tempDir, "results"), cacheMemory, cacheDisk, cacheEntry);
+            replayExecutor = Executors.newCachedThreadPool(
+                    new ThreadFactoryBuilder().setNameFormat("resultCacheReplay-%d").setDaemon(true).build());
+        } else {
+            resultCache = null;
+            replayExecutor = null;
+        }
 
         if (enableZooKeeper) {
             spawnDataStoreHandler = new SpawnDataStoreHandler();
@@ -157,6 +184,9 @@ public class MeshQueryMaster extends ChannelOutboundHandlerAdapter implements Au
             if (spawnDataStoreHandler != null) {
                 spawnDataStoreHandler.close();
             }
+            if (replayExecutor != null) {
+                replayExecutor.shutdownNow();
+            }
             meshy.close();
             server.stop();
         } catch (Exception e) {
@@ -212,6 +242,10 @@ public class MeshQueryMaster extends ChannelOutboundHandlerAdapter implements Au
     protected void writeQuery(ChannelHandlerContext ctx, Query query, ChannelPromise promise) throws Exception {
         // log rops prior to mutating query
         String[] opsLog = query.getOps();
+        String cacheKey = null;
+        if ((resultCache != null) && !query.isTraced() && !"false".equals(query.getParameter("cache"))) {
+            cacheKey = QueryResultCache.key(query);
+        }
         // creates query for worker and updates local query ops (!mutates query!)
         // query and remoteQuery are exact copies except that: query's ops contains the first element of the original,
         // and remoteQuery's ops contains the rest (i.e. query contains ops, and remoteQuery contains rops)
@@ -221,6 +255,7 @@ public class MeshQueryMaster extends ChannelOutboundHandlerAdapter implements Au
         boolean allowPartial = Boolean.valueOf(query.getParameter("allowPartial"));
         Set<Integer> tasks = parseTasks(query.getParameter("tasks"));
         List<QueryTaskSource[]> sourcesPerDir = new ArrayList<>(2);
+        Hasher dataVersion = Hashing.murmur3_128().newHasher();
         for (String combinedUnresolved : JOB_SPLITTER.split(query.getJob())) {
             String jobIdOrAlias = getJobWithoutSubdirectory(combinedUnresolved);
             String subdirectory = getJobSubdirectory(combinedUnresolved);
@@ -233,7 +268,8 @@ public class MeshQueryMaster extends ChannelOutboundHandlerAdapter implements Au
                     resolvedSubdirectory = getJobSubdirectory(resolved);
                 }
 
-                sourcesPerDir.add(getSourcesById(resolvedJobId, resolvedSubdirectory, allowPartial, tasks));
+                sourcesPerDir.add(getSourcesById(resolvedJobId, resolvedSubdirectory, allowPartial, tasks,
+                                                 dataVersion));
             }
         }
         QueryTaskSource[] sourcesByTaskID;
@@ -243,11 +279,54 @@ public class MeshQueryMaster extends ChannelOutboundHandlerAdapter implements Au
             sourcesByTaskID = sourcesPerDir.get(0);
         }
 
+        String version = dataVersion.hash().toString();
+        // replaced by the cached result or by the aggregator and tracker
+        ctx.pipeline().remove(this);
+        if (cacheKey != null) {
+            QueryResultCache.Entry cached = resultCache.get(cacheKey, version);
+            if (cached != null) {
+                log.debug("answering query {} from the result cache", query.uuid());
+                String key = cacheKey;
+                replayExecutor.execute(() -> replay(ctx, query, remoteQuery, promise, opsLog, sourcesByTaskID,
+                                                    allowPartial, key, version, cached));
+                return;
+            }
+        }
+        runQuery(ctx, query, remoteQuery, promise, opsLog, sourcesByTaskID, allowPartial, cacheKey, version);
+    }
+
+    private void replay(ChannelHandlerContext ctx, Query query, Query remoteQuery, ChannelPromise promise,
+                        String[] opsLog, QueryTaskSource[] sourcesByTaskID, boolean allowPartial,
+                        String cacheKey, String version, QueryResultCache.Entry cached) {
+        DataChannelOutput output = tracker.trackCached(query, opsLog, new DataChannelOutputToNettyBridge(ctx, promise));
+        if (!resultCache.replay(cached, output)) {
+            // the result is gone, so run the query after all
+            ctx.executor().execute(() -> {
+                try {
+                    runQuery(ctx, query, remoteQuery, promise, opsLog, sourcesByTaskID, allowPartial, cacheKey,
+                             version);
+                } catch (Exception e) {
+                    promise.tryFailure(e);
+                }
+            });
+        }
+    }
+
+    private void runQuery(ChannelHandlerContext ctx, Query query, Query remoteQuery, ChannelPromise promise,
+                          String[] opsLog, QueryTaskSource[] sourcesByTaskID, boolean allowPartial,
+                          @Nullable String cacheKey, String version) throws Exception {
         MeshSourceAggregator aggregator = new MeshSourceAggregator(sourcesByTaskID, meshy, this, remoteQuery);
         ctx.pipeline().addLast(ctx.executor(), "query aggregator", aggregator);
-        TrackerHandler trackerHandler = new TrackerHandler(tracker, opsLog, aggregator);
+        TrackerHandler trackerHandler;
+        if ((cacheKey != null) && !allowPartial) {
+            // partial results, or those of queries that stopped early, may differ from the next run
+            trackerHandler = new TrackerHandler(tracker, opsLog, aggregator,
+                                                output -> resultCache.record(cacheKey, version, output,
+                                                                             aggregator::allTasksComplete));
+        } else {
+            trackerHandler = new TrackerHandler(tracker, opsLog, aggregator);
+        }
         ctx.pipeline().addLast(ctx.executor(), "query tracker", trackerHandler);
-        ctx.pipeline().remove(this);
         ctx.pipeline().write(query, promise);
     }
 
@@ -274,11 +353,13 @@ public class MeshQueryMaster extends ChannelOutboundHandlerAdapter implements Au
 
     /**
      * @param requestedTasks    only query these task ids. empty means query all tasks.
+     * @param dataVersion       receives the modification time and size of the data of each queried task
      */
     private QueryTaskSource[] getSourcesById(String jobId,
                                              String subdirectory,
                                              boolean allowPartial,
-                                             Set<Integer> requestedTasks) {
+                                             Set<Integer> requestedTasks,
+                                             Hasher dataVersion) {
         if (spawnDataStoreHandler != null) {
             spawnDataStoreHandler.validateJobForQuery(jobId);
         }
@@ -310,19 +391,25 @@ public class MeshQueryMaster extends ChannelOutboundHandlerAdapter implements Au
             throw ex;
         }
 
+        dataVersion.putUnencodedChars(combinedJob).putInt(canonicalTaskCount);
         QueryTaskSource[] sourcesByTaskID = new QueryTaskSource[canonicalTaskCount];
         for (int taskId = 0; taskId < canonicalTaskCount; taskId++) {
             Collection<FileReference> sourceOptions = fileReferenceMap.get(taskId);
             if (!sourceOptions.isEmpty() && (requestedTasks.isEmpty() || requestedTasks.contains(taskId))) {
                 QueryTaskSourceOption[] taskSourceOptions = new QueryTaskSourceOption[sourceOptions.size()];
                 int taskSourceOptionsIndex = 0;
+                long lastModified = 0;
+                long size = 0;
                 for (FileReference queryReference : sourceOptions) {
+                    lastModified = Math.max(lastModified, queryReference.lastModified);
+                    size = Math.max(size, queryReference.size);
                     WorkerData workerData = worky.get(queryReference.getHostUUID());
                     taskSourceOptions[taskSourceOptionsIndex] =
                             new QueryTaskSourceOption(queryReference, workerData.queryLeases);
                     taskSourceOptionsIndex += 1;
                 }
                 sourcesByTaskID[taskId] = new QueryTaskSource(taskSourceOptions);
+                dataVersion.putInt(taskId).putLong(lastModified).putLong(size);
             } else {
                 sourcesByTaskID[taskId] = EMPTY_TASK_SOURCE;
             }
@@ -13,8 +13,6 @@
  */
 package com.addthis.hydra.query;
 
-import java.util.concurrent.Semaphore;
-
 import com.addthis.basis.util.Parameter;
 
 import com.addthis.bundle.channel.DataChannelOutput;
@@ -22,15 +20,13 @@ import com.addthis.hydra.data.query.Query;
 import com.addthis.hydra.data.query.QueryException;
 import com.addthis.hydra.data.query.engine.QueryEngine;
 import com.addthis.hydra.data.query.source.QueryHandle;
+import com.addthis.hydra.data.query.source.QueryScheduler;
 import com.addthis.hydra.data.query.source.QuerySource;
 
-import com.yammer.metrics.Metrics;
-import com.yammer.metrics.core.Gauge;
-import com.yammer.metrics.core.Histogram;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.netty.channel.ChannelProgressivePromise;
 import io.netty.channel.DefaultChannelProgressivePromise;
 import io.netty.util.concurrent.ImmediateEventExecutor;
 
@@ -38,47 +34,51 @@ import io.netty.util.concurrent.ImmediateEventExecutor;
 public abstract class QueryEngineSource implements QuerySource {
 
     private static final int maxConcurrency = Parameter.intValue("query.engine.source.maxConcurrency", 4);
+    private static final int maxParked = Parameter.intValue("query.engine.source.maxParked", maxConcurrency);
 
-    private final Logger log = LoggerFactory.getLogger(QueryEngineSource.class);
-    private final Semaphore engineGate = new Semaphore(maxConcurrency);
+    // one per source so that maxConcurrency limits the queries of each source
+    private final QueryScheduler scheduler = new QueryScheduler("EngineSource", maxConcurrency, maxParked);
 
-    private final Gauge<Integer> engineGatePermitMetric = Metrics.newGauge(QueryEngineSource.class, "engineGatePermitMetric", new Gauge<Integer>() {
-        @Override
-        public Integer value() {
-            return engineGate.availablePermits();
-        }
-    });
-    private final Histogram engineGateHistogram = Metrics.newHistogram(QueryEngineSource.class, "engineGateHistogram");
+    private final Logger log = LoggerFactory.getLogger(QueryEngineSource.class);
 
     @Override
     public QueryHandle query(final Query query, final DataChannelOutput consumer) throws QueryException {
-        return new Handle(query, consumer);
+        Handle handle = new Handle(query, consumer);
+        scheduler.execute(query, handle);
+        return handle;
     }
 
     public abstract QueryEngine getEngineLease();
 
     /** */
-    private class Handle extends Thread implements QueryHandle {
+    private class Handle implements Runnable, QueryHandle {
 
-        private Query query;
+        private final Query query;
+        private final DataChannelOutput consumer;
+        private final ChannelProgressivePromise promise =
+                new DefaultChannelProgressivePromise(null, ImmediateEventExecutor.INSTANCE);
         private QueryEngine engine;
-        private DataChannelOutput consumer;
+        // guarded by this so that cancel only interrupts the thread while it runs this query
+        private Thread thread;
+        private boolean cancelled;
 
         Handle(Query query, DataChannelOutput consumer) {
-            setName("EngineSource " + query.uuid());
             this.query = query;
             this.consumer = consumer;
-            start();
         }
 
         @Override public void run() {
             engine = null;
+            synchronized (this) {
+                if (cancelled) {
+                    consumer.sourceError(new QueryException("query cancelled before it started"));
+                    return;
+                }
+                thread = Thread.currentThread();
+            }
             try {
-                engineGate.acquire(1);
-                engineGateHistogram.update(engineGate.availablePermits());
                 engine = getEngineLease();
-                engine.search(query, consumer,
-                        new DefaultChannelProgressivePromise(null, ImmediateEventExecutor.INSTANCE));
+                engine.search(query, consumer, promise, scheduler::yieldPoint);
                 consumer.sendComplete();
             } catch (QueryException e) {
                 log.warn("query exception " + query.uuid() + " " + e + " " + consumer);
@@ -87,8 +87,11 @@ public abstract class QueryEngineSource implements QuerySource {
                 log.warn("query error " + query.uuid() + " " + e + " " + consumer, e);
                 consumer.sourceError(new QueryException(e));
             } finally {
-                engineGate.release();
-                engineGateHistogram.update(engineGate.availablePermits());
+                synchronized (this) {
+                    thread = null;
+                }
+                // clear an interrupt from cancel before the pool thread runs another query
+                Thread.interrupted();
                 if (engine != null) {
                     try {
                         engine.release();
@@ -102,8 +105,13 @@ public abstract class QueryEngineSource implements QuerySource {
         @Override
         public void cancel(String message) {
             log.warn(query.uuid() + " cancel called on handle " + consumer + " message: " + message);
-            if (engine != null) {
-                interrupt();
+            // also stops the subtree searches of a parallel search, which run on other threads
+            promise.cancel(false);
+            synchronized (this) {
+                cancelled = true;
+                if (thread != null) {
+                    thread.interrupt();
+                }
             }
         }
     }
@@ -127,6 +127,19 @@ public class MeshSourceAggregator extends ChannelDuplexHandler implements Channe
         }
     }
 
+    /**
+     * Whether every queried task sent all of its results, as opposed to having failed,
+     * been missing or been stopped early, for example because the query ops needed no more lines.
+     */
+    public boolean allTasksComplete() {
+        for (QueryTaskSource taskSource : taskSources) {
+            if ((taskSource.options.length > 0) && (taskSource.endTime == 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     void stopSources(String message) {
         for (QueryTaskSource taskSource : taskSources) {
             taskSource.cancelAllActiveOptions(message);
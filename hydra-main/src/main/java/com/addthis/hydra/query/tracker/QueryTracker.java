@@ -13,9 +13,12 @@
  */
 package com.addthis.hydra.query.tracker;
 
+import javax.annotation.Nullable;
+
 import java.io.Closeable;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -27,6 +30,12 @@ import java.util.concurrent.TimeUnit;
 
 import com.addthis.basis.util.Parameter;
 
+import com.addthis.bundle.channel.DataChannelOutput;
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.core.BundleFormat;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.hydra.data.query.Query;
 import com.addthis.hydra.query.aggregate.DetailedStatusTask;
 import com.addthis.hydra.query.aggregate.TaskSourceInfo;
 import com.addthis.hydra.query.aggregate.TaskSourceOptionInfo;
@@ -58,6 +67,20 @@ public class QueryTracker implements Closeable {
     final Cache<String, QueryEntryInfo> recentlyCompleted;
     final TaskDataOutput eventLog;
 
+    private final BundleField typeField;
+    private final BundleField errorField;
+    private final BundleField pathField;
+    private final BundleField opsField;
+    private final BundleField sourcesField;
+    private final BundleField timeField;
+    private final BundleField runTimeField;
+    private final BundleField jobIdField;
+    private final BundleField jobAliasField;
+    private final BundleField queryIdField;
+    private final BundleField linesField;
+    private final BundleField sentLinesField;
+    private final BundleField senderField;
+
     /* metrics */
     final Counter queryErrors = Metrics.newCounter(QueryTracker.class, "queryErrors");
     final Timer queryMeter = Metrics.newTimer(QueryTracker.class, "queryMeter", TimeUnit.MILLISECONDS, TimeUnit.MINUTES);
@@ -94,6 +117,20 @@ public class QueryTracker implements Closeable {
                 new TimeoutWatcher(running), 5, 5, TimeUnit.SECONDS);
         checkForErrors(watcherFuture);
         this.eventLog = LogUtil.newBundleOutputFromConfig("queries");
+        BundleFormat eventFormat = eventLog.createBundle().getFormat();
+        typeField = eventFormat.getField("type");
+        errorField = eventFormat.getField("error");
+        pathField = eventFormat.getField("path");
+        opsField = eventFormat.getField("ops");
+        sourcesField = eventFormat.getField("sources");
+        timeField = eventFormat.getField("time");
+        runTimeField = eventFormat.getField("run.time");
+        jobIdField = eventFormat.getField("job.id");
+        jobAliasField = eventFormat.getField("job.alias");
+        queryIdField = eventFormat.getField("query.id");
+        linesField = eventFormat.getField("lines");
+        sentLinesField = eventFormat.getField("lines.sent");
+        senderField = eventFormat.getField("sender");
     }
 
     @Override public void close() {
@@ -125,6 +162,50 @@ public class QueryTracker implements Closeable {
         return new ArrayList<>(recentlyCompleted.asMap().values());
     }
 
+    /**
+     * Returns an output that passes everything on to {@code output} and records the query as
+     * completed once the output completes or fails. Used for queries that are answered without
+     * running them, such as from the result cache.
+     */
+    public DataChannelOutput trackCached(Query query, String[] opsLog, DataChannelOutput output) {
+        return new CachedQueryOutput(query, opsLog, output);
+    }
+
+    /**
+     * Adds a finished query to the recently completed queries, the query metrics and the query log.
+     *
+     * @param type    type of the query log event unless the query failed
+     * @param failure cause of the failure or null if the query succeeded
+     */
+    void recordCompleted(QueryEntryInfo entryInfo, String type, @Nullable Throwable failure) {
+        try {
+            Bundle event = eventLog.createBundle();
+            event.setValue(pathField, ValueFactory.create(entryInfo.paths[0]));
+            event.setValue(opsField, ValueFactory.create(Arrays.toString(entryInfo.ops)));
+            event.setValue(sourcesField, ValueFactory.create(entryInfo.sources));
+            event.setValue(timeField, ValueFactory.create(System.currentTimeMillis()));
+            event.setValue(runTimeField, ValueFactory.create(entryInfo.runTime));
+            event.setValue(jobIdField, ValueFactory.create(entryInfo.job));
+            event.setValue(jobAliasField, ValueFactory.create(entryInfo.alias));
+            event.setValue(queryIdField, ValueFactory.create(entryInfo.uuid));
+            event.setValue(linesField, ValueFactory.create(entryInfo.lines));
+            event.setValue(sentLinesField, ValueFactory.create(entryInfo.sentLines));
+            event.setValue(senderField, ValueFactory.create(entryInfo.sender));
+            if (failure != null) {
+                event.setValue(typeField, ValueFactory.create("error"));
+                event.setValue(errorField, ValueFactory.create(failure.getMessage()));
+                queryErrors.inc();
+            } else {
+                event.setValue(typeField, ValueFactory.create(type));
+            }
+            recentlyCompleted.put(String.valueOf(entryInfo.uuid), entryInfo);
+            queryMeter.update(entryInfo.runTime, TimeUnit.MILLISECONDS);
+            eventLog.send(event);
+        } catch (Exception e) {
+            log.error("Error while doing record keeping for a query.", e);
+        }
+    }
+
     public boolean cancelRunning(String key) {
         if ((key == null) || key.isEmpty()) {
             return false;
@@ -185,4 +266,67 @@ public class QueryTracker implements Closeable {
             return new int[]{-1, -1};
         }
     }
+
+    private final class CachedQueryOutput implements DataChannelOutput {
+
+        private final Query query;
+        private final String[] opsLog;
+        private final DataChannelOutput output;
+        private final long startTime = System.currentTimeMillis();
+        private long lines;
+
+        CachedQueryOutput(Query query, String[] opsLog, DataChannelOutput output) {
+            this.query = query;
+            this.opsLog = opsLog;
+            this.output = output;
+        }
+
+        @Override
+        public void send(Bundle bundle) {
+            lines++;
+            output.send(bundle);
+        }
+
+        @Override
+        public void send(List<Bundle> bundles) {
+            if (bundles != null) {
+                lines += bundles.size();
+            }
+            output.send(bundles);
+        }
+
+        @Override
+        public void sendComplete() {
+            output.sendComplete();
+            recordCompleted(stat(QueryState.COMPLETE), "cached", null);
+        }
+
+        @Override
+        public void sourceError(Throwable cause) {
+            output.sourceError(cause);
+            recordCompleted(stat(QueryState.ERROR), "cached", cause);
+        }
+
+        @Override
+        public Bundle createBundle() {
+            return output.createBundle();
+        }
+
+        private QueryEntryInfo stat(QueryState state) {
+            QueryEntryInfo stat = new QueryEntryInfo();
+            stat.paths = query.getPaths();
+            stat.uuid = query.queryId();
+            stat.ops = opsLog;
+            stat.job = query.getJob();
+            stat.sources = query.getParameter("sources");
+            stat.remoteip = query.getParameter("remoteip");
+            stat.sender = query.getParameter("sender");
+            stat.lines = lines;
+            stat.sentLines = lines;
+            stat.startTime = startTime;
+            stat.runTime = System.currentTimeMillis() - startTime;
+            stat.state = state;
+            return stat;
+        }
+    }
 }
@@ -14,14 +14,10 @@
 
 package com.addthis.hydra.query.tracker;
 
-import java.util.Arrays;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.UnaryOperator;
 
-import com.addthis.bundle.core.Bundle;
-import com.addthis.bundle.core.BundleField;
-import com.addthis.bundle.core.BundleFormat;
-import com.addthis.bundle.value.ValueFactory;
+import com.addthis.bundle.channel.DataChannelOutput;
 import com.addthis.hydra.data.query.Query;
 import com.addthis.hydra.data.query.QueryException;
 import com.addthis.hydra.data.query.QueryOpProcessor;
@@ -49,19 +45,7 @@ public class TrackerHandler extends ChannelOutboundHandlerAdapter implements Cha
     private final QueryTracker queryTracker;
     private final String[]     opsLog;
     private final MeshSourceAggregator aggregator;
-    private final BundleField  typeField;
-    private final BundleField  errorField;
-    private final BundleField  pathField;
-    private final BundleField  opsField;
-    private final BundleField  sourcesField;
-    private final BundleField  timeField;
-    private final BundleField  runTimeField;
-    private final BundleField  jobIdField;
-    private final BundleField  jobAliasField;
-    private final BundleField  queryIdField;
-    private final BundleField  linesField;
-    private final BundleField  sentLinesField;
-    private final BundleField  senderField;
+    private final UnaryOperator<DataChannelOutput> outputWrapper;
 
     // set when added to pipeline
     private DataChannelOutputToNettyBridge queryUser;
@@ -76,23 +60,19 @@ public class TrackerHandler extends ChannelOutboundHandlerAdapter implements Cha
     ChannelPromise            requestPromise;
 
     public TrackerHandler(QueryTracker queryTracker, String[] opsLog, MeshSourceAggregator aggregator) {
+        this(queryTracker, opsLog, aggregator, UnaryOperator.identity());
+    }
+
+    /**
+     * @param outputWrapper applied to the output that writes the results of the query ops
+     *                      to the pipeline, for example to record them as well
+     */
+    public TrackerHandler(QueryTracker queryTracker, String[] opsLog, MeshSourceAggregator aggregator,
+                          UnaryOperator<DataChannelOutput> outputWrapper) {
         this.queryTracker = queryTracker;
         this.opsLog = opsLog;
         this.aggregator = aggregator;
-        BundleFormat eventFormat = queryTracker.eventLog.createBundle().getFormat();
-        typeField = eventFormat.getField("type");
-        errorField = eventFormat.getField("error");
-        pathField = eventFormat.getField("path");
-        opsField = eventFormat.getField("ops");
-        sourcesField = eventFormat.getField("sources");
-        timeField = eventFormat.getField("time");
-        runTimeField = eventFormat.getField("run.time");
-        jobIdField = eventFormat.getField("job.id");
-        jobAliasField = eventFormat.getField("job.alias");
-        queryIdField = eventFormat.getField("query.id");
-        linesField = eventFormat.getField("lines");
-        sentLinesField = eventFormat.getField("lines.sent");
-        senderField = eventFormat.getField("sender");
+        this.outputWrapper = outputWrapper;
     }
 
     @Override
@@ -119,7 +99,7 @@ public class TrackerHandler extends ChannelOutboundHandlerAdapter implements Cha
         this.query = msg;
         query.queryPromise = queryPromise;
         // create a processor chain based in query ops terminating the query user
-        this.opProcessorConsumer = query.newProcessor(queryUser, opPromise);
+        this.opProcessorConsumer = query.newProcessor(outputWrapper.apply(queryUser), opPromise);
         queryEntry = new QueryEntry(query, opsLog, this, aggregator);
 
         // Check if the uuid is repeated, then make a new one
@@ -202,33 +182,7 @@ public class TrackerHandler extends ChannelOutboundHandlerAdapter implements Cha
             entryInfo.tasks = taskSourceInfos;
         }
 
-        try {
-            Bundle event = queryTracker.eventLog.createBundle();
-            event.setValue(pathField, ValueFactory.create(entryInfo.paths[0]));
-            event.setValue(opsField, ValueFactory.create(Arrays.toString(entryInfo.ops)));
-            event.setValue(sourcesField, ValueFactory.create(entryInfo.sources));
-            event.setValue(timeField, ValueFactory.create(System.currentTimeMillis()));
-            event.setValue(runTimeField, ValueFactory.create(entryInfo.runTime));
-            event.setValue(jobIdField, ValueFactory.create(entryInfo.job));
-            event.setValue(jobAliasField, ValueFactory.create(entryInfo.alias));
-            event.setValue(queryIdField, ValueFactory.create(entryInfo.uuid));
-            event.setValue(linesField, ValueFactory.create(entryInfo.lines));
-            event.setValue(sentLinesField, ValueFactory.create(entryInfo.sentLines));
-            event.setValue(senderField, ValueFactory.create(entryInfo.sender));
-            if (!future.isSuccess()) {
-                Throwable queryFailure = future.cause();
-                event.setValue(typeField, ValueFactory.create("error"));
-                event.setValue(errorField, ValueFactory.create(queryFailure.getMessage()));
-                queryTracker.queryErrors.inc();
-            } else {
-                event.setValue(typeField, ValueFactory.create("complete"));
-            }
-            queryTracker.recentlyCompleted.put(query.uuid(), entryInfo);
-            queryTracker.queryMeter.update(entryInfo.runTime, TimeUnit.MILLISECONDS);
-            queryTracker.eventLog.send(event);
-        } catch (Exception e) {
-            log.error("Error while doing record keeping for a query.", e);
-        }
+        queryTracker.recordCompleted(entryInfo, "complete", future.isSuccess() ? null : future.cause());
     }
 
     public void submitDetailedStatusTask(DetailedStatusTask task) {
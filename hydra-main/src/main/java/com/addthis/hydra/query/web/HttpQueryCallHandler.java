@@ -81,6 +81,9 @@ public final class HttpQueryCallHandler {
         query.setParameterIfNotYetSet("allocator", kv.getValue("allocator"));
         query.setParameterIfNotYetSet("allowPartial", kv.getValue("allowPartial"));
         query.setParameterIfNotYetSet("tasks", kv.getValue("tasks"));
+        query.setParameterIfNotYetSet("cache", kv.getValue("cache"));
+        query.setParameterIfNotYetSet("parallel", kv.getValue("parallel"));
+        query.setParameterIfNotYetSet("priority", kv.getValue("priority"));
         // use lazy allocator if maxSimul parameter is specified
         String maxSimul = kv.getValue("maxSimul");
         if (maxSimul != null) {
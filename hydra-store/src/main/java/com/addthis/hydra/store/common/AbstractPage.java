@@ -17,6 +17,7 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -24,10 +25,10 @@ import java.io.InputStream;
 import java.io.OutputStream;
 
 import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.locks.StampedLock;
 
-import com.addthis.basis.io.GZOut;
 import com.addthis.basis.util.MemoryCounter;
 import com.addthis.basis.util.Parameter;
 import com.addthis.basis.util.Varint;
@@ -35,21 +36,14 @@ import com.addthis.basis.util.Varint;
 import com.addthis.codec.codables.BytesCodable;
 import com.addthis.hydra.store.kv.KeyCoder;
 import com.addthis.hydra.store.kv.PageEncodeType;
+import com.addthis.hydra.store.kv.PrefixBlock;
 import com.addthis.hydra.store.skiplist.LockMode;
 import com.addthis.hydra.store.skiplist.SkipListCache;
 
 import com.google.common.base.Throwables;
 
-import com.jcraft.jzlib.Deflater;
-import com.jcraft.jzlib.DeflaterOutputStream;
-import com.jcraft.jzlib.InflaterInputStream;
-import com.ning.compress.lzf.LZFInputStream;
-import com.ning.compress.lzf.LZFOutputStream;
 import com.yammer.metrics.core.Histogram;
 
-import org.xerial.snappy.SnappyInputStream;
-import org.xerial.snappy.SnappyOutputStream;
-
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufInputStream;
 import io.netty.buffer.ByteBufOutputStream;
@@ -104,6 +98,16 @@ public abstract class AbstractPage<K, V extends BytesCodable> implements Page<K,
 
     private final ReentrantReadWriteLock lock;
 
+    /**
+     * Write locked whenever {@link #lock} is write locked. Lets readers
+     * validate a lock-free read of the page contents.
+     */
+    @Nullable
+    private final StampedLock versionLock;
+
+    @GuardedBy("lock")
+    private long versionStamp;
+
     /**
      * This value is incremented each time the write lock
      * is released.
@@ -129,6 +133,7 @@ public abstract class AbstractPage<K, V extends BytesCodable> implements Page<K,
         this.state = ExternalMode.DISK_MEMORY_IDENTICAL;
         this.encodeType = encodeType;
         this.lock = initLock();
+        this.versionLock = (lock != null) ? new StampedLock() : null;
     }
 
     public ReentrantReadWriteLock initLock() {
@@ -160,6 +165,7 @@ public abstract class AbstractPage<K, V extends BytesCodable> implements Page<K,
         this.state = ExternalMode.DISK_MEMORY_IDENTICAL;
         this.encodeType = encodeType;
         this.lock = initLock();
+        this.versionLock = (lock != null) ? new StampedLock() : null;
     }
 
     public void readLock() {
@@ -172,24 +178,49 @@ public abstract class AbstractPage<K, V extends BytesCodable> implements Page<K,
 
     public void writeLock() {
         lock.writeLock().lock();
+        beginWrite();
     }
 
     public boolean writeTryLock() {
-        return lock.writeLock().tryLock();
+        if (lock.writeLock().tryLock()) {
+            beginWrite();
+            return true;
+        } else {
+            return false;
+        }
     }
 
     public void writeUnlock() {
         writeStamp++;
+        if (lock.getWriteHoldCount() == 1) {
+            versionLock.unlockWrite(versionStamp);
+        }
         lock.writeLock().unlock();
     }
 
+    private void beginWrite() {
+        if (lock.getWriteHoldCount() == 1) {
+            versionStamp = versionLock.writeLock();
+        }
+    }
+
+    @Override
+    public long tryOptimisticRead() {
+        return (versionLock != null) ? versionLock.tryOptimisticRead() : 0;
+    }
+
+    @Override
+    public boolean validate(long stamp) {
+        return (versionLock != null) && versionLock.validate(stamp);
+    }
+
     public void modeLock(LockMode mode) {
         switch (mode) {
             case READMODE:
                 lock.readLock().lock();
                 break;
             case WRITEMODE:
-                lock.writeLock().lock();
+                writeLock();
                 break;
         }
     }
@@ -250,30 +281,23 @@ public abstract class AbstractPage<K, V extends BytesCodable> implements Page<K,
     public byte[] encode(ByteBufOutputStream out, boolean record) {
         PageCacheMetrics<K, V> metrics = parent.metrics;
         parent.numPagesEncoded.getAndIncrement();
-        PageEncodeType upgradeType = PageEncodeType.defaultType();
+        PageCodec codec = parent.pageCodec;
+        PageEncodeType pageType = codec.pageType;
+        PageEncodeType upgradeType = pageType.valueType();
+        PageCompression compression = codec.current();
+        long startTime = System.nanoTime();
         try {
-            OutputStream os = out;
-            out.write(gztype | FLAGS_HAS_ESTIMATES | (upgradeType.ordinal() << TYPE_BIT_OFFSET));
-            switch (gztype) {
-                case 0:
-                    break;
-                case 1:
-                    os = new DeflaterOutputStream(out, new Deflater(gzlevel));
-                    break;
-                case 2:
-                    os = new GZOut(out, gzbuf, gzlevel);
-                    break;
-                case 3:
-                    os = new LZFOutputStream(out);
-                    break;
-                case 4:
-                    os = new SnappyOutputStream(out);
-                    break;
-                default:
-                    throw new RuntimeException("invalid gztype: " + gztype);
+            int flags = compression.code | FLAGS_HAS_ESTIMATES | (pageType.ordinal() << TYPE_BIT_OFFSET);
+            if (codec.filterFpp > 0) {
+                out.write(flags | PageFilter.FLAGS_HAS_FILTER);
+                PageFilter.write(keys, size, keyCoder, codec.filterFpp, out);
+            } else {
+                out.write(flags);
             }
+            OutputStream os = codec.compress(out, compression);
+            ByteArrayOutputStream sample = codec.isSampling() ? new ByteArrayOutputStream() : null;
 
-            DataOutputStream dos = new DataOutputStream(os);
+            DataOutputStream dos = new DataOutputStream((sample != null) ? new TeeOutputStream(os, sample) : os);
             byte[] firstKeyEncoded = keyCoder.keyEncode(firstKey);
             byte[] nextFirstKeyEncoded = keyCoder.keyEncode(nextFirstKey);
 
@@ -286,8 +310,10 @@ public abstract class AbstractPage<K, V extends BytesCodable> implements Page<K,
             if (nextFirstKeyEncoded.length > 0) {
                 dos.write(nextFirstKeyEncoded);
             }
+            PrefixBlock.Writer block = (pageType == PageEncodeType.PREFIX) ? new PrefixBlock.Writer() : null;
             for (int i = 0; i < size; i++) {
-                byte[] keyEncoded = keyCoder.keyEncode(keys.get(i), firstKey, upgradeType);
+                byte[] keyEncoded = (block != null) ? keyCoder.keyEncode(keys.get(i)) :
+                                    keyCoder.keyEncode(keys.get(i), firstKey, upgradeType);
                 byte[] rawVal = rawValues.get(i);
 
                 if (rawVal == null || upgradeType != encodeType) {
@@ -298,22 +324,22 @@ public abstract class AbstractPage<K, V extends BytesCodable> implements Page<K,
                 updateHistogram(metrics.encodeKeySize, keyEncoded.length, record);
                 updateHistogram(metrics.encodeValueSize, rawVal.length, record);
 
-                Varint.writeUnsignedVarInt(keyEncoded.length, dos);
-                dos.write(keyEncoded);
-                Varint.writeUnsignedVarInt(rawVal.length, dos);
-                dos.write(rawVal);
+                if (block != null) {
+                    block.add(keyEncoded, rawVal);
+                } else {
+                    Varint.writeUnsignedVarInt(keyEncoded.length, dos);
+                    dos.write(keyEncoded);
+                    Varint.writeUnsignedVarInt(rawVal.length, dos);
+                    dos.write(rawVal);
+                }
+            }
+            if (block != null) {
+                block.writeTo(dos);
             }
 
             Varint.writeUnsignedVarInt((estimateTotal > 0 ? estimateTotal : 1), dos);
             Varint.writeUnsignedVarInt((estimates > 0 ? estimates : 1), dos);
-            switch (gztype) {
-                case 1:
-                    ((DeflaterOutputStream) os).finish();
-                    break;
-                case 2:
-                    ((GZOut) os).finish();
-                    break;
-            }
+            compression.finish(os);
             os.flush(); // flush should be called by dos.close(), but better safe than sorry
             dos.close();
 
@@ -325,6 +351,12 @@ public abstract class AbstractPage<K, V extends BytesCodable> implements Page<K,
             buffer.clear();
             updateHistogram(metrics.numberKeysPerPage, size, record);
             updateHistogram(metrics.encodePageSize, returnValue.length, record);
+            metrics.encodeRawBytes.inc(dos.size());
+            metrics.encodeCompressedBytes.inc(returnValue.length);
+            metrics.encodeTimer.update(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+            if (sample != null) {
+                codec.addSample(sample.toByteArray());
+            }
             return returnValue;
         } catch (Exception ex) {
             throw Throwables.propagate(ex);
@@ -334,43 +366,23 @@ public abstract class AbstractPage<K, V extends BytesCodable> implements Page<K,
 
     public void decode(byte[] page) {
         parent.numPagesDecoded.getAndIncrement();
+        long startTime = System.nanoTime();
         ByteBuf buffer = Unpooled.wrappedBuffer(page);
         try {
             InputStream in = new ByteBufInputStream(buffer);
             int flags = in.read() & 0xff;
-            int gztype = flags & 0x0f;
             int pageType = flags >>> TYPE_BIT_OFFSET;
             boolean hasEstimates = (flags & FLAGS_HAS_ESTIMATES) != 0;
-            switch (gztype) {
-                case 1:
-                    in = new InflaterInputStream(in);
-                    break;
-                case 2:
-                    in = new GZIPInputStream(in);
-                    break;
-                case 3:
-                    in = new LZFInputStream(in);
-                    break;
-                case 4:
-                    in = new SnappyInputStream(in);
-                    break;
+            if ((flags & PageFilter.FLAGS_HAS_FILTER) != 0) {
+                PageFilter.skip(in);
             }
-            DataInputStream dis = null;
-            switch (pageType) {
-                case 0:
-                    encodeType = PageEncodeType.LEGACY;
-                    break;
-                case 1:
-                    encodeType = PageEncodeType.SPARSE;
-                    dis = new DataInputStream(in);
-                    break;
-                case 2:
-                    encodeType = PageEncodeType.LONGIDS;
-                    dis = new DataInputStream(in);
-                    break;
-            }
-            decodeKeysAndValues(encodeType, in, dis, hasEstimates);
+            in = parent.pageCodec.decompress(in, PageCompression.fromCode(flags & PageFilter.COMPRESSION_MASK));
+            PageEncodeType decodeType = PageEncodeType.fromOrdinal(pageType);
+            DataInputStream dis = (decodeType != PageEncodeType.LEGACY) ? new DataInputStream(in) : null;
+            encodeType = decodeType.valueType();
+            decodeKeysAndValues(decodeType, in, dis, hasEstimates);
             in.close();
+            parent.metrics.decodeTimer.update(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
         } catch (Exception ex) {
             throw Throwables.propagate(ex);
         } finally {
@@ -405,13 +417,25 @@ public abstract class AbstractPage<K, V extends BytesCodable> implements Page<K,
         values = new ArrayList<>(size);
         rawValues = new ArrayList<>(size);
 
-        for (int i = 0; i < entries; i++) {
-            byte[] kb = encodeType.readBytes(in, dis);
-            byte[] vb = encodeType.readBytes(in, dis);
-            bytes += kb.length + vb.length;
-            keys.add(keyCoder.keyDecode(kb, firstKey, encodeType));
-            values.add(null);
-            rawValues.add(vb);
+        if (encodeType == PageEncodeType.PREFIX) {
+            PrefixBlock block = PrefixBlock.read(dis, entries);
+            PrefixBlock.Cursor cursor = block.cursor();
+            while (cursor.hasNext()) {
+                cursor.next();
+                keys.add(keyCoder.keyDecode(cursor.key()));
+                values.add(null);
+                rawValues.add(cursor.value());
+            }
+            bytes = block.getByteSize();
+        } else {
+            for (int i = 0; i < entries; i++) {
+                byte[] kb = encodeType.readBytes(in, dis);
+                byte[] vb = encodeType.readBytes(in, dis);
+                bytes += kb.length + vb.length;
+                keys.add(keyCoder.keyDecode(kb, firstKey, encodeType));
+                values.add(null);
+                rawValues.add(vb);
+            }
         }
 
         if (hasEstimates) {
@@ -515,12 +539,28 @@ public abstract class AbstractPage<K, V extends BytesCodable> implements Page<K,
      * and {@link #rawValues} is storing the representation of a
      * non-null entry then populate {@link #values} with the decoded
      * result of {@link #rawValues}.
+     * <p/>
+     * Readers that only hold the read lock publish the decoded value under
+     * the version lock. Lock-free readers then either see a value that was
+     * fully built before their read began or fail to validate their read.
      */
     public void fetchValue(int position) {
         V value = values.get(position);
         byte[] rawValue = rawValues.get(position);
         if (value == null) {
-            values.set(position, keyCoder.valueDecode(rawValue, encodeType));
+            V decoded = keyCoder.valueDecode(rawValue, encodeType);
+            if ((versionLock == null) || lock.isWriteLockedByCurrentThread()) {
+                values.set(position, decoded);
+            } else {
+                long stamp = versionLock.writeLock();
+                try {
+                    if (values.get(position) == null) {
+                        values.set(position, decoded);
+                    }
+                } finally {
+                    versionLock.unlockWrite(stamp);
+                }
+            }
         }
     }
 
@@ -653,4 +693,40 @@ public abstract class AbstractPage<K, V extends BytesCodable> implements Page<K,
     public K getFirstKey() {
         return firstKey;
     }
+
+    /**
+     * Copies the uncompressed page into a sample for dictionary training.
+     */
+    private static final class TeeOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        private final OutputStream copy;
+
+        TeeOutputStream(OutputStream out, OutputStream copy) {
+            this.out = out;
+            this.copy = copy;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            copy.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            copy.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
 }
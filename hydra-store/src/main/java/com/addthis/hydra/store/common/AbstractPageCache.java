@@ -22,6 +22,7 @@ import com.addthis.hydra.store.kv.PageEncodeType;
 import com.addthis.hydra.store.kv.PagedKeyValueStore;
 import com.addthis.hydra.store.skiplist.LockMode;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.primitives.UnsignedBytes;
 import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.ByteBufOutputStream;
 import io.netty.buffer.PooledByteBufAllocator;
@@ -34,12 +35,15 @@ import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -73,6 +77,10 @@ public abstract class AbstractPageCache<K, V extends BytesCodable> implements Pa
     public final AtomicLong numPagesDeleted = new AtomicLong();
     public final AtomicLong numPagesEncoded = new AtomicLong();
     public final AtomicLong numPagesDecoded = new AtomicLong();
+    /**
+     * Pages read from the off-heap tier or the external store because they were not in memory.
+     */
+    public final AtomicLong numPageMisses = new AtomicLong();
     public final AtomicLong numPagesSplit = new AtomicLong();
 
     private final ConcurrentSkipListMap<K, Page<K, V>> cache;
@@ -80,6 +88,16 @@ public abstract class AbstractPageCache<K, V extends BytesCodable> implements Pa
 
     protected final ByteStore externalStore;
 
+    /**
+     * Encoded pages kept off-heap in front of the external store. Null if disabled.
+     */
+    public final OffHeapPageTier offHeapTier;
+
+    /**
+     * Compression settings and dictionaries for the pages of this cache.
+     */
+    public final PageCodec pageCodec;
+
     public final AtomicBoolean shutdownGuard;
     public final AtomicBoolean shutdownEvictionThreads;
 
@@ -104,6 +122,33 @@ public abstract class AbstractPageCache<K, V extends BytesCodable> implements Pa
     public static final int shouldEvictDelta = Parameter.intValue("eps.cache.evict.delta", 20);
     public static final int fixedNumberEvictions = Parameter.intValue("cache.batch.evictions", 100);
 
+    /**
+     * Maximum number of evicted pages written to the external store in a single batch.
+     * Stores that do not batch writes, see {@link ByteStore#batchesWrites()}, always
+     * use batches of one page.
+     */
+    public static final int evictionBatchSize = Parameter.intValue("eps.cache.evict.batch", 32);
+
+    /**
+     * Maximum time in milliseconds that a batch holds the write lock of its first evicted page.
+     */
+    public static final int evictionBatchMillis = Parameter.intValue("eps.cache.evict.batch.millis", 100);
+
+    /**
+     * Default byte budget of the off-heap tier of encoded pages. Zero disables the tier.
+     */
+    public static final long defaultOffHeapBytes = Parameter.longValue("eps.cache.offheap.bytes", 0);
+
+    /**
+     * Attempt to read values from resident pages without the page read lock.
+     */
+    static final boolean defaultOptimisticReads = Parameter.boolValue("eps.cache.optimistic.reads", true);
+
+    /**
+     * Returned by {@link #optimisticGet(Object)} when the read could not be validated.
+     */
+    private static final Object RETRY = new Object();
+
     public final Comparator comparator;
 
     private static long globalMaxTotalMem;
@@ -112,6 +157,8 @@ public abstract class AbstractPageCache<K, V extends BytesCodable> implements Pa
 
     private final boolean useLocks;
 
+    private boolean optimisticReads = defaultOptimisticReads;
+
     private long softTotalMem;
     private long maxTotalMem;
     private long maxPageMem;
@@ -130,6 +177,14 @@ public abstract class AbstractPageCache<K, V extends BytesCodable> implements Pa
     }
 
 
+    /**
+     * If true then {@link #get(Object)} first attempts to read resident
+     * pages without the page read lock.
+     */
+    public void setOptimisticReads(boolean optimisticReads) {
+        this.optimisticReads = optimisticReads;
+    }
+
     public int getEstimateInterval() {
         return estimateInterval;
     }
@@ -197,6 +252,12 @@ public abstract class AbstractPageCache<K, V extends BytesCodable> implements Pa
     public AbstractPageCache(KeyCoder<K, V> keyCoder, ByteStore externalStore,
                              PageFactory<K, V> pageFactory, int maxPageSize, int maxPages,
                              boolean useLocks) {
+        this(keyCoder, externalStore, pageFactory, maxPageSize, maxPages, useLocks, 0, PageCodec.defaultCodec());
+    }
+
+    public AbstractPageCache(KeyCoder<K, V> keyCoder, ByteStore externalStore,
+                             PageFactory<K, V> pageFactory, int maxPageSize, int maxPages,
+                             boolean useLocks, long offHeapBytes, PageCodec pageCodec) {
         if (externalStore == null) {
             throw new NullPointerException("externalStore must be non-null");
         }
@@ -208,6 +269,8 @@ public abstract class AbstractPageCache<K, V extends BytesCodable> implements Pa
         this.negInf = keyCoder.negInfinity();
         this.cache = new ConcurrentSkipListMap<>();
         this.externalStore = externalStore;
+        this.offHeapTier = (offHeapBytes > 0) ? new OffHeapPageTier(offHeapBytes) : null;
+        this.pageCodec = pageCodec;
         this.maxPageSize = maxPageSize;
         this.maxPages = maxPages;
         this.shutdownGuard = new AtomicBoolean(false);
@@ -273,6 +336,42 @@ public abstract class AbstractPageCache<K, V extends BytesCodable> implements Pa
      **/
     protected void closeExternalStore(boolean cleanLog) {
         externalStore.close(cleanLog);
+        if (offHeapTier != null) {
+            offHeapTier.clear();
+        }
+    }
+
+    /**
+     * Retrieve an encoded page. The off-heap tier is consulted
+     * before the external store. The tier is only filled by eviction.
+     */
+    protected byte[] getExternalPage(byte[] encodedKey) {
+        numPageMisses.getAndIncrement();
+        if (offHeapTier == null) {
+            return externalStore.get(encodedKey);
+        }
+        byte[] page = offHeapTier.get(encodedKey);
+        if (page == null) {
+            page = externalStore.get(encodedKey);
+        }
+        return page;
+    }
+
+    /**
+     * Write a page that is not being evicted. Any copy in the off-heap tier is dropped.
+     */
+    protected void putExternalPage(byte[] encodedKey, byte[] encodedPage) {
+        externalStore.put(encodedKey, encodedPage);
+        if (offHeapTier != null) {
+            offHeapTier.invalidate(encodedKey);
+        }
+    }
+
+    protected void deleteExternalPage(byte[] encodedKey) {
+        externalStore.delete(encodedKey);
+        if (offHeapTier != null) {
+            offHeapTier.invalidate(encodedKey);
+        }
     }
 
     @SuppressWarnings("unused")
@@ -348,31 +447,22 @@ public abstract class AbstractPageCache<K, V extends BytesCodable> implements Pa
     }
 
 
-    protected void pushPageToDisk(Page<K, V> current, ByteBufOutputStream byteStream) {
+    /**
+     * Discard the in-memory contents of a page that has been written to the
+     * external store. The caller is responsible for the memory counters.
+     */
+    protected void releasePageContents(Page<K, V> current) {
 
         assert isWriteLockedByCurrentThread(current);
         assert (!current.inTransientState());
         assert (current.keys() != null);
 
-        if (current.getState() == ExternalMode.DISK_MEMORY_DIRTY) {
-
-            // flush to external storage
-            byte[] encodeKey = keyCoder.keyEncode(current.getFirstKey());
-            byte[] encodePage = current.encode(byteStream);
-
-            externalStore.put(encodeKey, encodePage);
-
-            current.setState(ExternalMode.DISK_MEMORY_IDENTICAL);
-        }
-
-        updateMemoryEstimate(-current.getMemoryEstimate());
         current.keys().clear();
         current.values().clear();
         current.rawValues().clear();
         current.setKeys(null);
         current.setValues(null);
         current.setRawValues(null);
-        numPagesInMemory.getAndDecrement();
     }
 
     protected void updateMemoryEstimate(int delta) {
@@ -404,7 +494,7 @@ public abstract class AbstractPageCache<K, V extends BytesCodable> implements Pa
             if (current.keys() == null) {
 
                 byte[] encodeKey = keyCoder.keyEncode(current.getFirstKey());
-                byte[] page = externalStore.get(encodeKey);
+                byte[] page = getExternalPage(encodeKey);
 
                 pullPageHelper(current, page);
             }
@@ -436,16 +526,25 @@ public abstract class AbstractPageCache<K, V extends BytesCodable> implements Pa
 
     public void fixedNumberEviction(int numEvictions) {
         ByteBufOutputStream byteStream = new ByteBufOutputStream(PooledByteBufAllocator.DEFAULT.buffer());
+        EvictionBatch batch = new EvictionBatch(byteStream, true);
         try {
             for (int i = 0; i < numEvictions; i++) {
-                doEvictPage(byteStream);
+                doEvictPage(batch);
             }
         } finally {
-            byteStream.buffer().release();
+            try {
+                batch.flush();
+            } finally {
+                byteStream.buffer().release();
+            }
         }
     }
 
-    public EvictionStatus attemptPageEviction(Page<K, V> page, IterationMode iteration, ByteBufOutputStream byteStream) {
+    /**
+     * On success the page remains write locked and is owned by
+     * the batch until the next {@link EvictionBatch#flush()}.
+     */
+    public EvictionStatus attemptPageEviction(Page<K, V> page, IterationMode iteration, EvictionBatch batch) {
             if (useLocks && (page.isReadLockedByCurrentThread() || page.isWriteLockedByCurrentThread())) {
                 return EvictionStatus.NO_STATUS;
             }
@@ -454,9 +553,12 @@ public abstract class AbstractPageCache<K, V extends BytesCodable> implements Pa
                     return EvictionStatus.TRYLOCK_FAIL;
                 }
             } else {
+                // never block on a page lock while holding the locks of the batched pages
+                batch.flush();
                 writeLock(page);
             }
 
+        boolean batched = false;
         try {
             if (page.inTransientState()) {
                 return EvictionStatus.TRANSIENT_PAGE;
@@ -473,27 +575,163 @@ public abstract class AbstractPageCache<K, V extends BytesCodable> implements Pa
                 return EvictionStatus.EVICTED_PAGE;
             }
 
-            pushPageToDisk(page, byteStream);
-
-            addToPurgeSet(page);
+            batched = true;
+            batch.add(page);
 
             return EvictionStatus.SUCCESS;
         } finally {
-            writeUnlockAndNull(page);
+            if (!batched) {
+                writeUnlockAndNull(page);
+            }
         }
     }
 
     protected abstract void addToPurgeSet(Page<K, V> page);
 
+    /**
+     * Collects write locked pages that are being evicted so that the dirty
+     * pages are written to the external store with one {@link ByteStore#putAll}
+     * call. Pages keep their contents and their write locks until the batch
+     * is flushed so readers never observe a page that is missing from both
+     * memory and the external store. The owning thread must not block on any
+     * other page lock while the batch is non-empty.
+     * <p/>
+     * Readers of a batched page wait until the flush. A batch holds at most
+     * {@link #evictionBatchSize} page locks, or a single one when the external
+     * store does not batch writes, and it is flushed once its first lock
+     * has been held for {@link #evictionBatchMillis}. That age is checked when
+     * pages are added and before each eviction scan, so the wait also includes
+     * the time of one scan and of the {@link ByteStore#putAll} call.
+     */
+    protected final class EvictionBatch {
+
+        private final ByteBufOutputStream byteStream;
+        private final boolean purge;
+        private final TreeMap<byte[], byte[]> writes = new TreeMap<>(UnsignedBytes.lexicographicalComparator());
+        /**
+         * Clean pages missing from the off-heap tier. They are not written to the external store.
+         */
+        private final Map<byte[], byte[]> tierOnly = new HashMap<>();
+        private final List<Page<K, V>> pages = new ArrayList<>();
+
+        /**
+         * Number of pages that triggers a flush.
+         */
+        private final int maxPages = externalStore.batchesWrites() ? evictionBatchSize : 1;
+
+        /**
+         * Time at which the first page of the batch was added.
+         */
+        private long startNanos;
+
+        /**
+         * @param byteStream buffer used to encode pages
+         * @param purge      if true then add the flushed pages to the purge set
+         */
+        public EvictionBatch(ByteBufOutputStream byteStream, boolean purge) {
+            this.byteStream = byteStream;
+            this.purge = purge;
+        }
+
+        /**
+         * Page must be write locked by the current thread. Ownership of the
+         * lock passes to the batch. The page is removed from the memory counters
+         * immediately so that eviction loops do not overshoot. May flush the batch.
+         */
+        public void add(Page<K, V> page) {
+            assert isWriteLockedByCurrentThread(page);
+            if (pages.contains(page)) {
+                // the lock was reacquired by the owning thread
+                writeUnlockAndNull(page);
+                return;
+            }
+            if (pages.isEmpty()) {
+                startNanos = System.nanoTime();
+            }
+            pages.add(page);
+            if (page.getState() == ExternalMode.DISK_MEMORY_DIRTY) {
+                writes.put(keyCoder.keyEncode(page.getFirstKey()), page.encode(byteStream));
+            } else if (offHeapTier != null) {
+                byte[] encodedKey = keyCoder.keyEncode(page.getFirstKey());
+                if (!offHeapTier.contains(encodedKey)) {
+                    tierOnly.put(encodedKey, page.encode(byteStream, false));
+                }
+            }
+            updateMemoryEstimate(-page.getMemoryEstimate());
+            numPagesInMemory.getAndDecrement();
+            if (pages.size() >= maxPages) {
+                flush();
+            } else {
+                flushIfExpired();
+            }
+        }
+
+        /**
+         * Flush the batch if its first page lock has been held for {@link #evictionBatchMillis}.
+         */
+        public void flushIfExpired() {
+            if (!pages.isEmpty() &&
+                ((System.nanoTime() - startNanos) >= TimeUnit.MILLISECONDS.toNanos(evictionBatchMillis))) {
+                flush();
+            }
+        }
+
+        /**
+         * Write the dirty pages, release the contents of every page,
+         * and unlock every page in the batch.
+         */
+        public void flush() {
+            if (pages.isEmpty()) {
+                return;
+            }
+            boolean written = false;
+            try {
+                if (!writes.isEmpty()) {
+                    externalStore.putAll(writes);
+                    if (offHeapTier != null) {
+                        offHeapTier.putAll(writes);
+                    }
+                }
+                if (offHeapTier != null) {
+                    offHeapTier.putAll(tierOnly);
+                }
+                written = true;
+                for (Page<K, V> page : pages) {
+                    if (page.getState() == ExternalMode.DISK_MEMORY_DIRTY) {
+                        page.setState(ExternalMode.DISK_MEMORY_IDENTICAL);
+                    }
+                    releasePageContents(page);
+                    if (purge) {
+                        addToPurgeSet(page);
+                    }
+                }
+            } finally {
+                for (Page<K, V> page : pages) {
+                    if (!written) {
+                        // the pages remain in memory
+                        updateMemoryEstimate(page.getMemoryEstimate());
+                        numPagesInMemory.getAndIncrement();
+                    }
+                    writeUnlockAndNull(page);
+                }
+                pages.clear();
+                writes.clear();
+                tierOnly.clear();
+            }
+        }
+    }
+
 
 
     /**
      * Returns <code>true</code> is a page is evicted and
-     * false otherwise.
+     * false otherwise. The evicted page may not be written to
+     * the external store until the batch is flushed.
      *
-     * @param byteStream
+     * @param batch
      */
-    protected boolean doEvictPage(ByteBufOutputStream byteStream) {
+    protected boolean doEvictPage(EvictionBatch batch) {
+        batch.flushIfExpired();
         long referenceTime = generateTimestamp();
         int timeout = 10;
 
@@ -526,7 +764,7 @@ public abstract class AbstractPageCache<K, V extends BytesCodable> implements Pa
             if (((iteration == IterationMode.OPTIMISTIC) &&
                     ((referenceTime - timestamp) >= timeout)) ||
                     (iteration == IterationMode.PESSIMISTIC)) {
-                status = attemptPageEviction(current, iteration, byteStream);
+                status = attemptPageEviction(current, iteration, batch);
 
                 if (status.completeSuccess()) {
                     return true;
@@ -547,7 +785,7 @@ public abstract class AbstractPageCache<K, V extends BytesCodable> implements Pa
                     case OPTIMISTIC:
                         iteration = IterationMode.PESSIMISTIC;
                         timeout /= 2;
-                        status = attemptPageEviction(oldestPage, iteration, byteStream);
+                        status = attemptPageEviction(oldestPage, iteration, batch);
                         if (status.completeSuccess()) {
                             return true;
                         }
@@ -662,7 +900,7 @@ public abstract class AbstractPageCache<K, V extends BytesCodable> implements Pa
         } finally {
             byteBufOutputStream.buffer().release();
         }
-        externalStore.put(encodeKey, placeHolder);
+        putExternalPage(encodeKey, placeHolder);
         getEvictionQueue().offer(sibling);
         numPagesSplit.getAndIncrement();
 
@@ -758,7 +996,7 @@ public abstract class AbstractPageCache<K, V extends BytesCodable> implements Pa
                 leftSentinel.initialize();
                 byte[] encodeKey = keyCoder.keyEncode(negInf);
                 byte[] encodePage = leftSentinel.encode(byteBufOutputStream);
-                externalStore.put(encodeKey, encodePage);
+                putExternalPage(encodeKey, encodePage);
             } else {
                 K firstKey = keyCoder.keyDecode(encodedFirstKey);
                 byte[] page = externalStore.get(encodedFirstKey);
@@ -773,7 +1011,7 @@ public abstract class AbstractPageCache<K, V extends BytesCodable> implements Pa
 
                     byte[] encodeKey = keyCoder.keyEncode(negInf);
                     byte[] encodePage = leftSentinel.encode(byteBufOutputStream);
-                    externalStore.put(encodeKey, encodePage);
+                    putExternalPage(encodeKey, encodePage);
 
                     Page<K, V> minPage = pageFactory.generateEmptyPage(this, firstKey, leftSentinel.getEncodeType());
                     minPage.decode(page);
@@ -820,7 +1058,14 @@ public abstract class AbstractPageCache<K, V extends BytesCodable> implements Pa
      * Locate the page that stores the (key, value) pair
      * and retrieve the current value.
      */
+    @SuppressWarnings("unchecked")
     protected V doGet(K key) {
+        if (optimisticReads && useLocks) {
+            Object result = optimisticGet(key);
+            if (result != RETRY) {
+                return (V) result;
+            }
+        }
         Page<K, V> page = locatePage(key, LockMode.READMODE);
         try {
             if (page.size() == 0) {
@@ -838,6 +1083,51 @@ public abstract class AbstractPageCache<K, V extends BytesCodable> implements Pa
         }
     }
 
+    /**
+     * Read the value from a resident page without acquiring the page lock.
+     * The page contents may change while they are read so the result is only
+     * returned if no writer locked the page in the meantime. Values that readers
+     * decode lazily are published under the same version, see {@link AbstractPage#fetchValue}.
+     * Returns {@link #RETRY}
+     * if the page is not resident, is in a transient state, if the value has
+     * not been decoded yet or if the read could not be validated.
+     */
+    private Object optimisticGet(K key) {
+        Map.Entry<K, Page<K, V>> cacheEntry = getCache().floorEntry(key);
+        if (cacheEntry == null) {
+            return RETRY;
+        }
+        Page<K, V> page = cacheEntry.getValue();
+        long stamp = page.tryOptimisticRead();
+        if (stamp == 0) {
+            return RETRY;
+        }
+        V value = null;
+        try {
+            ArrayList<K> keys = page.keys();
+            if (keys == null || page.inTransientState() || !page.interval(comparable(key))) {
+                return RETRY;
+            }
+            if (page.size() > 0) {
+                int offset = binarySearch(keys, key, comparator);
+                if (offset >= 0) {
+                    value = page.values().get(offset);
+                    if (value == null) {
+                        return RETRY;
+                    }
+                }
+            }
+        } catch (RuntimeException ex) {
+            // the page was modified during the read
+            return RETRY;
+        }
+        if (!page.validate(stamp)) {
+            return RETRY;
+        }
+        page.setTimeStamp(generateTimestamp());
+        return value;
+    }
+
     /**
      * This method locates a page either in cache or in the external storage.
      * If the page is on disk then it is loaded into memory. The target page
@@ -1010,7 +1300,7 @@ public abstract class AbstractPageCache<K, V extends BytesCodable> implements Pa
                     return cachePage;
                 }
 
-                byte[] floorPageEncoded = externalStore.get(externalKeyEncoded);
+                byte[] floorPageEncoded = getExternalPage(externalKeyEncoded);
 
                 if (floorPageEncoded == null) {
                     current = writeUnlockAndNull(current);
@@ -1146,7 +1436,7 @@ public abstract class AbstractPageCache<K, V extends BytesCodable> implements Pa
                             !prevKey.equals(keyCoder.keyDecode(verifyPrevKeyEncoded))) {
                         continue;
                     }
-                    externalStore.delete(encodedTargetKey);
+                    deleteExternalPage(encodedTargetKey);
                     Page<K, V> prev = getCache().remove(targetKey);
                     assert (prev != null);
                     currentPage.setState(ExternalMode.DELETED);
@@ -1602,7 +1892,7 @@ public abstract class AbstractPageCache<K, V extends BytesCodable> implements Pa
             ByteBufOutputStream byteBufOutputStream = new ByteBufOutputStream(PooledByteBufAllocator.DEFAULT.buffer());
             try {
                 byte[] pageEncoded = page.encode(byteBufOutputStream);
-                externalStore.put(keyCoder.keyEncode(key), pageEncoded);
+                putExternalPage(keyCoder.keyEncode(key), pageEncoded);
             } finally {
                 byteBufOutputStream.buffer().release();
             }
@@ -1639,10 +1929,10 @@ public abstract class AbstractPageCache<K, V extends BytesCodable> implements Pa
         ByteBufOutputStream byteBufOutputStream = new ByteBufOutputStream(PooledByteBufAllocator.DEFAULT.buffer());
         try {
             byte[] pageEncoded = page.encode(byteBufOutputStream);
-            externalStore.put(keyCoder.keyEncode(key), pageEncoded);
+            putExternalPage(keyCoder.keyEncode(key), pageEncoded);
             if (pageTransfer) {
                 encodedNextPage = nextPage.encode(byteBufOutputStream);
-                externalStore.put(keyCoder.keyEncode(nextKey), encodedNextPage);
+                putExternalPage(keyCoder.keyEncode(nextKey), encodedNextPage);
             }
         } finally {
             byteBufOutputStream.buffer().release();
@@ -1793,17 +2083,26 @@ public abstract class AbstractPageCache<K, V extends BytesCodable> implements Pa
     @VisibleForTesting
     public void pushAllPagesToDisk() {
         final ByteBufOutputStream byteStream = new ByteBufOutputStream(PooledByteBufAllocator.DEFAULT.buffer());
+        EvictionBatch batch = new EvictionBatch(byteStream, false);
         try {
             for (Page<K, V> page : getEvictionQueue()) {
-                writeLock(page);
+                if (!writeTryLock(page)) {
+                    batch.flush();
+                    writeLock(page);
+                }
+                boolean batched = false;
                 try {
                     if (!page.inTransientState() && page.keys() != null) {
-                        pushPageToDisk(page, byteStream);
+                        batched = true;
+                        batch.add(page);
                     }
                 } finally {
-                    writeUnlockAndNull(page);
+                    if (!batched) {
+                        writeUnlockAndNull(page);
+                    }
                 }
             }
+            batch.flush();
         } finally {
             byteStream.buffer().release();
         }
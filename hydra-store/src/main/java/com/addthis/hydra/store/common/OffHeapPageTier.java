@@ -0,0 +1,216 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.common;
+
+import java.nio.ByteBuffer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.addthis.basis.util.Parameter;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+/**
+ * A second tier for the page cache that holds pages in their encoded
+ * form in pooled direct memory. Pages that are evicted from the heap are
+ * copied into this tier so that a page which is requested again shortly
+ * afterwards can be decoded without a trip to the external store. Pages
+ * read from the external store are not added, so a cold scan does not
+ * push out recently evicted pages.
+ * <p/>
+ * Entries are keyed by the encoded first key of the page. The keys are
+ * spread over independently locked stripes, and each stripe evicts in
+ * least recently used order once its share of the byte budget is exceeded.
+ * The owner is responsible for keeping this tier consistent with the
+ * external store: every write to the external store must either
+ * {@link #put} the new encoding or {@link #invalidate} the key.
+ */
+public final class OffHeapPageTier {
+
+    /**
+     * Upper bound on the number of stripes. Each stripe has at least
+     * {@link #MIN_STRIPE_BYTES} of the budget.
+     */
+    static final int maxStripes = Parameter.intValue("eps.cache.offheap.stripes", 16);
+
+    private static final long MIN_STRIPE_BYTES = 1024 * 1024;
+
+    private final long maxBytes;
+
+    private final Stripe[] stripes;
+
+    public final AtomicLong hits = new AtomicLong();
+    public final AtomicLong misses = new AtomicLong();
+    public final AtomicLong evictions = new AtomicLong();
+
+    public OffHeapPageTier(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive");
+        }
+        this.maxBytes = maxBytes;
+        int count = Integer.highestOneBit(Math.max(1, maxStripes));
+        while ((count > 1) && ((maxBytes / count) < MIN_STRIPE_BYTES)) {
+            count >>= 1;
+        }
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe(maxBytes / count);
+        }
+    }
+
+    private Stripe stripe(ByteBuffer key) {
+        int hash = key.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+    }
+
+    /**
+     * Returns a heap copy of the encoded page or null if the page
+     * is not present in this tier.
+     */
+    public byte[] get(byte[] encodedKey) {
+        ByteBuffer key = ByteBuffer.wrap(encodedKey);
+        Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            ByteBuf buf = stripe.entries.get(key);
+            if (buf == null) {
+                misses.getAndIncrement();
+                return null;
+            }
+            hits.getAndIncrement();
+            byte[] result = new byte[buf.readableBytes()];
+            buf.getBytes(buf.readerIndex(), result);
+            return result;
+        }
+    }
+
+    public boolean contains(byte[] encodedKey) {
+        ByteBuffer key = ByteBuffer.wrap(encodedKey);
+        Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            return stripe.entries.containsKey(key);
+        }
+    }
+
+    /**
+     * Store a copy of the encoded page, replacing any previous encoding
+     * for the key. Pages larger than the budget of a stripe are not retained.
+     */
+    public void put(byte[] encodedKey, byte[] encodedPage) {
+        ByteBuffer key = ByteBuffer.wrap(encodedKey);
+        Stripe stripe = stripe(key);
+        if ((encodedPage == null) || (encodedPage.length > stripe.maxBytes)) {
+            invalidate(encodedKey);
+            return;
+        }
+        ByteBuf buf = PooledByteBufAllocator.DEFAULT.directBuffer(encodedPage.length, encodedPage.length);
+        buf.writeBytes(encodedPage);
+        synchronized (stripe) {
+            stripe.release(stripe.entries.put(key, buf));
+            stripe.currentBytes += encodedPage.length;
+            Iterator<ByteBuf> iterator = stripe.entries.values().iterator();
+            while ((stripe.currentBytes > stripe.maxBytes) && iterator.hasNext()) {
+                ByteBuf eldest = iterator.next();
+                iterator.remove();
+                stripe.release(eldest);
+                evictions.getAndIncrement();
+            }
+        }
+    }
+
+    public void putAll(Map<byte[], byte[]> pages) {
+        for (Map.Entry<byte[], byte[]> entry : pages.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public void invalidate(byte[] encodedKey) {
+        ByteBuffer key = ByteBuffer.wrap(encodedKey);
+        Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            stripe.release(stripe.entries.remove(key));
+        }
+    }
+
+    /**
+     * Release all direct memory held by this tier.
+     */
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (ByteBuf buf : stripe.entries.values()) {
+                    stripe.release(buf);
+                }
+                stripe.entries.clear();
+            }
+        }
+    }
+
+    public long getBytes() {
+        long bytes = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                bytes += stripe.currentBytes;
+            }
+        }
+        return bytes;
+    }
+
+    public int getSize() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.entries.size();
+            }
+        }
+        return size;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    int getStripeCount() {
+        return stripes.length;
+    }
+
+    /**
+     * All access to the fields is synchronized on the stripe.
+     */
+    private static final class Stripe {
+
+        final long maxBytes;
+
+        /**
+         * Access ordered map from encoded first key to encoded page.
+         */
+        final LinkedHashMap<ByteBuffer, ByteBuf> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+        long currentBytes;
+
+        Stripe(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        void release(ByteBuf buf) {
+            if (buf != null) {
+                currentBytes -= buf.readableBytes();
+                buf.release();
+            }
+        }
+    }
+}
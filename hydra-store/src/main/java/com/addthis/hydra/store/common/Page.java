@@ -110,6 +110,17 @@ public interface Page<K, V extends BytesCodable> {
 
     long getWriteStamp();
 
+    /**
+     * Returns a stamp for a read of the page without the page lock
+     * or zero if the page is write locked or does not use locks.
+     * The read is consistent if {@link #validate(long)} returns true
+     * once it completes. A read that is not validated may observe the
+     * page in any intermediate state and must not act on what it saw.
+     */
+    long tryOptimisticRead();
+
+    boolean validate(long stamp);
+
     void incrementWriteStamp();
 
 }
@@ -15,9 +15,13 @@ package com.addthis.hydra.store.common;
 
 import com.addthis.codec.codables.BytesCodable;
 import com.addthis.hydra.store.nonconcurrent.NonConcurrentPageCache;
+import java.util.concurrent.TimeUnit;
+
 import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
 import com.yammer.metrics.core.Gauge;
 import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Timer;
 
 public class PageCacheMetrics<K, V extends BytesCodable> {
 
@@ -35,6 +39,31 @@ public class PageCacheMetrics<K, V extends BytesCodable> {
     @SuppressWarnings("unused")
     public final Gauge<Long> pagesDeletedGauge;
 
+    @SuppressWarnings("unused")
+    public final Gauge<Long> offHeapHitsGauge;
+
+    @SuppressWarnings("unused")
+    public final Gauge<Long> offHeapMissesGauge;
+
+    @SuppressWarnings("unused")
+    public final Gauge<Long> offHeapBytesGauge;
+
+    @SuppressWarnings("unused")
+    public final Gauge<Integer> offHeapPagesGauge;
+
+    // Uncompressed size of all encoded pages
+    public final Counter encodeRawBytes;
+
+    // Compressed size of all encoded pages
+    public final Counter encodeCompressedBytes;
+
+    @SuppressWarnings("unused")
+    public final Gauge<Double> compressionRatioGauge;
+
+    public final Timer encodeTimer;
+
+    public final Timer decodeTimer;
+
     public final Histogram encodeFirstKeySize;
 
     public final Histogram encodeNextFirstKeySize;
@@ -87,6 +116,66 @@ public class PageCacheMetrics<K, V extends BytesCodable> {
                     }
                 });
 
+        offHeapHitsGauge = Metrics.newGauge(cache.getClass(),
+                "offHeapHits", parent.scope,
+                new Gauge<Long>() {
+                    @Override
+                    public Long value() {
+                        OffHeapPageTier tier = parent.offHeapTier;
+                        return (tier != null) ? tier.hits.get() : 0L;
+                    }
+                });
+
+        offHeapMissesGauge = Metrics.newGauge(cache.getClass(),
+                "offHeapMisses", parent.scope,
+                new Gauge<Long>() {
+                    @Override
+                    public Long value() {
+                        OffHeapPageTier tier = parent.offHeapTier;
+                        return (tier != null) ? tier.misses.get() : 0L;
+                    }
+                });
+
+        offHeapBytesGauge = Metrics.newGauge(cache.getClass(),
+                "offHeapBytes", parent.scope,
+                new Gauge<Long>() {
+                    @Override
+                    public Long value() {
+                        OffHeapPageTier tier = parent.offHeapTier;
+                        return (tier != null) ? tier.getBytes() : 0L;
+                    }
+                });
+
+        offHeapPagesGauge = Metrics.newGauge(cache.getClass(),
+                "offHeapPages", parent.scope,
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer value() {
+                        OffHeapPageTier tier = parent.offHeapTier;
+                        return (tier != null) ? tier.getSize() : 0;
+                    }
+                });
+
+        encodeRawBytes = Metrics.newCounter(cache.getClass(), "encodeRawBytes", parent.scope);
+
+        encodeCompressedBytes = Metrics.newCounter(cache.getClass(), "encodeCompressedBytes", parent.scope);
+
+        compressionRatioGauge = Metrics.newGauge(cache.getClass(),
+                "compressionRatio", parent.scope,
+                new Gauge<Double>() {
+                    @Override
+                    public Double value() {
+                        long compressed = encodeCompressedBytes.count();
+                        return (compressed > 0) ? ((double) encodeRawBytes.count() / compressed) : 0.0;
+                    }
+                });
+
+        encodeTimer = Metrics.newTimer(cache.getClass(), "encodeTime", parent.scope,
+                                       TimeUnit.MICROSECONDS, TimeUnit.SECONDS);
+
+        decodeTimer = Metrics.newTimer(cache.getClass(), "decodeTime", parent.scope,
+                                       TimeUnit.MICROSECONDS, TimeUnit.SECONDS);
+
         encodeFirstKeySize = NonConcurrentPageCache.trackEncodingByteUsage ?
                 Metrics.newHistogram(cache.getClass(), "encodeFirstKeySize", parent.scope) :
                              null;
@@ -0,0 +1,348 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.common;
+
+import javax.annotation.Nullable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import com.addthis.basis.util.LessFiles;
+import com.addthis.basis.util.Parameter;
+
+import com.addthis.hydra.store.kv.PageEncodeType;
+import com.addthis.hydra.store.util.NamedThreadFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Selects the compression applied to the pages of one store and
+ * owns the dictionaries used by {@link PageCompression#DICTIONARY}.
+ * <p/>
+ * Dictionaries are kept in the store directory in files named
+ * {@code <dbname>.dict.<id>} so that any reader of the directory can
+ * decode the pages. When dictionary compression is requested and no
+ * dictionary exists yet, pages are written with {@link PageCompression#DEFLATE}
+ * while a sample of the uncompressed pages is collected. Once enough
+ * samples are available a dictionary is trained on a background thread
+ * and written to disk, and subsequent pages are encoded with it.
+ * <p/>
+ * A dictionary file is written to a temporary file, forced to disk and
+ * then renamed into place. Its id is the crc32 of its contents, which is
+ * checked whenever the file is read.
+ */
+public final class PageCodec {
+
+    private static final Logger log = LoggerFactory.getLogger(PageCodec.class);
+
+    static final int dictionarySamples = Parameter.intValue("eps.gz.dict.samples", 500);
+    static final int dictionarySampleBytes = Parameter.intValue("eps.gz.dict.sample.bytes", 4 * 1024 * 1024);
+    static final int dictionarySize = Parameter.intValue("eps.gz.dict.size", 16 * 1024);
+
+    /**
+     * Default false positive probability of the {@link PageFilter} written
+     * into each page. Zero disables the filters.
+     */
+    public static final double defaultFilterFpp = Double.parseDouble(Parameter.value("eps.page.filter.fpp", "0"));
+
+    private static final String DICTIONARY_SUFFIX = ".dict.";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Trains dictionaries off the encode path, which runs with page locks held.
+     */
+    private static final ExecutorService trainer =
+            Executors.newSingleThreadExecutor(new NamedThreadFactory("page-dictionary-trainer-", true));
+
+    private static final PageCodec DEFAULT = new PageCodec(PageCompression.defaultCompression(),
+                                                           AbstractPage.gzlevel, defaultFilterFpp,
+                                                           PageEncodeType.defaultPageType, null, null);
+
+    public final PageCompression compression;
+
+    public final int level;
+
+    public final double filterFpp;
+
+    /**
+     * Layout of newly written pages. Either {@link PageEncodeType#LONGIDS}
+     * or {@link PageEncodeType#PREFIX}.
+     */
+    public final PageEncodeType pageType;
+
+    @Nullable private final File dir;
+
+    @Nullable private final String dbname;
+
+    private final ConcurrentHashMap<Integer, PageDictionary> dictionaries = new ConcurrentHashMap<>();
+
+    @Nullable private volatile PageDictionary active;
+
+    /**
+     * True until a training set has been collected.
+     */
+    private volatile boolean sampling;
+
+    private final List<byte[]> samples = new ArrayList<>();
+
+    private int sampleBytes;
+
+    @Nullable private volatile Future<?> training;
+
+    /**
+     * Codec for stores that use the JVM wide compression settings and
+     * that have no directory of their own.
+     */
+    public static PageCodec defaultCodec() {
+        return DEFAULT;
+    }
+
+    /**
+     * @param compression compression for new pages. If null then use the JVM wide default.
+     * @param filterFpp   false positive probability of page filters. Zero disables the filters.
+     * @param pageType    layout of new pages. If null then use the JVM wide default.
+     * @param dir         directory that stores the dictionaries. If null then dictionaries are unavailable.
+     * @param dbname      prefix of the dictionary file names
+     */
+    public PageCodec(@Nullable PageCompression compression, int level, double filterFpp,
+                     @Nullable PageEncodeType pageType, @Nullable File dir, @Nullable String dbname) {
+        if (filterFpp < 0 || filterFpp >= 1) {
+            throw new IllegalArgumentException("filter false positive probability must be in [0, 1)");
+        }
+        this.compression = (compression != null) ? compression : PageCompression.defaultCompression();
+        this.level = level;
+        this.filterFpp = filterFpp;
+        this.pageType = (pageType != null) ? pageType : PageEncodeType.defaultPageType;
+        if (this.pageType.valueType() != PageEncodeType.defaultType()) {
+            throw new IllegalArgumentException("unsupported page type " + this.pageType);
+        }
+        this.dir = dir;
+        this.dbname = dbname;
+        if ((this.compression == PageCompression.DICTIONARY) && (dir == null)) {
+            throw new IllegalArgumentException("dictionary compression requires a directory");
+        }
+        if (dir != null) {
+            loadDictionaries();
+        }
+        this.sampling = (this.compression == PageCompression.DICTIONARY) && (active == null);
+    }
+
+    public PageCodec(@Nullable PageCompression compression, @Nullable File dir, @Nullable String dbname) {
+        this(compression, AbstractPage.gzlevel, defaultFilterFpp, null, dir, dbname);
+    }
+
+    private void loadDictionaries() {
+        String prefix = dbname + DICTIONARY_SUFFIX;
+        File[] files = dir.listFiles((d, name) -> name.startsWith(prefix));
+        if (files == null) {
+            return;
+        }
+        long newest = Long.MIN_VALUE;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(TEMP_SUFFIX)) {
+                // left behind by a crash before the rename
+                if (!file.delete()) {
+                    log.warn("[dictionary] unable to delete {}", file);
+                }
+                continue;
+            }
+            int id;
+            try {
+                id = Integer.parseUnsignedInt(name.substring(prefix.length()), 16);
+            } catch (NumberFormatException ex) {
+                log.warn("[dictionary] ignoring {} with an invalid id", file);
+                continue;
+            }
+            PageDictionary dictionary;
+            try {
+                dictionary = readDictionary(file, id);
+            } catch (IllegalStateException ex) {
+                log.warn("[dictionary] ignoring {}", file, ex);
+                continue;
+            }
+            dictionaries.put(dictionary.id, dictionary);
+            if (file.lastModified() > newest) {
+                newest = file.lastModified();
+                active = dictionary;
+            }
+        }
+    }
+
+    /**
+     * @throws IllegalStateException if the crc32 of the file does not match {@code id}
+     */
+    private static PageDictionary readDictionary(File file, int id) {
+        PageDictionary dictionary;
+        try {
+            dictionary = new PageDictionary(LessFiles.read(file));
+        } catch (IOException ex) {
+            throw new RuntimeException("unable to read page dictionary " + file, ex);
+        }
+        if (dictionary.id != id) {
+            throw new IllegalStateException("page dictionary " + file + " has checksum " +
+                                            Integer.toHexString(dictionary.id));
+        }
+        return dictionary;
+    }
+
+    private void writeDictionary(PageDictionary dictionary) throws IOException {
+        File file = dictionaryFile(dictionary.id);
+        File temp = new File(dir, file.getName() + TEMP_SUFFIX);
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(dictionary.bytes);
+            out.getChannel().force(true);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private File dictionaryFile(int id) {
+        return new File(dir, dbname + DICTIONARY_SUFFIX + Integer.toHexString(id));
+    }
+
+    /**
+     * Returns the compression that will be applied to the next encoded page.
+     */
+    public PageCompression current() {
+        if ((compression == PageCompression.DICTIONARY) && (active == null)) {
+            return PageCompression.DEFLATE;
+        }
+        return compression;
+    }
+
+    /**
+     * Returns true if the uncompressed form of the next encoded
+     * page should be passed to {@link #addSample(byte[])}.
+     */
+    public boolean isSampling() {
+        return sampling;
+    }
+
+    public void addSample(byte[] page) {
+        List<byte[]> trainingSet;
+        synchronized (samples) {
+            if (!sampling) {
+                return;
+            }
+            samples.add(page);
+            sampleBytes += page.length;
+            if ((samples.size() < dictionarySamples) && (sampleBytes < dictionarySampleBytes)) {
+                return;
+            }
+            trainingSet = new ArrayList<>(samples);
+            samples.clear();
+            sampling = false;
+            training = trainer.submit(() -> train(trainingSet));
+        }
+    }
+
+    /**
+     * Wait for a dictionary that is being trained.
+     *
+     * @return false if training did not finish within the timeout
+     */
+    @VisibleForTesting
+    public boolean awaitTraining(long timeout, TimeUnit unit) throws InterruptedException {
+        Future<?> current = training;
+        if (current == null) {
+            return true;
+        }
+        try {
+            current.get(timeout, unit);
+            return true;
+        } catch (ExecutionException ex) {
+            throw new RuntimeException(ex.getCause());
+        } catch (TimeoutException ex) {
+            return false;
+        }
+    }
+
+    private void train(List<byte[]> trainingSet) {
+        PageDictionary dictionary = PageDictionary.train(trainingSet, dictionarySize);
+        if (dictionary.bytes.length == 0) {
+            log.warn("[dictionary] no recurring content in {} sampled pages of {}", trainingSet.size(), dir);
+            return;
+        }
+        try {
+            writeDictionary(dictionary);
+        } catch (IOException ex) {
+            log.warn("[dictionary] unable to write dictionary for {}", dir, ex);
+            return;
+        }
+        dictionaries.put(dictionary.id, dictionary);
+        active = dictionary;
+        log.info("[dictionary] trained {} byte dictionary {} from {} pages of {}",
+                 dictionary.bytes.length, Integer.toHexString(dictionary.id), trainingSet.size(), dir);
+    }
+
+    /**
+     * Wrap the output stream with the compressor for the next page. The page
+     * flags byte must already have been written with the code of {@code compression}.
+     */
+    public OutputStream compress(OutputStream out, PageCompression compression) throws IOException {
+        byte[] dictionary = null;
+        if (compression == PageCompression.DICTIONARY) {
+            PageDictionary current = active;
+            new DataOutputStream(out).writeInt(current.id);
+            dictionary = current.bytes;
+        }
+        return compression.compress(out, level, dictionary);
+    }
+
+    public InputStream decompress(InputStream in, PageCompression compression) throws IOException {
+        byte[] dictionary = null;
+        if (compression == PageCompression.DICTIONARY) {
+            dictionary = dictionary(new DataInputStream(in).readInt()).bytes;
+        }
+        return compression.decompress(in, dictionary);
+    }
+
+    private PageDictionary dictionary(int id) {
+        PageDictionary dictionary = dictionaries.get(id);
+        if (dictionary == null && dir != null) {
+            // the dictionary may have been trained after this reader was opened
+            File file = dictionaryFile(id);
+            if (file.exists()) {
+                dictionary = readDictionary(file, id);
+                dictionaries.putIfAbsent(id, dictionary);
+            }
+        }
+        if (dictionary == null) {
+            throw new IllegalStateException("missing page dictionary " + Integer.toHexString(id) + " in " + dir);
+        }
+        return dictionary;
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.util.zip.GZIPInputStream;
+
+import com.addthis.basis.io.GZOut;
+
+import com.jcraft.jzlib.Deflater;
+import com.jcraft.jzlib.DeflaterOutputStream;
+import com.jcraft.jzlib.InflaterInputStream;
+import com.ning.compress.lzf.LZFInputStream;
+import com.ning.compress.lzf.LZFOutputStream;
+
+import org.apache.commons.compress.compressors.lz4.BlockLZ4CompressorInputStream;
+import org.apache.commons.compress.compressors.lz4.BlockLZ4CompressorOutputStream;
+import org.xerial.snappy.SnappyInputStream;
+import org.xerial.snappy.SnappyOutputStream;
+
+/**
+ * Compression applied to the body of an encoded page. The code of
+ * each constant is stored in the low three bits of the page flags byte
+ * and must never change. Codes 0 through 4 correspond to the historical
+ * values of the {@code eps.gz.type} parameter.
+ */
+public enum PageCompression {
+
+    NONE(0) {
+        @Override
+        OutputStream compress(OutputStream out, int level, byte[] dictionary) {
+            return out;
+        }
+
+        @Override
+        InputStream decompress(InputStream in, byte[] dictionary) {
+            return in;
+        }
+    },
+
+    DEFLATE(1) {
+        @Override
+        OutputStream compress(OutputStream out, int level, byte[] dictionary) throws IOException {
+            return new DeflaterOutputStream(out, new Deflater(level));
+        }
+
+        @Override
+        InputStream decompress(InputStream in, byte[] dictionary) throws IOException {
+            return new InflaterInputStream(in);
+        }
+
+        @Override
+        void finish(OutputStream os) throws IOException {
+            ((DeflaterOutputStream) os).finish();
+        }
+    },
+
+    GZIP(2) {
+        @Override
+        OutputStream compress(OutputStream out, int level, byte[] dictionary) throws IOException {
+            return new GZOut(out, AbstractPage.gzbuf, level);
+        }
+
+        @Override
+        InputStream decompress(InputStream in, byte[] dictionary) throws IOException {
+            return new GZIPInputStream(in);
+        }
+
+        @Override
+        void finish(OutputStream os) throws IOException {
+            ((GZOut) os).finish();
+        }
+    },
+
+    LZF(3) {
+        @Override
+        OutputStream compress(OutputStream out, int level, byte[] dictionary) {
+            return new LZFOutputStream(out);
+        }
+
+        @Override
+        InputStream decompress(InputStream in, byte[] dictionary) throws IOException {
+            return new LZFInputStream(in);
+        }
+    },
+
+    SNAPPY(4) {
+        @Override
+        OutputStream compress(OutputStream out, int level, byte[] dictionary) throws IOException {
+            return new SnappyOutputStream(out);
+        }
+
+        @Override
+        InputStream decompress(InputStream in, byte[] dictionary) throws IOException {
+            return new SnappyInputStream(in);
+        }
+    },
+
+    /**
+     * A single raw LZ4 block. The block extends to the end of the
+     * encoded page so no framing is required.
+     */
+    LZ4(5) {
+        @Override
+        OutputStream compress(OutputStream out, int level, byte[] dictionary) throws IOException {
+            return new BlockLZ4CompressorOutputStream(out);
+        }
+
+        @Override
+        InputStream decompress(InputStream in, byte[] dictionary) throws IOException {
+            return new BlockLZ4CompressorInputStream(in);
+        }
+
+        @Override
+        void finish(OutputStream os) throws IOException {
+            ((BlockLZ4CompressorOutputStream) os).finish();
+        }
+    },
+
+    /**
+     * Raw deflate primed with a dictionary trained from earlier
+     * pages of the same store. See {@link PageDictionary}.
+     */
+    DICTIONARY(6) {
+        @Override
+        OutputStream compress(OutputStream out, int level, byte[] dictionary) {
+            java.util.zip.Deflater deflater = new java.util.zip.Deflater(level, true);
+            deflater.setDictionary(dictionary);
+            return new java.util.zip.DeflaterOutputStream(out, deflater, AbstractPage.gzbuf) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        def.end();
+                    }
+                }
+            };
+        }
+
+        @Override
+        InputStream decompress(InputStream in, byte[] dictionary) {
+            java.util.zip.Inflater inflater = new java.util.zip.Inflater(true);
+            inflater.setDictionary(dictionary);
+            return new java.util.zip.InflaterInputStream(in, inflater, AbstractPage.gzbuf) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inf.end();
+                    }
+                }
+            };
+        }
+
+        @Override
+        void finish(OutputStream os) throws IOException {
+            ((java.util.zip.DeflaterOutputStream) os).finish();
+        }
+    };
+
+    public final int code;
+
+    private static final PageCompression[] byCode;
+
+    static {
+        byCode = new PageCompression[PageFilter.COMPRESSION_MASK + 1];
+        for (PageCompression compression : values()) {
+            byCode[compression.code] = compression;
+        }
+    }
+
+    PageCompression(int code) {
+        this.code = code;
+    }
+
+    public static PageCompression fromCode(int code) {
+        PageCompression result = (code >= 0 && code < byCode.length) ? byCode[code] : null;
+        if (result == null) {
+            throw new IllegalStateException("invalid page compression type: " + code);
+        }
+        return result;
+    }
+
+    /**
+     * The compression selected by the {@code eps.gz.type} parameter.
+     */
+    public static PageCompression defaultCompression() {
+        return fromCode(AbstractPage.gztype);
+    }
+
+    abstract OutputStream compress(OutputStream out, int level, byte[] dictionary) throws IOException;
+
+    abstract InputStream decompress(InputStream in, byte[] dictionary) throws IOException;
+
+    /**
+     * Write any buffered output without closing the underlying stream.
+     */
+    void finish(OutputStream os) throws IOException {}
+}
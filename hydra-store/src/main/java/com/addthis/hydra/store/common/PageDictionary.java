@@ -0,0 +1,162 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * A preset dictionary for {@link PageCompression#DICTIONARY}. Pages of a
+ * single tree share most of their structure (key prefixes, serialized class
+ * layouts) but each page is too small for the compressor to discover that
+ * on its own. Priming the compressor with fragments that recur across many
+ * pages recovers most of that redundancy.
+ * <p/>
+ * Training is a simplified form of the cover algorithm: every sample is cut
+ * into segments of at most {@link #SEGMENT_SIZE} bytes, each segment is scored by the number of samples
+ * that contain each of its k-grams, and the best segments are selected greedily
+ * with k-grams that are already covered no longer counting towards the score.
+ * Deflate encodes nearby matches more cheaply, so the best segments are placed
+ * at the end of the dictionary.
+ */
+public final class PageDictionary {
+
+    /**
+     * Deflate can only reference the last 32K of history.
+     */
+    public static final int MAX_SIZE = 32 * 1024;
+
+    static final int SEGMENT_SIZE = 64;
+
+    static final int GRAM_SIZE = 8;
+
+    public final int id;
+
+    public final byte[] bytes;
+
+    public PageDictionary(byte[] bytes) {
+        this.bytes = bytes;
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        this.id = (int) crc.getValue();
+    }
+
+    public static PageDictionary train(List<byte[]> samples, int maxSize) {
+        maxSize = Math.min(maxSize, MAX_SIZE);
+        Map<Long, Integer> frequencies = new HashMap<>();
+        List<Segment> segments = new ArrayList<>();
+        for (byte[] sample : samples) {
+            Set<Long> seen = new HashSet<>();
+            for (int i = 0; i + GRAM_SIZE <= sample.length; i++) {
+                seen.add(gram(sample, i));
+            }
+            for (Long gram : seen) {
+                frequencies.merge(gram, 1, Integer::sum);
+            }
+            for (int i = 0; i + GRAM_SIZE <= sample.length; i += SEGMENT_SIZE) {
+                segments.add(new Segment(sample, i, Math.min(SEGMENT_SIZE, sample.length - i)));
+            }
+        }
+        for (Segment segment : segments) {
+            segment.score = segment.score(frequencies);
+        }
+        // scores only decrease as grams are covered so stale scores are upper bounds
+        PriorityQueue<Segment> queue = new PriorityQueue<>(Math.max(1, segments.size()),
+                                                           (a, b) -> Integer.compare(b.score, a.score));
+        queue.addAll(segments);
+        List<Segment> selected = new ArrayList<>();
+        int size = 0;
+        while (!queue.isEmpty()) {
+            Segment best = queue.poll();
+            if (size + best.length > maxSize) {
+                break;
+            }
+            int score = best.score(frequencies);
+            if (!queue.isEmpty() && score < queue.peek().score) {
+                best.score = score;
+                queue.add(best);
+                continue;
+            }
+            // a fragment that appears in a single sample is not worth keeping
+            if (score <= best.grams()) {
+                break;
+            }
+            for (int i = 0; i < best.grams(); i++) {
+                frequencies.put(gram(best.sample, best.offset + i), 0);
+            }
+            selected.add(best);
+            size += best.length;
+        }
+        Collections.reverse(selected);
+        byte[] dictionary = new byte[size];
+        int position = 0;
+        for (Segment segment : selected) {
+            System.arraycopy(segment.sample, segment.offset, dictionary, position, segment.length);
+            position += segment.length;
+        }
+        return new PageDictionary(dictionary);
+    }
+
+    private static long gram(byte[] data, int offset) {
+        long result = 0;
+        for (int i = 0; i < GRAM_SIZE; i++) {
+            result = (result << 8) | (data[offset + i] & 0xff);
+        }
+        return result;
+    }
+
+    private static final class Segment {
+
+        final byte[] sample;
+        final int offset;
+        final int length;
+        int score;
+
+        Segment(byte[] sample, int offset, int length) {
+            this.sample = sample;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        int grams() {
+            return length - GRAM_SIZE + 1;
+        }
+
+        int score(Map<Long, Integer> frequencies) {
+            int score = 0;
+            for (int i = 0; i < grams(); i++) {
+                score += frequencies.getOrDefault(gram(sample, offset + i), 0);
+            }
+            return score;
+        }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return (other instanceof PageDictionary) && Arrays.equals(bytes, ((PageDictionary) other).bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return id;
+    }
+}
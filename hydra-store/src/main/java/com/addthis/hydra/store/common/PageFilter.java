@@ -0,0 +1,126 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.common;
+
+import javax.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.addthis.basis.util.Varint;
+
+import com.addthis.hydra.store.kv.KeyCoder;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+/**
+ * Bloom filter of the keys stored in a page. When enabled the filter is
+ * written uncompressed immediately after the page flags byte so that a
+ * reader can reject a key without decompressing or decoding the page.
+ * {@link com.addthis.hydra.store.kv.FilteredPageStore} also keeps a copy
+ * of each filter under the page key so that the filter can be read
+ * without reading the page.
+ * The filter is over the full encoded form of each key as produced by
+ * {@link KeyCoder#keyEncode(Object)}.
+ */
+public final class PageFilter {
+
+    /**
+     * Bit of the page flags byte that marks the presence of a filter.
+     * The remaining low bits hold the {@link PageCompression} code.
+     */
+    public static final int FLAGS_HAS_FILTER = 1 << 3;
+
+    public static final int COMPRESSION_MASK = FLAGS_HAS_FILTER - 1;
+
+    private final BloomFilter<byte[]> filter;
+
+    private final int sizeInBytes;
+
+    private PageFilter(BloomFilter<byte[]> filter, int sizeInBytes) {
+        this.filter = filter;
+        this.sizeInBytes = sizeInBytes;
+    }
+
+    public boolean mightContain(byte[] encodedKey) {
+        return filter.mightContain(encodedKey);
+    }
+
+    public int getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    static <K> void write(List<K> keys, int size, KeyCoder<K, ?> keyCoder,
+                          double fpp, OutputStream out) throws IOException {
+        BloomFilter<byte[]> filter = BloomFilter.create(Funnels.byteArrayFunnel(), Math.max(size, 1), fpp);
+        for (int i = 0; i < size; i++) {
+            filter.put(keyCoder.keyEncode(keys.get(i)));
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        filter.writeTo(bytes);
+        Varint.writeUnsignedVarInt(bytes.size(), new DataOutputStream(out));
+        bytes.writeTo(out);
+    }
+
+    public static void skip(InputStream in) throws IOException {
+        int length = Varint.readUnsignedVarInt(new DataInputStream(in));
+        new DataInputStream(in).skipBytes(length);
+    }
+
+    /**
+     * Returns the serialized filter of an encoded page or null if the page has no filter.
+     * The result can be stored apart from the page and read with {@link #decode(byte[])}.
+     */
+    @Nullable
+    public static byte[] extract(byte[] page) {
+        if ((page[0] & FLAGS_HAS_FILTER) == 0) {
+            return null;
+        }
+        try {
+            ByteArrayInputStream in = new ByteArrayInputStream(page, 1, page.length - 1);
+            int length = Varint.readUnsignedVarInt(new DataInputStream(in));
+            int start = page.length - in.available();
+            return Arrays.copyOfRange(page, start, start + length);
+        } catch (IOException ex) {
+            throw new IllegalStateException("corrupt page filter", ex);
+        }
+    }
+
+    public static PageFilter decode(byte[] filter) {
+        try {
+            return new PageFilter(BloomFilter.readFrom(new ByteArrayInputStream(filter),
+                                                       Funnels.byteArrayFunnel()), filter.length);
+        } catch (IOException ex) {
+            throw new IllegalStateException("corrupt page filter", ex);
+        }
+    }
+
+    /**
+     * Returns the filter of an encoded page or null if the page has no filter.
+     */
+    @Nullable
+    public static PageFilter fromPage(byte[] page) {
+        byte[] filter = extract(page);
+        return (filter != null) ? decode(filter) : null;
+    }
+}
@@ -28,7 +28,7 @@ import com.google.common.base.Throwables;
 
 /**
  */
-class DBKeyCoder<V extends BytesCodable> implements KeyCoder<DBKey, V> {
+public class DBKeyCoder<V extends BytesCodable> implements KeyCoder<DBKey, V> {
 
     protected final Codec codec;
     protected static final CodecBin2 codecBin2 = CodecBin2.INSTANCE;
@@ -29,10 +29,16 @@ import com.addthis.basis.util.LessFiles;
 import com.addthis.basis.util.Parameter;
 
 import com.addthis.codec.codables.BytesCodable;
+import com.addthis.hydra.store.common.AbstractPage;
+import com.addthis.hydra.store.common.PageCodec;
+import com.addthis.hydra.store.common.PageCompression;
 import com.addthis.hydra.store.common.PageFactory;
 import com.addthis.hydra.store.kv.ByteStore;
 import com.addthis.hydra.store.kv.ConcurrentByteStoreBDB;
+import com.addthis.hydra.store.kv.FilteredPageStore;
 import com.addthis.hydra.store.kv.MapDbByteStore;
+import com.addthis.hydra.store.kv.MappedLogByteStore;
+import com.addthis.hydra.store.kv.PageEncodeType;
 import com.addthis.hydra.store.kv.PagedKeyValueStore;
 
 import com.addthis.hydra.store.nonconcurrent.NonConcurrentPageCache;
@@ -50,9 +56,16 @@ public class PageDB<V extends BytesCodable> implements IPageDB<DBKey, V> {
 
     static final String PAGED_MAP_DB = "paged.mapdb";
     static final String PAGED_BERK_DB = "paged.bdb";
+    static final String PAGED_LOG_DB = "paged.log";
 
     public static final String DB_TYPE_FILENAME = "db.type";
 
+    /**
+     * Suffix of the subdirectory that holds a copy of the filter of each page,
+     * see {@link FilteredPageStore}.
+     */
+    static final String FILTER_DIRECTORY_SUFFIX = ".filters";
+
     static final String defaultDbName = Parameter.value("pagedb.dbname", "db.key");
     static final String DEFAULT_BYTESTORE = Parameter.value("pagedb.bytestore", PAGED_BERK_DB);
 
@@ -71,6 +84,9 @@ public class PageDB<V extends BytesCodable> implements IPageDB<DBKey, V> {
         // Optional parameters - initialized to default values;
         protected String dbname = defaultDbName;
         protected PageFactory<DBKey, V> pageFactory = ConcurrentPage.ConcurrentPageFactory.singleton;
+        protected PageCompression compression = null;
+        protected double filterFpp = PageCodec.defaultFilterFpp;
+        protected PageEncodeType pageType = null;
 
         public Builder(File dir, Class<? extends V> clazz, int maxPageSize, int maxPages) {
             this.dir = dir;
@@ -89,8 +105,36 @@ public class PageDB<V extends BytesCodable> implements IPageDB<DBKey, V> {
             return this;
         }
 
+        /**
+         * Compression of newly written pages. If null then use
+         * the JVM wide default from {@code eps.gz.type}.
+         */
+        public Builder<V> compression(PageCompression value) {
+            this.compression = value;
+            return this;
+        }
+
+        /**
+         * False positive probability of the key filter written into
+         * each page. Zero disables the filters.
+         */
+        public Builder<V> filterFpp(double value) {
+            this.filterFpp = value;
+            return this;
+        }
+
+        /**
+         * Layout of newly written pages. If null then use
+         * the JVM wide default from {@code eps.page.encode.type}.
+         */
+        public Builder<V> pageType(PageEncodeType value) {
+            this.pageType = value;
+            return this;
+        }
+
         public PageDB<V> build() throws IOException {
-            return new PageDB<>(dir, clazz, dbname, maxPageSize, maxPages, pageFactory);
+            PageCodec pageCodec = new PageCodec(compression, AbstractPage.gzlevel, filterFpp, pageType, dir, dbname);
+            return new PageDB<>(dir, clazz, dbname, maxPageSize, maxPages, pageFactory, pageCodec);
         }
     }
 
@@ -104,36 +148,54 @@ public class PageDB<V extends BytesCodable> implements IPageDB<DBKey, V> {
 
     public PageDB(File dir, Class<? extends V> clazz, String dbname, int maxPageSize,
                   int maxPages, PageFactory<DBKey, V> factory) throws IOException {
+        this(dir, clazz, dbname, maxPageSize, maxPages, factory, new PageCodec(null, dir, dbname));
+    }
+
+    public PageDB(File dir, Class<? extends V> clazz, String dbname, int maxPageSize,
+                  int maxPages, PageFactory<DBKey, V> factory, PageCodec pageCodec) throws IOException {
         String dbType = getByteStoreNameForFile(dir);
         this.keyCoder = new DBKeyCoder<>(clazz);
         LessFiles.initDirectory(dir);
-        ByteStore store;
-        switch (dbType) {
-            case PAGED_MAP_DB:
-                store = new MapDbByteStore(dir, dbname);
-                break;
-            case PAGED_BERK_DB:
-                // fall through -- the previous dbType was always something like 'pagedb' so this is expected
-            default:
-                store = new ConcurrentByteStoreBDB(dir, dbname);
-                break;
+        ByteStore store = createStore(dbType, dir, dbname);
+        File filterDir = filterDirectory(dir, dbname);
+        if (pageCodec.filterFpp > 0) {
+            store = new FilteredPageStore(store, createStore(dbType, filterDir, dbname));
+        } else if (filterDir.exists()) {
+            // pages written from now on have no filters so the old copies would go stale
+            LessFiles.deleteDir(filterDir);
         }
-
         switch (factory.getType()) {
             case NON_CONCURRENT:
                 this.eps =  new NonConcurrentPageCache.Builder<>(keyCoder, store, maxPageSize)
-                        .maxPages(maxPages).pageFactory(factory).build();
+                        .maxPages(maxPages).pageFactory(factory).pageCodec(pageCodec).build();
                 break;
             case CONCURRENT:
             default:
                 this.eps =  new SkipListCache.Builder<>(keyCoder, store, maxPageSize)
-                        .maxPages(maxPages).pageFactory(factory).build();
+                        .maxPages(maxPages).pageFactory(factory).pageCodec(pageCodec).build();
                 break;
         }
 
         LessFiles.write(new File(dir, DB_TYPE_FILENAME), LessBytes.toBytes(dbType), false);
     }
 
+    static File filterDirectory(File dir, String dbname) {
+        return new File(dir, dbname + FILTER_DIRECTORY_SUFFIX);
+    }
+
+    private static ByteStore createStore(String dbType, File dir, String dbname) {
+        switch (dbType) {
+            case PAGED_MAP_DB:
+                return new MapDbByteStore(dir, dbname);
+            case PAGED_LOG_DB:
+                return new MappedLogByteStore(dir, dbname);
+            case PAGED_BERK_DB:
+                // fall through -- the previous dbType was always something like 'pagedb' so this is expected
+            default:
+                return new ConcurrentByteStoreBDB(dir, dbname);
+        }
+    }
+
     public static String getByteStoreNameForFile(File dir) throws IOException {
         File typeFile = new File(dir, DB_TYPE_FILENAME);
         if (typeFile.exists()) {
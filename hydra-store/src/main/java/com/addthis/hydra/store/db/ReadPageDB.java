@@ -26,9 +26,11 @@ import com.addthis.basis.util.Parameter;
 import com.addthis.codec.Codec;
 import com.addthis.codec.binary.CodecBin2;
 import com.addthis.codec.codables.BytesCodable;
+import com.addthis.hydra.store.common.PageCodec;
 import com.addthis.hydra.store.kv.ByteStore;
 import com.addthis.hydra.store.kv.ByteStoreBDB;
 import com.addthis.hydra.store.kv.MapDbByteStore;
+import com.addthis.hydra.store.kv.MappedLogByteStore;
 import com.addthis.hydra.store.kv.PagedKeyValueStore;
 import com.addthis.hydra.store.kv.ReadExternalPagedStore;
 
@@ -63,20 +65,25 @@ public class ReadPageDB<V extends IReadWeighable & BytesCodable> implements IPag
                       int maxWeight, boolean metrics) throws IOException {
         this.clazz = clazz;
         String dbType = PageDB.getByteStoreNameForFile(dir);
-        ByteStore store;
+        ByteStore store = openStore(dbType, dir);
+        File filterDir = PageDB.filterDirectory(dir, defaultDbName);
+        ByteStore filters = filterDir.exists() ? openStore(dbType, filterDir) : null;
+        this.eps = new ReadExternalPagedStore<>(new ReadDBKeyCoder<>(codec, clazz), store, filters, maxSize,
+                                                maxWeight, metrics, new PageCodec(null, dir, defaultDbName));
+    }
+
+    private static ByteStore openStore(String dbType, File dir) {
         switch (dbType) {
             case PageDB.PAGED_MAP_DB:
-                store = new MapDbByteStore(dir, defaultDbName, true);
-                break;
+                return new MapDbByteStore(dir, defaultDbName, true);
+            case PageDB.PAGED_LOG_DB:
+                return new MappedLogByteStore(dir, defaultDbName, true);
             case PageDB.PAGED_BERK_DB:
                 // fall through -- the previous dbType was always something like 'pagedb' so this
                 // is expected
             default:
-                store = new ByteStoreBDB(dir, defaultDbName, true);
-                break;
+                return new ByteStoreBDB(dir, defaultDbName, true);
         }
-        this.eps = new ReadExternalPagedStore<>(new ReadDBKeyCoder<>(codec, clazz), store, maxSize,
-                                                maxWeight, metrics);
     }
 
     public String toString() {
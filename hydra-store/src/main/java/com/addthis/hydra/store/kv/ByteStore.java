@@ -14,6 +14,7 @@
 
 package com.addthis.hydra.store.kv;
 
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map;
 
@@ -36,6 +37,36 @@ public interface ByteStore {
 
     public byte[] get(byte[] key);
 
+    /**
+     * Store every (key, value) pair as a single batch. Callers that pass
+     * a map sorted by key allow the implementation to write sequentially.
+     * The default implementation performs one {@link #put} per entry.
+     */
+    public default void putAll(Map<byte[], byte[]> entries) {
+        for (Map.Entry<byte[], byte[]> entry : entries.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Returns true if {@link #putAll} writes a batch more cheaply than
+     * one {@link #put} per entry. Callers use this to decide whether
+     * collecting a batch is worth the wait.
+     */
+    public default boolean batchesWrites() {
+        return false;
+    }
+
+    /**
+     * Delete every key as a single batch. Missing keys are ignored.
+     * The default implementation performs one {@link #delete} per key.
+     */
+    public default void deleteAll(Collection<byte[]> keys) {
+        for (byte[] key : keys) {
+            delete(key);
+        }
+    }
+
     /**
      * return the least key strictly greater than the given key, or null if there is no such key.
      */
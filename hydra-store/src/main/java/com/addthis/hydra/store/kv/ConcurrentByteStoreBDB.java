@@ -16,6 +16,7 @@ package com.addthis.hydra.store.kv;
 import java.io.File;
 
 import java.util.AbstractMap;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
@@ -131,6 +132,44 @@ public class ConcurrentByteStoreBDB implements ByteStore {
         puts.incrementAndGet();
     }
 
+    /**
+     * Each entry is written with its own database operation, so BDB does no
+     * batching of its own here. The environment is non-transactional and the
+     * database uses deferred writes, which rules out one transaction per batch.
+     * Deferred writes already avoid a log flush per record. A single cursor
+     * would hold the lock of the previous record while it locks the next one,
+     * and can deadlock against a concurrent {@link #floorKey} that walks
+     * backwards over the same records. {@link #batchesWrites()} is false so
+     * that the page cache does not hold pages back to build a batch.
+     */
+    @Override
+    public void putAll(Map<byte[], byte[]> entries) {
+        long bytes = 0;
+        for (Map.Entry<byte[], byte[]> entry : entries.entrySet()) {
+            byte[] key = entry.getKey();
+            byte[] val = entry.getValue();
+            if (bdb.put(null, new DatabaseEntry(key), new DatabaseEntry(val)) != opSuccess) {
+                throw new RuntimeException("put fail");
+            }
+            bytes += key.length + val.length;
+        }
+        bytesOut.addAndGet(bytes);
+        puts.addAndGet(entries.size());
+    }
+
+    /**
+     * Deletes each key with its own database operation, see {@link #putAll}.
+     */
+    @Override
+    public void deleteAll(Collection<byte[]> keys) {
+        for (byte[] key : keys) {
+            OperationStatus status = bdb.delete(null, new DatabaseEntry(key));
+            if (status != opSuccess && status != OperationStatus.NOTFOUND) {
+                throw new RuntimeException("unable to delete");
+            }
+        }
+    }
+
     @Override
     public byte[] get(byte[] key) {
         final DatabaseEntry dv = new DatabaseEntry();
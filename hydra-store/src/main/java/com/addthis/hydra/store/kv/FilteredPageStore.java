@@ -0,0 +1,172 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.kv;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.addthis.hydra.store.common.PageFilter;
+
+import com.google.common.primitives.UnsignedBytes;
+
+/**
+ * Page store that copies the {@link PageFilter} of every page it writes
+ * into a second store under the page key. A reader can then test a key
+ * against the small filter record before it reads the page.
+ * <p/>
+ * Filters are written before their pages and a page written without a
+ * filter removes any previous filter, so a filter never excludes a key
+ * of the page that is stored under the same key.
+ */
+public class FilteredPageStore implements ByteStore {
+
+    private final ByteStore pages;
+    private final ByteStore filters;
+
+    public FilteredPageStore(ByteStore pages, ByteStore filters) {
+        this.pages = pages;
+        this.filters = filters;
+    }
+
+    @Override
+    public String toString() {
+        return "FPS[" + pages + "," + filters + "]";
+    }
+
+    @Override
+    public boolean hasKey(byte[] key) {
+        return pages.hasKey(key);
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return pages.isReadOnly();
+    }
+
+    @Override
+    public byte[] firstKey() {
+        return pages.firstKey();
+    }
+
+    @Override
+    public byte[] lastKey() {
+        return pages.lastKey();
+    }
+
+    @Override
+    public byte[] delete(byte[] key) {
+        filters.deleteAll(Collections.singletonList(key));
+        return pages.delete(key);
+    }
+
+    @Override
+    public void put(byte[] key, byte[] val) {
+        byte[] filter = PageFilter.extract(val);
+        if (filter != null) {
+            filters.put(key, filter);
+        } else {
+            filters.deleteAll(Collections.singletonList(key));
+        }
+        pages.put(key, val);
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        return pages.get(key);
+    }
+
+    @Override
+    public void putAll(Map<byte[], byte[]> entries) {
+        Map<byte[], byte[]> filterEntries = new TreeMap<>(UnsignedBytes.lexicographicalComparator());
+        List<byte[]> unfiltered = new ArrayList<>();
+        for (Map.Entry<byte[], byte[]> entry : entries.entrySet()) {
+            byte[] filter = PageFilter.extract(entry.getValue());
+            if (filter != null) {
+                filterEntries.put(entry.getKey(), filter);
+            } else {
+                unfiltered.add(entry.getKey());
+            }
+        }
+        if (!filterEntries.isEmpty()) {
+            filters.putAll(filterEntries);
+        }
+        if (!unfiltered.isEmpty()) {
+            filters.deleteAll(unfiltered);
+        }
+        pages.putAll(entries);
+    }
+
+    @Override
+    public boolean batchesWrites() {
+        return pages.batchesWrites();
+    }
+
+    @Override
+    public void deleteAll(Collection<byte[]> keys) {
+        filters.deleteAll(keys);
+        pages.deleteAll(keys);
+    }
+
+    @Override
+    public byte[] higherKey(byte[] key) {
+        return pages.higherKey(key);
+    }
+
+    @Override
+    public byte[] lowerKey(byte[] key) {
+        return pages.lowerKey(key);
+    }
+
+    @Override
+    public byte[] floorKey(byte[] key) {
+        return pages.floorKey(key);
+    }
+
+    @Override
+    public Map.Entry<byte[], byte[]> floorEntry(byte[] key) {
+        return pages.floorEntry(key);
+    }
+
+    @Override
+    public byte[] firstEntry() {
+        return pages.firstEntry();
+    }
+
+    @Override
+    public Iterator<byte[]> keyIterator(byte[] start) {
+        return pages.keyIterator(start);
+    }
+
+    @Override
+    public void close() {
+        pages.close();
+        filters.close();
+    }
+
+    @Override
+    public void close(boolean cleanLog) {
+        pages.close(cleanLog);
+        filters.close(cleanLog);
+    }
+
+    @Override
+    public long count() {
+        return pages.count();
+    }
+}
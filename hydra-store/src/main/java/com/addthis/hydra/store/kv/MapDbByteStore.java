@@ -16,6 +16,7 @@ package com.addthis.hydra.store.kv;
 
 import java.io.File;
 
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map;
 
@@ -95,6 +96,23 @@ public class MapDbByteStore implements ByteStore {
         btree.put(key, val);
     }
 
+    @Override
+    public void putAll(Map<byte[], byte[]> entries) {
+        btree.putAll(entries);
+    }
+
+    @Override
+    public boolean batchesWrites() {
+        return true;
+    }
+
+    @Override
+    public void deleteAll(Collection<byte[]> keys) {
+        for (byte[] key : keys) {
+            btree.remove(key);
+        }
+    }
+
     @Override
     public byte[] get(byte[] key) {
         return btree.get(key);
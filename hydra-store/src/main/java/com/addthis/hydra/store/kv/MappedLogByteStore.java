@@ -0,0 +1,700 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.kv;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import com.addthis.basis.util.LessFiles;
+import com.addthis.basis.util.Parameter;
+
+import com.addthis.hydra.store.util.NamedThreadFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.primitives.UnsignedBytes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only byte store. Values are appended to fixed size memory-mapped
+ * segment files and an in-memory sorted index maps each key to the location
+ * of its most recent record. Deletions append a tombstone record. On startup
+ * the index is rebuilt by replaying every segment in order.
+ * <p/>
+ * Overwritten and deleted records are reclaimed by a background thread that
+ * copies the live records of mostly-dead segments to the end of the log and
+ * then deletes the segment file.
+ * <p/>
+ * Record layout: {@code type (1 byte) | key length (4) | value length (4) |
+ * crc32 of key and value (4) | key | value}. A zero type byte marks the end
+ * of the written portion of a segment since new segment files are zero filled.
+ * The value of a tombstone is the id of the newest segment that may hold a put
+ * for its key. Compaction drops the tombstone once every segment up to that id
+ * has been removed.
+ */
+public class MappedLogByteStore implements ByteStore {
+
+    private static final Logger log = LoggerFactory.getLogger(MappedLogByteStore.class);
+
+    static final int segmentSize = Parameter.intValue("pagedb.log.segment.size", 64 * 1024 * 1024);
+    static final int compactPercent = Parameter.intValue("pagedb.log.compact.percent", 50);
+    static final int compactInterval = Parameter.intValue("pagedb.log.compact.interval", 30);
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final byte TYPE_END = 0;
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_DELETE = 2;
+
+    private static final int HEADER_SIZE = 13;
+
+    private final File dir;
+    private final String dbname;
+    private final boolean readonly;
+
+    /**
+     * Location of the most recent record for each key. The upper 32 bits
+     * of a location are the segment id and the lower 32 bits are the offset.
+     */
+    private final ConcurrentSkipListMap<byte[], Long> index =
+            new ConcurrentSkipListMap<>(UnsignedBytes.lexicographicalComparator());
+
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+
+    /**
+     * Guards appends to the active segment and updates to the index.
+     */
+    private final ReentrantLock appendLock = new ReentrantLock();
+
+    /**
+     * Readers hold the read lock while resolving and reading a location.
+     * The write lock is held while a compacted segment is removed.
+     */
+    private final ReentrantReadWriteLock segmentLock = new ReentrantReadWriteLock();
+
+    private final ScheduledExecutorService compactionExecutor;
+
+    private final AtomicLong gets = new AtomicLong(0);
+    private final AtomicLong puts = new AtomicLong(0);
+    private final AtomicLong bytesIn = new AtomicLong(0);
+    private final AtomicLong bytesOut = new AtomicLong(0);
+    private final AtomicLong segmentsCompacted = new AtomicLong(0);
+
+    private Segment active;
+
+    private volatile boolean closed;
+
+    public MappedLogByteStore(File dir, String dbname, boolean readonly) {
+        this.dir = readonly ? dir : LessFiles.initDirectory(dir);
+        this.dbname = dbname;
+        this.readonly = readonly;
+        try {
+            recover();
+            if (!readonly) {
+                if (segments.isEmpty()) {
+                    active = createSegment(1, segmentSize);
+                } else {
+                    active = segments.lastEntry().getValue();
+                }
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        if (readonly) {
+            compactionExecutor = null;
+        } else {
+            compactionExecutor = Executors.newSingleThreadScheduledExecutor(
+                    new NamedThreadFactory("log-bytestore-compaction-", true));
+            compactionExecutor.scheduleWithFixedDelay(this::compactQuietly, compactInterval,
+                                                      compactInterval, TimeUnit.SECONDS);
+        }
+        log.info("Log ByteStore started up for {} with {} segments and {} keys",
+                 dir, segments.size(), index.size());
+    }
+
+    public MappedLogByteStore(File dir, String dbname) {
+        this(dir, dbname, false);
+    }
+
+    @Override
+    public String toString() {
+        return "BSLOG[" + gets + "," + puts + "]";
+    }
+
+    @Override
+    public boolean hasKey(byte[] key) {
+        return index.containsKey(key);
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return readonly;
+    }
+
+    @Override
+    public byte[] firstKey() {
+        return keyOrNull(index.firstEntry());
+    }
+
+    @Override
+    public byte[] lastKey() {
+        return keyOrNull(index.lastEntry());
+    }
+
+    @Override
+    public byte[] delete(byte[] key) {
+        checkWritable();
+        appendLock.lock();
+        try {
+            Long previous = index.remove(key);
+            if (previous == null) {
+                return null;
+            }
+            long location = append(TYPE_DELETE, key, tombstone(segmentId(previous)));
+            markDead(previous);
+            // tombstones never count towards the live bytes of a segment
+            markDead(location);
+        } finally {
+            appendLock.unlock();
+        }
+        return index.lowerKey(key);
+    }
+
+    @Override
+    public void put(byte[] key, byte[] val) {
+        checkWritable();
+        appendLock.lock();
+        try {
+            long location = append(TYPE_PUT, key, val);
+            Long previous = index.put(key, location);
+            if (previous != null) {
+                markDead(previous);
+            }
+        } finally {
+            appendLock.unlock();
+        }
+        bytesOut.addAndGet(key.length + val.length);
+        puts.incrementAndGet();
+    }
+
+    /**
+     * The whole batch is appended while holding the append lock
+     * so the records are contiguous in the log.
+     */
+    @Override
+    public void putAll(Map<byte[], byte[]> entries) {
+        checkWritable();
+        long bytes = 0;
+        appendLock.lock();
+        try {
+            for (Map.Entry<byte[], byte[]> entry : entries.entrySet()) {
+                byte[] key = entry.getKey();
+                byte[] val = entry.getValue();
+                Long previous = index.put(key, append(TYPE_PUT, key, val));
+                if (previous != null) {
+                    markDead(previous);
+                }
+                bytes += key.length + val.length;
+            }
+        } finally {
+            appendLock.unlock();
+        }
+        bytesOut.addAndGet(bytes);
+        puts.addAndGet(entries.size());
+    }
+
+    @Override
+    public boolean batchesWrites() {
+        return true;
+    }
+
+    @Override
+    public void deleteAll(Collection<byte[]> keys) {
+        checkWritable();
+        appendLock.lock();
+        try {
+            for (byte[] key : keys) {
+                Long previous = index.remove(key);
+                if (previous != null) {
+                    markDead(previous);
+                    markDead(append(TYPE_DELETE, key, tombstone(segmentId(previous))));
+                }
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        segmentLock.readLock().lock();
+        try {
+            Long location = index.get(key);
+            if (location == null) {
+                return null;
+            }
+            byte[] val = readValue(location);
+            bytesIn.addAndGet(key.length + val.length);
+            gets.incrementAndGet();
+            return val;
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public byte[] higherKey(byte[] key) {
+        return index.higherKey(key);
+    }
+
+    @Override
+    public byte[] lowerKey(byte[] key) {
+        return index.lowerKey(key);
+    }
+
+    @Override
+    public byte[] floorKey(byte[] key) {
+        return index.floorKey(key);
+    }
+
+    @Override
+    public Map.Entry<byte[], byte[]> floorEntry(byte[] key) {
+        segmentLock.readLock().lock();
+        try {
+            Map.Entry<byte[], Long> entry = index.floorEntry(key);
+            if (entry == null) {
+                return null;
+            }
+            byte[] rkey = entry.getKey();
+            byte[] rval = readValue(entry.getValue());
+            gets.incrementAndGet();
+            bytesIn.addAndGet(rkey.length + rval.length);
+            return new AbstractMap.SimpleImmutableEntry<>(rkey, rval);
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    // returns the first value, see ByteStore
+    @Override
+    public byte[] firstEntry() {
+        segmentLock.readLock().lock();
+        try {
+            Map.Entry<byte[], Long> entry = index.firstEntry();
+            if (entry == null) {
+                return null;
+            }
+            gets.incrementAndGet();
+            return readValue(entry.getValue());
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Iterator<byte[]> keyIterator(byte[] start) {
+        return index.keySet().tailSet(start, false).iterator();
+    }
+
+    @Override
+    public void close() {
+        close(false);
+    }
+
+    /**
+     * Close the database.
+     *
+     * @param cleanLog if true then compact all eligible segments before closing.
+     */
+    @Override
+    public void close(boolean cleanLog) {
+        if (closed) {
+            return;
+        }
+        log.info("Closing log store for: {}", dir.getAbsolutePath());
+        if (compactionExecutor != null) {
+            compactionExecutor.shutdown();
+            try {
+                if (!compactionExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    log.warn("Timed out waiting for compaction to finish for {}", dir);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (cleanLog && !readonly) {
+            compact();
+        }
+        closed = true;
+        log.info("pages:gets=" + gets + " puts=" + puts + " in=" + bytesIn + " out=" + bytesOut +
+                 " segments=" + segments.size() + " compacted=" + segmentsCompacted);
+        for (Segment segment : segments.values()) {
+            segment.close(!readonly);
+        }
+    }
+
+    @Override
+    public long count() {
+        return index.size();
+    }
+
+    @VisibleForTesting
+    int segmentCount() {
+        return segments.size();
+    }
+
+    @VisibleForTesting
+    int tombstoneCount() {
+        int count = 0;
+        for (Segment segment : segments.values()) {
+            int offset = 0;
+            while (offset < segment.writePosition) {
+                if (segment.buffer.get(offset) == TYPE_DELETE) {
+                    count++;
+                }
+                offset += recordSize(segment.buffer.getInt(offset + 1), segment.buffer.getInt(offset + 5));
+            }
+        }
+        return count;
+    }
+
+    private void checkWritable() {
+        if (readonly) {
+            throw new UnsupportedOperationException("log store for " + dir + " is read only");
+        }
+    }
+
+    private static byte[] keyOrNull(Map.Entry<byte[], Long> entry) {
+        return (entry == null) ? null : entry.getKey();
+    }
+
+    private static int segmentId(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offset(long location) {
+        return (int) location;
+    }
+
+    private static long location(int segmentId, int offset) {
+        return ((long) segmentId << 32) | (offset & 0xffffffffL);
+    }
+
+    private static int checksum(byte[] key, byte[] val) {
+        CRC32 crc = new CRC32();
+        crc.update(key);
+        if (val != null) {
+            crc.update(val);
+        }
+        return (int) crc.getValue();
+    }
+
+    private static byte[] tombstone(int putSegmentId) {
+        return ByteBuffer.allocate(4).putInt(putSegmentId).array();
+    }
+
+    private File segmentFile(int id) {
+        return new File(dir, String.format("%s.%08d%s", dbname, id, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Caller must hold the segment read lock or the append lock.
+     */
+    private byte[] readValue(long location) {
+        Segment segment = segments.get(segmentId(location));
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int offset = offset(location);
+        int keyLength = buffer.getInt(offset + 1);
+        int valLength = buffer.getInt(offset + 5);
+        byte[] val = new byte[valLength];
+        buffer.position(offset + HEADER_SIZE + keyLength);
+        buffer.get(val);
+        return val;
+    }
+
+    /**
+     * @return the segment id held by the tombstone at {@code offset}, or -1 for an empty tombstone
+     */
+    private static int readTombstone(Segment segment, int offset) {
+        ByteBuffer buffer = segment.buffer;
+        if (buffer.getInt(offset + 5) != 4) {
+            return -1;
+        }
+        return buffer.getInt(offset + HEADER_SIZE + buffer.getInt(offset + 1));
+    }
+
+    private byte[] readKey(Segment segment, int offset) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        byte[] key = new byte[buffer.getInt(offset + 1)];
+        buffer.position(offset + HEADER_SIZE);
+        buffer.get(key);
+        return key;
+    }
+
+    private static int recordSize(int keyLength, int valLength) {
+        return HEADER_SIZE + keyLength + valLength;
+    }
+
+    private void markDead(long location) {
+        Segment segment = segments.get(segmentId(location));
+        if (segment != null) {
+            ByteBuffer buffer = segment.buffer;
+            int offset = offset(location);
+            segment.liveBytes.addAndGet(-recordSize(buffer.getInt(offset + 1), buffer.getInt(offset + 5)));
+        }
+    }
+
+    /**
+     * Caller must hold the append lock.
+     *
+     * @return location of the new record
+     */
+    private long append(byte type, byte[] key, byte[] val) {
+        int valLength = (val == null) ? 0 : val.length;
+        int size = recordSize(key.length, valLength);
+        try {
+            if ((active.capacity - active.writePosition) < size) {
+                active.buffer.force();
+                active = createSegment(active.id + 1, Math.max(segmentSize, size));
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        Segment segment = active;
+        int offset = segment.writePosition;
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(offset + 1);
+        buffer.putInt(key.length);
+        buffer.putInt(valLength);
+        buffer.putInt(checksum(key, val));
+        buffer.put(key);
+        if (val != null) {
+            buffer.put(val);
+        }
+        // the type byte is written last so that a partially written record is never replayed
+        buffer.put(offset, type);
+        segment.writePosition = offset + size;
+        segment.liveBytes.addAndGet(size);
+        return location(segment.id, offset);
+    }
+
+    private Segment createSegment(int id, int capacity) throws IOException {
+        File file = segmentFile(id);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(capacity);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            Segment segment = new Segment(id, file, buffer, capacity);
+            segments.put(id, segment);
+            return segment;
+        }
+    }
+
+    private Segment openSegment(int id, File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, readonly ? "r" : "rw")) {
+            int capacity = (int) raf.length();
+            MappedByteBuffer buffer = raf.getChannel().map(
+                    readonly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE, 0, capacity);
+            return new Segment(id, file, buffer, capacity);
+        }
+    }
+
+    /**
+     * Rebuild the index by replaying every segment in ascending order.
+     */
+    private void recover() throws IOException {
+        String prefix = dbname + ".";
+        File[] files = dir.listFiles((d, name) -> name.startsWith(prefix) && name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            int id = Integer.parseInt(name.substring(prefix.length(), name.length() - SEGMENT_SUFFIX.length()));
+            segments.put(id, openSegment(id, file));
+        }
+        for (Segment segment : segments.values()) {
+            replay(segment);
+        }
+    }
+
+    private void replay(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int offset = 0;
+        while ((offset + HEADER_SIZE) <= segment.capacity) {
+            byte type = buffer.get(offset);
+            if (type == TYPE_END) {
+                break;
+            }
+            int keyLength = buffer.getInt(offset + 1);
+            int valLength = buffer.getInt(offset + 5);
+            int size = recordSize(keyLength, valLength);
+            if (((type != TYPE_PUT) && (type != TYPE_DELETE)) || (keyLength < 0) || (valLength < 0) ||
+                ((offset + (long) size) > segment.capacity)) {
+                log.warn("Truncating {} at offset {} due to invalid record header", segment.file, offset);
+                break;
+            }
+            byte[] key = new byte[keyLength];
+            byte[] val = new byte[valLength];
+            buffer.position(offset + HEADER_SIZE);
+            buffer.get(key);
+            buffer.get(val);
+            if (checksum(key, val) != buffer.getInt(offset + 9)) {
+                log.warn("Truncating {} at offset {} due to checksum mismatch", segment.file, offset);
+                break;
+            }
+            long location = location(segment.id, offset);
+            Long previous;
+            if (type == TYPE_PUT) {
+                segment.liveBytes.addAndGet(size);
+                previous = index.put(key, location);
+            } else {
+                previous = index.remove(key);
+            }
+            if (previous != null) {
+                markDead(previous);
+            }
+            offset += size;
+        }
+        segment.writePosition = offset;
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (Exception ex) {
+            log.warn("Error during log compaction of {}", dir, ex);
+        }
+    }
+
+    /**
+     * Compact every sealed segment whose percentage of live bytes
+     * is below {@link #compactPercent}.
+     *
+     * @return number of segments removed
+     */
+    @VisibleForTesting
+    int compact() {
+        int compacted = 0;
+        for (Segment segment : segments.values()) {
+            if (closed) {
+                break;
+            }
+            if ((segment != active) && ((segment.liveBytes.get() * 100) < ((long) segment.writePosition * compactPercent))) {
+                compactSegment(segment);
+                compacted++;
+            }
+        }
+        return compacted;
+    }
+
+    private void compactSegment(Segment segment) {
+        int offset = 0;
+        while (offset < segment.writePosition) {
+            byte type = segment.buffer.get(offset);
+            int size = recordSize(segment.buffer.getInt(offset + 1), segment.buffer.getInt(offset + 5));
+            byte[] key = readKey(segment, offset);
+            long location = location(segment.id, offset);
+            appendLock.lock();
+            try {
+                if (type == TYPE_PUT) {
+                    Long current = index.get(key);
+                    if ((current != null) && (current == location)) {
+                        long moved = append(TYPE_PUT, key, readValue(location));
+                        index.put(key, moved);
+                    }
+                } else if (!index.containsKey(key)) {
+                    // older puts for the key are at or below the segment named by the tombstone
+                    int putSegmentId = segment.id - 1;
+                    int shadowed = readTombstone(segment, offset);
+                    if (shadowed >= 0) {
+                        putSegmentId = Math.min(putSegmentId, shadowed);
+                    }
+                    if (segments.firstKey() <= putSegmentId) {
+                        markDead(append(TYPE_DELETE, key, tombstone(putSegmentId)));
+                    }
+                }
+            } finally {
+                appendLock.unlock();
+            }
+            offset += size;
+        }
+        // the moved records must be durable before the only other copy is deleted
+        appendLock.lock();
+        try {
+            active.buffer.force();
+        } finally {
+            appendLock.unlock();
+        }
+        segmentLock.writeLock().lock();
+        try {
+            segments.remove(segment.id);
+        } finally {
+            segmentLock.writeLock().unlock();
+        }
+        segment.close(false);
+        if (!segment.file.delete()) {
+            log.warn("Unable to delete compacted segment {}", segment.file);
+        }
+        segmentsCompacted.incrementAndGet();
+    }
+
+    private static final class Segment {
+
+        final int id;
+        final File file;
+        final MappedByteBuffer buffer;
+        final int capacity;
+        final AtomicLong liveBytes = new AtomicLong();
+
+        /**
+         * Only modified while holding the append lock.
+         */
+        volatile int writePosition;
+
+        Segment(int id, File file, MappedByteBuffer buffer, int capacity) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+            this.capacity = capacity;
+        }
+
+        /**
+         * The mapping itself is released when the buffer is garbage collected.
+         */
+        void close(boolean force) {
+            if (force) {
+                buffer.force();
+            }
+        }
+    }
+}
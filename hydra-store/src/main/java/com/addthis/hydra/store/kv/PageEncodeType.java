@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.io.InputStream;
 
 import com.addthis.basis.util.LessBytes;
+import com.addthis.basis.util.Parameter;
 import com.addthis.basis.util.Varint;
 
 import com.google.common.primitives.Ints;
@@ -30,7 +31,19 @@ import io.netty.buffer.ByteBuf;
 public enum PageEncodeType {
     LEGACY,
     SPARSE,
-    LONGIDS;
+    LONGIDS,
+    /**
+     * Same header and value encoding as {@link #LONGIDS} but the entries
+     * are stored in a {@link PrefixBlock} that can be searched without
+     * decoding the whole page.
+     */
+    PREFIX;
+
+    /**
+     * Type of newly written pages.
+     */
+    public static final PageEncodeType defaultPageType =
+            PageEncodeType.valueOf(Parameter.value("eps.page.encode.type", "LONGIDS"));
 
     /**
      * Reads the next integer from the input stream.
@@ -47,6 +60,7 @@ public enum PageEncodeType {
                 return (int) LessBytes.readLength(in);
             case SPARSE:
             case LONGIDS:
+            case PREFIX:
                 assert dis != null;
                 return Varint.readUnsignedVarInt(dis);
             default:
@@ -67,6 +81,7 @@ public enum PageEncodeType {
                 return LessBytes.readBytes(in);
             case SPARSE:
             case LONGIDS:
+            case PREFIX:
                 assert dis != null;
                 return LessBytes.readBytes(in, Varint.readUnsignedVarInt(dis));
             default:
@@ -86,7 +101,8 @@ public enum PageEncodeType {
             case LEGACY:
                 return LessBytes.readBytes(in);
             case SPARSE:
-            case LONGIDS: {
+            case LONGIDS:
+            case PREFIX: {
                 assert dis != null;
                 int nextFirstKeyLength = Varint.readUnsignedVarInt(dis);
                 if (nextFirstKeyLength > 0) {
@@ -130,6 +146,24 @@ public enum PageEncodeType {
         }
     }
 
+    /**
+     * Type used to encode the keys and values of pages that are written with this type.
+     */
+    public PageEncodeType valueType() {
+        return (this == PREFIX) ? LONGIDS : this;
+    }
+
+    public static PageEncodeType fromOrdinal(int ordinal) {
+        PageEncodeType[] values = values();
+        if (ordinal < 0 || ordinal >= values.length) {
+            throw new IllegalStateException("unknown page type " + ordinal);
+        }
+        return values[ordinal];
+    }
+
+    /**
+     * Type used to encode the keys and values of pages in memory.
+     */
     public static PageEncodeType defaultType() {
         return LONGIDS;
     }
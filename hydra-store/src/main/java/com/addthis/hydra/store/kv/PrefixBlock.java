@@ -0,0 +1,252 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.kv;
+
+import javax.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.util.Arrays;
+
+import com.addthis.basis.util.Parameter;
+import com.addthis.basis.util.Varint;
+
+/**
+ * The entries of a {@link PageEncodeType#PREFIX} page. Keys are stored in
+ * their full byte encoding and each key only stores the suffix that differs
+ * from the previous key. Every {@link #restartInterval} entries the full
+ * key is stored and its offset is recorded in a restart table so that a
+ * lookup can binary search the restart points and then scan a single run
+ * of entries without decoding the rest of the page.
+ * <p/>
+ * The encoded form is:
+ * <pre>
+ * varint dataLength
+ * data: (varint shared, varint unshared, byte[unshared] key suffix, varint valueLength, byte[valueLength] value)*
+ * varint restarts
+ * int[restarts] offsets of the restart entries within data
+ * </pre>
+ * The search relies on the {@link KeyCoder#keyEncode(Object)} contract
+ * that the unsigned byte order of encoded keys matches the key order.
+ */
+public final class PrefixBlock {
+
+    public static final int restartInterval = Parameter.intValue("eps.page.restart.interval", 16);
+
+    private final byte[] data;
+
+    private final int[] restarts;
+
+    private final int entries;
+
+    private PrefixBlock(byte[] data, int[] restarts, int entries) {
+        this.data = data;
+        this.restarts = restarts;
+        this.entries = entries;
+    }
+
+    public static PrefixBlock read(DataInputStream dis, int entries) throws IOException {
+        byte[] data = new byte[Varint.readUnsignedVarInt(dis)];
+        dis.readFully(data);
+        int[] restarts = new int[Varint.readUnsignedVarInt(dis)];
+        for (int i = 0; i < restarts.length; i++) {
+            restarts[i] = dis.readInt();
+        }
+        return new PrefixBlock(data, restarts, entries);
+    }
+
+    public int getEntries() {
+        return entries;
+    }
+
+    /**
+     * Size of the encoded entries in bytes.
+     */
+    public int getByteSize() {
+        return data.length + 4 * restarts.length;
+    }
+
+    /**
+     * Returns the encoded value stored under the encoded key or null if the key is absent.
+     */
+    @Nullable
+    public byte[] get(byte[] key) {
+        if (restarts.length == 0) {
+            return null;
+        }
+        // find the last restart point whose key is less than or equal to the target
+        int low = 0;
+        int high = restarts.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (compareRestartKey(restarts[mid], key) <= 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        Cursor cursor = new Cursor(restarts[low]);
+        int end = (low + 1 < restarts.length) ? restarts[low + 1] : data.length;
+        while (cursor.position < end) {
+            cursor.next();
+            int cmp = compare(cursor.key, 0, cursor.keyLength, key, 0, key.length);
+            if (cmp == 0) {
+                return Arrays.copyOfRange(data, cursor.valueOffset, cursor.valueOffset + cursor.valueLength);
+            } else if (cmp > 0) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a cursor positioned before the first entry.
+     */
+    public Cursor cursor() {
+        return new Cursor(0);
+    }
+
+    private int compareRestartKey(int offset, byte[] key) {
+        int[] position = {offset};
+        int shared = readVarInt(position);
+        assert shared == 0;
+        int unshared = readVarInt(position);
+        return compare(data, position[0], unshared, key, 0, key.length);
+    }
+
+    private int readVarInt(int[] position) {
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            int b = data[position[0]++];
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    private static int compare(byte[] a, int aOffset, int aLength, byte[] b, int bOffset, int bLength) {
+        int length = Math.min(aLength, bLength);
+        for (int i = 0; i < length; i++) {
+            int cmp = (a[aOffset + i] & 0xff) - (b[bOffset + i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return aLength - bLength;
+    }
+
+    /**
+     * Forward iterator over the entries. The key buffer is reused between entries.
+     */
+    public final class Cursor {
+
+        private final int[] offset = new int[1];
+
+        private int position;
+
+        private byte[] key = new byte[32];
+
+        private int keyLength;
+
+        private int valueOffset;
+
+        private int valueLength;
+
+        private Cursor(int position) {
+            this.position = position;
+        }
+
+        public boolean hasNext() {
+            return position < data.length;
+        }
+
+        public void next() {
+            offset[0] = position;
+            int shared = readVarInt(offset);
+            int unshared = readVarInt(offset);
+            keyLength = shared + unshared;
+            if (keyLength > key.length) {
+                key = Arrays.copyOf(key, Math.max(keyLength, key.length * 2));
+            }
+            System.arraycopy(data, offset[0], key, shared, unshared);
+            offset[0] += unshared;
+            valueLength = readVarInt(offset);
+            valueOffset = offset[0];
+            position = valueOffset + valueLength;
+        }
+
+        public byte[] key() {
+            return Arrays.copyOf(key, keyLength);
+        }
+
+        public byte[] value() {
+            return Arrays.copyOfRange(data, valueOffset, valueOffset + valueLength);
+        }
+    }
+
+    /**
+     * Accumulates entries in increasing key order.
+     */
+    public static final class Writer {
+
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        private final DataOutputStream dos = new DataOutputStream(data);
+
+        private int[] restarts = new int[8];
+
+        private int numRestarts;
+
+        private int entries;
+
+        private byte[] previous;
+
+        public void add(byte[] key, byte[] value) throws IOException {
+            int shared = 0;
+            if (entries % restartInterval == 0) {
+                if (numRestarts == restarts.length) {
+                    restarts = Arrays.copyOf(restarts, numRestarts * 2);
+                }
+                restarts[numRestarts++] = data.size();
+            } else {
+                int length = Math.min(previous.length, key.length);
+                while (shared < length && previous[shared] == key[shared]) {
+                    shared++;
+                }
+            }
+            Varint.writeUnsignedVarInt(shared, dos);
+            Varint.writeUnsignedVarInt(key.length - shared, dos);
+            dos.write(key, shared, key.length - shared);
+            Varint.writeUnsignedVarInt(value.length, dos);
+            dos.write(value);
+            previous = key;
+            entries++;
+        }
+
+        public void writeTo(DataOutputStream out) throws IOException {
+            Varint.writeUnsignedVarInt(data.size(), out);
+            data.writeTo(out);
+            Varint.writeUnsignedVarInt(numRestarts, out);
+            for (int i = 0; i < numRestarts; i++) {
+                out.writeInt(restarts[i]);
+            }
+        }
+    }
+}
@@ -13,6 +13,8 @@
  */
 package com.addthis.hydra.store.kv;
 
+import javax.annotation.Nullable;
+
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.InputStream;
@@ -24,27 +26,27 @@ import java.util.NoSuchElementException;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.ExecutionException;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.addthis.basis.util.ClosableIterator;
 import com.addthis.basis.util.Parameter;
 
 import com.addthis.codec.codables.BytesCodable;
+import com.addthis.hydra.store.common.PageCodec;
+import com.addthis.hydra.store.common.PageCompression;
+import com.addthis.hydra.store.common.PageFilter;
 import com.addthis.hydra.store.db.IReadWeighable;
 import com.addthis.hydra.store.db.ReadDBKeyCoder;
 import com.addthis.hydra.store.kv.metrics.ExternalPagedStoreMetrics;
 
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.cache.Weigher;
 
-import com.jcraft.jzlib.InflaterInputStream;
-import com.ning.compress.lzf.LZFInputStream;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xerial.snappy.SnappyInputStream;
 
 /**
  * read only caching page store intended to play nice with the query system
@@ -73,6 +75,11 @@ public class ReadExternalPagedStore<K extends Comparable<K>, V extends IReadWeig
 
     private final boolean checkKeyRange = Parameter.boolValue("eps.keys.debug", false);
 
+    /**
+     * Maximum total size of the page filters that are retained after their pages are evicted.
+     */
+    private static final int filterCacheBytes = Parameter.intValue("eps.read.filter.cache.bytes", 16 * 1024 * 1024);
+
     private final ExternalPagedStoreMetrics metrics;
 
     private final boolean collectMetrics;
@@ -85,9 +92,43 @@ public class ReadExternalPagedStore<K extends Comparable<K>, V extends IReadWeig
      */
     private final LoadingCache<K, TreePage> loadingPageCache;
 
+    /**
+     * Filters of pages that have been read. A filter is much smaller than its
+     * decoded page so it can reject lookups long after the page is evicted.
+     */
+    private final Cache<K, PageFilter> filterCache;
+
     //backing byte store
     private final ByteStore pages;
 
+    /**
+     * Copies of the page filters stored under their page keys, or null.
+     * A filter is read from here before its page is fetched.
+     */
+    @Nullable private final ByteStore filters;
+
+    private final PageCodec pageCodec;
+
+    /**
+     * Pages fetched from the backing store.
+     */
+    public final AtomicLong pageReads = new AtomicLong();
+
+    /**
+     * Page reads avoided because the page filter excluded the key.
+     */
+    public final AtomicLong filterNegatives = new AtomicLong();
+
+    /**
+     * Page reads where the page filter did not exclude the key.
+     */
+    public final AtomicLong filterPositives = new AtomicLong();
+
+    /**
+     * Page reads where the page filter did not exclude the key but the key was absent.
+     */
+    public final AtomicLong filterFalsePositives = new AtomicLong();
+
     final KeyCoder<K, V> keyCoder;
 
     public ReadExternalPagedStore(KeyCoder<K, V> keyCoder, final ByteStore pages,
@@ -97,13 +138,34 @@ public class ReadExternalPagedStore<K extends Comparable<K>, V extends IReadWeig
 
     public ReadExternalPagedStore(final KeyCoder<K, V> keyCoder, final ByteStore pages,
                                   int maxSize, int maxWeight, boolean collect) {
+        this(keyCoder, pages, maxSize, maxWeight, collect, PageCodec.defaultCodec());
+    }
+
+    public ReadExternalPagedStore(final KeyCoder<K, V> keyCoder, final ByteStore pages,
+                                  int maxSize, int maxWeight, boolean collect, PageCodec pageCodec) {
+        this(keyCoder, pages, null, maxSize, maxWeight, collect, pageCodec);
+    }
+
+    /**
+     * @param filters copies of the page filters written by {@link FilteredPageStore}, or null
+     */
+    public ReadExternalPagedStore(final KeyCoder<K, V> keyCoder, final ByteStore pages, @Nullable ByteStore filters,
+                                  int maxSize, int maxWeight, boolean collect, PageCodec pageCodec) {
         this.keyCoder = keyCoder;
         this.pages = pages;
+        this.filters = filters;
+        this.pageCodec = pageCodec;
         log.info("[init] maxSize=" + maxSize + " maxWeight=" + maxWeight);
 
         collectMetrics = collectMetricsParameter || collect;
 
-        metrics = collectMetrics ? new ExternalPagedStoreMetrics() : null;
+        filterCache = CacheBuilder.newBuilder()
+                .weigher((K key, PageFilter filter) -> filter.getSizeInBytes())
+                .maximumWeight(filterCacheBytes)
+                .build();
+
+        metrics = collectMetrics ? new ExternalPagedStoreMetrics(
+                filterNegatives, filterPositives, filterFalsePositives) : null;
 
         // Prefer evicting on weight instead of page count
         if (maxWeight != 0) {
@@ -118,6 +180,7 @@ public class ReadExternalPagedStore<K extends Comparable<K>, V extends IReadWeig
                     .build(
                             new CacheLoader<K, TreePage>() {
                                 public TreePage load(K key) throws Exception {
+                                    pageReads.getAndIncrement();
                                     byte[] page = pages.get(keyCoder.keyEncode(key));
                                     if (page != null) {
                                         return pageDecode(page);
@@ -133,6 +196,7 @@ public class ReadExternalPagedStore<K extends Comparable<K>, V extends IReadWeig
                     .build(
                             new CacheLoader<K, TreePage>() {
                                 public TreePage load(K key) throws Exception {
+                                    pageReads.getAndIncrement();
                                     byte[] page = pages.get(keyCoder.keyEncode(key));
                                     if (page != null) {
                                         return pageDecode(page);
@@ -173,16 +237,87 @@ public class ReadExternalPagedStore<K extends Comparable<K>, V extends IReadWeig
      * TODO: Might as well store TreePage keys as undecoded bytes if we only use this method?
      */
     public V getValue(K key) {
-        KeyValuePage<K, V> page = getOrLoadPageForKey(key);
-        V value = page.getValue(key);
+        byte[] encodedKey = keyCoder.keyEncode(key);
+        byte[] pageKeyEncoded = pages.floorKey(encodedKey);
+        K pageKey = keyCoder.keyDecode(pageKeyEncoded);
+        V value = null;
+        if (pageKey != null) {
+            TreePage page = loadingPageCache.getIfPresent(pageKey);
+            if (page != null) {
+                value = page.getValue(key);
+            } else {
+                value = getValueFromStore(key, encodedKey, pageKey, pageKeyEncoded);
+            }
+        }
         if (collectMetrics) {
             metrics.updateGetValue(value);
         }
         return value;
     }
 
+    /**
+     * Consult the page filter before the page is fetched and decoded.
+     * A filter that is not cached is read from the filter store. Pages
+     * without a stored filter are fetched and their own filter is checked
+     * before the page is decoded.
+     */
+    private V getValueFromStore(K key, byte[] encodedKey, K pageKey, byte[] pageKeyEncoded) {
+        PageFilter filter = filterCache.getIfPresent(pageKey);
+        if ((filter == null) && (filters != null)) {
+            byte[] encodedFilter = filters.get(pageKeyEncoded);
+            if (encodedFilter != null) {
+                filter = PageFilter.decode(encodedFilter);
+                filterCache.put(pageKey, filter);
+            }
+        }
+        TreePage page;
+        try {
+            if (filter != null) {
+                if (!filterContains(filter, encodedKey)) {
+                    return null;
+                }
+                page = loadingPageCache.get(pageKey);
+            } else {
+                pageReads.getAndIncrement();
+                byte[] encodedPage = pages.get(pageKeyEncoded);
+                if (encodedPage == null) {
+                    return null;
+                }
+                filter = PageFilter.fromPage(encodedPage);
+                if (filter != null) {
+                    filterCache.put(pageKey, filter);
+                    if (!filterContains(filter, encodedKey)) {
+                        return null;
+                    }
+                }
+                page = loadingPageCache.get(pageKey, () -> pageDecode(encodedPage));
+            }
+        } catch (ExecutionException e) {
+            // the page was removed from the store after its key was found
+            throw new IllegalStateException("unable to load page " + pageKey, e);
+        }
+        V value = page.getValue(key);
+        if (filter != null && value == null) {
+            filterFalsePositives.getAndIncrement();
+        }
+        return value;
+    }
+
+    private boolean filterContains(PageFilter filter, byte[] encodedKey) {
+        if (filter.mightContain(encodedKey)) {
+            filterPositives.getAndIncrement();
+            return true;
+        } else {
+            filterNegatives.getAndIncrement();
+            return false;
+        }
+    }
+
     public void close() {
         pages.close();
+        if (filters != null) {
+            filters.close();
+        }
     }
 
     //decode pages. Called on the bytes returned by store.get()
@@ -190,39 +325,13 @@ public class ReadExternalPagedStore<K extends Comparable<K>, V extends IReadWeig
         try {
             InputStream in = new ByteArrayInputStream(page);
             int flags = in.read() & 0xff;
-            int gztype = flags & 0x0f;
             int pageType = flags >>> TYPE_BIT_OFFSET;
-            switch (gztype) {
-                case 1:
-                    in = new InflaterInputStream(in);
-                    break;
-                case 2:
-                    in = new GZIPInputStream(in);
-                    break;
-                case 3:
-                    in = new LZFInputStream(in);
-                    break;
-                case 4:
-                    in = new SnappyInputStream(in);
-                    break;
-            }
-            PageEncodeType pageEncodeType;
-            DataInputStream dis = null;
-            switch (pageType) {
-                case 0:
-                    pageEncodeType = PageEncodeType.LEGACY;
-                    break;
-                case 1:
-                    pageEncodeType = PageEncodeType.SPARSE;
-                    dis = new DataInputStream(in);
-                    break;
-                case 2:
-                    pageEncodeType = PageEncodeType.LONGIDS;
-                    dis = new DataInputStream(in);
-                    break;
-                default:
-                    throw new IllegalStateException("unknown page type " + pageType);
+            if ((flags & PageFilter.FLAGS_HAS_FILTER) != 0) {
+                PageFilter.skip(in);
             }
+            in = pageCodec.decompress(in, PageCompression.fromCode(flags & PageFilter.COMPRESSION_MASK));
+            PageEncodeType pageEncodeType = PageEncodeType.fromOrdinal(pageType);
+            DataInputStream dis = (pageEncodeType != PageEncodeType.LEGACY) ? new DataInputStream(in) : null;
             TreePage decode;
             int entries = pageEncodeType.readInt(in, dis);
             if (collectMetrics) {
@@ -238,13 +347,19 @@ public class ReadExternalPagedStore<K extends Comparable<K>, V extends IReadWeig
                 decode.originalByteSize += nextFirstKeyBytes.length;
             }
 
-            for (int i = 0; i < entries; i++) {
-                byte[] kb = pageEncodeType.readBytes(in, dis);
-                decode.originalByteSize += kb.length;
-                byte[] vb = pageEncodeType.readBytes(in, dis);
-                decode.originalByteSize += vb.length;
-                K key = keyCoder.keyDecode(kb, firstKey, pageEncodeType);
-                decode.map.put(key, new PageValue(vb, pageEncodeType));
+            if (pageEncodeType == PageEncodeType.PREFIX) {
+                // entries are decoded on demand
+                decode.block = PrefixBlock.read(dis, entries);
+                decode.originalByteSize += decode.block.getByteSize();
+            } else {
+                for (int i = 0; i < entries; i++) {
+                    byte[] kb = pageEncodeType.readBytes(in, dis);
+                    decode.originalByteSize += kb.length;
+                    byte[] vb = pageEncodeType.readBytes(in, dis);
+                    decode.originalByteSize += vb.length;
+                    K key = keyCoder.keyDecode(kb, firstKey, pageEncodeType);
+                    decode.map.put(key, new PageValue(vb, pageEncodeType));
+                }
             }
 
             //ignoring memory data
@@ -314,6 +429,13 @@ public class ReadExternalPagedStore<K extends Comparable<K>, V extends IReadWeig
 
         private int originalByteSize;
 
+        /**
+         * Undecoded entries of a {@link PageEncodeType#PREFIX} page. Point reads
+         * search the block directly. The map is populated from the block the first
+         * time an operation needs the ordered entries.
+         */
+        @Nullable private volatile PrefixBlock block;
+
         TreePage(K firstKey) {
             this.firstKey = firstKey;
             this.map = new TreeMap<>(this);
@@ -338,9 +460,34 @@ public class ReadExternalPagedStore<K extends Comparable<K>, V extends IReadWeig
             }
         }
 
+        /**
+         * Decode every entry of a prefix block into the map.
+         */
+        private TreeMap<K, PageValue> map() {
+            if (block != null) {
+                synchronized (map) {
+                    PrefixBlock current = block;
+                    if (current != null) {
+                        PrefixBlock.Cursor cursor = current.cursor();
+                        while (cursor.hasNext()) {
+                            cursor.next();
+                            map.put(keyCoder.keyDecode(cursor.key()),
+                                    new PageValue(cursor.value(), PageEncodeType.PREFIX.valueType()));
+                        }
+                        block = null;
+                    }
+                }
+            }
+            return map;
+        }
+
         @Override
         public boolean containsKey(K key) {
-            return map.containsKey(key);
+            PrefixBlock current = block;
+            if (current != null) {
+                return current.get(keyCoder.keyEncode(key)) != null;
+            }
+            return map().containsKey(key);
         }
 
         @Override
@@ -350,17 +497,23 @@ public class ReadExternalPagedStore<K extends Comparable<K>, V extends IReadWeig
 
         @Override
         public K getLastKey() {
-            if (map.size() == 0) {
+            TreeMap<K, PageValue> entries = map();
+            if (entries.size() == 0) {
                 return null;
             } else {
-                return map.lastKey();
+                return entries.lastKey();
             }
         }
 
         @Override
         public V getValue(K key) {
             checkKey(key);
-            PageValue pv = map.get(key);
+            PrefixBlock current = block;
+            if (current != null) {
+                byte[] raw = current.get(keyCoder.keyEncode(key));
+                return (raw != null) ? keyCoder.valueDecode(raw, PageEncodeType.PREFIX.valueType()) : null;
+            }
+            PageValue pv = map().get(key);
             if (pv != null) {
                 return pv.value();
             } else {
@@ -395,7 +548,8 @@ public class ReadExternalPagedStore<K extends Comparable<K>, V extends IReadWeig
 
         @Override
         public Iterator<Map.Entry<K, V>> range(K start) {
-            SortedMap<K, PageValue> tailMap = start != null ? map.tailMap(start) : map;
+            TreeMap<K, PageValue> entries = map();
+            SortedMap<K, PageValue> tailMap = start != null ? entries.tailMap(start) : entries;
             if (log.isDebugEnabled()) {
                 log.debug("range start=" + start + " tailMap=" + tailMap + " map=" + map);
             }
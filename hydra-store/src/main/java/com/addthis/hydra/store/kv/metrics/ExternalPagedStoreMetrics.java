@@ -51,7 +51,25 @@ public class ExternalPagedStoreMetrics {
     @SuppressWarnings("unused")
     private final Histogram pageSize;
 
-    public ExternalPagedStoreMetrics() {
+    @Nonnull
+    @SuppressWarnings("unused")
+    private final Gauge<Long> filterNegativesGauge;
+
+    @Nonnull
+    @SuppressWarnings("unused")
+    private final Gauge<Long> filterPositivesGauge;
+
+    @Nonnull
+    @SuppressWarnings("unused")
+    private final Gauge<Long> filterFalsePositivesGauge;
+
+    /**
+     * @param filterNegatives      page reads avoided by the page filters
+     * @param filterPositives      page reads that the page filters did not avoid
+     * @param filterFalsePositives page reads that the page filters should have avoided
+     */
+    public ExternalPagedStoreMetrics(AtomicLong filterNegatives, AtomicLong filterPositives,
+                                     AtomicLong filterFalsePositives) {
         getHits = new AtomicLong();
         getMisses = new AtomicLong();
 
@@ -84,6 +102,30 @@ public class ExternalPagedStoreMetrics {
                 });
 
         pageSize = Metrics.newHistogram(getClass(), "pageSize", metricsScope);
+
+        filterNegativesGauge = Metrics.newGauge(getClass(), "filterNegatives", metricsScope,
+                new Gauge<Long>() {
+                    @Override
+                    public Long value() {
+                        return filterNegatives.get();
+                    }
+                });
+
+        filterPositivesGauge = Metrics.newGauge(getClass(), "filterPositives", metricsScope,
+                new Gauge<Long>() {
+                    @Override
+                    public Long value() {
+                        return filterPositives.get();
+                    }
+                });
+
+        filterFalsePositivesGauge = Metrics.newGauge(getClass(), "filterFalsePositives", metricsScope,
+                new Gauge<Long>() {
+                    @Override
+                    public Long value() {
+                        return filterFalsePositives.get();
+                    }
+                });
     }
 
     public void updatePageSize(int value) {
@@ -17,6 +17,7 @@ import com.addthis.codec.codables.BytesCodable;
 import com.addthis.hydra.store.common.AbstractPageCache;
 import com.addthis.hydra.store.common.ExternalMode;
 import com.addthis.hydra.store.common.Page;
+import com.addthis.hydra.store.common.PageCodec;
 import com.addthis.hydra.store.common.PageFactory;
 import com.addthis.hydra.store.db.CloseOperation;
 import com.addthis.hydra.store.kv.ByteStore;
@@ -60,6 +61,7 @@ public class NonConcurrentPageCache<K, V extends BytesCodable> extends AbstractP
         // Optional parameters - initialized to default values;
         protected int maxPages = defaultMaxPages;
         protected PageFactory<K, V> pageFactory = NonConcurrentPage.NonConcurrentPageFactory.singleton;
+        protected PageCodec pageCodec = PageCodec.defaultCodec();
 
         public Builder(KeyCoder<K, V> keyCoder, ByteStore store, int maxPageSize) {
             this.externalStore = store;
@@ -79,20 +81,31 @@ public class NonConcurrentPageCache<K, V extends BytesCodable> extends AbstractP
             return this;
         }
 
+        @SuppressWarnings("unused")
+        public Builder<K, V> pageCodec(PageCodec codec) {
+            pageCodec = codec;
+            return this;
+        }
+
         public NonConcurrentPageCache<K, V> build() {
             return new NonConcurrentPageCache<>(keyCoder, externalStore, maxPageSize,
-                    maxPages, pageFactory);
+                    maxPages, pageFactory, pageCodec);
         }
 
     }
 
     public NonConcurrentPageCache(KeyCoder<K, V> keyCoder, ByteStore externalStore, int maxPageSize,
                                   int maxPages, PageFactory<K, V> pageFactory) {
-        super(keyCoder, externalStore, pageFactory, maxPageSize, maxPages, false);
+        this(keyCoder, externalStore, maxPageSize, maxPages, pageFactory, PageCodec.defaultCodec());
+    }
+
+    public NonConcurrentPageCache(KeyCoder<K, V> keyCoder, ByteStore externalStore, int maxPageSize,
+                                  int maxPages, PageFactory<K, V> pageFactory, PageCodec pageCodec) {
+        super(keyCoder, externalStore, pageFactory, maxPageSize, maxPages, false, 0, pageCodec);
 
         log.info("[init] ro=" + isReadOnly() + " maxPageSize=" + maxPageSize +
-                " maxPages=" + maxPages + " gztype=" + NonConcurrentPage.gztype + " gzlevel=" +
-                NonConcurrentPage.gzlevel + " gzbuf=" + NonConcurrentPage.gzbuf + " mem[page=" + mem_page + " type=NonConcurrentPageCache]");
+                " maxPages=" + maxPages + " compression=" + pageCodec.current() + " gzlevel=" +
+                pageCodec.level + " gzbuf=" + NonConcurrentPage.gzbuf + " mem[page=" + mem_page + " type=NonConcurrentPageCache]");
 
     }
 
@@ -19,6 +19,7 @@ import com.addthis.hydra.store.common.AbstractPage;
 import com.addthis.hydra.store.common.AbstractPageCache;
 import com.addthis.hydra.store.common.ExternalMode;
 import com.addthis.hydra.store.common.Page;
+import com.addthis.hydra.store.common.PageCodec;
 import com.addthis.hydra.store.common.PageFactory;
 import com.addthis.hydra.store.db.CloseOperation;
 import com.addthis.hydra.store.kv.ByteStore;
@@ -122,6 +123,8 @@ public class SkipListCache<K, V extends BytesCodable> extends AbstractPageCache<
         protected int maxPages = defaultMaxPages;
         @SuppressWarnings("unchecked")
         protected PageFactory<K, V> pageFactory = ConcurrentPage.ConcurrentPageFactory.singleton;
+        protected long offHeapBytes = defaultOffHeapBytes;
+        protected PageCodec pageCodec = PageCodec.defaultCodec();
 
         public Builder(KeyCoder<K, V> keyCoder, ByteStore store, int maxPageSize) {
             this.externalStore = store;
@@ -146,9 +149,26 @@ public class SkipListCache<K, V extends BytesCodable> extends AbstractPageCache<
             return this;
         }
 
+        /**
+         * Byte budget for encoded pages retained off-heap after
+         * they are read from or written to the external store.
+         * Zero disables the off-heap tier.
+         */
+        @SuppressWarnings("unused")
+        public Builder<K, V> offHeapBytes(long val) {
+            offHeapBytes = val;
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public Builder<K, V> pageCodec(PageCodec codec) {
+            pageCodec = codec;
+            return this;
+        }
+
         public SkipListCache<K, V> build() {
             return new SkipListCache<>(keyCoder, externalStore, maxPageSize,
-                    maxPages, numEvictionThreads, pageFactory);
+                    maxPages, numEvictionThreads, pageFactory, offHeapBytes, pageCodec);
         }
 
     }
@@ -156,7 +176,14 @@ public class SkipListCache<K, V extends BytesCodable> extends AbstractPageCache<
 
     public SkipListCache(KeyCoder<K, V> keyCoder, ByteStore externalStore, int maxPageSize,
                          int maxPages, int numEvictionThreads, PageFactory<K, V> pageFactory) {
-        super(keyCoder, externalStore, pageFactory, maxPageSize, maxPages, true);
+        this(keyCoder, externalStore, maxPageSize, maxPages, numEvictionThreads, pageFactory,
+             defaultOffHeapBytes, PageCodec.defaultCodec());
+    }
+
+    public SkipListCache(KeyCoder<K, V> keyCoder, ByteStore externalStore, int maxPageSize,
+                         int maxPages, int numEvictionThreads, PageFactory<K, V> pageFactory,
+                         long offHeapBytes, PageCodec pageCodec) {
+        super(keyCoder, externalStore, pageFactory, maxPageSize, maxPages, true, offHeapBytes, pageCodec);
 
         this.evictionTaskQueue = new LinkedBlockingQueue<>();
         this.purgeSet = new ConcurrentSkipListSet<>();
@@ -182,8 +209,9 @@ public class SkipListCache<K, V extends BytesCodable> extends AbstractPageCache<
         }
 
         log.info("[init] ro=" + isReadOnly() + " maxPageSize=" + maxPageSize +
-                " maxPages=" + maxPages + " gztype=" + AbstractPage.gztype + " gzlevel=" +
-                AbstractPage.gzlevel + " gzbuf=" + AbstractPage.gzbuf + " mem[page=" + mem_page + " type=SkipListCache]");
+                " maxPages=" + maxPages + " compression=" + pageCodec.current() + " gzlevel=" +
+                pageCodec.level + " gzbuf=" + AbstractPage.gzbuf + " offHeapBytes=" + offHeapBytes +
+                " mem[page=" + mem_page + " type=SkipListCache]");
 
     }
 
@@ -623,10 +651,15 @@ public class SkipListCache<K, V extends BytesCodable> extends AbstractPageCache<
 
     public void backgroundEviction() {
         ByteBufOutputStream byteStream = new ByteBufOutputStream(PooledByteBufAllocator.DEFAULT.buffer());
+        EvictionBatch batch = new EvictionBatch(byteStream, true);
         try {
-            while (shutdownEvictionThreads.get() && shouldEvictPage() && doEvictPage(byteStream)) ;
+            while (shutdownEvictionThreads.get() && shouldEvictPage() && doEvictPage(batch)) ;
         } finally {
-            byteStream.buffer().release();
+            try {
+                batch.flush();
+            } finally {
+                byteStream.buffer().release();
+            }
         }
     }
 
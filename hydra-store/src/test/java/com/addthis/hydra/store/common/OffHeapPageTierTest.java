@@ -0,0 +1,113 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.primitives.Ints;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OffHeapPageTierTest {
+
+    @Test
+    public void putGetInvalidate() {
+        OffHeapPageTier tier = new OffHeapPageTier(64 * 1024 * 1024);
+        byte[] page = new byte[100];
+        page[0] = 7;
+        tier.put(Ints.toByteArray(1), page);
+        assertTrue(tier.contains(Ints.toByteArray(1)));
+        assertArrayEquals(page, tier.get(Ints.toByteArray(1)));
+        assertNull(tier.get(Ints.toByteArray(2)));
+        assertEquals(1, tier.hits.get());
+        assertEquals(1, tier.misses.get());
+        assertEquals(100, tier.getBytes());
+
+        tier.put(Ints.toByteArray(1), new byte[40]);
+        assertEquals(40, tier.getBytes());
+        tier.invalidate(Ints.toByteArray(1));
+        assertFalse(tier.contains(Ints.toByteArray(1)));
+        assertEquals(0, tier.getBytes());
+        assertEquals(0, tier.getSize());
+        tier.clear();
+    }
+
+    @Test
+    public void evictsWithinBudget() {
+        long budget = 4 * 1024 * 1024;
+        OffHeapPageTier tier = new OffHeapPageTier(budget);
+        assertEquals(4, tier.getStripeCount());
+        byte[] page = new byte[64 * 1024];
+        for (int i = 0; i < 1000; i++) {
+            tier.put(Ints.toByteArray(i), page);
+            assertTrue(tier.getBytes() <= budget);
+        }
+        assertTrue(tier.evictions.get() > 0);
+        // the most recent page is never the eldest of its stripe
+        assertTrue(tier.contains(Ints.toByteArray(999)));
+        tier.clear();
+        assertEquals(0, tier.getBytes());
+    }
+
+    @Test
+    public void smallBudgetUsesOneStripe() {
+        OffHeapPageTier tier = new OffHeapPageTier(1000);
+        assertEquals(1, tier.getStripeCount());
+        tier.put(Ints.toByteArray(1), new byte[2000]);
+        assertEquals(0, tier.getSize());
+    }
+
+    @Test
+    public void concurrentAccess() throws Exception {
+        OffHeapPageTier tier = new OffHeapPageTier(8 * 1024 * 1024);
+        AtomicBoolean failed = new AtomicBoolean();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int seed = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 20000; i++) {
+                    int key = (i * 31 + seed) % 512;
+                    byte[] page = new byte[1 + (key % 1024)];
+                    page[0] = (byte) key;
+                    if ((i % 3) == 0) {
+                        tier.put(Ints.toByteArray(key), page);
+                    } else if ((i % 7) == 0) {
+                        tier.invalidate(Ints.toByteArray(key));
+                    } else {
+                        byte[] result = tier.get(Ints.toByteArray(key));
+                        if ((result != null) && ((result.length != page.length) || (result[0] != page[0]))) {
+                            failed.set(true);
+                        }
+                    }
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertFalse(failed.get());
+        assertTrue(tier.getBytes() <= tier.getMaxBytes());
+        tier.clear();
+        assertEquals(0, tier.getBytes());
+    }
+}
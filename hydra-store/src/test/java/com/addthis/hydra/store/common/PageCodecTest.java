@@ -0,0 +1,104 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import com.addthis.basis.util.LessFiles;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PageCodecTest {
+
+    private static byte[] sample(int i) {
+        return ("{\"key\":\"prefix-shared-by-every-page\",\"count\":" + i + ",\"tail\":\"common suffix\"}")
+                .getBytes();
+    }
+
+    private static PageCodec trained(File dir) throws InterruptedException {
+        PageCodec codec = new PageCodec(PageCompression.DICTIONARY, dir, "db");
+        assertEquals(PageCompression.DEFLATE, codec.current());
+        for (int i = 0; i < PageCodec.dictionarySamples; i++) {
+            codec.addSample(sample(i));
+        }
+        assertTrue(codec.awaitTraining(1, TimeUnit.MINUTES));
+        assertEquals(PageCompression.DICTIONARY, codec.current());
+        return codec;
+    }
+
+    private static File dictionaryFile(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.startsWith("db.dict."));
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+    @Test
+    public void trainAndReload() throws Exception {
+        File dir = LessFiles.createTempDir();
+        try {
+            trained(dir);
+            assertFalse(dictionaryFile(dir).getName().endsWith(".tmp"));
+            PageCodec reopened = new PageCodec(PageCompression.DICTIONARY, dir, "db");
+            assertEquals(PageCompression.DICTIONARY, reopened.current());
+        } finally {
+            LessFiles.deleteDir(dir);
+        }
+    }
+
+    @Test
+    public void corruptDictionaryIgnored() throws Exception {
+        File dir = LessFiles.createTempDir();
+        try {
+            PageCodec codec = trained(dir);
+            File file = dictionaryFile(dir);
+            byte[] page = encode(codec);
+
+            // a truncated dictionary no longer matches the checksum in its name
+            byte[] bytes = LessFiles.read(file);
+            LessFiles.write(file, Arrays.copyOf(bytes, bytes.length / 2), false);
+            LessFiles.write(new File(dir, file.getName() + ".tmp"), bytes, false);
+
+            PageCodec reopened = new PageCodec(PageCompression.DICTIONARY, dir, "db");
+            assertEquals(PageCompression.DEFLATE, reopened.current());
+            assertFalse(new File(dir, file.getName() + ".tmp").exists());
+            try {
+                reopened.decompress(new ByteArrayInputStream(page), PageCompression.DICTIONARY);
+                fail();
+            } catch (IllegalStateException expected) {
+            }
+        } finally {
+            LessFiles.deleteDir(dir);
+        }
+    }
+
+    private static byte[] encode(PageCodec codec) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(codec.compress(bytes, PageCompression.DICTIONARY));
+        out.write(sample(1));
+        out.close();
+        return bytes.toByteArray();
+    }
+}
@@ -17,11 +17,18 @@ package com.addthis.hydra.store.kv;
 import java.io.File;
 import java.io.IOException;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
 import com.addthis.basis.util.LessFiles;
 
+import com.google.common.primitives.UnsignedBytes;
+
 import org.junit.Test;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
 
@@ -92,4 +99,42 @@ public abstract class AbstractByteStoreTest {
         }
     }
 
+    @Test
+    public void testPutAllDeleteAll() {
+        File tempDir = null;
+        try {
+            tempDir = LessFiles.createTempDir();
+            ByteStore store = createByteStore(tempDir, "test");
+            TreeMap<byte[], byte[]> batch = new TreeMap<>(UnsignedBytes.lexicographicalComparator());
+            for (int i = 0; i < 10; i++) {
+                batch.put(createBytes(i), createBytes(10 - i));
+            }
+            store.putAll(batch);
+            assertEquals(10, store.count());
+            for (int i = 0; i < 10; i++) {
+                assertArrayEquals(createBytes(10 - i), store.get(createBytes(i)));
+            }
+            List<byte[]> deletes = new ArrayList<>();
+            for (int i = 0; i < 10; i += 2) {
+                deletes.add(createBytes(i));
+            }
+            deletes.add(createBytes(20));
+            store.deleteAll(deletes);
+            assertEquals(5, store.count());
+            for (int i = 0; i < 10; i++) {
+                if (i % 2 == 0) {
+                    assertNull(store.get(createBytes(i)));
+                } else {
+                    assertArrayEquals(createBytes(10 - i), store.get(createBytes(i)));
+                }
+            }
+        } catch (IOException ex) {
+            fail(ex.getMessage());
+        } finally {
+            if (tempDir != null) {
+                LessFiles.deleteDir(tempDir);
+            }
+        }
+    }
+
 }
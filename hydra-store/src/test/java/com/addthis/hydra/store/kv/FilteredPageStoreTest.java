@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.kv;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.addthis.basis.util.LessFiles;
+import com.addthis.basis.util.Varint;
+
+import com.addthis.hydra.store.common.PageFilter;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.primitives.UnsignedBytes;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FilteredPageStoreTest {
+
+    private static byte[] createBytes(int input) {
+        return String.format("%05d", input).getBytes();
+    }
+
+    /**
+     * Returns a page of the given keys that only holds a filter.
+     */
+    private static byte[] filteredPage(byte[]... keys) throws IOException {
+        BloomFilter<byte[]> filter = BloomFilter.create(Funnels.byteArrayFunnel(), 10, 0.01);
+        for (byte[] key : keys) {
+            filter.put(key);
+        }
+        ByteArrayOutputStream filterBytes = new ByteArrayOutputStream();
+        filter.writeTo(filterBytes);
+        ByteArrayOutputStream page = new ByteArrayOutputStream();
+        page.write(PageFilter.FLAGS_HAS_FILTER);
+        Varint.writeUnsignedVarInt(filterBytes.size(), new DataOutputStream(page));
+        filterBytes.writeTo(page);
+        return page.toByteArray();
+    }
+
+    @Test
+    public void filtersFollowPages() throws IOException {
+        File tempDir = LessFiles.createTempDir();
+        try {
+            ByteStore pages = new MappedLogByteStore(new File(tempDir, "pages"), "test");
+            ByteStore filters = new MappedLogByteStore(new File(tempDir, "filters"), "test");
+            FilteredPageStore store = new FilteredPageStore(pages, filters);
+            byte[] page = filteredPage(createBytes(1), createBytes(2));
+            store.put(createBytes(0), page);
+            assertArrayEquals(page, store.get(createBytes(0)));
+            PageFilter filter = PageFilter.decode(filters.get(createBytes(0)));
+            assertTrue(filter.mightContain(createBytes(1)));
+            assertFalse(filter.mightContain(createBytes(3)));
+
+            // a page without a filter drops the previous filter
+            store.put(createBytes(0), new byte[]{0});
+            assertNull(filters.get(createBytes(0)));
+
+            Map<byte[], byte[]> batch = new TreeMap<>(UnsignedBytes.lexicographicalComparator());
+            batch.put(createBytes(0), filteredPage(createBytes(1)));
+            batch.put(createBytes(10), filteredPage(createBytes(11)));
+            store.putAll(batch);
+            assertTrue(PageFilter.decode(filters.get(createBytes(10))).mightContain(createBytes(11)));
+
+            store.deleteAll(Arrays.asList(createBytes(0)));
+            assertNull(filters.get(createBytes(0)));
+            store.delete(createBytes(10));
+            assertNull(filters.get(createBytes(10)));
+            assertNull(store.get(createBytes(10)));
+            store.close();
+        } finally {
+            LessFiles.deleteDir(tempDir);
+        }
+    }
+}
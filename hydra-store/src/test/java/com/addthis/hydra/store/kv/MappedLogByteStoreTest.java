@@ -0,0 +1,154 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.addthis.hydra.store.kv;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.Map;
+
+import com.addthis.basis.util.LessFiles;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MappedLogByteStoreTest extends AbstractByteStoreTest {
+
+    private static byte[] createBytes(int input) {
+        return String.format("%05d", input).getBytes();
+    }
+
+    @Override
+    public ByteStore createByteStore(File dir, String name) {
+        return new MappedLogByteStore(dir, name);
+    }
+
+    @Test
+    public void testRecovery() throws IOException {
+        File tempDir = LessFiles.createTempDir();
+        try {
+            MappedLogByteStore store = new MappedLogByteStore(tempDir, "test");
+            for (int i = 0; i < 100; i++) {
+                store.put(createBytes(i), createBytes(i));
+            }
+            store.put(createBytes(5), createBytes(500));
+            store.delete(createBytes(7));
+            store.close();
+
+            store = new MappedLogByteStore(tempDir, "test", true);
+            assertEquals(99, store.count());
+            assertArrayEquals(createBytes(500), store.get(createBytes(5)));
+            assertNull(store.get(createBytes(7)));
+            assertArrayEquals(createBytes(8), store.higherKey(createBytes(6)));
+            Map.Entry<byte[], byte[]> floor = store.floorEntry(createBytes(7));
+            assertArrayEquals(createBytes(6), floor.getKey());
+            assertArrayEquals(createBytes(6), floor.getValue());
+            store.close();
+        } finally {
+            LessFiles.deleteDir(tempDir);
+        }
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        File tempDir = LessFiles.createTempDir();
+        try {
+            MappedLogByteStore store = new MappedLogByteStore(tempDir, "test");
+            byte[] value = new byte[MappedLogByteStore.segmentSize / 16];
+            // every round of puts overwrites the previous round and fills more than one segment
+            for (int round = 0; round < 4; round++) {
+                for (int i = 0; i < 20; i++) {
+                    value[0] = (byte) round;
+                    store.put(createBytes(i), value);
+                }
+            }
+            store.delete(createBytes(0));
+            int before = store.segmentCount();
+            assertTrue(store.compact() > 0);
+            assertTrue(store.segmentCount() < before);
+            store.close();
+
+            store = new MappedLogByteStore(tempDir, "test");
+            assertEquals(19, store.count());
+            assertNull(store.get(createBytes(0)));
+            for (int i = 1; i < 20; i++) {
+                assertEquals(3, store.get(createBytes(i))[0]);
+            }
+            store.close();
+        } finally {
+            LessFiles.deleteDir(tempDir);
+        }
+    }
+
+    @Test
+    public void testTombstonesDropped() throws IOException {
+        File tempDir = LessFiles.createTempDir();
+        try {
+            MappedLogByteStore store = new MappedLogByteStore(tempDir, "test");
+            byte[] value = new byte[MappedLogByteStore.segmentSize / 16];
+            for (int i = 0; i < 20; i++) {
+                store.put(createBytes(i), value);
+            }
+            for (int i = 0; i < 10; i++) {
+                store.delete(createBytes(i));
+            }
+            // seal the segment holding the tombstones
+            for (int round = 1; round < 4; round++) {
+                for (int i = 10; i < 20; i++) {
+                    value[0] = (byte) round;
+                    store.put(createBytes(i), value);
+                }
+            }
+            assertEquals(10, store.tombstoneCount());
+            for (int pass = 0; pass < 3; pass++) {
+                store.compact();
+            }
+            // no segment that held a put for a deleted key is left
+            assertEquals(0, store.tombstoneCount());
+            store.close();
+
+            store = new MappedLogByteStore(tempDir, "test", true);
+            assertEquals(10, store.count());
+            for (int i = 0; i < 10; i++) {
+                assertNull(store.get(createBytes(i)));
+            }
+            for (int i = 10; i < 20; i++) {
+                assertEquals(3, store.get(createBytes(i))[0]);
+            }
+            store.close();
+        } finally {
+            LessFiles.deleteDir(tempDir);
+        }
+    }
+
+    @Test
+    public void testReadOnlyDoesNotCreateDirectory() throws IOException {
+        File tempDir = LessFiles.createTempDir();
+        try {
+            File missing = new File(tempDir, "missing");
+            MappedLogByteStore store = new MappedLogByteStore(missing, "test", true);
+            assertEquals(0, store.count());
+            store.close();
+            assertFalse(missing.exists());
+        } finally {
+            LessFiles.deleteDir(tempDir);
+        }
+    }
+}
@@ -23,13 +23,21 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.addthis.basis.test.SlowTest;
 import com.addthis.basis.util.LessFiles;
 
 import com.addthis.hydra.store.DBIntValue;
+import com.addthis.hydra.store.common.AbstractPage;
+import com.addthis.hydra.store.common.Page;
+import com.addthis.hydra.store.common.PageCodec;
+import com.addthis.hydra.store.common.PageCompression;
 import com.addthis.hydra.store.kv.ByteStore;
 import com.addthis.hydra.store.kv.ConcurrentByteStoreBDB;
+import com.addthis.hydra.store.kv.PageEncodeType;
 
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
@@ -776,6 +784,323 @@ public class TestSkipListCache {
 
     }
 
+    @Test
+    public void testPageCompression() {
+        for (PageCompression compression : PageCompression.values()) {
+            doTestPageCompression(compression);
+        }
+    }
+
+    private void doTestPageCompression(PageCompression compression) {
+        File directory = null;
+        int numElements = fastNumElements;
+
+        try {
+            directory = makeTemporaryDirectory();
+            ByteStore externalStore = new ConcurrentByteStoreBDB(directory, "db");
+            PageCodec codec = new PageCodec(compression, directory, "db");
+
+            SkipListCache<Integer, DBIntValue> cache =
+                    new SkipListCache.Builder<>(new SimpleIntKeyCoder(), externalStore, 8)
+                            .maxPages(10).pageCodec(codec).build();
+
+            for (int i = 0; i < numElements; i++) {
+                cache.put(i, new DBIntValue(numElements - i));
+            }
+
+            cache.waitForPageEviction();
+
+            for (int i = 0; i < numElements; i++) {
+                assertEquals(new Integer(numElements - i), cache.get(i).getVal());
+            }
+
+            assertTrue(codec.awaitTraining(1, TimeUnit.MINUTES));
+            assertEquals(compression, codec.current());
+            assertTrue(cache.metrics.encodeCompressedBytes.count() > 0);
+
+            consistentWaitShutdown(cache);
+
+            // pages written with any compression can be read by a store configured with another
+            externalStore = new ConcurrentByteStoreBDB(directory, "db");
+            cache = new SkipListCache.Builder<>(new SimpleIntKeyCoder(), externalStore, 8)
+                    .maxPages(10).pageCodec(new PageCodec(PageCompression.DEFLATE, directory, "db")).build();
+
+            for (int i = 0; i < numElements; i++) {
+                assertEquals(new Integer(numElements - i), cache.get(i).getVal());
+            }
+
+            consistentWaitShutdown(cache);
+
+        } catch (IOException | InterruptedException ex) {
+            fail();
+        } finally {
+            if (directory != null) {
+                LessFiles.deleteDir(directory);
+            }
+        }
+    }
+
+    @Test
+    public void testOptimisticReads() throws Exception {
+        File directory = null;
+        final int numElements = fastNumElements;
+
+        try {
+            directory = makeTemporaryDirectory();
+            ByteStore externalStore = new ConcurrentByteStoreBDB(directory, "db");
+            final SkipListCache<Integer, DBIntValue> cache =
+                    new SkipListCache.Builder<>(new SimpleIntKeyCoder(), externalStore, 8)
+                            .maxPages(50).build();
+            cache.setOptimisticReads(true);
+
+            for (int i = 0; i < numElements; i++) {
+                cache.put(i, new DBIntValue(i));
+            }
+
+            // writers split and evict pages while readers check every value they observe
+            final CyclicBarrier barrier = new CyclicBarrier(fastNumThreads);
+            final AtomicInteger failures = new AtomicInteger();
+            Thread[] threads = new Thread[fastNumThreads];
+            for (int t = 0; t < fastNumThreads; t++) {
+                final boolean writer = (t % 2) == 0;
+                threads[t] = new Thread(() -> {
+                    try {
+                        barrier.await();
+                        Random random = new Random();
+                        for (int round = 1; round <= 20000; round++) {
+                            int key = random.nextInt(numElements);
+                            if (writer) {
+                                cache.put(key, new DBIntValue(key + round * numElements));
+                            } else {
+                                DBIntValue value = cache.get(key);
+                                if (value == null || value.getVal() % numElements != key) {
+                                    failures.incrementAndGet();
+                                }
+                            }
+                        }
+                    } catch (Exception ex) {
+                        failures.incrementAndGet();
+                    }
+                });
+                threads[t].start();
+            }
+
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            assertEquals(0, failures.get());
+
+            consistentWaitShutdown(cache);
+        } finally {
+            if (directory != null) {
+                LessFiles.deleteDir(directory);
+            }
+        }
+    }
+
+    @Test
+    public void testFetchValueInvalidatesOptimisticReads() throws Exception {
+        File directory = null;
+        try {
+            directory = makeTemporaryDirectory();
+            ByteStore externalStore = new ConcurrentByteStoreBDB(directory, "db");
+            SkipListCache<Integer, DBIntValue> cache =
+                    new SkipListCache.Builder<>(new SimpleIntKeyCoder(), externalStore, 8)
+                            .maxPages(50).build();
+            for (int i = 0; i < 100; i++) {
+                cache.put(i, new DBIntValue(i));
+            }
+            cache.pushAllPagesToDisk();
+            assertEquals(new Integer(0), cache.get(0).getVal());
+
+            Page<Integer, DBIntValue> page = cache.getCache().floorEntry(1).getValue();
+            int offset = page.keys().indexOf(1);
+            assertNull(page.values().get(offset));
+            page.readLock();
+            long stamp;
+            try {
+                stamp = page.tryOptimisticRead();
+                assertTrue(stamp != 0);
+                page.fetchValue(offset);
+            } finally {
+                page.readUnlock();
+            }
+            // a value decoded under the read lock is published under a new version
+            assertFalse(page.validate(stamp));
+            assertEquals(new Integer(1), page.values().get(offset).getVal());
+
+            consistentWaitShutdown(cache);
+        } finally {
+            if (directory != null) {
+                LessFiles.deleteDir(directory);
+            }
+        }
+    }
+
+    @Test
+    public void testOptimisticReadsWithLazyDecodes() throws Exception {
+        File directory = null;
+        final int numElements = fastNumElements;
+
+        try {
+            directory = makeTemporaryDirectory();
+            ByteStore externalStore = new ConcurrentByteStoreBDB(directory, "db");
+            final SkipListCache<Integer, DBIntValue> cache =
+                    new SkipListCache.Builder<>(new SimpleIntKeyCoder(), externalStore, 8)
+                            .maxPages(numElements).build();
+            cache.setOptimisticReads(true);
+
+            for (int i = 0; i < numElements; i++) {
+                cache.put(i, new DBIntValue(i));
+            }
+
+            // pages are repeatedly released so that readers keep decoding values under the
+            // read lock while other readers read the same pages without it
+            final AtomicBoolean done = new AtomicBoolean();
+            final AtomicInteger failures = new AtomicInteger();
+            Thread pusher = new Thread(() -> {
+                while (!done.get()) {
+                    cache.pushAllPagesToDisk();
+                }
+            });
+            Thread[] readers = new Thread[fastNumThreads];
+            for (int t = 0; t < fastNumThreads; t++) {
+                readers[t] = new Thread(() -> {
+                    Random random = new Random();
+                    for (int round = 0; round < 50000; round++) {
+                        int key = random.nextInt(numElements);
+                        DBIntValue value = cache.get(key);
+                        if (value == null || value.getVal() == null || value.getVal() != key) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            pusher.start();
+            for (Thread reader : readers) {
+                reader.start();
+            }
+            for (Thread reader : readers) {
+                reader.join();
+            }
+            done.set(true);
+            pusher.join();
+
+            assertEquals(0, failures.get());
+
+            consistentWaitShutdown(cache);
+        } finally {
+            if (directory != null) {
+                LessFiles.deleteDir(directory);
+            }
+        }
+    }
+
+    @Test
+    public void testPrefixPages() {
+        File directory = null;
+        int numElements = fastNumElements;
+
+        try {
+            directory = makeTemporaryDirectory();
+            ByteStore externalStore = new ConcurrentByteStoreBDB(directory, "db");
+            PageCodec codec = new PageCodec(PageCompression.DEFLATE, AbstractPage.gzlevel, 0,
+                                            PageEncodeType.PREFIX, directory, "db");
+
+            SkipListCache<Integer, DBIntValue> cache =
+                    new SkipListCache.Builder<>(new SimpleIntKeyCoder(), externalStore, 40)
+                            .maxPages(10).pageCodec(codec).build();
+
+            for (int i = 0; i < numElements; i++) {
+                cache.put(i, new DBIntValue(numElements - i));
+            }
+
+            cache.waitForPageEviction();
+
+            for (int i = 0; i < numElements; i++) {
+                assertEquals(new Integer(numElements - i), cache.get(i).getVal());
+            }
+
+            consistentWaitShutdown(cache);
+
+            // prefix pages can be read and rewritten by a store that writes the default layout
+            externalStore = new ConcurrentByteStoreBDB(directory, "db");
+            cache = new SkipListCache.Builder<>(new SimpleIntKeyCoder(), externalStore, 40)
+                    .maxPages(10).pageCodec(new PageCodec(PageCompression.DEFLATE, directory, "db")).build();
+
+            for (int i = 0; i < numElements; i++) {
+                assertEquals(new Integer(numElements - i), cache.get(i).getVal());
+            }
+
+            consistentWaitShutdown(cache);
+
+        } catch (IOException ex) {
+            fail();
+        } finally {
+            if (directory != null) {
+                LessFiles.deleteDir(directory);
+            }
+        }
+    }
+
+    @Test
+    public void testOffHeapTier() {
+        File directory = null;
+        int numElements = fastNumElements;
+
+        try {
+            directory = makeTemporaryDirectory();
+            ByteStore externalStore = new ConcurrentByteStoreBDB(directory, "db");
+
+            SkipListCache<Integer, DBIntValue> cache =
+                    new SkipListCache.Builder<>(new SimpleIntKeyCoder(), externalStore, 8)
+                            .maxPages(10).offHeapBytes(64 * 1024 * 1024).build();
+
+            for (int i = 0; i < numElements; i++) {
+                cache.put(i, new DBIntValue(numElements - i));
+            }
+
+            cache.waitForPageEviction();
+
+            for (int i = 0; i < numElements; i++) {
+                assertEquals(new Integer(numElements - i), cache.get(i).getVal());
+            }
+
+            assertTrue(cache.offHeapTier.hits.get() > 0);
+            assertTrue(cache.offHeapTier.getBytes() > 0);
+
+            for (int i = 0; i < numElements; i += 2) {
+                cache.put(i, new DBIntValue(i));
+            }
+
+            cache.removeValues(0, numElements / 2);
+
+            cache.waitForPageEviction();
+
+            for (int i = 0; i < numElements / 2; i++) {
+                assertNull(cache.get(i));
+            }
+
+            for (int i = numElements / 2; i < numElements; i++) {
+                int expected = (i % 2 == 0) ? i : numElements - i;
+                assertEquals(new Integer(expected), cache.get(i).getVal());
+            }
+
+            consistentWaitShutdown(cache);
+
+            assertEquals(0, cache.offHeapTier.getSize());
+            assertEquals(0, cache.offHeapTier.getBytes());
+
+        } catch (IOException ex) {
+            fail();
+        } finally {
+            if (directory != null) {
+                LessFiles.deleteDir(directory);
+            }
+        }
+    }
+
     @Test
     public void testExternalStorePersistance() {
         doTestExternalStorePersistance(fastNumElements);
@@ -98,7 +98,7 @@ public class LiveQueryReference extends QueryReference {
                 log.warn("Invalid request to getInput.  Options cannot be null");
                 return null;
             }
-            SearchRunner.querySearchPool.execute(new LiveSearchRunner(options, dirString, bridge, queryEngine));
+            new LiveSearchRunner(options, dirString, bridge, queryEngine).submit();
             return bridge;
         } catch (Exception ex) {
             throw new RuntimeException(ex);
@@ -0,0 +1,154 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.map;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.addthis.bundle.core.Bundle;
+
+/**
+ * Bounded single producer single consumer queue of bundles backed by a
+ * pre-allocated array. Neither side takes a lock or allocates. The producer
+ * and consumer each publish their position with an ordered store and cache
+ * the last position they read from the other side, so that the shared
+ * positions are only read when the cached one indicates a full or empty ring.
+ * <p/>
+ * The consumer drains every available bundle into a batch and publishes its
+ * position once per batch. A side that has to wait idles with the configured
+ * {@link WaitStrategy}; neither side is woken up by the other.
+ * <p/>
+ * Exactly one thread may call {@link #put(Bundle)} and exactly one thread
+ * may call {@link #drain(Bundle[])}.
+ */
+final class BundleRing {
+
+    enum WaitStrategy {
+        /** Busy spin. Lowest latency, but occupies a core while waiting. */
+        SPIN,
+        /** Spin briefly and then yield the processor. */
+        YIELD,
+        /** Spin briefly, yield briefly and then park for {@link #PARK_NANOS}. */
+        PARK;
+
+        private static final int SPINS = 100;
+        private static final int YIELDS = 100;
+        private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+        /**
+         * Wait once. {@code attempt} is the number of times the caller
+         * has already waited for the current operation.
+         */
+        void idle(int attempt) {
+            switch (this) {
+                case SPIN:
+                    break;
+                case YIELD:
+                    if (attempt >= SPINS) {
+                        Thread.yield();
+                    }
+                    break;
+                case PARK:
+                    if (attempt >= (SPINS + YIELDS)) {
+                        LockSupport.parkNanos(PARK_NANOS);
+                    } else if (attempt >= SPINS) {
+                        Thread.yield();
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("unknown wait strategy " + this);
+            }
+        }
+    }
+
+    private final Bundle[] buffer;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+
+    // next position to write, written only by the producer
+    private final AtomicLong tail = new AtomicLong();
+    // next position to read, written only by the consumer
+    private final AtomicLong head = new AtomicLong();
+
+    // producer local
+    private long producerPosition;
+    private long cachedHead;
+
+    // consumer local
+    private long consumerPosition;
+    private long cachedTail;
+
+    /**
+     * @param capacity minimum number of bundles held, rounded up to a power of two
+     */
+    BundleRing(int capacity, WaitStrategy waitStrategy) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.buffer = new Bundle[size];
+        this.mask = size - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Append a bundle, waiting while the ring is full. Producer only.
+     */
+    void put(Bundle bundle) {
+        long position = producerPosition;
+        if ((position - cachedHead) >= buffer.length) {
+            int attempt = 0;
+            while ((position - (cachedHead = head.get())) >= buffer.length) {
+                waitStrategy.idle(attempt++);
+            }
+        }
+        buffer[(int) position & mask] = bundle;
+        producerPosition = position + 1;
+        tail.lazySet(position + 1);
+    }
+
+    /**
+     * Move up to {@code batch.length} bundles into {@code batch},
+     * waiting until at least one is available. Consumer only.
+     *
+     * @return number of bundles moved into {@code batch}
+     */
+    int drain(Bundle[] batch) {
+        long position = consumerPosition;
+        if (position >= cachedTail) {
+            int attempt = 0;
+            while (position >= (cachedTail = tail.get())) {
+                waitStrategy.idle(attempt++);
+            }
+        }
+        int count = (int) Math.min(cachedTail - position, batch.length);
+        for (int i = 0; i < count; i++) {
+            int index = (int) (position + i) & mask;
+            batch[i] = buffer[index];
+            buffer[index] = null;
+        }
+        consumerPosition = position + count;
+        head.lazySet(position + count);
+        return count;
+    }
+
+    /**
+     * Approximate number of bundles in the ring. Any thread.
+     */
+    int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    int capacity() {
+        return buffer.length;
+    }
+}
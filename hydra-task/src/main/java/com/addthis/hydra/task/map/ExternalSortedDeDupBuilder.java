@@ -0,0 +1,294 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.map;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+import java.nio.charset.StandardCharsets;
+
+import com.addthis.basis.util.LessFiles;
+import com.addthis.basis.util.Varint;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.io.DataChannelCodec;
+import com.addthis.bundle.value.ValueObject;
+import com.addthis.codec.annotations.FieldConfig;
+import com.addthis.hydra.data.filter.bundle.BundleFilter;
+import com.addthis.hydra.store.compress.CompressedStream;
+import com.addthis.hydra.store.compress.CompressionType;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This builder de-duplicates all of the bundles of a stream on the value of {@code field}
+ * and emits one bundle per distinct value, in sorted order, when the stream completes.
+ * <p/>
+ * Unlike {@link SortedDeDupBuilder} nothing is emitted before the stream completes and
+ * duplicates are removed across the whole stream. Bundles are held encoded and sorted in
+ * memory until they take up {@code maxMemory} bytes. The sorted run is then written to a
+ * compressed file in {@code tempDir}. When the stream completes the runs are merged and the
+ * first bundle received for each value is emitted.
+ */
+public class ExternalSortedDeDupBuilder extends StreamBuilder {
+
+    private static final Logger log = LoggerFactory.getLogger(ExternalSortedDeDupBuilder.class);
+
+    // approximate memory of a held bundle besides its key and encoding
+    private static final int ENTRY_BYTES = 96;
+
+    @FieldConfig(codable = true, required = true)
+    private String field;
+
+    /** Bytes of encoded bundles held in memory before a run is written to disk. The default is 64 MB. */
+    @FieldConfig(codable = true)
+    private long maxMemory = 64 * 1024 * 1024;
+
+    /** Directory for sorted runs. The default is "dedup-spill". */
+    @FieldConfig(codable = true)
+    private String tempDir = "dedup-spill";
+
+    /** Compression of the sorted runs. The default is SNAPPY. */
+    @FieldConfig(codable = true)
+    private CompressionType compress = CompressionType.SNAPPY;
+
+    @FieldConfig(codable = true)
+    private BundleFilter filter;
+
+    private final Counter dropCounter = Metrics.newCounter(getClass(), "dropCounter");
+    private final Counter runCounter = Metrics.newCounter(getClass(), "runCounter");
+    private final Counter runBytes = Metrics.newCounter(getClass(), "runBytes");
+
+    // guarded by this
+    private TreeMap<String, byte[]> run = new TreeMap<>();
+    private long runMemory;
+    private final List<File> runFiles = new ArrayList<>();
+    private File tempDirFile;
+
+    @Override
+    public void init() {
+    }
+
+    @Override
+    public void process(Bundle bundle, StreamEmitter emitter) {
+        if (filter == null || filter.filter(bundle)) {
+            ValueObject valueObject = bundle.getValue(bundle.getFormat().getField(field));
+            if (valueObject == null) {
+                return;
+            }
+            String keyValue = valueObject.asString().toString();
+            byte[] encoded;
+            try {
+                encoded = DataChannelCodec.encodeBundle(bundle);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            synchronized (this) {
+                if (run.putIfAbsent(keyValue, encoded) != null) {
+                    dropCounter.inc();
+                    return;
+                }
+                runMemory += ENTRY_BYTES + (2L * keyValue.length()) + encoded.length;
+                if (runMemory >= maxMemory) {
+                    writeRun();
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the current run to a new file. Caller holds the monitor.
+     */
+    private void writeRun() {
+        try {
+            if (tempDirFile == null) {
+                tempDirFile = LessFiles.initDirectory(tempDir);
+            }
+            File file = File.createTempFile("dedup", ".run" + compress.suffix, tempDirFile);
+            try (DataOutputStream out = new DataOutputStream(CompressedStream.compressOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file)), compress))) {
+                for (Map.Entry<String, byte[]> entry : run.entrySet()) {
+                    byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                    Varint.writeUnsignedVarInt(key.length, out);
+                    out.write(key);
+                    Varint.writeUnsignedVarInt(entry.getValue().length, out);
+                    out.write(entry.getValue());
+                }
+            }
+            runFiles.add(file);
+            runCounter.inc();
+            runBytes.inc(file.length());
+            log.debug("wrote run of {} bundles to {} ({} bytes)", run.size(), file, file.length());
+            run = new TreeMap<>();
+            runMemory = 0;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    @Override
+    public synchronized void streamComplete(StreamEmitter emitter) {
+        List<Run> runs = new ArrayList<>(runFiles.size() + 1);
+        try {
+            // run order breaks ties so the first bundle of a value wins
+            for (File file : runFiles) {
+                runs.add(new FileRun(runs.size(), file, compress));
+            }
+            runs.add(new MemoryRun(runs.size(), run));
+            PriorityQueue<Run> merge = new PriorityQueue<>(runs.size());
+            for (Run next : runs) {
+                if (next.advance()) {
+                    merge.add(next);
+                }
+            }
+            String last = null;
+            while (!merge.isEmpty()) {
+                Run head = merge.poll();
+                if (head.key.equals(last)) {
+                    dropCounter.inc();
+                } else {
+                    last = head.key;
+                    emitter.emit(DataChannelCodec.decodeBundle(new ListBundle(), head.value));
+                }
+                if (head.advance()) {
+                    merge.add(head);
+                }
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } finally {
+            for (Run next : runs) {
+                next.close();
+            }
+            for (File file : runFiles) {
+                if (!file.delete()) {
+                    log.warn("unable to delete run {}", file);
+                }
+            }
+            runFiles.clear();
+            run = new TreeMap<>();
+            runMemory = 0;
+        }
+    }
+
+    @VisibleForTesting
+    synchronized int getRunCount() {
+        return runFiles.size();
+    }
+
+    /**
+     * A sorted sequence of keys and encoded bundles.
+     */
+    private abstract static class Run implements Comparable<Run> {
+
+        final int order;
+        String key;
+        byte[] value;
+
+        Run(int order) {
+            this.order = order;
+        }
+
+        /** Move to the next entry. Returns false when there are none left. */
+        abstract boolean advance() throws IOException;
+
+        void close() {
+        }
+
+        @Override
+        public int compareTo(Run other) {
+            int compare = key.compareTo(other.key);
+            return (compare != 0) ? compare : Integer.compare(order, other.order);
+        }
+    }
+
+    private static final class MemoryRun extends Run {
+
+        private final Iterator<Map.Entry<String, byte[]>> iterator;
+
+        MemoryRun(int order, TreeMap<String, byte[]> run) {
+            super(order);
+            this.iterator = run.entrySet().iterator();
+        }
+
+        @Override
+        boolean advance() {
+            if (!iterator.hasNext()) {
+                return false;
+            }
+            Map.Entry<String, byte[]> entry = iterator.next();
+            key = entry.getKey();
+            value = entry.getValue();
+            return true;
+        }
+    }
+
+    private static final class FileRun extends Run {
+
+        private final DataInputStream in;
+
+        FileRun(int order, File file, CompressionType compress) throws IOException {
+            super(order);
+            this.in = new DataInputStream(CompressedStream.decompressInputStream(
+                    new BufferedInputStream(new FileInputStream(file)), compress.suffix));
+        }
+
+        @Override
+        boolean advance() throws IOException {
+            int keyLength;
+            try {
+                keyLength = Varint.readUnsignedVarInt(in);
+            } catch (EOFException ex) {
+                return false;
+            }
+            byte[] keyBytes = new byte[keyLength];
+            in.readFully(keyBytes);
+            key = new String(keyBytes, StandardCharsets.UTF_8);
+            value = new byte[Varint.readUnsignedVarInt(in)];
+            in.readFully(value);
+            return true;
+        }
+
+        @Override
+        void close() {
+            try {
+                in.close();
+            } catch (IOException ex) {
+                log.warn("unable to close run", ex);
+            }
+        }
+    }
+}
@@ -15,6 +15,8 @@ package com.addthis.hydra.task.map;
 
 import javax.annotation.Nullable;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
@@ -34,6 +36,7 @@ import com.addthis.bundle.util.ValueUtil;
 import com.addthis.hydra.common.hash.PluggableHashFunction;
 import com.addthis.hydra.task.source.TaskDataSource;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.util.concurrent.Uninterruptibles;
 
 import com.yammer.metrics.Metrics;
@@ -51,6 +54,13 @@ public final class MapFeeder implements Runnable {
     private static final int QUEUE_DEPTH = Parameter.intValue("task.queue.depth", 100);
     private static final int stealThreshold = Parameter.intValue("task.queue.worksteal.threshold", 50);
     private static final boolean shouldSteal = Parameter.boolValue("task.worksteal", false);
+    // hand bundles to the mapper threads through single producer single consumer ring buffers
+    private static final boolean useRings = Parameter.boolValue("task.queue.ring", false);
+    // one of spin, yield or park
+    private static final BundleRing.WaitStrategy ringWait =
+            BundleRing.WaitStrategy.valueOf(Parameter.value("task.queue.ring.wait", "park").toUpperCase());
+    // maximum number of bundles a mapper thread takes from its ring at once
+    private static final int RING_BATCH = Parameter.intValue("task.queue.ring.batch", 64);
 
     // state control
     private final AtomicBoolean errored = new AtomicBoolean(false);
@@ -62,9 +72,12 @@ public final class MapFeeder implements Runnable {
 
     // mapper task controls
     private final int feeders;
+    private final int batchSize;
+    private final List<Bundle> sourceBatch;
     private final AutoField shardField;
     private final Thread[] threads;
-    private final BlockingQueue<Bundle>[] queues;
+    @Nullable private final BlockingQueue<Bundle>[] queues;
+    @Nullable private final BundleRing[] rings;
 
     // metrics
     private final long start = System.currentTimeMillis();
@@ -74,7 +87,13 @@ public final class MapFeeder implements Runnable {
     @Nullable private final Meter stealSuccessMeter;
 
     public MapFeeder(StreamMapper task, TaskDataSource source, int feeders) {
-        if (shouldSteal) {
+        this(task, source, feeders, useRings);
+    }
+
+    @VisibleForTesting
+    @SuppressWarnings("unchecked")
+    MapFeeder(StreamMapper task, TaskDataSource source, int feeders, boolean ringBuffers) {
+        if (shouldSteal && !ringBuffers) {
             stealAttemptMeter = Metrics.newMeter(getClass(), "stealAttemptRate", "steals", TimeUnit.SECONDS);
             stealSuccessMeter = Metrics.newMeter(getClass(), "stealSuccessRate", "steals", TimeUnit.SECONDS);
         } else {
@@ -85,14 +104,30 @@ public final class MapFeeder implements Runnable {
         this.source = source;
         this.task = task;
         this.feeders = feeders;
+        this.batchSize = task.getBatchSize();
+        this.sourceBatch = new ArrayList<>(batchSize);
 
         shardField = source.getShardField();
         threads = new Thread[feeders];
-        queues = new LinkedBlockingQueue[feeders];
+        if (ringBuffers) {
+            if (shouldSteal) {
+                log.warn("work stealing is not supported with ring buffers and has been disabled");
+            }
+            queues = null;
+            rings = new BundleRing[feeders];
+        } else {
+            queues = new LinkedBlockingQueue[feeders];
+            rings = null;
+        }
 
         for (int i = 0; i < threads.length; i++) {
-            queues[i] = new LinkedBlockingQueue<>(QUEUE_DEPTH);
-            threads[i] = new Thread(new MapperTask(this, i), "MapProcessor #" + i);
+            if (ringBuffers) {
+                rings[i] = new BundleRing(QUEUE_DEPTH, ringWait);
+                threads[i] = new Thread(new RingMapperTask(this, i), "MapProcessor #" + i);
+            } else {
+                queues[i] = new LinkedBlockingQueue<>(QUEUE_DEPTH);
+                threads[i] = new Thread(new MapperTask(this, i), "MapProcessor #" + i);
+            }
         }
     }
 
@@ -144,21 +179,26 @@ public final class MapFeeder implements Runnable {
     private boolean fillBuffer() {
         // iterate over inputs and execute default target
         try {
+            if (batchSize > 1) {
+                int count = source.nextBatch(sourceBatch, batchSize);
+                if (count == 0) {
+                    log.info("exiting on empty batch from {}", source);
+                    return false;
+                }
+                totalBundles += count;
+                for (Bundle p : sourceBatch) {
+                    pushQueue(shard(p), p);
+                }
+                sourceBatch.clear();
+                return true;
+            }
             Bundle p = source.next();
             if (p == null) {
                 log.info("exiting on null bundle from {}", source);
                 return false;
             }
             totalBundles++;
-            int hash = p.hashCode();
-            if (shardField != null) {
-                String val = ValueUtil.asNativeString(shardField.getValue(p));
-                if (!LessStrings.isEmpty(val)) {
-                    hash = PluggableHashFunction.hash(val);
-                }
-            }
-            int mod = Math.abs(hash % queues.length);
-            pushQueue(mod, p);
+            pushQueue(shard(p), p);
             return true;
         } catch (NoSuchElementException ignored) {
             log.info("exiting on premature stream termination");
@@ -166,14 +206,29 @@ public final class MapFeeder implements Runnable {
         return false;
     }
 
+    private int shard(Bundle p) {
+        int hash = p.hashCode();
+        if (shardField != null) {
+            String val = ValueUtil.asNativeString(shardField.getValue(p));
+            if (!LessStrings.isEmpty(val)) {
+                hash = PluggableHashFunction.hash(val);
+            }
+        }
+        return Math.abs(hash % feeders);
+    }
+
     private void pushQueue(int queueNum, Bundle item) {
-        BlockingQueue<Bundle> queue = queues[queueNum];
-        Uninterruptibles.putUninterruptibly(queue, item);
+        if (rings != null) {
+            rings[queueNum].put(item);
+        } else {
+            BlockingQueue<Bundle> queue = queues[queueNum];
+            Uninterruptibles.putUninterruptibly(queue, item);
+        }
     }
 
     private void joinProcessors() {
-        log.debug("pushing terminating bundles to {} processors", queues.length);
-        for (int i = 0; i < queues.length; i++) {
+        log.debug("pushing terminating bundles to {} processors", feeders);
+        for (int i = 0; i < feeders; i++) {
             pushQueue(i, TERM_BUNDLE);
         }
         for (Thread thread : threads) {
@@ -201,6 +256,10 @@ public final class MapFeeder implements Runnable {
 
         @Override
         public void run() {
+            if (mapFeeder.batchSize > 1) {
+                runBatches();
+                return;
+            }
             while (true) {
                 try {
                     Bundle next = popQueue();
@@ -214,6 +273,39 @@ public final class MapFeeder implements Runnable {
             }
         }
 
+        /**
+         * Wait for a bundle and then take whatever else is queued,
+         * up to the batch size, without waiting.
+         */
+        private void runBatches() {
+            BlockingQueue<Bundle> queue = mapFeeder.queues[processorID];
+            List<Bundle> batch = new ArrayList<>(mapFeeder.batchSize);
+            while (true) {
+                try {
+                    Bundle next = popQueue();
+                    if (next == null) {
+                        return;
+                    }
+                    batch.add(next);
+                    queue.drainTo(batch, mapFeeder.batchSize - 1);
+                    // the terminating bundle is the last one queued
+                    boolean done = batch.get(batch.size() - 1) == TERM_BUNDLE;
+                    if (done) {
+                        batch.remove(batch.size() - 1);
+                    }
+                    if (!batch.isEmpty()) {
+                        mapFeeder.task.process(batch);
+                    }
+                    batch.clear();
+                    if (done) {
+                        return;
+                    }
+                } catch (Throwable t) {
+                    mapFeeder.handleUncaughtThrowable(t);
+                }
+            }
+        }
+
         @Nullable private Bundle popQueue() throws InterruptedException {
             BlockingQueue<Bundle> queue = mapFeeder.queues[processorID];
             Bundle item = null;
@@ -251,4 +343,68 @@ public final class MapFeeder implements Runnable {
             return null;
         }
     }
+
+    private static class RingMapperTask implements Runnable {
+        private final int processorID;
+        private final MapFeeder mapFeeder;
+
+        public RingMapperTask(MapFeeder mapFeeder, int processorID) {
+            this.processorID = processorID;
+            this.mapFeeder = mapFeeder;
+        }
+
+        @Override
+        public void run() {
+            if (mapFeeder.batchSize > 1) {
+                runBatches();
+                return;
+            }
+            BundleRing ring = mapFeeder.rings[processorID];
+            Bundle[] batch = new Bundle[RING_BATCH];
+            while (true) {
+                int count = ring.drain(batch);
+                for (int i = 0; i < count; i++) {
+                    Bundle next = batch[i];
+                    batch[i] = null;
+                    if (next == TERM_BUNDLE) {
+                        return;
+                    }
+                    try {
+                        mapFeeder.task.process(next);
+                    } catch (Throwable t) {
+                        mapFeeder.handleUncaughtThrowable(t);
+                    }
+                }
+            }
+        }
+
+        private void runBatches() {
+            BundleRing ring = mapFeeder.rings[processorID];
+            Bundle[] drained = new Bundle[mapFeeder.batchSize];
+            List<Bundle> batch = new ArrayList<>(mapFeeder.batchSize);
+            while (true) {
+                int count = ring.drain(drained);
+                boolean done = false;
+                for (int i = 0; i < count; i++) {
+                    if (drained[i] == TERM_BUNDLE) {
+                        done = true;
+                    } else if (!done) {
+                        batch.add(drained[i]);
+                    }
+                    drained[i] = null;
+                }
+                try {
+                    if (!batch.isEmpty()) {
+                        mapFeeder.task.process(batch);
+                    }
+                } catch (Throwable t) {
+                    mapFeeder.handleUncaughtThrowable(t);
+                }
+                batch.clear();
+                if (done) {
+                    return;
+                }
+            }
+        }
+    }
 }
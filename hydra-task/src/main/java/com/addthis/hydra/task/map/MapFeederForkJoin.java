@@ -14,28 +14,65 @@
 package com.addthis.hydra.task.map;
 
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.addthis.basis.jvm.Shutdown;
+import com.addthis.basis.util.LessStrings;
 import com.addthis.basis.util.Parameter;
 
 import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.util.AutoField;
+import com.addthis.bundle.util.ValueUtil;
+import com.addthis.hydra.common.hash.PluggableHashFunction;
 import com.addthis.hydra.task.source.TaskDataSource;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Feeds the mapper threads in chunks of bundles rather than one task per bundle.
+ * <p/>
+ * Without a shard field every chunk is a task of a {@link ForkJoinPool}, whose idle
+ * workers steal queued chunks from busy ones. With a shard field each mapper thread
+ * has its own deque of chunks and the bundles of a shard value always go to the same
+ * thread, as with {@link MapFeeder}. Bundles with an empty shard value are gathered into
+ * separate chunks that are queued on the shortest deque, and only those chunks may be
+ * stolen by mapper threads whose own deque is empty.
+ * <p/>
+ * A chunk is queued once it holds {@code task.forkjoin.chunk} bundles, or the batch size
+ * of the task if that is larger. Partial chunks are queued after every
+ * {@code chunk * threads} bundles read, and by a background thread once no chunks have been
+ * flushed for {@code task.forkjoin.flush} milliseconds so that bundles of a slow source are
+ * not held back while it blocks. The number of bundles queued or being processed is
+ * bounded, so the source is only read as fast as the mapper threads keep up.
+ */
 public final class MapFeederForkJoin implements Runnable {
     private static final Logger log = LoggerFactory.getLogger(MapFeederForkJoin.class);
 
     private static final int QUEUE_DEPTH = Parameter.intValue("task.queue.depth", 100);
+    private static final int CHUNK = Parameter.intValue("task.forkjoin.chunk", 32);
+    // milliseconds after which partial chunks are queued, or 0 to queue them only by count
+    private static final int FLUSH_MILLIS = Parameter.intValue("task.forkjoin.flush", 1000);
+
+    private static final Chunk TERM_CHUNK = new Chunk(0, false);
 
     // state control
     private final AtomicBoolean errored = new AtomicBoolean(false);
@@ -46,26 +83,87 @@ public final class MapFeederForkJoin implements Runnable {
     private final TaskDataSource source;
 
     // mapper task controls
-    private final ForkJoinPool mapperPool;
     private final int parallelism;
+    private final int batchSize;
+    private final int chunkSize;
+    private final int flushMillis;
     private final Semaphore enqueuePermits;
+    private final AutoField shardField;
+
+    // unsharded mode
+    private final ForkJoinPool mapperPool;
+
+    // sharded mode
+    private final LinkedBlockingDeque<Chunk>[] deques;
+    private final Thread[] threads;
+    private final Meter stealMeter;
+
+    // feeder state, chunks guarded by this to be shared with the flusher
+    private final List<Bundle> sourceBatch;
+    private final Chunk[] pending;
+    private Chunk unsharded;
+    private int sinceFlush;
+    private long lastFlush;
+    private final ScheduledExecutorService flusher;
 
     private long start = System.currentTimeMillis();
     private long totalBundles = 0;
 
     public MapFeederForkJoin(StreamMapper task, TaskDataSource source, int parallelism) {
+        this(task, source, parallelism, CHUNK, FLUSH_MILLIS);
+    }
+
+    @VisibleForTesting
+    @SuppressWarnings("unchecked")
+    MapFeederForkJoin(StreamMapper task, TaskDataSource source, int parallelism, int chunk, int flushMillis) {
         this.source = source;
         this.task = task;
         this.parallelism = parallelism;
-        this.mapperPool = new ForkJoinPool(parallelism,
-                                           ForkJoinPool.defaultForkJoinWorkerThreadFactory,
-                                           (Thread t, Throwable e) -> handleUncaughtThrowable(e),
-                                           true);
-        this.enqueuePermits = new Semaphore(QUEUE_DEPTH);
+        this.batchSize = Math.min(task.getBatchSize(), QUEUE_DEPTH);
+        this.chunkSize = Math.max(1, Math.max(chunk, batchSize));
+        this.flushMillis = flushMillis;
+        this.enqueuePermits = new Semaphore(Math.max(QUEUE_DEPTH, 2 * chunkSize * parallelism));
+        this.sourceBatch = new ArrayList<>(Math.max(1, batchSize));
+        this.shardField = source.getShardField();
+        if (shardField == null) {
+            this.mapperPool = new ForkJoinPool(parallelism,
+                                               ForkJoinPool.defaultForkJoinWorkerThreadFactory,
+                                               (Thread t, Throwable e) -> handleUncaughtThrowable(e),
+                                               true);
+            this.deques = null;
+            this.threads = null;
+            this.stealMeter = null;
+            this.pending = new Chunk[0];
+        } else {
+            this.mapperPool = null;
+            this.deques = new LinkedBlockingDeque[parallelism];
+            this.threads = new Thread[parallelism];
+            this.stealMeter = Metrics.newMeter(getClass(), "chunkStealRate", "steals", TimeUnit.SECONDS);
+            this.pending = new Chunk[parallelism];
+            for (int i = 0; i < parallelism; i++) {
+                deques[i] = new LinkedBlockingDeque<>();
+                threads[i] = new Thread(new MapperTask(i), "MapProcessor #" + i);
+            }
+        }
+        if (flushMillis > 0) {
+            this.flusher = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("MapFeederFlush-%d").build());
+        } else {
+            this.flusher = null;
+        }
     }
 
     @Override public void run() {
-        log.info("starting {} thread(s) for src={}", parallelism, source);
+        log.info("starting {} thread(s) for src={} sharded={} chunk={}",
+                 parallelism, source, shardField != null, chunkSize);
+        if (threads != null) {
+            for (Thread thread : threads) {
+                thread.start();
+            }
+        }
+        if (flusher != null) {
+            flusher.scheduleWithFixedDelay(this::timedFlush, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+        }
         try {
             if (source.isEnabled()) {
                 while (fillBuffer()) {
@@ -74,6 +172,11 @@ public final class MapFeederForkJoin implements Runnable {
                     }
                 }
             }
+            if (flusher != null) {
+                // a flush in progress finishes before the final one below
+                flusher.shutdown();
+            }
+            flush();
             closeSourceIfNeeded();
             // run in different threads to isolate them from interrupts. ie. "taskCompleteUninterruptibly"
             // join awaits completion, is uninterruptible, and will propagate any exception
@@ -90,7 +193,8 @@ public final class MapFeederForkJoin implements Runnable {
 
     private void logBundleThroughput() {
         long elapse = (System.currentTimeMillis() - start) / 1000;
-        log.info("{} bundles processed in {} seconds (avg rate={}/s)", totalBundles, elapse, totalBundles / elapse);
+        log.info("{} bundles processed in {} seconds (avg rate={}/s)", totalBundles, elapse,
+                 (elapse == 0) ? 0 : (totalBundles / elapse));
     }
 
     /**
@@ -105,24 +209,33 @@ public final class MapFeederForkJoin implements Runnable {
     }
 
     /**
-     * Push the next bundle onto the work queue. Returns true
-     * to continue processing. If another thread has interrupted
-     * ourselves then set our interrupt status. This will close
-     * the current source and continue to consume any remaining elements
-     * from the queue.
+     * Read the next bundle, or batch of bundles, from the source and add them
+     * to chunks. Returns true to continue processing. If another thread has
+     * interrupted ourselves then set our interrupt status. This will close
+     * the current source and continue to consume any remaining elements.
      */
     private boolean fillBuffer() {
         boolean status = false;
         try {
-            enqueuePermits.acquire();
-            Bundle p = source.next();
-            if (p == null) {
-                log.info("exiting on null bundle from {}", source);
+            if (batchSize > 1) {
+                int count = source.nextBatch(sourceBatch, batchSize);
+                if (count == 0) {
+                    log.info("exiting on empty batch from {}", source);
+                } else {
+                    for (Bundle p : sourceBatch) {
+                        add(p);
+                    }
+                    sourceBatch.clear();
+                    status = true;
+                }
             } else {
-                totalBundles++;
-                CompletableFuture<Void> future = CompletableFuture.runAsync(() -> task.process(p), mapperPool);
-                future.whenComplete((v, e) -> enqueuePermits.release());
-                status = true;
+                Bundle p = source.next();
+                if (p == null) {
+                    log.info("exiting on null bundle from {}", source);
+                } else {
+                    add(p);
+                    status = true;
+                }
             }
         } catch (NoSuchElementException ignored) {
             log.info("exiting on premature stream termination");
@@ -133,16 +246,135 @@ public final class MapFeederForkJoin implements Runnable {
         return status;
     }
 
+    private synchronized void add(Bundle p) throws InterruptedException {
+        totalBundles++;
+        int shard = shard(p);
+        Chunk chunk;
+        if (shard < 0) {
+            if (unsharded == null) {
+                unsharded = new Chunk(chunkSize, true);
+            }
+            chunk = unsharded;
+        } else {
+            if (pending[shard] == null) {
+                pending[shard] = new Chunk(chunkSize, false);
+            }
+            chunk = pending[shard];
+        }
+        chunk.bundles.add(p);
+        if (chunk.bundles.size() >= chunkSize) {
+            if (shard < 0) {
+                unsharded = null;
+            } else {
+                pending[shard] = null;
+            }
+            dispatch(chunk, shard);
+        }
+        if (++sinceFlush >= (chunkSize * parallelism)) {
+            flush();
+        }
+    }
+
+    /**
+     * Queue every partial chunk if none have been queued for {@link #flushMillis}.
+     * Runs on the flusher thread.
+     */
+    private synchronized void timedFlush() {
+        if ((System.currentTimeMillis() - lastFlush) >= flushMillis) {
+            try {
+                flush();
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            } catch (Throwable t) {
+                handleUncaughtThrowable(t);
+            }
+        }
+    }
+
+    /**
+     * Queue every partial chunk.
+     */
+    private synchronized void flush() throws InterruptedException {
+        sinceFlush = 0;
+        lastFlush = System.currentTimeMillis();
+        for (int i = 0; i < pending.length; i++) {
+            if (pending[i] != null) {
+                Chunk chunk = pending[i];
+                pending[i] = null;
+                dispatch(chunk, i);
+            }
+        }
+        if (unsharded != null) {
+            Chunk chunk = unsharded;
+            unsharded = null;
+            dispatch(chunk, -1);
+        }
+    }
+
+    /**
+     * Returns the mapper thread of the bundle or -1 if
+     * the bundle is unsharded.
+     */
+    private int shard(Bundle p) {
+        if (shardField == null) {
+            return -1;
+        }
+        String val = ValueUtil.asNativeString(shardField.getValue(p));
+        if (LessStrings.isEmpty(val)) {
+            return -1;
+        }
+        return Math.abs(PluggableHashFunction.hash(val) % parallelism);
+    }
+
+    private void dispatch(Chunk chunk, int shard) throws InterruptedException {
+        int count = chunk.bundles.size();
+        enqueuePermits.acquire(count);
+        if (mapperPool != null) {
+            CompletableFuture<Void> future = CompletableFuture.runAsync(() -> process(chunk), mapperPool);
+            future.whenComplete((v, e) -> enqueuePermits.release(count));
+        } else {
+            deques[(shard < 0) ? shortestDeque() : shard].offerLast(chunk);
+        }
+    }
+
+    private int shortestDeque() {
+        int shortest = 0;
+        for (int i = 1; i < deques.length; i++) {
+            if (deques[i].size() < deques[shortest].size()) {
+                shortest = i;
+            }
+        }
+        return shortest;
+    }
+
+    private void process(Chunk chunk) {
+        if (chunk.bundles.size() == 1) {
+            task.process(chunk.bundles.get(0));
+        } else {
+            task.process(chunk.bundles);
+        }
+    }
+
     private void joinProcessors() {
-        mapperPool.shutdown();
-        try {
-            if (!mapperPool.awaitTermination(task.getTaskFinishTimeout(), TimeUnit.SECONDS)) {
-                throw new RuntimeException("Mapper pool did not terminate after " +
-                                           task.getTaskFinishTimeout() + " seconds.");
+        if (mapperPool != null) {
+            mapperPool.shutdown();
+            try {
+                if (!mapperPool.awaitTermination(task.getTaskFinishTimeout(), TimeUnit.SECONDS)) {
+                    throw new RuntimeException("Mapper pool did not terminate after " +
+                                               task.getTaskFinishTimeout() + " seconds.");
+                }
+            } catch (InterruptedException ex) {
+                log.error("Interrupted while waiting for mapper pool termination.");
+                Throwables.propagate(ex);
+            }
+        } else {
+            log.debug("pushing terminating chunks to {} processors", parallelism);
+            for (LinkedBlockingDeque<Chunk> deque : deques) {
+                deque.offerLast(TERM_CHUNK);
+            }
+            for (Thread thread : threads) {
+                Uninterruptibles.joinUninterruptibly(thread);
             }
-        } catch (InterruptedException ex) {
-            log.error("Interrupted while waiting for mapper pool termination.");
-            Throwables.propagate(ex);
         }
     }
 
@@ -155,4 +387,70 @@ public final class MapFeederForkJoin implements Runnable {
         }
     }
 
-}
\ No newline at end of file
+    private static final class Chunk {
+        final List<Bundle> bundles;
+        // true if any mapper thread may process this chunk
+        final boolean stealable;
+
+        Chunk(int size, boolean stealable) {
+            this.bundles = new ArrayList<>(size);
+            this.stealable = stealable;
+        }
+    }
+
+    /**
+     * Processes the chunks of one deque in order and steals
+     * unsharded chunks from other deques while its own is empty.
+     */
+    private class MapperTask implements Runnable {
+        private final int processorID;
+
+        MapperTask(int processorID) {
+            this.processorID = processorID;
+        }
+
+        @Override
+        public void run() {
+            LinkedBlockingDeque<Chunk> own = deques[processorID];
+            while (true) {
+                try {
+                    Chunk chunk = own.pollFirst();
+                    if (chunk == null) {
+                        chunk = steal();
+                    }
+                    if (chunk == null) {
+                        chunk = own.pollFirst(10, TimeUnit.MILLISECONDS);
+                        if (chunk == null) {
+                            continue;
+                        }
+                    }
+                    if (chunk == TERM_CHUNK) {
+                        return;
+                    }
+                    // counted first because filters remove bundles from the chunk
+                    int count = chunk.bundles.size();
+                    try {
+                        process(chunk);
+                    } finally {
+                        enqueuePermits.release(count);
+                    }
+                } catch (Throwable t) {
+                    handleUncaughtThrowable(t);
+                }
+            }
+        }
+
+        private Chunk steal() {
+            for (int i = 1; i < deques.length; i++) {
+                LinkedBlockingDeque<Chunk> victim = deques[(processorID + i) % deques.length];
+                Chunk last = victim.peekLast();
+                // only one thread succeeds in removing a given chunk
+                if ((last != null) && last.stealable && victim.removeLastOccurrence(last)) {
+                    stealMeter.mark();
+                    return last;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -13,6 +13,8 @@
  */
 package com.addthis.hydra.task.map;
 
+import java.util.List;
+
 import com.addthis.bundle.core.Bundle;
 
 /**
@@ -22,4 +24,11 @@ public interface StreamEmitter {
 
     /** Emits a {@link Bundle} to a Stream */
     public void emit(Bundle bundle);
+
+    /** Emits several bundles to a Stream */
+    public default void emitBatch(List<Bundle> bundles) {
+        for (Bundle bundle : bundles) {
+            emit(bundle);
+        }
+    }
 }
@@ -13,21 +13,59 @@
  */
 package com.addthis.hydra.task.map;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.nio.charset.StandardCharsets;
+
+import com.addthis.basis.util.LessFiles;
+import com.addthis.basis.util.Varint;
 
 import com.addthis.bundle.core.Bundle;
 import com.addthis.bundle.core.BundleField;
 import com.addthis.bundle.core.list.ListBundle;
 import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.bundle.io.DataChannelCodec;
 import com.addthis.bundle.value.ValueObject;
 import com.addthis.codec.annotations.FieldConfig;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.CountingOutputStream;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 /**
- * This is a util to join 2 datasets with similar keys
- * This is intended to run on a single thread and hence is not thread safe
+ * This is a util to join 2 datasets with similar keys.
+ * <p/>
+ * Rows are grouped by {@code key} and the values of {@code fields} from each row of a key are
+ * collected into one joined bundle. A joined bundle is emitted once a later row of the key
+ * completes it. When the value of {@code hash} changes, and when the stream completes, the
+ * bundles that are complete are emitted and all keys are released.
+ * <p/>
+ * Keys are divided among {@code partitions} independently locked partitions so mapper threads
+ * only contend when they join keys of the same partition. When {@code maxMemory} is set and the
+ * estimated memory of the keys held goes past it, the largest partition is written to a file in
+ * {@code spillDir} and cleared. Spilled keys are read back one partition at a time on release
+ * and merged with the rows of the same key that arrived after the spill, earlier values being
+ * replaced by later ones.
  */
 public class StreamJoin extends StreamBuilder {
 
@@ -38,101 +76,347 @@ public class StreamJoin extends StreamBuilder {
     @FieldConfig(codable = true, required = true)
     private String hash;
 
-    private Map<String, ListBundle> keyMap;
-    private String currentHash;
-    private int numExpectedFields;
+    /** Estimated bytes of keys held in memory before partitions are spilled to disk. The default is 0 (unbounded). */
+    @FieldConfig(codable = true)
+    private long maxMemory;
+
+    /** Number of independently locked partitions. The default is 16. */
+    @FieldConfig(codable = true)
+    private int partitions = 16;
+
+    /** Directory for spilled partitions. The default is "join-spill". */
+    @FieldConfig(codable = true)
+    private String spillDir = "join-spill";
+
+    private final Counter joined = Metrics.newCounter(getClass(), "joined");
+    private final Counter unmatched = Metrics.newCounter(getClass(), "unmatched");
+    private final Counter spills = Metrics.newCounter(getClass(), "spills");
+    private final Counter spilledBytes = Metrics.newCounter(getClass(), "spilledBytes");
+
+    private final AtomicLong memory = new AtomicLong();
+    private final Object releaseLock = new Object();
+
+    private ListBundleFormat format;
+    private BundleField[] formatFields;
+    private Partition[] parts;
+    private File spillDirFile;
+    private volatile String currentHash;
 
     private static final Logger logger = LoggerFactory.getLogger(StreamJoin.class);
 
     @Override
     public void init() {
-        numExpectedFields = fields.length;
-        keyMap = new HashMap<>(10000, 0.75f);
+        format = new ListBundleFormat();
+        formatFields = new BundleField[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            formatFields[i] = format.getField(fields[i]);
+        }
+        if (maxMemory > 0) {
+            spillDirFile = LessFiles.initDirectory(spillDir);
+        }
+        parts = new Partition[Math.max(1, partitions)];
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = new Partition();
+        }
+        Metrics.newGauge(getClass(), "hitRate", new Gauge<Double>() {
+            @Override
+            public Double value() {
+                long total = joined.count() + unmatched.count();
+                return (total > 0) ? ((double) joined.count() / total) : 0.0;
+            }
+        });
+        Metrics.newGauge(getClass(), "memory", new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return memory.get();
+            }
+        });
     }
 
     @Override
     public void process(Bundle row, StreamEmitter emitter) {
-        String keyValue = row.getValue(row.getFormat().getField(key)).asString().asNative();
-        String hashValue = row.getValue(row.getFormat().getField(hash)).asString().asNative();
+        String keyValue = asString(row, key);
+        String hashValue = asString(row, hash);
 
         if (keyValue != null) {
-            if (currentHash != null && hashValue != null && !currentHash.equals(hashValue)) {
-                releaseMap(emitter);
+            String previous = currentHash;
+            if ((previous != null) && (hashValue != null) && !previous.equals(hashValue)) {
+                synchronized (releaseLock) {
+                    // another thread may already have released the previous hash
+                    if (!hashValue.equals(currentHash)) {
+                        releaseAll(emitter);
+                        currentHash = hashValue;
+                    }
+                }
+            } else {
+                currentHash = hashValue;
             }
 
-            currentHash = hashValue;
-
             joinAndEmit(keyValue, row, emitter);
         }
     }
 
-    private synchronized void releaseMap(StreamEmitter emitter) {
-        for (ListBundle bundle : keyMap.values()) {
-            if (bundle.getFormat().getFieldCount() == numExpectedFields) {
-                emitter.emit(bundle);
-            }
-        }
-
-        keyMap = new HashMap<>(10000, 0.75f);
+    private static String asString(Bundle row, String name) {
+        BundleField field = row.getFormat().getField(name);
+        ValueObject value = row.getValue(field);
+        return (value != null) ? value.asString().asNative() : null;
     }
 
     private void joinAndEmit(String keyValue, Bundle row, StreamEmitter emitter) {
-        ListBundle bundle = null;
-        ValueObject fieldValue = null;
-        BundleField bundleField = null;
-        ListBundleFormat form = new ListBundleFormat();
-        boolean newBundle = false;
-
-        if ((bundle = keyMap.get(keyValue)) == null) {
-            bundle = new ListBundle();
-            keyMapPut(keyValue, bundle);
-            newBundle = true;
+        Partition part = parts[(keyValue.hashCode() & Integer.MAX_VALUE) % parts.length];
+        Entry complete = null;
+        synchronized (part) {
+            Entry entry = part.keys.get(keyValue);
+            boolean newEntry = (entry == null);
+            if (newEntry) {
+                entry = new Entry(keyValue, fields.length);
+                part.keys.put(keyValue, entry);
+            }
+            long delta = entry.setValues(row, fields, newEntry);
+            part.bytes += delta;
+            memory.addAndGet(delta);
+            if (!newEntry && entry.isComplete()) {
+                part.keys.remove(keyValue);
+                part.bytes -= entry.bytes;
+                memory.addAndGet(-entry.bytes);
+                complete = entry;
+            }
         }
+        if (complete != null) {
+            joined.inc();
+            emitter.emit(toBundle(complete));
+        } else if ((maxMemory > 0) && (memory.get() > maxMemory)) {
+            spillLargest();
+        }
+    }
 
-        for (String field : fields) {
-            bundleField = row.getFormat().getField(field);
+    private Bundle toBundle(Entry entry) {
+        ListBundle bundle = new ListBundle(format);
+        for (int i = 0; i < formatFields.length; i++) {
+            bundle.setValue(formatFields[i], entry.values[i]);
+        }
+        return bundle;
+    }
 
-            if (bundleField != null) {
-                fieldValue = row.getValue(bundleField);
+    private void spillLargest() {
+        Partition largest = parts[0];
+        for (Partition part : parts) {
+            if (part.bytes > largest.bytes) {
+                largest = part;
             }
+        }
+        synchronized (largest) {
+            if (largest.keys.isEmpty()) {
+                return;
+            }
+            try {
+                largest.spill();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
 
-            if (fieldValue != null) {
-                bundleField = form.getField(field);
-                bundle.setValue(bundleField, fieldValue);
+    private void releaseAll(StreamEmitter emitter) {
+        for (Partition part : parts) {
+            List<Entry> released;
+            synchronized (part) {
+                try {
+                    released = part.release();
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+            for (Entry entry : released) {
+                if (entry.isComplete()) {
+                    joined.inc();
+                    emitter.emit(toBundle(entry));
+                } else {
+                    unmatched.inc();
+                }
             }
         }
+    }
 
-        if (!newBundle && bundle.getFormat().getFieldCount() == numExpectedFields) {
-            emitBundle(keyValue, bundle, emitter);
+    @Override
+    public void streamComplete(StreamEmitter streamEmitter) {
+        synchronized (releaseLock) {
+            releaseAll(streamEmitter);
         }
     }
 
-    private synchronized void keyMapPut(String keyValue, ListBundle bundle) {
-        keyMap.put(keyValue, bundle);
+    @VisibleForTesting
+    long getMemory() {
+        return memory.get();
     }
 
-    private void emitBundle(String keyValue, ListBundle bundle, StreamEmitter emitter) {
-        if (bundle != null) {
-            emitter.emit(bundle);
-            // remove from map
-            keyMapRemove(keyValue);
-        }
+    @VisibleForTesting
+    long getSpills() {
+        return spills.count();
     }
 
-    private synchronized void keyMapRemove(String keyValue) {
-        keyMap.remove(keyValue);
+    /**
+     * Values joined so far for one key.
+     */
+    private static final class Entry {
+
+        private static final int ENTRY_BYTES = 64;
+
+        final String key;
+        final ValueObject[] values;
+        int present;
+        long bytes;
+
+        Entry(String key, int size) {
+            this.key = key;
+            this.values = new ValueObject[size];
+            this.bytes = ENTRY_BYTES + (2L * key.length()) + (8L * size);
+        }
+
+        boolean isComplete() {
+            return present == values.length;
+        }
+
+        void set(int index, ValueObject value) {
+            if (values[index] == null) {
+                present++;
+            } else {
+                bytes -= estimate(values[index]);
+            }
+            values[index] = value;
+            bytes += estimate(value);
+        }
+
+        /**
+         * Copy the joined fields of the row into this entry.
+         *
+         * @return change in the estimated memory of the entry
+         */
+        long setValues(Bundle row, String[] names, boolean newEntry) {
+            long before = newEntry ? 0 : bytes;
+            for (int i = 0; i < values.length; i++) {
+                BundleField field = row.getFormat().getField(names[i]);
+                ValueObject value = (field != null) ? row.getValue(field) : null;
+                if (value != null) {
+                    set(i, value);
+                }
+            }
+            return bytes - before;
+        }
+
+        /** Values of {@code other} replace those of this entry. */
+        void merge(Entry other) {
+            for (int i = 0; i < values.length; i++) {
+                if (other.values[i] != null) {
+                    set(i, other.values[i]);
+                }
+            }
+        }
+
+        private static long estimate(ValueObject value) {
+            if (value.getObjectType() == ValueObject.TYPE.STRING) {
+                return 40 + (2L * value.asString().asNative().length());
+            }
+            return 24;
+        }
     }
 
-    @Override
-    public void streamComplete(StreamEmitter streamEmitter) {
-        if (keyMap.size() > 0) {
-            for (String key : keyMap.keySet()) {
-                ListBundle bundle = keyMap.get(key);
+    /**
+     * A share of the keys with its own lock and spill file.
+     */
+    private final class Partition {
+
+        Map<String, Entry> keys = new HashMap<>();
+        long bytes;
+
+        File spillFile;
+        CountingOutputStream counter;
+        DataOutputStream spillOut;
+        DataChannelCodec.ClassIndexMap classMap;
 
-                if (bundle.getFormat().getFieldCount() == numExpectedFields) {
-                    emitBundle(key, bundle, streamEmitter);
+        void spill() throws IOException {
+            if (spillOut == null) {
+                spillFile = File.createTempFile("join", ".spill", spillDirFile);
+                counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+                spillOut = new DataOutputStream(counter);
+                classMap = DataChannelCodec.createClassIndexMap();
+            }
+            long start = counter.getCount();
+            for (Entry entry : keys.values()) {
+                byte[] keyBytes = entry.key.getBytes(StandardCharsets.UTF_8);
+                Varint.writeUnsignedVarInt(keyBytes.length, spillOut);
+                spillOut.write(keyBytes);
+                Varint.writeUnsignedVarInt(entry.present, spillOut);
+                for (int i = 0; i < entry.values.length; i++) {
+                    if (entry.values[i] != null) {
+                        Varint.writeUnsignedVarInt(i, spillOut);
+                        DataChannelCodec.encodeValue(entry.values[i], spillOut, classMap);
+                    }
+                }
+            }
+            spillOut.flush();
+            long written = counter.getCount() - start;
+            spills.inc();
+            spilledBytes.inc(written);
+            logger.debug("spilled {} keys ({} bytes) to {}", keys.size(), written, spillFile);
+            memory.addAndGet(-bytes);
+            keys = new HashMap<>();
+            bytes = 0;
+        }
+
+        /**
+         * Remove and return every key, reading back spilled keys.
+         */
+        List<Entry> release() throws IOException {
+            Map<String, Entry> memoryKeys = keys;
+            memory.addAndGet(-bytes);
+            keys = new HashMap<>();
+            bytes = 0;
+            if (spillOut == null) {
+                return new ArrayList<>(memoryKeys.values());
+            }
+            spillOut.close();
+            Map<String, Entry> merged = new HashMap<>();
+            DataChannelCodec.ClassIndexMap readMap = DataChannelCodec.createClassIndexMap();
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(spillFile)))) {
+                while (true) {
+                    int keyLength;
+                    try {
+                        keyLength = Varint.readUnsignedVarInt(in);
+                    } catch (EOFException ex) {
+                        break;
+                    }
+                    byte[] keyBytes = new byte[keyLength];
+                    in.readFully(keyBytes);
+                    Entry entry = new Entry(new String(keyBytes, StandardCharsets.UTF_8),
+                                            fields.length);
+                    int present = Varint.readUnsignedVarInt(in);
+                    for (int i = 0; i < present; i++) {
+                        int index = Varint.readUnsignedVarInt(in);
+                        entry.set(index, DataChannelCodec.decodeValue(in, readMap));
+                    }
+                    Entry existing = merged.putIfAbsent(entry.key, entry);
+                    if (existing != null) {
+                        existing.merge(entry);
+                    }
+                }
+            } finally {
+                if (!spillFile.delete()) {
+                    logger.warn("unable to delete spill file {}", spillFile);
+                }
+                spillFile = null;
+                spillOut = null;
+                counter = null;
+                classMap = null;
+            }
+            for (Entry entry : memoryKeys.values()) {
+                Entry existing = merged.putIfAbsent(entry.key, entry);
+                if (existing != null) {
+                    existing.merge(entry);
                 }
             }
+            return new ArrayList<>(merged.values());
         }
     }
 }
@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.net.ServerSocket;
 
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
@@ -129,6 +130,13 @@ public class StreamMapper implements StreamEmitter, TaskRunnable {
      */
     private final boolean useForkJoinMapFeeder;
 
+    /**
+     * If greater than one then the feeder reads up to this many bundles
+     * from the source at once and hands them to the mapper threads,
+     * filters and output together. Default is 1.
+     */
+    private final int batchSize;
+
     private final int threads;
     private final boolean enableJmx;
     private final boolean emitTaskState;
@@ -166,7 +174,8 @@ public class StreamMapper implements StreamEmitter, TaskRunnable {
             @JsonProperty("dateFormat") SimpleDateFormat dateFormat,
             @JsonProperty("validateDirs") boolean validateDirs,
             @JsonProperty("taskFinishTimeout") @Time(TimeUnit.SECONDS) int taskFinishTimeout,
-            @JsonProperty("useForkJoinMapFeeder") boolean useForkJoinMapFeeder) {
+            @JsonProperty("useForkJoinMapFeeder") boolean useForkJoinMapFeeder,
+            @JsonProperty("batchSize") int batchSize) {
         this.source = source;
         this.map = map;
         this.output = output;
@@ -180,6 +189,7 @@ public class StreamMapper implements StreamEmitter, TaskRunnable {
         this.validateDirs = validateDirs;
         this.taskFinishTimeout = taskFinishTimeout;
         this.useForkJoinMapFeeder = useForkJoinMapFeeder;
+        this.batchSize = Math.max(1, batchSize);
         validateWritableRootPaths();
     }
 
@@ -238,31 +248,89 @@ public class StreamMapper implements StreamEmitter, TaskRunnable {
 
             // inputs are counted after outputs to prevent spurious drop reporting
             inputMeter.mark();
+            maybePrintMetrics();
+        } catch (DataChannelError ex) {
+            output.sourceError(ex);
+            throw ex;
+        } catch (RuntimeException ex) {
+            log.warn("runtime error :: {}", BundleFilterDebugPrint.formatBundle(bundle));
+            output.sourceError(DataChannelError.promote(ex));
+            throw ex;
+        } catch (Exception ex) {
+            log.warn("handling error :: {}", BundleFilterDebugPrint.formatBundle(bundle));
+            DataChannelError err = DataChannelError.promote(ex);
+            output.sourceError(err);
+            throw err;
+        }
+    }
 
-            // print metrics if it has been long enough
-            long time = System.nanoTime();
-            if (stats && ((time - lastTick) > metricTick) && metricGate.compareAndSet(false, true)) {
-                // lastTick is not volatile, so double check after fencing on "metricGate"
-                if ((time - lastTick) > metricTick) {
-                    printMetrics(time);
+    /**
+     * Process several bundles. Each filter is applied to all of the bundles
+     * that passed the previous stage, and the remaining bundles are sent to
+     * the output together unless a builder is configured. The bundles in
+     * the list are replaced by their mapped bundles.
+     *
+     * @param bundles modifiable list of input bundles
+     */
+    public void process(List<Bundle> bundles) {
+        int inputs = bundles.size();
+        try {
+            long filterBefore = System.nanoTime();
+            if (map.filterIn != null) {
+                map.filterIn.filterBatch(bundles);
+            }
+            for (int i = 0; i < bundles.size(); i++) {
+                bundles.set(i, mapBundle(bundles.get(i)));
+            }
+            if (map.filterOut != null) {
+                map.filterOut.filterBatch(bundles);
+            }
+            if (map.cFilterOut != null) {
+                map.cFilterOut.filterBatch(bundles);
+            }
+            long filterAfter = System.nanoTime();
+            filterTime.add(filterAfter - filterBefore);
+            if (!bundles.isEmpty()) {
+                if (builder != null) {
+                    for (Bundle bundle : bundles) {
+                        builder.process(bundle, this);
+                    }
+                } else {
+                    emitBatch(bundles);
                 }
-                metricGate.set(false);
+                outputTime.add(System.nanoTime() - filterAfter);
+                outputMeter.mark(bundles.size());
             }
+            // inputs are counted after outputs to prevent spurious drop reporting
+            inputMeter.mark(inputs);
+            maybePrintMetrics();
         } catch (DataChannelError ex) {
             output.sourceError(ex);
             throw ex;
         } catch (RuntimeException ex) {
-            log.warn("runtime error :: {}", BundleFilterDebugPrint.formatBundle(bundle));
+            log.warn("runtime error in batch of {} bundles", inputs);
             output.sourceError(DataChannelError.promote(ex));
             throw ex;
         } catch (Exception ex) {
-            log.warn("handling error :: {}", BundleFilterDebugPrint.formatBundle(bundle));
+            log.warn("handling error in batch of {} bundles", inputs);
             DataChannelError err = DataChannelError.promote(ex);
             output.sourceError(err);
             throw err;
         }
     }
 
+    /** print metrics if it has been long enough */
+    private void maybePrintMetrics() {
+        long time = System.nanoTime();
+        if (stats && ((time - lastTick) > metricTick) && metricGate.compareAndSet(false, true)) {
+            // lastTick is not volatile, so double check after fencing on "metricGate"
+            if ((time - lastTick) > metricTick) {
+                printMetrics(time);
+            }
+            metricGate.set(false);
+        }
+    }
+
     private Bundle mapBundle(Bundle in) {
         Bundle out = output.createBundle();
         if (map.fields != null) {
@@ -283,6 +351,11 @@ public class StreamMapper implements StreamEmitter, TaskRunnable {
         output.send(bundle);
     }
 
+    @Override public void emitBatch(List<Bundle> bundles) {
+        log.debug("output: {} bundles", bundles.size());
+        output.send(bundles);
+    }
+
     // These metrics are racey with respect to each other and the time range they cover, but no events are dropped, and
     // "extra" filtering costs for one tick will not show up in the next tick and should therefore be visible only once.
     @GuardedBy("metricGate")
@@ -479,4 +552,8 @@ public class StreamMapper implements StreamEmitter, TaskRunnable {
     public int getTaskFinishTimeout() {
         return taskFinishTimeout;
     }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
 }
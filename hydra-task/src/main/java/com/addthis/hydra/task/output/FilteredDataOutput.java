@@ -13,6 +13,7 @@
  */
 package com.addthis.hydra.task.output;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import com.addthis.bundle.channel.DataChannelError;
@@ -75,8 +76,10 @@ public class FilteredDataOutput extends TaskDataOutput {
 
     @Override
     public void send(List<Bundle> bundles) {
-        for (Bundle bundle : bundles) {
-            send(bundle);
+        List<Bundle> accepted = new ArrayList<>(bundles);
+        filter.filterBatch(accepted);
+        if (!accepted.isEmpty()) {
+            output.send(accepted);
         }
     }
 }
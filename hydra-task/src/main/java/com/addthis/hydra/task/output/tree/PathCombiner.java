@@ -0,0 +1,287 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.output.tree;
+
+import javax.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.util.ValueUtil;
+import com.addthis.bundle.value.ValueObject;
+import com.addthis.hydra.data.tree.DataTreeNode;
+import com.addthis.hydra.data.tree.DataTreeNodeInitializer;
+import com.addthis.hydra.data.tree.DataTreeNodeUpdater;
+import com.addthis.hydra.data.tree.MergeableTreeNodeData;
+import com.addthis.hydra.data.tree.TreeDataParameters;
+import com.addthis.hydra.data.tree.TreeNodeData;
+
+/**
+ * Buffers the bundles of one mapper thread that follow a path of plain value
+ * elements (see {@link PathValue#combinable()}) and applies them to the tree
+ * together. Bundles are grouped into a trie by the node names they produce, so
+ * each distinct node of a window is leased once and its hit count is incremented
+ * once by the number of bundles that reached it.
+ * <p/>
+ * Data attachments of an element are merged when all of them implement
+ * {@link MergeableTreeNodeData}: the bundles of a node are first applied to
+ * detached instances and those are merged into the node in a single update.
+ * Otherwise each bundle updates the attachments of the node in turn while the
+ * node is held. Parent data is updated once per bundle.
+ * <p/>
+ * Within a window the order of updates follows the trie rather than the order
+ * in which the bundles arrived.
+ */
+final class PathCombiner {
+
+    private final PathValue[] path;
+
+    private final boolean[] mergeable;
+
+    private final int window;
+
+    private final Entry root = new Entry();
+
+    private final Updater updater = new Updater();
+
+    private int buffered;
+
+    private PathCombiner(PathValue[] path, int window) {
+        this.path = path;
+        this.window = window;
+        this.mergeable = new boolean[path.length];
+        for (int i = 0; i < path.length; i++) {
+            mergeable[i] = mergeableData(path[i]);
+        }
+    }
+
+    /**
+     * Returns a combiner for the path or null if the path has elements
+     * other than plain values.
+     */
+    @Nullable static PathCombiner create(PathElement[] path, int window) {
+        List<PathValue> elements = new ArrayList<>(path.length);
+        for (PathElement element : path) {
+            if (element.disabled()) {
+                continue;
+            }
+            if (!(element instanceof PathValue) || !((PathValue) element).combinable()) {
+                return null;
+            }
+            elements.add((PathValue) element);
+        }
+        return new PathCombiner(elements.toArray(new PathValue[elements.size()]), window);
+    }
+
+    private static boolean mergeableData(PathValue element) {
+        Map<String, TreeDataParameters> config = element.dataConfig();
+        if (config != null) {
+            for (TreeDataParameters parameters : config.values()) {
+                if (!(parameters.newInstance() instanceof MergeableTreeNodeData)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Buffer a bundle. Returns false if the bundle produces a map value,
+     * in which case it must be processed directly.
+     */
+    synchronized boolean add(Bundle bundle) {
+        TreeMapState state = new TreeMapState(bundle);
+        ValueObject[] values = new ValueObject[path.length];
+        int depth = 0;
+        while (depth < path.length) {
+            ValueObject value = path[depth].getFilteredValue(state);
+            if (ValueUtil.isEmpty(value)) {
+                break;
+            } else if (value.getObjectType() == ValueObject.TYPE.MAP) {
+                return false;
+            }
+            values[depth++] = value;
+        }
+        insert(root, 0, depth, values, bundle);
+        buffered++;
+        return true;
+    }
+
+    synchronized boolean full() {
+        return buffered >= window;
+    }
+
+    private static void insert(Entry entry, int level, int depth, ValueObject[] values, Bundle bundle) {
+        if (level == depth) {
+            return;
+        }
+        ValueObject value = values[level];
+        if (value.getObjectType() == ValueObject.TYPE.ARRAY) {
+            for (ValueObject element : value.asArray()) {
+                if (element != null) {
+                    insertChild(entry, ValueUtil.asNativeString(element), level, depth, values, bundle);
+                }
+            }
+        } else {
+            insertChild(entry, ValueUtil.asNativeString(value), level, depth, values, bundle);
+        }
+    }
+
+    private static void insertChild(Entry entry, String name, int level, int depth,
+                                    ValueObject[] values, Bundle bundle) {
+        Entry child = entry.children.get(name);
+        if (child == null) {
+            child = new Entry();
+            entry.children.put(name, child);
+        }
+        child.bundles.add(bundle);
+        insert(child, level + 1, depth, values, bundle);
+    }
+
+    /**
+     * Apply the buffered bundles below {@code rootNode}.
+     *
+     * @return number of nodes updated
+     */
+    synchronized int flush(DataTreeNode rootNode) {
+        try {
+            return apply(rootNode, root, 0);
+        } finally {
+            root.children.clear();
+            buffered = 0;
+        }
+    }
+
+    private int apply(DataTreeNode parent, Entry entry, int level) {
+        PathValue element = path[level];
+        int touched = 0;
+        for (Map.Entry<String, Entry> mapEntry : entry.children.entrySet()) {
+            Entry childEntry = mapEntry.getValue();
+            List<Bundle> bundles = childEntry.bundles;
+            updater.single(bundles.get(0));
+            DataTreeNode child = parent.getOrCreateNode(mapEntry.getKey(), updater);
+            boolean isnew = updater.lastWasNew;
+            if (child == null) {
+                continue;
+            }
+            try {
+                if (mergeable[level]) {
+                    updater.combined(bundles, deltas(element, bundles));
+                    child.updateChildData(updater, element);
+                } else {
+                    for (Bundle bundle : bundles) {
+                        updater.single(bundle);
+                        child.updateChildData(updater, element);
+                    }
+                }
+                if (parent.getDataMap() != null) {
+                    for (Bundle bundle : bundles) {
+                        updater.single(bundle);
+                        parent.updateParentData(updater, child, isnew);
+                        isnew = false;
+                    }
+                }
+                touched++;
+                if (!childEntry.children.isEmpty()) {
+                    touched += apply(child, childEntry, level + 1);
+                }
+            } finally {
+                child.release();
+            }
+        }
+        return touched;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Nullable private Map<String, TreeNodeData<?>> deltas(PathValue element, List<Bundle> bundles) {
+        Map<String, TreeDataParameters> config = element.dataConfig();
+        if (config == null) {
+            return null;
+        }
+        Map<String, TreeNodeData<?>> deltas = new HashMap<>(config.size());
+        for (Map.Entry<String, TreeDataParameters> mapEntry : config.entrySet()) {
+            TreeDataParameters parameters = mapEntry.getValue();
+            TreeNodeData delta = parameters.newInstance();
+            for (Bundle bundle : bundles) {
+                updater.single(bundle);
+                delta.updateChildData(updater, null, parameters);
+            }
+            deltas.put(mapEntry.getKey(), delta);
+        }
+        return deltas;
+    }
+
+    private static final class Entry {
+
+        final Map<String, Entry> children = new HashMap<>();
+
+        final List<Bundle> bundles = new ArrayList<>(1);
+    }
+
+    /**
+     * Tree node updater for either a single bundle or for all the
+     * bundles of a node.
+     */
+    private static final class Updater implements DataTreeNodeUpdater, DataTreeNodeInitializer {
+
+        private Bundle bundle;
+
+        private int count;
+
+        private Map<String, TreeNodeData<?>> deltas;
+
+        private boolean lastWasNew;
+
+        void single(Bundle bundle) {
+            this.bundle = bundle;
+            this.count = 1;
+            this.deltas = null;
+            this.lastWasNew = false;
+        }
+
+        void combined(List<Bundle> bundles, @Nullable Map<String, TreeNodeData<?>> deltas) {
+            this.bundle = bundles.get(bundles.size() - 1);
+            this.count = bundles.size();
+            this.deltas = deltas;
+        }
+
+        @Override
+        public Bundle getBundle() {
+            return bundle;
+        }
+
+        @Override
+        public int getCountValue() {
+            return count;
+        }
+
+        @Override
+        public long getAssignmentValue() {
+            return 0;
+        }
+
+        @Override
+        public TreeNodeData<?> getDataDelta(String key) {
+            return (deltas != null) ? deltas.get(key) : null;
+        }
+
+        @Override
+        public void onNewNode(DataTreeNode child) {
+            lastWasNew = true;
+        }
+    }
+}
@@ -178,6 +178,18 @@ public class PathValue extends PathElement {
         }
     }
 
+    /**
+     * True if the only effect of this element is to create or update a child
+     * named by its value. A {@link PathCombiner} can then group bundles by
+     * that value and apply them to each child at once.
+     */
+    boolean combinable() {
+        return ((getClass() == PathValue.class) || (getClass() == PathKeyValue.class)) &&
+               (filter == null) && (label() == null) && !op && !term && (hitsField == null) &&
+               (set == null) && !sync && create && !once && (mapTo == null) && !delete &&
+               !push && (each == null) && (maxNodes == 0);
+    }
+
     /**
      * Either get an existing node or optionally create a new node
      * if one does not exist. The {@link #create} field determines
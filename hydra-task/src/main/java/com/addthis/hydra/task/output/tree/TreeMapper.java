@@ -24,7 +24,9 @@ import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
@@ -209,6 +211,15 @@ public final class TreeMapper extends DataOutputTypeList implements Codable {
 
     @FieldConfig private boolean profiling = false;
 
+    /**
+     * If positive then each processing thread buffers up to this
+     * many bundles of the root path and applies them to the tree
+     * together, updating each distinct node once per buffer.
+     * Only used when the root path consists of plain value elements.
+     * Default is zero (disabled).
+     */
+    @FieldConfig private int combine = 0;
+
     @FieldConfig private TaskRunConfig config;
 
     @FieldConfig private String directory;
@@ -223,6 +234,13 @@ public final class TreeMapper extends DataOutputTypeList implements Codable {
      */
     private final AtomicBoolean closing = new AtomicBoolean(false);
 
+    /**
+     * Combiners of the processing threads when {@link #combine} is enabled.
+     */
+    private final Queue<PathCombiner> combiners = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<PathCombiner> combiner = new ThreadLocal<>();
+    private boolean combining;
+
     private DataTree tree;
     private Bench    bench;
     private long     startTime;
@@ -309,19 +327,27 @@ public final class TreeMapper extends DataOutputTypeList implements Codable {
             log.info("[init] live={}, target={} job={}", live, root, this.config.jobId);
 
             Path treePath = Paths.get(config.dir, directory);
+            // the trees read their page settings from the config file
+            TreeConfig.writeConfigToDataDirectory(LessFiles.initDirectory(treePath.toFile()).toPath(), advanced);
             if (concurrentTree) {
-                tree = new ConcurrentTree(LessFiles.initDirectory(treePath.toFile()));
+                tree = new ConcurrentTree(treePath.toFile());
             } else {
-                tree = new NonConcurrentTree(LessFiles.initDirectory(treePath.toFile()));
+                tree = new NonConcurrentTree(treePath.toFile());
             }
             bench = new Bench(EnumSet.allOf(BENCH.class), 1000);
-            TreeConfig.writeConfigToDataDirectory(treePath, advanced);
 
             if ((this.config.jobId != null) && live && (livePort > -1)) {
                 QueryEngine liveQueryEngine = new QueryEngine(tree);
                 connectToMesh(treePath.toFile(), config.jobId, config.node, liveQueryEngine);
             }
 
+            if ((combine > 0) && !profiling) {
+                combining = PathCombiner.create(root, combine) != null;
+                if (!combining) {
+                    log.warn("[init] root path has elements that cannot be combined, disabling combine");
+                }
+            }
+
             startTime = System.currentTimeMillis();
 
             tree.foregroundNodeDeletion(closing::get);
@@ -429,6 +455,10 @@ public final class TreeMapper extends DataOutputTypeList implements Codable {
      */
     private void processPath(Bundle bundle, PathElement[] path) {
         try {
+            if (combining && (path == root) && combineBundle(bundle)) {
+                bench.addEvents(BENCH.RULES, 1);
+                return;
+            }
             TreeMapState ps = new TreeMapState(this, tree, path, bundle);
             ps.process();
             processNodes.addAndGet(ps.touched());
@@ -440,6 +470,27 @@ public final class TreeMapper extends DataOutputTypeList implements Codable {
         bench.addEvents(BENCH.RULES, 1);
     }
 
+    /**
+     * Buffer the bundle in the combiner of the current thread and flush
+     * the combiner once it is full. Returns false if the bundle must
+     * be processed directly.
+     */
+    private boolean combineBundle(Bundle bundle) {
+        PathCombiner current = combiner.get();
+        if (current == null) {
+            current = PathCombiner.create(root, combine);
+            combiner.set(current);
+            combiners.add(current);
+        }
+        if (!current.add(bundle)) {
+            return false;
+        }
+        if (current.full()) {
+            processNodes.addAndGet(current.flush(tree));
+        }
+        return true;
+    }
+
     /**
      * print benchmark data to log
      */
@@ -517,6 +568,9 @@ public final class TreeMapper extends DataOutputTypeList implements Codable {
     @Override
     public void sendComplete() {
         try {
+            for (PathCombiner current : combiners) {
+                processNodes.addAndGet(current.flush(tree));
+            }
             boolean doPost = false;
             if (post != null) {
                 doPost = sampleOperation(post, postRate, "post.sample", "post");
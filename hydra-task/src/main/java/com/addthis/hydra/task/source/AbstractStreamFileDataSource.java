@@ -53,10 +53,7 @@ import com.addthis.bundle.value.ValueFactory;
 import com.addthis.bundle.value.ValueString;
 import com.addthis.codec.annotations.Time;
 import com.addthis.hydra.data.filter.value.StringFilter;
-import com.addthis.hydra.store.common.PageFactory;
 import com.addthis.hydra.store.db.DBKey;
-import com.addthis.hydra.store.db.PageDB;
-import com.addthis.hydra.store.skiplist.ConcurrentPage;
 import com.addthis.hydra.task.run.TaskRunConfig;
 import com.addthis.hydra.task.source.bundleizer.Bundleizer;
 import com.addthis.hydra.task.source.bundleizer.BundleizerFactory;
@@ -183,6 +180,18 @@ public abstract class AbstractStreamFileDataSource extends TaskDataSource implem
      */
     @JsonProperty private int preOpen;
 
+    /**
+     * Number of blocks of decompressed input to read ahead of the bundleizer on a separate
+     * thread for each open file. This lets a single large compressed file use one core for
+     * reading and decompressing and another for parsing. Each open file holds up to this many
+     * blocks of {@code readAheadBlockSize} bytes. The default is 0 which reads and parses on
+     * the worker thread.
+     */
+    @JsonProperty private int readAhead;
+
+    /** Size in bytes of the blocks read ahead. The default is 65536. */
+    @JsonProperty private int readAheadBlockSize;
+
     /**
      * Trigger an error when the number of skipped sources is greater than this value.
      * Default is either "dataSourceMeshy2.skipSourceExit" configuration value or 0.
@@ -253,7 +262,7 @@ public abstract class AbstractStreamFileDataSource extends TaskDataSource implem
     private boolean localInitialized = false;
 
     private BlockingQueue<Bundle> queue;
-    private PageDB<SimpleMark> markDB;
+    private MarkStore<SimpleMark> markDB;
     private File markDirFile;
     private CompletableFuture<Void> aggregateWorkerFuture;
     private boolean useSimpleMarks = false;
@@ -300,13 +309,9 @@ public abstract class AbstractStreamFileDataSource extends TaskDataSource implem
 
             markDirFile = LessFiles.initDirectory(markDir);
             if (useSimpleMarks) {
-                PageFactory<DBKey, SimpleMark> factory = ConcurrentPage.ConcurrentPageFactory.singleton;
-                markDB = new PageDB<>(markDirFile, SimpleMark.class,
-                        MARK_PAGE_SIZE, MARK_PAGES, factory);
+                markDB = new MarkStore<>(markDirFile, SimpleMark.class, MARK_PAGE_SIZE, MARK_PAGES);
             } else {
-                PageFactory<DBKey, SimpleMark> factory = ConcurrentPage.ConcurrentPageFactory.singleton;
-                markDB = new PageDB<>(markDirFile,
-                        Mark.class, MARK_PAGE_SIZE, MARK_PAGES, factory);
+                markDB = new MarkStore<>(markDirFile, Mark.class, MARK_PAGE_SIZE, MARK_PAGES);
             }
         } catch (Exception e) {
             throw new RuntimeException(e);
@@ -670,6 +675,9 @@ public abstract class AbstractStreamFileDataSource extends TaskDataSource implem
         void maybeFinishInit() throws IOException {
             if (bundleizer == null) {
                 input = CompressedStream.decompressInputStream(input, stream.name()); // blocks waiting for network (if compressed)
+                if (readAhead > 0) {
+                    input = new ReadAheadInputStream(input, readAhead, readAheadBlockSize, workerThreadPool);
+                }
                 opening.dec();
                 bundleizer = format.createBundleizer(input, AbstractStreamFileDataSource.this);
                 long read = mark.getIndex();
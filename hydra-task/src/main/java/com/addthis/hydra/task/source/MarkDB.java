@@ -18,7 +18,7 @@ import java.io.IOException;
 import java.io.UncheckedIOException;
 
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.SortedMap;
 
 import com.addthis.hydra.store.db.DBKey;
 import com.addthis.hydra.store.db.IReadWeighable;
@@ -52,9 +52,19 @@ public final class MarkDB {
         System.out.println("Usage: [-s] [directory]\nDump file marks to standard output.\n  -s    Use legacy format");
     }
 
+    /**
+     * Print the marks of a {@link MarkStore}, or of a mark page db that has not been converted yet.
+     */
     private static <T extends SimpleMark & IReadWeighable> void printMarks(Class<T> markClass, File directory) {
-        try (ReadPageDB<T> markDB = new ReadPageDB<>(directory, markClass, 1000, 20)) {
-            TreeMap<DBKey, T> tm = markDB.toTreeMap();
+        try {
+            SortedMap<DBKey, T> tm;
+            if (new File(directory, MarkStore.SNAPSHOT).exists() || new File(directory, MarkStore.LOG).exists()) {
+                tm = MarkStore.read(directory, markClass);
+            } else {
+                try (ReadPageDB<T> markDB = new ReadPageDB<>(directory, markClass, 1000, 20)) {
+                    tm = markDB.toTreeMap();
+                }
+            }
             for (Map.Entry<DBKey, T> se : tm.entrySet()) {
                 System.out.println("Path: " + se.getKey().rawKey() + " Index: " + se.getValue().getIndex());
             }
@@ -0,0 +1,394 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.source;
+
+import javax.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import com.addthis.basis.util.Parameter;
+import com.addthis.basis.util.Varint;
+
+import com.addthis.codec.codables.BytesCodable;
+import com.addthis.hydra.store.db.DBKey;
+import com.addthis.hydra.store.db.IPageDB;
+import com.addthis.hydra.store.db.PageDB;
+import com.addthis.hydra.store.skiplist.ConcurrentPage;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Memory resident store of source marks persisted as a snapshot plus an append-only log.
+ * <p/>
+ * Every {@link #put(DBKey, BytesCodable)} updates the in-memory map and appends a record to
+ * a pending buffer. Pending records are written and synced to the log together every
+ * {@link #commitInterval} milliseconds. When the log grows past {@link #compactBytes} and on
+ * {@link #close()} the whole map is written to a new snapshot that atomically replaces the old
+ * one, and the log is truncated. On open the snapshot is loaded and the log replayed up to
+ * the first incomplete or corrupt record, which is where a crash may have cut it off.
+ * <p/>
+ * The snapshot and the log both begin with a generation number. Each compaction writes the
+ * snapshot with the next generation before the log is truncated and restarted with that
+ * generation. A log older than the snapshot was already folded into it by a compaction that
+ * crashed before truncating the log, so it is discarded instead of replayed over newer marks.
+ * <p/>
+ * Values are held encoded so a mark that is modified after it was read does not change
+ * the stored state until it is put back.
+ * <p/>
+ * A directory that has no mark log but holds a mark {@link PageDB} is converted on first open.
+ * The old database is left in place and is no longer read or written.
+ */
+final class MarkStore<V extends BytesCodable> {
+
+    private static final Logger log = LoggerFactory.getLogger(MarkStore.class);
+
+    // milliseconds in between group commits of the mark log
+    private static final int commitInterval = Parameter.intValue("hydra.markdb.log.commit", 1000);
+
+    // log size in bytes at which the marks are snapshotted and the log truncated
+    private static final int compactBytes = Parameter.intValue("hydra.markdb.log.compact", 64 * 1024 * 1024);
+
+    static final String SNAPSHOT = "marks.snapshot";
+    static final String LOG = "marks.log";
+
+    // generation number at the start of the snapshot and of the log
+    static final int GENERATION = 8;
+
+    // record length and checksum preceding each record
+    private static final int HEADER = 8;
+
+    private final Class<? extends V> clazz;
+    private final File snapshotFile;
+    private final File logFile;
+    private final Map<DBKey, byte[]> marks = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService committer;
+
+    // guarded by this
+    private ByteBuf pending = Unpooled.buffer();
+
+    // guarded by commitLock
+    private final Object commitLock = new Object();
+    private final FileChannel logChannel;
+    private long generation;
+    private boolean closed;
+
+    MarkStore(File dir, Class<? extends V> clazz, int pageSize, int pages) throws IOException {
+        this.clazz = clazz;
+        this.snapshotFile = new File(dir, SNAPSHOT);
+        this.logFile = new File(dir, LOG);
+        if (!snapshotFile.exists() && !logFile.exists()
+            && new File(dir, PageDB.DB_TYPE_FILENAME).exists()) {
+            convert(dir, pageSize, pages);
+        }
+        long snapshotGeneration = readSnapshot(snapshotFile, marks);
+        logChannel = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE,
+                                      StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuf logBuffer = Unpooled.wrappedBuffer(Files.readAllBytes(logFile.toPath()));
+        long logGeneration = readGeneration(logBuffer);
+        if (logGeneration >= snapshotGeneration) {
+            generation = logGeneration;
+            int valid = replay(logBuffer, marks);
+            if (valid < logChannel.size()) {
+                log.warn("truncating mark log {} from {} to {} bytes", logFile, logChannel.size(), valid);
+                logChannel.truncate(valid);
+            }
+            logChannel.position(valid);
+        } else {
+            if (logChannel.size() > 0) {
+                log.warn("discarding mark log {} of generation {} older than snapshot generation {}",
+                         logFile, logGeneration, snapshotGeneration);
+            }
+            generation = snapshotGeneration;
+            resetLog();
+        }
+        log.info("opened {} marks in {}", marks.size(), dir);
+        committer = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder().setDaemon(true)
+                                                                                 .setNameFormat("markCommit-%d")
+                                                                                 .build());
+        committer.scheduleWithFixedDelay(this::commitQuietly, commitInterval, commitInterval,
+                                         TimeUnit.MILLISECONDS);
+    }
+
+    private void convert(File dir, int pageSize, int pages) throws IOException {
+        PageDB<V> legacy = new PageDB<>(dir, clazz, pageSize, pages, ConcurrentPage.ConcurrentPageFactory.singleton);
+        try {
+            IPageDB.Range<DBKey, V> range = legacy.range(new DBKey(0), null);
+            try {
+                for (Map.Entry<DBKey, V> entry : range) {
+                    marks.put(entry.getKey(), entry.getValue().bytesEncode(0));
+                }
+            } finally {
+                range.close();
+            }
+        } finally {
+            legacy.close();
+        }
+        writeSnapshot(marks, 0);
+        log.info("converted {} marks from page db in {}", marks.size(), dir);
+    }
+
+    /**
+     * Read the marks of a directory without modifying it.
+     */
+    static <V extends BytesCodable> SortedMap<DBKey, V> read(File dir, Class<? extends V> clazz)
+            throws IOException {
+        Map<DBKey, byte[]> encoded = new HashMap<>();
+        long snapshotGeneration = readSnapshot(new File(dir, SNAPSHOT), encoded);
+        File logFile = new File(dir, LOG);
+        if (logFile.exists()) {
+            ByteBuf logBuffer = Unpooled.wrappedBuffer(Files.readAllBytes(logFile.toPath()));
+            if (readGeneration(logBuffer) >= snapshotGeneration) {
+                replay(logBuffer, encoded);
+            }
+        }
+        SortedMap<DBKey, V> result = new TreeMap<>();
+        for (Map.Entry<DBKey, byte[]> entry : encoded.entrySet()) {
+            result.put(entry.getKey(), decode(clazz, entry.getValue()));
+        }
+        return result;
+    }
+
+    @Nullable V get(DBKey key) {
+        byte[] bytes = marks.get(key);
+        if (bytes == null) {
+            return null;
+        }
+        return decode(clazz, bytes);
+    }
+
+    private static <V extends BytesCodable> V decode(Class<? extends V> clazz, byte[] bytes) {
+        try {
+            V value = clazz.getDeclaredConstructor().newInstance();
+            value.bytesDecode(bytes, 0);
+            return value;
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    void put(DBKey key, V value) {
+        byte[] bytes = value.bytesEncode(0);
+        synchronized (this) {
+            marks.put(key, bytes);
+            encode(key, bytes, pending);
+        }
+    }
+
+    @VisibleForTesting
+    int size() {
+        return marks.size();
+    }
+
+    private static void encode(DBKey key, byte[] value, ByteBuf out) {
+        int start = out.writerIndex();
+        out.writeLong(0);
+        byte[] keyBytes = key.toBytes();
+        Varint.writeUnsignedVarInt(keyBytes.length, out);
+        out.writeBytes(keyBytes);
+        Varint.writeUnsignedVarInt(value.length, out);
+        out.writeBytes(value);
+        int length = out.writerIndex() - start - HEADER;
+        CRC32 crc = new CRC32();
+        crc.update(out.array(), out.arrayOffset() + start + HEADER, length);
+        out.setInt(start, length);
+        out.setInt(start + 4, (int) crc.getValue());
+    }
+
+    /**
+     * Load a snapshot into the map.
+     *
+     * @return generation of the snapshot or 0 if there is none
+     */
+    private static long readSnapshot(File file, Map<DBKey, byte[]> target) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        ByteBuf snapshot = Unpooled.wrappedBuffer(Files.readAllBytes(file.toPath()));
+        long snapshotGeneration = readGeneration(snapshot);
+        if ((snapshotGeneration < 0) || (replay(snapshot, target) < snapshot.capacity())) {
+            throw new IOException("corrupt mark snapshot " + file);
+        }
+        return snapshotGeneration;
+    }
+
+    /**
+     * @return generation at the start of the buffer or -1 if it is missing or torn
+     */
+    private static long readGeneration(ByteBuf in) {
+        if (in.readableBytes() < GENERATION) {
+            return -1;
+        }
+        return in.readLong();
+    }
+
+    /**
+     * Load records into the map.
+     *
+     * @return number of bytes up to the end of the last complete record
+     */
+    private static int replay(ByteBuf in, Map<DBKey, byte[]> target) {
+        while (in.readableBytes() >= HEADER) {
+            int start = in.readerIndex();
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if ((length < 0) || (length > in.readableBytes())) {
+                return start;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(in.array(), in.arrayOffset() + in.readerIndex(), length);
+            if ((int) crc.getValue() != checksum) {
+                return start;
+            }
+            byte[] keyBytes = new byte[Varint.readUnsignedVarInt(in)];
+            in.readBytes(keyBytes);
+            byte[] value = new byte[Varint.readUnsignedVarInt(in)];
+            in.readBytes(value);
+            target.put(DBKey.fromBytes(keyBytes), value);
+        }
+        return in.readerIndex();
+    }
+
+    private void commitQuietly() {
+        try {
+            commit();
+        } catch (Exception ex) {
+            log.warn("failed to commit mark log {}", logFile, ex);
+        }
+    }
+
+    /**
+     * Write and sync the pending records, then compact the log if it has grown too large.
+     */
+    @VisibleForTesting
+    void commit() throws IOException {
+        synchronized (commitLock) {
+            if (closed) {
+                return;
+            }
+            ByteBuf batch = swapPending();
+            if (batch.isReadable()) {
+                write(logChannel, batch);
+                logChannel.force(false);
+            }
+            if (logChannel.size() > compactBytes) {
+                compact();
+            }
+        }
+    }
+
+    private synchronized ByteBuf swapPending() {
+        ByteBuf batch = pending;
+        pending = Unpooled.buffer();
+        return batch;
+    }
+
+    /**
+     * Replace the snapshot with the current marks and restart the log with the next generation.
+     * Caller holds {@link #commitLock}.
+     */
+    private void compact() throws IOException {
+        Map<DBKey, byte[]> copy;
+        synchronized (this) {
+            // records pending now are part of the copy and need not be logged
+            copy = new ConcurrentHashMap<>(marks);
+            pending = Unpooled.buffer();
+        }
+        // a crash after this point leaves a log older than the snapshot, which is discarded on open
+        writeSnapshot(copy, generation + 1);
+        generation++;
+        resetLog();
+    }
+
+    /**
+     * Truncate the log and start it with the current generation.
+     */
+    private void resetLog() throws IOException {
+        logChannel.truncate(0);
+        logChannel.position(0);
+        ByteBuf header = Unpooled.buffer(GENERATION);
+        header.writeLong(generation);
+        write(logChannel, header);
+        logChannel.force(true);
+    }
+
+    private void writeSnapshot(Map<DBKey, byte[]> copy, long snapshotGeneration) throws IOException {
+        ByteBuf buffer = Unpooled.buffer();
+        buffer.writeLong(snapshotGeneration);
+        for (Map.Entry<DBKey, byte[]> entry : copy.entrySet()) {
+            encode(entry.getKey(), entry.getValue(), buffer);
+        }
+        File temp = new File(snapshotFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            FileChannel channel = out.getChannel();
+            write(channel, buffer);
+            channel.force(true);
+        }
+        Files.move(temp.toPath(), snapshotFile.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void write(FileChannel channel, ByteBuf buffer) throws IOException {
+        ByteBuffer bytes = buffer.nioBuffer();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    /**
+     * Snapshot all marks and release the log.
+     */
+    void close() {
+        committer.shutdown();
+        synchronized (commitLock) {
+            if (closed) {
+                return;
+            }
+            try {
+                compact();
+                logChannel.close();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            } finally {
+                closed = true;
+            }
+        }
+        log.info("closed {} marks in {}", marks.size(), snapshotFile.getParent());
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.source;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.addthis.basis.util.Parameter;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads an input stream on a separate thread into a bounded number of blocks
+ * ahead of the caller. Wrapped around a decompressing stream, this moves the
+ * network reads and the decompression of a file onto one core while the
+ * caller parses records from the blocks already read on another.
+ * <p/>
+ * Blocks are recycled between the two threads so a stream allocates at most
+ * {@code blocks} buffers and the reader waits for a consumed block once all
+ * of them are in use. Errors from the underlying stream are rethrown
+ * to the reader once the blocks read before the error have been consumed.
+ * Only one thread may read from this stream.
+ */
+final class ReadAheadInputStream extends InputStream {
+
+    private static final Logger log = LoggerFactory.getLogger(ReadAheadInputStream.class);
+
+    // milliseconds that close waits for the reader thread before interrupting it
+    private static final long closeTimeout = Parameter.longValue("hydra.readahead.close.timeout", 10000);
+
+    private static final Block EOF = new Block(0);
+
+    private static final class Block {
+
+        final byte[] bytes;
+        int length;
+
+        Block(int size) {
+            this.bytes = new byte[size];
+        }
+    }
+
+    private final InputStream in;
+    private final int blocks;
+    private final int blockSize;
+    private final BlockingQueue<Block> full;
+    private final BlockingQueue<Block> free;
+    private final FutureTask<Void> reader;
+
+    private volatile boolean closed;
+    private volatile IOException error;
+
+    private Block current;
+    private int position;
+    private boolean eof;
+
+    ReadAheadInputStream(InputStream in, int blocks, int blockSize, Executor executor) {
+        this.in = in;
+        this.blocks = Math.max(1, blocks);
+        this.blockSize = blockSize;
+        this.full = new ArrayBlockingQueue<>(this.blocks + 1);
+        this.free = new ArrayBlockingQueue<>(this.blocks + 1);
+        this.reader = new FutureTask<>(this::readAhead, null);
+        executor.execute(reader);
+    }
+
+    private void readAhead() {
+        int allocated = 0;
+        try {
+            while (true) {
+                Block block;
+                if (allocated < blocks) {
+                    block = new Block(blockSize);
+                    allocated++;
+                } else {
+                    block = free.take();
+                }
+                if (closed) {
+                    break;
+                }
+                int length = 0;
+                try {
+                    while (length < blockSize) {
+                        int read = in.read(block.bytes, length, blockSize - length);
+                        if (read < 0) {
+                            break;
+                        }
+                        length += read;
+                    }
+                } catch (IOException ex) {
+                    error = ex;
+                } catch (RuntimeException ex) {
+                    error = new IOException(ex);
+                }
+                block.length = length;
+                if (length > 0) {
+                    full.offer(block);
+                }
+                if ((length < blockSize) || (error != null)) {
+                    break;
+                }
+            }
+        } catch (InterruptedException ex) {
+            error = new InterruptedIOException("interrupted while reading ahead");
+        } finally {
+            // at most one slot per block is ever taken so there is always room for this
+            full.offer(EOF);
+        }
+    }
+
+    /**
+     * Returns the next block with unread bytes or null at the end of the stream.
+     */
+    private Block block() throws IOException {
+        if ((current != null) && (position < current.length)) {
+            return current;
+        }
+        if (eof) {
+            return null;
+        }
+        if (current != null) {
+            free.offer(current);
+            current = null;
+        }
+        Block next = Uninterruptibles.takeUninterruptibly(full);
+        if (next == EOF) {
+            eof = true;
+            if (error != null) {
+                throw error;
+            }
+            return null;
+        }
+        current = next;
+        position = 0;
+        return current;
+    }
+
+    @Override
+    public int read() throws IOException {
+        Block block = block();
+        if (block == null) {
+            return -1;
+        }
+        return block.bytes[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        Block block = block();
+        if (block == null) {
+            return -1;
+        }
+        int count = Math.min(len, block.length - position);
+        System.arraycopy(block.bytes, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return (current != null) ? (current.length - position) : 0;
+    }
+
+    /**
+     * Closes the underlying stream, which ends a read in progress on the reader
+     * thread, and then waits for the reader thread to stop. A reader thread that
+     * does not stop within {@code closeTimeout} milliseconds is interrupted.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        // wake up the reader if it is waiting for a consumed block
+        free.offer(EOF);
+        try {
+            in.close();
+        } finally {
+            try {
+                Uninterruptibles.getUninterruptibly(reader, closeTimeout, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException ex) {
+                throw new IOException(ex.getCause());
+            } catch (TimeoutException ex) {
+                log.warn("read ahead thread did not stop within {} ms of closing {}", closeTimeout, in);
+                reader.cancel(true);
+            } finally {
+                full.clear();
+                free.clear();
+                current = null;
+                eof = true;
+            }
+        }
+    }
+}
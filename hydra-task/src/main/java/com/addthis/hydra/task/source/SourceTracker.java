@@ -26,10 +26,6 @@ import com.addthis.basis.util.Parameter;
 import com.addthis.bundle.channel.DataChannelError;
 import com.addthis.bundle.core.Bundle;
 import com.addthis.hydra.store.db.DBKey;
-import com.addthis.hydra.store.db.PageDB;
-import com.addthis.hydra.store.nonconcurrent.NonConcurrentPage;
-import com.addthis.hydra.store.nonconcurrent.NonConcurrentPageCache;
-import com.addthis.hydra.store.skiplist.ConcurrentPage;
 import com.addthis.meshy.service.stream.StreamService;
 
 import org.slf4j.Logger;
@@ -42,14 +38,14 @@ public class SourceTracker {
     private static final Logger log = LoggerFactory.getLogger(SourceTracker.class);
     private final boolean ignoreBundleCorruption = Parameter.boolValue("sourceTracker.ignoreBundleCorruption", true);
 
-    private final PageDB<SimpleMark> db;
+    private final MarkStore<SimpleMark> db;
     private final FileLock lockDir;
 
     public SourceTracker(String dir) {
         File dirFile = LessFiles.initDirectory(dir);
         try {
             lockDir = new RandomAccessFile(new File(dirFile, "tracker.lock"), "rw").getChannel().lock();
-            db = new PageDB<SimpleMark>(dirFile, SimpleMark.class, 100, 100, ConcurrentPage.ConcurrentPageFactory.singleton);
+            db = new MarkStore<>(dirFile, SimpleMark.class, 100, 100);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -15,7 +15,10 @@ package com.addthis.hydra.task.source.bundleizer;
 
 import java.util.List;
 
+import java.nio.charset.StandardCharsets;
+
 import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleFormat;
 import com.addthis.bundle.value.ValueFactory;
 import com.addthis.bundle.value.ValueObject;
 import com.addthis.hydra.data.filter.value.ValueFilter;
@@ -65,5 +68,28 @@ public class ColumnBundleizer extends NewlineBundleizer {
         }
         return next;
     }
+
+    @Override
+    public Bundle bundleize(Bundle next, byte[] line, int offset, int length) {
+        if (!tokens.supportsBytes()) {
+            return super.bundleize(next, line, offset, length);
+        }
+        BundleFormat format = next.getFormat();
+        int count = tokens.tokenize(line, offset, length, (index, bytes, start, len) -> {
+            if (index >= columns.length) {
+                return false;
+            }
+            ValueObject val = ValueFactory.create(new String(bytes, start, len, StandardCharsets.UTF_8));
+            if (tokenFilter != null) {
+                val = tokenFilter.filter(val, next);
+            }
+            next.setValue(format.getField(columns[index]), val);
+            return true;
+        });
+        if (count < 0) {
+            return null;
+        }
+        return next;
+    }
 }
 
@@ -13,6 +13,8 @@
  */
 package com.addthis.hydra.task.source.bundleizer;
 
+import java.nio.charset.StandardCharsets;
+
 import com.addthis.basis.kv.KVPair;
 
 import com.addthis.bundle.core.Bundle;
@@ -43,4 +45,72 @@ public class KVBundleizer extends NewlineBundleizer {
         return next;
     }
 
+    /**
+     * Same pairs as {@link #bundleize(Bundle, String)}, decoded in place
+     * from the line bytes. Empty pairs and pairs with an empty key are skipped.
+     */
+    @Override
+    public Bundle bundleize(Bundle next, byte[] line, int offset, int length) {
+        BundleFormat format = next.getFormat();
+        int end = offset + length;
+        int start = offset;
+        for (int i = offset; i <= end; i++) {
+            if ((i == end) || (line[i] == '&')) {
+                if (i > start) {
+                    setPair(next, format, line, start, i);
+                }
+                start = i + 1;
+            }
+        }
+        return next;
+    }
+
+    private static void setPair(Bundle next, BundleFormat format, byte[] line, int start, int end) {
+        int eq = start;
+        while ((eq < end) && (line[eq] != '=')) {
+            eq++;
+        }
+        if (eq == start) {
+            return;
+        }
+        String key = urldecode(line, start, eq);
+        String value = ((eq + 1) < end) ? urldecode(line, eq + 1, end) : "";
+        next.setValue(format.getField(key), ValueFactory.create(value));
+    }
+
+    /**
+     * Decodes in place like {@link com.addthis.basis.util.LessBytes#urldecode(String)}:
+     * '+' becomes a space, valid %XX escapes become a byte and the result is UTF-8.
+     */
+    private static String urldecode(byte[] bytes, int start, int end) {
+        int write = start;
+        for (int read = start; read < end; read++) {
+            byte b = bytes[read];
+            if ((b == '%') && (read < (end - 2))) {
+                int high = hex(bytes[read + 1]);
+                int low = hex(bytes[read + 2]);
+                if ((high >= 0) && (low >= 0)) {
+                    bytes[write++] = (byte) ((high << 4) | low);
+                    read += 2;
+                    continue;
+                }
+            } else if (b == '+') {
+                b = ' ';
+            }
+            bytes[write++] = b;
+        }
+        return new String(bytes, start, write - start, StandardCharsets.UTF_8);
+    }
+
+    private static int hex(byte b) {
+        if ((b >= '0') && (b <= '9')) {
+            return b - '0';
+        } else if ((b >= 'a') && (b <= 'f')) {
+            return (b - 'a') + 10;
+        } else if ((b >= 'A') && (b <= 'F')) {
+            return (b - 'A') + 10;
+        }
+        return -1;
+    }
+
 }
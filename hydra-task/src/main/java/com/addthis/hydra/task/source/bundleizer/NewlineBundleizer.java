@@ -18,6 +18,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 
+import java.util.Arrays;
+
+import java.nio.charset.StandardCharsets;
+
 import com.addthis.bundle.core.Bundle;
 import com.addthis.bundle.core.BundleFactory;
 import com.addthis.bundle.util.ValueUtil;
@@ -34,8 +38,20 @@ public abstract class NewlineBundleizer extends BundleizerFactory {
     @FieldConfig(codable = true)
     private ValueFilter lineFilter;
 
+    /**
+     * If true then split the input into lines of UTF-8 bytes in a reusable
+     * buffer instead of reading a String for each line with the platform
+     * charset. Bundleizers that support it build field values directly from
+     * the line bytes. Ignored if a lineFilter is set. Default is false.
+     */
+    @FieldConfig(codable = true)
+    private boolean bytes;
+
     @Override
     public Bundleizer createBundleizer(final InputStream inputArg, final BundleFactory factoryArg) {
+        if (bytes && (lineFilter == null)) {
+            return new ByteLineBundleizer(inputArg, factoryArg);
+        }
         return new Bundleizer() {
             private final BufferedReader reader = new BufferedReader(new InputStreamReader(inputArg), 65535);
             private final BundleFactory factory = factoryArg;
@@ -63,4 +79,108 @@ public abstract class NewlineBundleizer extends BundleizerFactory {
     }
 
     public abstract Bundle bundleize(Bundle next, String line);
+
+    /**
+     * Bundleize a line of UTF-8 bytes. The line may be modified. The default
+     * implementation decodes the line into a String for {@link #bundleize(Bundle, String)}.
+     */
+    public Bundle bundleize(Bundle next, byte[] line, int offset, int length) {
+        return bundleize(next, new String(line, offset, length, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Splits lines in the same places as {@link BufferedReader#readLine()}:
+     * at a line feed, a carriage return, or a carriage return followed by
+     * a line feed. The buffer grows to hold the longest line.
+     */
+    private final class ByteLineBundleizer implements Bundleizer {
+
+        private final InputStream input;
+        private final BundleFactory factory;
+
+        private byte[] buffer = new byte[65536];
+        // start of the unread bytes
+        private int start;
+        // end of the bytes read from the input
+        private int limit;
+        private boolean eof;
+        // the previous line ended with a carriage return
+        private boolean skipLineFeed;
+
+        ByteLineBundleizer(InputStream input, BundleFactory factory) {
+            this.input = input;
+            this.factory = factory;
+        }
+
+        @Override
+        public Bundle next() throws IOException {
+            while (true) {
+                if (skipLineFeed) {
+                    if ((start == limit) && !eof) {
+                        fill();
+                    }
+                    if ((start < limit) && (buffer[start] == '\n')) {
+                        start++;
+                    }
+                    skipLineFeed = false;
+                }
+                int scan = start;
+                int lineEnd = -1;
+                while (true) {
+                    for (; scan < limit; scan++) {
+                        byte b = buffer[scan];
+                        if ((b == '\n') || (b == '\r')) {
+                            lineEnd = scan;
+                            break;
+                        }
+                    }
+                    if ((lineEnd >= 0) || eof) {
+                        break;
+                    }
+                    scan -= fill();
+                }
+                int offset = start;
+                int length;
+                if (lineEnd >= 0) {
+                    length = lineEnd - offset;
+                    skipLineFeed = buffer[lineEnd] == '\r';
+                    start = lineEnd + 1;
+                } else if (start < limit) {
+                    length = limit - offset;
+                    start = limit;
+                } else {
+                    return null;
+                }
+                Bundle next = bundleize(factory.createBundle(), buffer, offset, length);
+                if (next != null) {
+                    return next;
+                }
+            }
+        }
+
+        /**
+         * Move the unread bytes to the front of the buffer, growing it if
+         * it is full, and read more input.
+         *
+         * @return number of positions the unread bytes moved down
+         */
+        private int fill() throws IOException {
+            int shift = start;
+            if (shift > 0) {
+                System.arraycopy(buffer, start, buffer, 0, limit - start);
+                limit -= start;
+                start = 0;
+            }
+            if (limit == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            int read = input.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                eof = true;
+            } else {
+                limit += read;
+            }
+            return shift;
+        }
+    }
 }
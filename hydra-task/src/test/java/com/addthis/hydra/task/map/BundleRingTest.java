@@ -0,0 +1,102 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.map;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.value.ValueFactory;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class BundleRingTest {
+
+    @Test
+    public void capacity() {
+        assertEquals(2, new BundleRing(0, BundleRing.WaitStrategy.SPIN).capacity());
+        assertEquals(64, new BundleRing(64, BundleRing.WaitStrategy.SPIN).capacity());
+        assertEquals(128, new BundleRing(100, BundleRing.WaitStrategy.SPIN).capacity());
+    }
+
+    @Test
+    public void drainBatch() {
+        BundleRing ring = new BundleRing(8, BundleRing.WaitStrategy.SPIN);
+        Bundle[] input = new Bundle[8];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = new ListBundle();
+            ring.put(input[i]);
+        }
+        assertEquals(8, ring.size());
+        Bundle[] batch = new Bundle[5];
+        assertEquals(5, ring.drain(batch));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(input[i], batch[i]);
+        }
+        assertEquals(3, ring.drain(batch));
+        for (int i = 0; i < 3; i++) {
+            assertEquals(input[5 + i], batch[i]);
+        }
+        assertEquals(0, ring.size());
+    }
+
+    @Test
+    public void spin() throws InterruptedException {
+        handOff(BundleRing.WaitStrategy.SPIN);
+    }
+
+    @Test
+    public void yield() throws InterruptedException {
+        handOff(BundleRing.WaitStrategy.YIELD);
+    }
+
+    @Test
+    public void park() throws InterruptedException {
+        handOff(BundleRing.WaitStrategy.PARK);
+    }
+
+    /**
+     * Bundles arrive in order across many wraps of a small ring.
+     */
+    private static void handOff(BundleRing.WaitStrategy waitStrategy) throws InterruptedException {
+        int count = 20_000;
+        BundleRing ring = new BundleRing(256, waitStrategy);
+        Throwable[] error = new Throwable[1];
+        Thread consumer = new Thread(() -> {
+            try {
+                Bundle[] batch = new Bundle[7];
+                long expected = 0;
+                while (expected < count) {
+                    int drained = ring.drain(batch);
+                    for (int i = 0; i < drained; i++) {
+                        long value = batch[i].getValue(batch[i].getFormat().getField("i")).asLong().getLong();
+                        assertEquals(expected++, value);
+                    }
+                }
+            } catch (Throwable t) {
+                error[0] = t;
+            }
+        });
+        consumer.start();
+        for (int i = 0; i < count; i++) {
+            Bundle bundle = new ListBundle();
+            bundle.setValue(bundle.getFormat().getField("i"), ValueFactory.create(i));
+            ring.put(bundle);
+        }
+        consumer.join();
+        assertNull(error[0]);
+        assertEquals(0, ring.size());
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.map;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.addthis.basis.util.LessFiles;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.codec.config.Configs;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ExternalSortedDeDupBuilderTest {
+
+    private File tempDir;
+
+    @Before
+    public void setup() throws IOException {
+        tempDir = LessFiles.createTempDir();
+    }
+
+    @After
+    public void cleanup() {
+        LessFiles.deleteDir(tempDir);
+    }
+
+    private List<Bundle> run(String config) throws IOException {
+        ExternalSortedDeDupBuilder builder = Configs.decodeObject(
+                ExternalSortedDeDupBuilder.class, config + ", tempDir = \"" + tempDir.getPath() + "\"");
+        builder.init();
+        List<Bundle> emitted = new ArrayList<>();
+        StreamEmitter emitter = emitted::add;
+        Random random = new Random(3);
+        for (int i = 0; i < 5000; i++) {
+            Bundle bundle = new ListBundle();
+            bundle.setValue(bundle.getFormat().getField("key"), ValueFactory.create("k" + random.nextInt(1000)));
+            bundle.setValue(bundle.getFormat().getField("seq"), ValueFactory.create(i));
+            builder.process(bundle, emitter);
+        }
+        assertEquals(0, emitted.size());
+        if (config.contains("maxMemory")) {
+            assertTrue(builder.getRunCount() > 1);
+        }
+        builder.streamComplete(emitter);
+        assertEquals(0, builder.getRunCount());
+        return emitted;
+    }
+
+    private static String value(Bundle bundle, String field) {
+        return bundle.getValue(bundle.getFormat().getField(field)).asString().asNative();
+    }
+
+    @Test
+    public void distinctSorted() throws IOException {
+        List<Bundle> memory = run("field = key");
+        List<Bundle> spilled = run("field = key, maxMemory = 10000");
+        // 991 of the 1000 possible keys are drawn
+        assertEquals(991, memory.size());
+        assertEquals(memory.size(), spilled.size());
+        String last = "";
+        for (int i = 0; i < memory.size(); i++) {
+            String key = value(memory.get(i), "key");
+            assertTrue(key.compareTo(last) > 0);
+            last = key;
+            // the first bundle of each key is kept
+            assertEquals(key, value(spilled.get(i), "key"));
+            assertEquals(value(memory.get(i), "seq"), value(spilled.get(i), "seq"));
+        }
+        assertEquals(0, tempDir.list().length);
+    }
+}
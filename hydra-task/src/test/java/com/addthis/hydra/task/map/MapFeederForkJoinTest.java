@@ -0,0 +1,251 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.map;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.bundle.value.ValueObject;
+import com.addthis.codec.config.Configs;
+import com.addthis.hydra.common.hash.PluggableHashFunction;
+import com.addthis.hydra.task.source.TaskDataSource;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MapFeederForkJoinTest {
+
+    private static final ListBundleFormat format = new ListBundleFormat();
+
+    private static Bundle bundle(String shard, int seq) {
+        Bundle bundle = new ListBundle(format);
+        if (shard != null) {
+            bundle.setValue(format.getField("shard"), ValueFactory.create(shard));
+        }
+        bundle.setValue(format.getField("seq"), ValueFactory.create(seq));
+        return bundle;
+    }
+
+    private static String shard(Bundle bundle) {
+        ValueObject value = bundle.getValue(format.getField("shard"));
+        return (value == null) ? null : value.asString().asNative();
+    }
+
+    private static long seq(Bundle bundle) {
+        return bundle.getValue(format.getField("seq")).asLong().getLong();
+    }
+
+    @Test(timeout = 30000)
+    public void shardOrderingAndAffinity() throws Exception {
+        QueueSource source = QueueSource.sharded();
+        Random random = new Random(7);
+        int[] next = new int[20];
+        for (int i = 0; i < 2000; i++) {
+            int shard = random.nextInt(next.length);
+            source.queue.add(bundle("s" + shard, next[shard]++));
+        }
+        source.queue.add(QueueSource.END);
+        Recorder mapper = new Recorder(source, 4);
+        runFeeder(new MapFeederForkJoin(mapper, source, 4, 4, 0));
+        assertEquals(2000, mapper.processed.get());
+        assertEquals(1, mapper.completed.get());
+        Map<String, String> threads = new HashMap<>();
+        Map<String, List<Long>> seqs = new HashMap<>();
+        for (Record record : mapper.records) {
+            String previous = threads.putIfAbsent(record.shard, record.thread);
+            assertTrue(record.shard, (previous == null) || previous.equals(record.thread));
+            seqs.computeIfAbsent(record.shard, key -> new ArrayList<>()).add(record.seq);
+        }
+        for (int shard = 0; shard < next.length; shard++) {
+            List<Long> shardSeqs = seqs.get("s" + shard);
+            assertEquals(next[shard], shardSeqs.size());
+            for (int i = 0; i < shardSeqs.size(); i++) {
+                assertEquals(i, (long) shardSeqs.get(i));
+            }
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void terminateWithPartialChunks() throws Exception {
+        for (QueueSource source : new QueueSource[]{QueueSource.sharded(), new QueueSource()}) {
+            for (int i = 0; i < 10; i++) {
+                source.queue.add(bundle(((i % 3) == 0) ? null : ("s" + i), i));
+            }
+            source.queue.add(QueueSource.END);
+            Recorder mapper = new Recorder(source, 4);
+            // chunks of 32 bundles are never filled and there is no timed flush
+            runFeeder(new MapFeederForkJoin(mapper, source, 4, 32, 0));
+            assertEquals(10, mapper.processed.get());
+            assertEquals(1, mapper.completed.get());
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void timedFlush() throws Exception {
+        QueueSource source = QueueSource.sharded();
+        Recorder mapper = new Recorder(source, 2);
+        Thread feeder = new Thread(new MapFeederForkJoin(mapper, source, 2, 32, 20));
+        feeder.start();
+        for (int i = 0; i < 3; i++) {
+            source.queue.add(bundle("s" + i, i));
+        }
+        // the source blocks with the bundles in partial chunks
+        while (mapper.processed.get() < 3) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, mapper.completed.get());
+        source.queue.add(QueueSource.END);
+        feeder.join();
+        assertEquals(3, mapper.processed.get());
+        assertEquals(1, mapper.completed.get());
+    }
+
+    @Test(timeout = 30000)
+    public void stealUnderSkew() throws Exception {
+        String hot = null;
+        for (int i = 0; hot == null; i++) {
+            if (Math.abs(PluggableHashFunction.hash("hot" + i) % 2) == 0) {
+                hot = "hot" + i;
+            }
+        }
+        QueueSource source = QueueSource.sharded();
+        CountDownLatch hotStarted = new CountDownLatch(1);
+        CountDownLatch hotRelease = new CountDownLatch(1);
+        String hotShard = hot;
+        Recorder mapper = new Recorder(source, 2) {
+            @Override
+            public void process(Bundle bundle) {
+                if (hotShard.equals(shard(bundle))) {
+                    hotStarted.countDown();
+                    Uninterruptibles.awaitUninterruptibly(hotRelease);
+                }
+                super.process(bundle);
+            }
+        };
+        Thread feeder = new Thread(new MapFeederForkJoin(mapper, source, 2, 1, 0));
+        feeder.start();
+        source.queue.add(bundle(hot, 0));
+        hotStarted.await();
+        for (int i = 0; i < 10; i++) {
+            source.queue.add(bundle(null, i));
+        }
+        // the unsharded chunks queued behind the busy thread are stolen by the idle one
+        while (mapper.processed.get() < 10) {
+            Thread.sleep(5);
+        }
+        for (Record record : mapper.records) {
+            assertNull(record.shard);
+            assertEquals("MapProcessor #1", record.thread);
+        }
+        hotRelease.countDown();
+        source.queue.add(QueueSource.END);
+        feeder.join();
+        assertEquals(11, mapper.processed.get());
+    }
+
+    private static void runFeeder(MapFeederForkJoin feeder) throws InterruptedException {
+        Thread thread = new Thread(feeder);
+        thread.start();
+        thread.join();
+        assertFalse(thread.isAlive());
+    }
+
+    private static final class Record {
+        final String shard;
+        final long seq;
+        final String thread;
+
+        Record(Bundle bundle) {
+            this.shard = shard(bundle);
+            this.seq = seq(bundle);
+            this.thread = Thread.currentThread().getName();
+        }
+    }
+
+    private static class Recorder extends StreamMapper {
+        final ConcurrentLinkedQueue<Record> records = new ConcurrentLinkedQueue<>();
+        final AtomicInteger processed = new AtomicInteger();
+        final AtomicInteger completed = new AtomicInteger();
+
+        Recorder(TaskDataSource source, int threads) {
+            super(source, null, null, null, false, 0, threads, false, false, null, false, 60, true, 1);
+        }
+
+        @Override
+        public void process(Bundle bundle) {
+            records.add(new Record(bundle));
+            processed.incrementAndGet();
+        }
+
+        @Override
+        public void process(List<Bundle> bundles) {
+            for (Bundle bundle : bundles) {
+                process(bundle);
+            }
+        }
+
+        @Override
+        public void taskComplete() {
+            completed.incrementAndGet();
+        }
+    }
+
+    /** Returns the bundles added to its queue and blocks while it is empty. */
+    public static class QueueSource extends TaskDataSource {
+        static final Bundle END = new ListBundle();
+
+        final BlockingQueue<Bundle> queue = new LinkedBlockingQueue<>();
+
+        static QueueSource sharded() throws Exception {
+            return Configs.decodeObject(QueueSource.class, "shardField: shard");
+        }
+
+        @Override
+        public void init() {
+        }
+
+        @Override
+        public Bundle next() {
+            Bundle bundle = Uninterruptibles.takeUninterruptibly(queue);
+            return (bundle == END) ? null : bundle;
+        }
+
+        @Override
+        public Bundle peek() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
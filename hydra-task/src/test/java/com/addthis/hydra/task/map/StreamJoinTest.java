@@ -0,0 +1,108 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.map;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.addthis.basis.util.LessFiles;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.codec.config.Configs;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StreamJoinTest {
+
+    private File spillDir;
+
+    @Before
+    public void setup() throws IOException {
+        spillDir = LessFiles.createTempDir();
+    }
+
+    @After
+    public void cleanup() {
+        LessFiles.deleteDir(spillDir);
+    }
+
+    private static Bundle row(String key, String hash, String field, String value) {
+        Bundle bundle = new ListBundle();
+        bundle.setValue(bundle.getFormat().getField("k"), ValueFactory.create(key));
+        bundle.setValue(bundle.getFormat().getField("h"), ValueFactory.create(hash));
+        bundle.setValue(bundle.getFormat().getField(field), ValueFactory.create(value));
+        return bundle;
+    }
+
+    private static Set<String> run(StreamJoin join) {
+        join.init();
+        List<Bundle> emitted = new ArrayList<>();
+        StreamEmitter emitter = emitted::add;
+        for (String hash : new String[]{"h1", "h2"}) {
+            for (int i = 0; i < 500; i++) {
+                join.process(row(hash + "-" + i, hash, "a", hash + "a" + i), emitter);
+            }
+            for (int i = 0; i < 500; i++) {
+                // every third key never gets its second field
+                if ((i % 3) != 0) {
+                    join.process(row(hash + "-" + i, hash, "b", hash + "b" + i), emitter);
+                }
+            }
+        }
+        join.streamComplete(emitter);
+        Set<String> result = new TreeSet<>();
+        for (Bundle bundle : emitted) {
+            assertEquals(2, bundle.getCount());
+            result.add(bundle.getValue(bundle.getFormat().getField("a")).asString().asNative() + "/" +
+                       bundle.getValue(bundle.getFormat().getField("b")).asString().asNative());
+        }
+        assertEquals(emitted.size(), result.size());
+        return result;
+    }
+
+    @Test
+    public void join() throws IOException {
+        StreamJoin join = Configs.decodeObject(StreamJoin.class, "key = k, hash = h, fields = [a, b]");
+        Set<String> result = run(join);
+        assertEquals(666, result.size());
+        assertTrue(result.contains("h1a1/h1b1"));
+        assertFalse(result.contains("h2a3/h2b3"));
+        assertEquals(0, join.getMemory());
+    }
+
+    @Test
+    public void spill() throws IOException {
+        StreamJoin memory = Configs.decodeObject(StreamJoin.class, "key = k, hash = h, fields = [a, b]");
+        StreamJoin spilling = Configs.decodeObject(
+                StreamJoin.class, "key = k, hash = h, fields = [a, b], partitions = 4, maxMemory = 4000, " +
+                                  "spillDir = \"" + spillDir.getPath() + "\"");
+        assertEquals(run(memory), run(spilling));
+        assertTrue(spilling.getSpills() > 0);
+        assertEquals(0, spilling.getMemory());
+        assertEquals(0, spillDir.list().length);
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.map;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.codec.config.Configs;
+import com.addthis.hydra.task.output.TaskDataOutput;
+import com.addthis.hydra.task.source.TaskDataSource;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Bundles handed to the mapper in batches must produce the same output as
+ * bundles handed over one at a time.
+ */
+public class StreamMapperBatchTest {
+
+    private static final ListBundleFormat format = new ListBundleFormat();
+
+    private static final int BUNDLES = 1000;
+
+    private static final int SHARDS = 20;
+
+    // does not divide BUNDLES, so the last batch of each thread is likely partial
+    private static final int BATCH = 7;
+
+    private static Bundle bundle(int shard, int seq) {
+        Bundle bundle = new ListBundle(format);
+        bundle.setValue(format.getField("shard"), ValueFactory.create("s" + shard));
+        bundle.setValue(format.getField("seq"), ValueFactory.create(seq));
+        return bundle;
+    }
+
+    private static String shard(Bundle bundle) {
+        return bundle.getValue(bundle.getFormat().getField("shard")).asString().asNative();
+    }
+
+    private static long seq(Bundle bundle) {
+        return bundle.getValue(bundle.getFormat().getField("seq")).asLong().getLong();
+    }
+
+    private static List<Bundle> input() {
+        Random random = new Random(13);
+        List<Bundle> bundles = new ArrayList<>(BUNDLES);
+        for (int i = 0; i < BUNDLES; i++) {
+            bundles.add(bundle(random.nextInt(SHARDS), i));
+        }
+        return bundles;
+    }
+
+    /** Drops every third bundle before mapping and every fifth after. */
+    private static MapDef filters() {
+        MapDef map = new MapDef();
+        map.filterIn = bundle -> (seq(bundle) % 3) != 0;
+        map.filterOut = bundle -> (seq(bundle) % 5) != 0;
+        return map;
+    }
+
+    private static StreamMapper mapper(TaskDataSource source, Collector output, int threads, boolean forkJoin,
+                                       int batchSize) {
+        return new StreamMapper(source, filters(), output, null, false, 0, threads, false, false, null, false,
+                                60, forkJoin, batchSize);
+    }
+
+    /** The output of every bundle processed one at a time on one thread, by shard. */
+    private static Map<String, List<Long>> expected() {
+        Collector output = new Collector();
+        StreamMapper mapper = mapper(new ListSource(), output, 1, false, 1);
+        for (Bundle bundle : input()) {
+            mapper.process(bundle);
+        }
+        return output.byShard();
+    }
+
+    @Test
+    public void processBatch() {
+        Map<String, List<Long>> expected = expected();
+        Collector output = new Collector();
+        StreamMapper mapper = mapper(new ListSource(), output, 1, false, BATCH);
+        List<Bundle> input = input();
+        for (int i = 0; i < input.size(); i += BATCH) {
+            // a modifiable copy, as handed over by the feeders
+            mapper.process(new ArrayList<>(input.subList(i, Math.min(i + BATCH, input.size()))));
+        }
+        assertEquals(expected, output.byShard());
+        assertEquals((BUNDLES + BATCH - 1) / BATCH, output.batches.get());
+    }
+
+    @Test
+    public void processBatchDroppingAll() {
+        Collector output = new Collector();
+        StreamMapper mapper = mapper(new ListSource(), output, 1, false, BATCH);
+        List<Bundle> batch = new ArrayList<>();
+        batch.add(bundle(0, 0));
+        batch.add(bundle(1, 3));
+        mapper.process(batch);
+        assertTrue(output.byShard().isEmpty());
+        assertEquals(0, output.batches.get());
+    }
+
+    @Test(timeout = 30000)
+    public void mapFeederQueues() throws Exception {
+        Map<String, List<Long>> expected = expected();
+        for (int batchSize : new int[]{1, BATCH}) {
+            Collector output = new Collector();
+            ListSource source = ListSource.sharded(input());
+            StreamMapper mapper = mapper(source, output, 4, false, batchSize);
+            runFeeder(new MapFeeder(mapper, source, 4, false));
+            assertEquals(expected, output.byShard());
+            assertEquals(1, output.completed.get());
+            assertEquals(batchSize > 1, output.batches.get() > 0);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void mapFeederRings() throws Exception {
+        Map<String, List<Long>> expected = expected();
+        for (int batchSize : new int[]{1, BATCH}) {
+            Collector output = new Collector();
+            ListSource source = ListSource.sharded(input());
+            StreamMapper mapper = mapper(source, output, 4, false, batchSize);
+            runFeeder(new MapFeeder(mapper, source, 4, true));
+            assertEquals(expected, output.byShard());
+            assertEquals(1, output.completed.get());
+            assertEquals(batchSize > 1, output.batches.get() > 0);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void mapFeederForkJoin() throws Exception {
+        Map<String, List<Long>> expected = expected();
+        for (int batchSize : new int[]{1, BATCH}) {
+            Collector output = new Collector();
+            ListSource source = ListSource.sharded(input());
+            StreamMapper mapper = mapper(source, output, 4, true, batchSize);
+            // chunks hold one source batch so the last chunks are partial
+            runFeeder(new MapFeederForkJoin(mapper, source, 4, 1, 0));
+            assertEquals(expected, output.byShard());
+            assertEquals(1, output.completed.get());
+            assertEquals(batchSize > 1, output.batches.get() > 0);
+        }
+    }
+
+    private static void runFeeder(Runnable feeder) throws InterruptedException {
+        Thread thread = new Thread(feeder);
+        thread.start();
+        thread.join();
+    }
+
+    /** Records the shard and sequence number of every bundle it is sent. */
+    private static final class Collector extends TaskDataOutput {
+        final List<Bundle> bundles = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger batches = new AtomicInteger();
+        final AtomicInteger completed = new AtomicInteger();
+
+        @Override
+        protected void open() {
+        }
+
+        @Override
+        public void send(Bundle bundle) {
+            bundles.add(bundle);
+        }
+
+        @Override
+        public void send(List<Bundle> batch) {
+            batches.incrementAndGet();
+            bundles.addAll(batch);
+        }
+
+        @Override
+        public void sendComplete() {
+            completed.incrementAndGet();
+        }
+
+        @Override
+        public void sourceError(Throwable cause) {
+            throw new AssertionError(cause);
+        }
+
+        /** Sequence numbers in the order they were sent, by shard. */
+        Map<String, List<Long>> byShard() {
+            Map<String, List<Long>> byShard = new TreeMap<>();
+            synchronized (bundles) {
+                for (Bundle bundle : bundles) {
+                    byShard.computeIfAbsent(shard(bundle), key -> new ArrayList<>()).add(seq(bundle));
+                }
+            }
+            return byShard;
+        }
+    }
+
+    /** Returns the given bundles and then null, without blocking. */
+    public static class ListSource extends TaskDataSource {
+        private Iterator<Bundle> bundles = Collections.emptyIterator();
+
+        static ListSource sharded(List<Bundle> bundles) throws Exception {
+            ListSource source = Configs.decodeObject(ListSource.class, "shardField: shard");
+            source.bundles = bundles.iterator();
+            return source;
+        }
+
+        @Override
+        public void init() {
+        }
+
+        @Override
+        public Bundle next() {
+            return bundles.hasNext() ? bundles.next() : null;
+        }
+
+        @Override
+        public Bundle peek() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
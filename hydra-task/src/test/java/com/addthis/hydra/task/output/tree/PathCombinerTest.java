@@ -0,0 +1,145 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.output.tree;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import com.addthis.basis.util.ClosableIterator;
+import com.addthis.basis.util.LessFiles;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleFormat;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.codec.config.Configs;
+import com.addthis.hydra.data.tree.DataTreeNode;
+import com.addthis.hydra.data.tree.TreeNodeData;
+import com.addthis.hydra.data.tree.concurrent.ConcurrentTree;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PathCombinerTest {
+
+    private final TreeMapper mapper = new TreeMapper();
+
+    private final BundleFormat format = mapper.getFormat();
+
+    private PathElement[] path() throws IOException {
+        PathElement[] path = new PathElement[]{
+                Configs.decodeObject(PathElement.class, "const = top"),
+                Configs.decodeObject(PathElement.class, "value {key = a, data.s.sum.key = n}"),
+                Configs.decodeObject(PathElement.class,
+                                     "value {key = b, data.t {\"key.top\" {key = c, size = 100}}, data.u.sum.key = n}")
+        };
+        for (PathElement element : path) {
+            element.resolve(mapper);
+        }
+        return path;
+    }
+
+    private Bundle bundle(Random random) {
+        Bundle bundle = mapper.createBundle();
+        bundle.setValue(format.getField("a"), ValueFactory.create("a" + random.nextInt(5)));
+        if (random.nextInt(4) != 0) {
+            bundle.setValue(format.getField("b"), ValueFactory.create("b" + random.nextInt(10)));
+        }
+        bundle.setValue(format.getField("c"), ValueFactory.create("c" + random.nextInt(20)));
+        bundle.setValue(format.getField("n"), ValueFactory.create(random.nextInt(1000)));
+        return bundle;
+    }
+
+    private static void collect(DataTreeNode node, String prefix, Map<String, String> result) {
+        ClosableIterator<DataTreeNode> iterator = node.getIterator();
+        try {
+            while (iterator.hasNext()) {
+                DataTreeNode child = iterator.next();
+                String name = prefix + "/" + child.getName();
+                StringBuilder builder = new StringBuilder();
+                builder.append(child.getCounter());
+                Map<String, TreeNodeData> data = child.getDataMap();
+                if (data != null) {
+                    for (String key : new String[]{"s", "u"}) {
+                        if (data.containsKey(key)) {
+                            builder.append(' ').append(key).append('=').append(data.get(key).getValue("sum"));
+                        }
+                    }
+                }
+                TreeNodeData top = (data != null) ? data.get("t") : null;
+                if (top != null) {
+                    for (int i = 0; i < 20; i++) {
+                        builder.append(' ').append(top.getValue("gc" + i));
+                    }
+                }
+                result.put(name, builder.toString());
+                collect(child, name, result);
+            }
+        } finally {
+            iterator.close();
+        }
+    }
+
+    @Test
+    public void combineMatchesDirect() throws Exception {
+        PathElement[] path = path();
+        File directDir = LessFiles.createTempDir();
+        File combinedDir = LessFiles.createTempDir();
+        try {
+            ConcurrentTree direct = new ConcurrentTree(directDir);
+            ConcurrentTree combined = new ConcurrentTree(combinedDir);
+            PathCombiner combiner = PathCombiner.create(path, 64);
+            assertNotNull(combiner);
+            Random random = new Random(7);
+            int touched = 0;
+            for (int i = 0; i < 1000; i++) {
+                Bundle bundle = bundle(random);
+                new TreeMapState(null, direct, path, bundle).process();
+                combiner.add(bundle);
+                if (combiner.full()) {
+                    touched += combiner.flush(combined);
+                }
+            }
+            touched += combiner.flush(combined);
+            Map<String, String> expected = new TreeMap<>();
+            Map<String, String> actual = new TreeMap<>();
+            collect(direct, "", expected);
+            collect(combined, "", actual);
+            assertEquals(56, expected.size());
+            assertEquals(expected, actual);
+            // each window updates far fewer nodes than the 2750 updates made directly
+            assertTrue(touched < 2000);
+            direct.close();
+            combined.close();
+        } finally {
+            LessFiles.deleteDir(directDir);
+            LessFiles.deleteDir(combinedDir);
+        }
+    }
+
+    @Test
+    public void notCombinable() throws IOException {
+        PathElement[] path = new PathElement[]{
+                Configs.decodeObject(PathElement.class, "value {key = a, once = true}")
+        };
+        assertNull(PathCombiner.create(path, 64));
+    }
+}
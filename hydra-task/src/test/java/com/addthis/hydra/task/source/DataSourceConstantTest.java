@@ -18,6 +18,8 @@ import javax.annotation.Syntax;
 
 import java.io.IOException;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 import com.addthis.bundle.core.Bundle;
@@ -77,6 +79,21 @@ public class DataSourceConstantTest {
         verifyNoMoreBundles();
     }
 
+    @Test
+    public void nextBatch() throws IOException {
+        source = initSource("bundles:[{A:a,B:1},{C:[1,2],D:[a,b]}], repeat:2");
+
+        List<Bundle> batch = new ArrayList<>();
+        assertEquals(4, source.nextBatch(batch, 4));
+        // the stream ends inside the second batch
+        assertEquals(2, source.nextBatch(batch, 4));
+        assertEquals(6, batch.size());
+        assertEquals("a", batch.get(4).getValue(batch.get(4).getFormat().getField("A")).asString().asNative());
+
+        exception.expect(NoSuchElementException.class);
+        source.nextBatch(batch, 4);
+    }
+
     @Test
     public void emptyBundles() throws IOException {
         source = initSource("bundles:[]");
@@ -0,0 +1,187 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.source;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import java.util.SortedMap;
+
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import com.addthis.basis.util.LessFiles;
+
+import com.addthis.hydra.store.db.DBKey;
+import com.addthis.hydra.store.db.PageDB;
+import com.addthis.hydra.store.skiplist.ConcurrentPage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MarkStoreTest {
+
+    private File dir;
+
+    @Before
+    public void setup() throws Exception {
+        dir = LessFiles.createTempDir();
+    }
+
+    @After
+    public void cleanup() {
+        LessFiles.deleteDir(dir);
+    }
+
+    private static Mark mark(String value, long index, boolean end) {
+        Mark mark = new Mark();
+        mark.set(value, index);
+        mark.setEnd(end);
+        return mark;
+    }
+
+    @Test
+    public void reopen() throws Exception {
+        MarkStore<SimpleMark> store = new MarkStore<>(dir, Mark.class, 20, 100);
+        for (int i = 0; i < 100; i++) {
+            store.put(new DBKey(42, "file" + i), mark("v" + i, i, (i % 2) == 0));
+        }
+        // later puts replace earlier ones
+        store.put(new DBKey(42, "file7"), mark("changed", 70, true));
+        store.close();
+        assertEquals(MarkStore.GENERATION, new File(dir, MarkStore.LOG).length());
+
+        store = new MarkStore<>(dir, Mark.class, 20, 100);
+        assertEquals(100, store.size());
+        SimpleMark mark = store.get(new DBKey(42, "file7"));
+        assertEquals("changed", mark.getValue());
+        assertEquals(70, mark.getIndex());
+        assertTrue(mark.isEnd());
+        assertEquals(8, store.get(new DBKey(42, "file8")).getIndex());
+        assertNull(store.get(new DBKey(0, "file8")));
+        store.close();
+    }
+
+    @Test
+    public void getReturnsCopy() throws Exception {
+        MarkStore<SimpleMark> store = new MarkStore<>(dir, Mark.class, 20, 100);
+        DBKey key = new DBKey(42, "file");
+        store.put(key, mark("v", 1, false));
+        store.get(key).setIndex(5);
+        assertEquals(1, store.get(key).getIndex());
+        store.close();
+    }
+
+    @Test
+    public void replayLogAfterCrash() throws Exception {
+        MarkStore<SimpleMark> store = new MarkStore<>(dir, Mark.class, 20, 100);
+        store.put(new DBKey(42, "a"), mark("a", 1, false));
+        store.put(new DBKey(42, "b"), mark("b", 2, false));
+        store.commit();
+        store.put(new DBKey(42, "a"), mark("a", 3, true));
+        store.commit();
+        // never committed
+        store.put(new DBKey(42, "c"), mark("c", 4, false));
+        File log = new File(dir, MarkStore.LOG);
+        long committed = log.length();
+        // torn write at the end of the log
+        try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+            file.seek(committed);
+            file.write(new byte[]{0, 0, 0, 40, 1, 2, 3});
+        }
+
+        MarkStore<SimpleMark> reopened = new MarkStore<>(dir, Mark.class, 20, 100);
+        assertEquals(2, reopened.size());
+        assertEquals(3, reopened.get(new DBKey(42, "a")).getIndex());
+        assertTrue(reopened.get(new DBKey(42, "a")).isEnd());
+        assertEquals(2, reopened.get(new DBKey(42, "b")).getIndex());
+        assertNull(reopened.get(new DBKey(42, "c")));
+        assertEquals(committed, log.length());
+        reopened.close();
+    }
+
+    @Test
+    public void convertPageDB() throws Exception {
+        PageDB<SimpleMark> legacy = new PageDB<>(dir, Mark.class, 20, 100,
+                                                 ConcurrentPage.ConcurrentPageFactory.singleton);
+        for (int i = 0; i < 50; i++) {
+            legacy.put(new DBKey(42, "file" + i), mark("v" + i, i, false));
+        }
+        legacy.close();
+        assertFalse(new File(dir, MarkStore.SNAPSHOT).exists());
+
+        MarkStore<SimpleMark> store = new MarkStore<>(dir, Mark.class, 20, 100);
+        assertTrue(new File(dir, MarkStore.SNAPSHOT).exists());
+        assertEquals(50, store.size());
+        assertEquals("v17", store.get(new DBKey(42, "file17")).getValue());
+        assertEquals(17, store.get(new DBKey(42, "file17")).getIndex());
+        store.put(new DBKey(42, "file17"), mark("v17", 18, true));
+        store.close();
+
+        // converted only once
+        store = new MarkStore<>(dir, Mark.class, 20, 100);
+        assertEquals(18, store.get(new DBKey(42, "file17")).getIndex());
+        store.close();
+    }
+
+    @Test
+    public void staleLogIgnored() throws Exception {
+        MarkStore<SimpleMark> store = new MarkStore<>(dir, Mark.class, 20, 100);
+        store.put(new DBKey(42, "a"), mark("a", 1, false));
+        store.commit();
+        File log = new File(dir, MarkStore.LOG);
+        File stale = new File(dir, "stale.log");
+        Files.copy(log.toPath(), stale.toPath());
+        store.put(new DBKey(42, "a"), mark("a", 2, true));
+        store.close();
+        // crash after the snapshot was replaced but before the log was truncated
+        Files.move(stale.toPath(), log.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        store = new MarkStore<>(dir, Mark.class, 20, 100);
+        assertEquals(2, store.get(new DBKey(42, "a")).getIndex());
+        assertEquals(MarkStore.GENERATION, log.length());
+        store.put(new DBKey(42, "b"), mark("b", 3, false));
+        store.commit();
+
+        store = new MarkStore<>(dir, Mark.class, 20, 100);
+        assertEquals(2, store.get(new DBKey(42, "a")).getIndex());
+        assertEquals(3, store.get(new DBKey(42, "b")).getIndex());
+        store.close();
+    }
+
+    @Test
+    public void readWithoutModifying() throws Exception {
+        MarkStore<SimpleMark> store = new MarkStore<>(dir, Mark.class, 20, 100);
+        store.put(new DBKey(42, "a"), mark("a", 1, false));
+        store.close();
+        store = new MarkStore<>(dir, Mark.class, 20, 100);
+        store.put(new DBKey(42, "b"), mark("b", 2, false));
+        store.commit();
+        File log = new File(dir, MarkStore.LOG);
+        long length = log.length();
+
+        SortedMap<DBKey, SimpleMark> marks = MarkStore.read(dir, Mark.class);
+        assertEquals(2, marks.size());
+        assertEquals(1, marks.get(new DBKey(42, "a")).getIndex());
+        assertEquals(2, marks.get(new DBKey(42, "b")).getIndex());
+        assertEquals(length, log.length());
+        store.close();
+    }
+}
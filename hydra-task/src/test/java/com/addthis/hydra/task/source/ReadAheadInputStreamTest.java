@@ -0,0 +1,147 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.source;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReadAheadInputStreamTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static byte[] random(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void readAll() throws IOException {
+        for (int length : new int[]{0, 1, 99, 100, 101, 10_000}) {
+            byte[] bytes = random(length);
+            InputStream input = new ReadAheadInputStream(new ByteArrayInputStream(bytes), 3, 100, executor);
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[37];
+            int read;
+            // mix single byte and bulk reads
+            while ((read = input.read()) >= 0) {
+                output.write(read);
+                read = input.read(buffer);
+                if (read < 0) {
+                    break;
+                }
+                output.write(buffer, 0, read);
+            }
+            assertEquals(-1, input.read());
+            input.close();
+            assertArrayEquals(bytes, output.toByteArray());
+        }
+    }
+
+    @Test
+    public void errorAfterData() throws IOException {
+        byte[] bytes = random(250);
+        InputStream failing = new ByteArrayInputStream(bytes) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                if (available() == 0) {
+                    throw new IllegalStateException("broken");
+                }
+                return super.read(b, off, len);
+            }
+        };
+        InputStream input = new ReadAheadInputStream(failing, 2, 100, executor);
+        for (byte b : bytes) {
+            assertEquals(b & 0xff, input.read());
+        }
+        try {
+            input.read();
+            fail();
+        } catch (IOException ex) {
+            assertEquals("broken", ex.getCause().getMessage());
+        }
+        input.close();
+    }
+
+    @Test
+    public void closeEarly() throws IOException {
+        AtomicBoolean closed = new AtomicBoolean();
+        InputStream endless = new InputStream() {
+            @Override
+            public int read() {
+                return 1;
+            }
+
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        };
+        InputStream input = new ReadAheadInputStream(endless, 2, 100, executor);
+        assertEquals(1, input.read());
+        input.close();
+        assertTrue(closed.get());
+    }
+
+    @Test(timeout = 10000)
+    public void closeDuringBlockingRead() throws Exception {
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch closed = new CountDownLatch(1);
+        InputStream blocking = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                reading.countDown();
+                try {
+                    // like a socket read, only returns once the stream is closed
+                    closed.await();
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException();
+                }
+                throw new IOException("stream closed");
+            }
+
+            @Override
+            public void close() {
+                closed.countDown();
+            }
+        };
+        InputStream input = new ReadAheadInputStream(blocking, 2, 100, executor);
+        assertTrue(reading.await(5, TimeUnit.SECONDS));
+        input.close();
+        assertEquals(0, closed.getCount());
+    }
+}
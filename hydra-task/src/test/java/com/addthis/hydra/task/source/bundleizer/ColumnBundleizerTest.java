@@ -0,0 +1,103 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.source.bundleizer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.nio.charset.StandardCharsets;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.util.AutoField;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import static com.addthis.codec.config.Configs.decodeObject;
+
+public class ColumnBundleizerTest {
+
+    private static final String INPUT = "a,b,c\n" +
+                                        "\n" +
+                                        "  \r\n" +
+                                        "a,,c,\r" +
+                                        "'x,y',z\\,w,q\r\n" +
+                                        ",,\n" +
+                                        "1,2,3,4,5,6\n" +
+                                        "last";
+
+    static List<String> read(NewlineBundleizer factory, String input) throws IOException {
+        Bundleizer bundleizer = factory.createBundleizer(
+                new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), ListBundle::new);
+        List<String> result = new ArrayList<>();
+        Bundle bundle;
+        while ((bundle = bundleizer.next()) != null) {
+            result.add(bundle.toString());
+        }
+        return result;
+    }
+
+    private static void compare(String config) throws IOException {
+        List<String> lines = read(decodeObject(ColumnBundleizer.class, config), INPUT);
+        List<String> bytes = read(decodeObject(ColumnBundleizer.class, config + ", bytes = true"), INPUT);
+        Assert.assertEquals(6, lines.size());
+        Assert.assertEquals(lines, bytes);
+    }
+
+    @Test public void bytesMatchLines() throws Exception {
+        compare("columns = [a, b, c, d, e], tokens {separator = \",\"}");
+        compare("columns = [a, b, c, d, e], tokens {separator = \",\", group = [\"'\"]}");
+        compare("columns = [a, b, c, d, e], tokens {separator = \",\", group = [\"'\"], pack = true}");
+        compare("columns = [a, b], tokens {separator = \",\"}");
+    }
+
+    @Test public void utf8() throws Exception {
+        ColumnBundleizer factory = decodeObject(ColumnBundleizer.class,
+                                                "columns = [a, b], tokens {separator = \"\\t\"}, bytes = true");
+        Bundleizer bundleizer = factory.createBundleizer(
+                new ByteArrayInputStream("h\u00e9llo\t\u4e16\u754c\n".getBytes(StandardCharsets.UTF_8)),
+                ListBundle::new);
+        Bundle bundle = bundleizer.next();
+        Assert.assertEquals("h\u00e9llo", AutoField.newAutoField("a").getString(bundle).get());
+        Assert.assertEquals("\u4e16\u754c", AutoField.newAutoField("b").getString(bundle).get());
+        Assert.assertNull(bundleizer.next());
+    }
+
+    @Test public void longLines() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 50000; j++) {
+                builder.append(i).append(j).append(',');
+            }
+            builder.append('\n');
+        }
+        String config = "columns = [a, b, c], tokens {separator = \",\"}";
+        Assert.assertEquals(read(decodeObject(ColumnBundleizer.class, config), builder.toString()),
+                            read(decodeObject(ColumnBundleizer.class, config + ", bytes = true"), builder.toString()));
+    }
+
+    @Test public void keyValue() throws Exception {
+        String input = "a=1&b=x+y&c=%41%zz%4\n" +
+                       "d&e=&f=%E4%B8%96\r\n" +
+                       "g=h\n";
+        List<String> lines = read(decodeObject(KVBundleizer.class, "{}"), input);
+        List<String> bytes = read(decodeObject(KVBundleizer.class, "bytes = true"), input);
+        Assert.assertEquals(3, lines.size());
+        Assert.assertEquals(lines, bytes);
+    }
+}